@@ -0,0 +1,286 @@
+package eu.fuegenstein.util;
+
+import java.util.Arrays;
+
+/**
+ * Streaming quantile sketch (merging t-digest, Dunning & Ertl).
+ *
+ * Values are collected in a buffer which is periodically merged into
+ * a sorted list of centroids (mean, weight). Centroids near the tails
+ * are kept small, so quantiles close to 0 and 1 are very accurate
+ * while memory stays bounded at about 2 * compression centroids,
+ * regardless of the number of values added.
+ *
+ * As long as no more than the buffer size has been added, the values
+ * are not compressed and quantiles are exact. This also applies to
+ * digests merged from such small digests.
+ *
+ * Digests can be merged, i.e. to combine the digests of track segments.
+ *
+ * @author rfu
+ *
+ */
+public class TDigest {
+
+	public static final double DEFAULT_COMPRESSION = 100;
+
+	private final double compression;
+
+	// centroids, sorted by mean
+	private double[] mean;
+	private double[] weight;
+	private int centroids = 0;
+
+	// unmerged values
+	private double[] buffer;
+	private int buffered = 0;
+
+	private double count = 0;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * Constructor
+	 */
+	public TDigest() {
+		this(DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Constructor
+	 * @param compression higher values give more accuracy at the cost of memory
+	 */
+	public TDigest(double compression) {
+		this.compression = compression;
+		int size = (int) Math.ceil(2 * compression) + 10;
+		mean = new double[size];
+		weight = new double[size];
+		buffer = new double[5 * size];
+	}
+
+	/**
+	 *
+	 * @param value
+	 */
+	public void add(double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+		if (buffered == buffer.length) {
+			compress();
+		}
+		buffer[buffered++] = value;
+		count++;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Remove a previously added value. The weight of the
+	 * centroid closest to the value is decreased, so the
+	 * digest remains approximate.
+	 * @param value
+	 */
+	public void remove(double value) {
+		for (int i = 0; i < buffered; i++) {
+			if (buffer[i] == value) {
+				buffer[i] = buffer[--buffered];
+				count--;
+				return;
+			}
+		}
+		if (centroids == 0) {
+			return;
+		}
+		int idx = Arrays.binarySearch(mean, 0, centroids, value);
+		if (idx < 0) {
+			idx = -idx - 1;
+			if (idx == centroids || (idx > 0 && value - mean[idx - 1] < mean[idx] - value)) {
+				idx--;
+			}
+		}
+		weight[idx]--;
+		count--;
+		if (weight[idx] <= 0) {
+			System.arraycopy(mean, idx + 1, mean, idx, centroids - idx - 1);
+			System.arraycopy(weight, idx + 1, weight, idx, centroids - idx - 1);
+			centroids--;
+		}
+	}
+
+	/**
+	 * add all values of the given digest to this one
+	 * @param other
+	 */
+	public void merge(TDigest other) {
+		if (other.count == 0) {
+			return;
+		}
+		if ((centroids == 0) && (other.centroids == 0) && (buffered + other.buffered <= buffer.length)) {
+			// keep values exact
+			System.arraycopy(other.buffer, 0, buffer, buffered, other.buffered);
+			buffered += other.buffered;
+			count += other.count;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+			return;
+		}
+		other.compress();
+		compress();
+		mergeCentroids(other.mean, other.weight, other.centroids);
+		count += other.count;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 *
+	 * @return number of values in this digest
+	 */
+	public long getCount() {
+		return Math.round(count);
+	}
+
+	/**
+	 *
+	 * @param q quantile, 0..1
+	 * @return estimated value at the given quantile, or 0 if the digest is empty
+	 */
+	public double quantile(double q) {
+		if (centroids == 0) {
+			return exactQuantile(q);
+		}
+		compress();
+		if (centroids == 0) {
+			return 0.0;
+		}
+		if (centroids == 1) {
+			return mean[0];
+		}
+		// rank of the requested value, values are at ranks 0..count-1.
+		// a centroid is located in the middle of the ranks it covers.
+		double rank = Math.max(0, Math.min(1, q)) * (count - 1);
+		double prevRank = 0;
+		double prevMean = min;
+		double start = 0;
+		for (int i = 0; i < centroids; i++) {
+			double center = start + (weight[i] - 1) / 2;
+			if (rank <= center) {
+				return interpolate(rank, prevRank, prevMean, center, mean[i]);
+			}
+			prevRank = center;
+			prevMean = mean[i];
+			start += weight[i];
+		}
+		return interpolate(rank, prevRank, prevMean, count - 1, max);
+	}
+
+	/**
+	 * quantile of the buffered values, if none have been compressed yet
+	 * @param q quantile, 0..1
+	 * @return value at the given quantile, or 0 if the digest is empty
+	 */
+	private double exactQuantile(double q) {
+		if (buffered == 0) {
+			return 0.0;
+		}
+		Arrays.sort(buffer, 0, buffered);
+		double rank = Math.max(0, Math.min(1, q)) * (buffered - 1);
+		int lower = (int) rank;
+		int upper = Math.min(lower + 1, buffered - 1);
+		return interpolate(rank, lower, buffer[lower], upper, buffer[upper]);
+	}
+
+	/**
+	 * merge buffered values into the centroids
+	 */
+	private void compress() {
+		if (buffered == 0) {
+			return;
+		}
+		Arrays.sort(buffer, 0, buffered);
+		double[] w = new double[buffered];
+		Arrays.fill(w, 1.0);
+		int n = buffered;
+		buffered = 0;
+		mergeCentroids(buffer, w, n);
+	}
+
+	/**
+	 * merge the given sorted centroids with the existing ones
+	 * and combine adjacent centroids as long as the size limit
+	 * given by the scale function allows.
+	 * @param otherMean
+	 * @param otherWeight
+	 * @param otherSize
+	 */
+	private void mergeCentroids(double[] otherMean, double[] otherWeight, int otherSize) {
+		int total = centroids + otherSize;
+		double[] m = new double[total];
+		double[] w = new double[total];
+		double totalWeight = 0;
+		int i = 0;
+		int j = 0;
+		for (int k = 0; k < total; k++) {
+			if (j >= otherSize || (i < centroids && mean[i] <= otherMean[j])) {
+				m[k] = mean[i];
+				w[k] = weight[i++];
+			} else {
+				m[k] = otherMean[j];
+				w[k] = otherWeight[j++];
+			}
+			totalWeight += w[k];
+		}
+
+		int size = 0;
+		double done = 0; // weight of all completed centroids
+		double curMean = m[0];
+		double curWeight = w[0];
+		double limit = totalWeight * qLimit(0, totalWeight);
+		for (int k = 1; k < total; k++) {
+			if (done + curWeight + w[k] <= limit) {
+				curWeight += w[k];
+				curMean += (m[k] - curMean) * w[k] / curWeight;
+			} else {
+				size = store(size, curMean, curWeight);
+				done += curWeight;
+				limit = totalWeight * qLimit(done, totalWeight);
+				curMean = m[k];
+				curWeight = w[k];
+			}
+		}
+		centroids = store(size, curMean, curWeight);
+	}
+
+	/**
+	 * largest quantile the centroid starting at the given weight may reach,
+	 * using the k1 scale function k(q) = compression / (2 * pi) * asin(2q - 1)
+	 * @param done
+	 * @param total
+	 * @return
+	 */
+	private double qLimit(double done, double total) {
+		double k = compression / (2 * Math.PI) * Math.asin(2 * (done / total) - 1) + 1;
+		if (k >= compression / 4) {
+			return 1.0;
+		}
+		return (Math.sin(k * 2 * Math.PI / compression) + 1) / 2;
+	}
+
+	private int store(int idx, double m, double w) {
+		if (idx == mean.length) {
+			mean = Arrays.copyOf(mean, idx * 2);
+			weight = Arrays.copyOf(weight, idx * 2);
+		}
+		mean[idx] = m;
+		weight[idx] = w;
+		return idx + 1;
+	}
+
+	private static double interpolate(double x, double x0, double y0, double x1, double y1) {
+		if (x1 <= x0) {
+			return y1;
+		}
+		return y0 + (y1 - y0) * (x - x0) / (x1 - x0);
+	}
+}
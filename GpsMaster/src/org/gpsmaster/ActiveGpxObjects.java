@@ -4,6 +4,7 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Stack;
 
@@ -15,7 +16,9 @@ import javax.swing.tree.DefaultTreeModel;
 import org.gpsmaster.gpxpanel.GPXFile;
 import org.gpsmaster.gpxpanel.GPXObject;
 import org.gpsmaster.gpxpanel.GPXRoot;
+import org.gpsmaster.gpxpanel.SpatialIndex;
 import org.gpsmaster.gpxpanel.Track;
+import org.gpsmaster.gpxpanel.TrackpointPositions;
 import org.gpsmaster.gpxpanel.Waypoint;
 import org.gpsmaster.gpxpanel.WaypointGroup;
 import org.gpsmaster.marker.Marker;
@@ -44,6 +47,8 @@ public class ActiveGpxObjects {
 	private GPXObject gpxObject = null;
 	private GPXFile gpxFile = null;
 	private List<WaypointGroup> allGroups = new ArrayList<WaypointGroup>();
+	private TrackpointPositions positions = new TrackpointPositions(allGroups);
+	private SpatialIndex spatialIndex = new SpatialIndex();
 
 	private PropertyChangeSupport pcs = null;
 	private PropertyChangeListener propertyListener = null;
@@ -130,6 +135,16 @@ public class ActiveGpxObjects {
 		refreshTree();
 	}
 
+	/**
+	 * Get the spatial index over the waypoints and trackpoints of
+	 * all {@link GPXFile}s. It is kept up to date when files are added
+	 * or removed (via {@link #refreshTree()}) and on {@link #refresh()}.
+	 * @return
+	 */
+	public SpatialIndex getSpatialIndex() {
+		return spatialIndex;
+	}
+
 	/**
 	 *
 	 * @return
@@ -275,11 +290,7 @@ public class ActiveGpxObjects {
 	 * @return Number of waypoints, 0 if none.
 	 */
 	public int getNumWaypoints() {
-		int count = 0;
-		for (WaypointGroup group : allGroups) {
-			count += group.getNumPts();
-		}
-		return count;
+		return positions.size();
 	}
 
 	/**
@@ -292,7 +303,16 @@ public class ActiveGpxObjects {
 	public int getIndexOf(Waypoint wpt) {
 		int idx = -1;
 		if ((activeGroup != null) && (wpt != null)) {
-			idx = activeGroup.getWaypoints().indexOf(wpt);
+			int offset = positions.getOffset(activeGroup);
+			if (offset == -1) {
+				// not one of the active groups
+				idx = activeGroup.getWaypoints().indexOf(wpt);
+			} else {
+				int total = positions.getTotalIndexOf(wpt);
+				if (total != -1 && positions.getGroup(total) == activeGroup) {
+					idx = total - offset;
+				}
+			}
 		}
 		return idx;
 	}
@@ -303,17 +323,7 @@ public class ActiveGpxObjects {
 	 * @return
 	 */
 	public int getTotalIndexOf(Waypoint wpt) {
-		int offset = 0;
-		if (wpt != null) {
-			for (WaypointGroup group : allGroups) {
-				int idx = group.getWaypoints().indexOf(wpt);
-				if (idx > -1) { // this group contains the waypoint
-					return offset + idx;
-				}
-				offset += group.getNumPts();
-			}
-		}
-		return -1;
+		return positions.getTotalIndexOf(wpt);
 	}
 
 	/**
@@ -323,20 +333,8 @@ public class ActiveGpxObjects {
 	 * the active {@link Waypoint} is set to {@link null}
 	 */
 	public void setTrackpoint(int totalIdx) {
-		Waypoint wpt = null;
-		activeGroup = null;
-		int start = 0;
-		int end = 0;
-		for (WaypointGroup group : allGroups) {
-			end += group.getNumPts();
-			if (totalIdx <= end) {
-				int idx = totalIdx - start;
-				wpt = group.getWaypoints().get(idx);
-				activeGroup = group;
-				break;
-			}
-			start += group.getNumPts();
-		}
+		Waypoint wpt = positions.getTrackpoint(totalIdx);
+		activeGroup = positions.getGroup(totalIdx);
 		setActiveTrackpoint(wpt, false);
 	}
 
@@ -401,6 +399,11 @@ public class ActiveGpxObjects {
 		if (gpxObject != null) {
 			gpxObject.updateAllProperties(); // done here centrally, as courtesy
 		}
+		positions.invalidate();
+		spatialIndex.invalidate(allGroups);
+		if (gpxObject instanceof GPXFile) {
+			spatialIndex.invalidate(Collections.singletonList(((GPXFile) gpxObject).getWaypointGroup()));
+		}
 		pcs.firePropertyChange(Const.PCE_REFRESHGPX, null, null);
 	}
 
@@ -428,6 +431,8 @@ public class ActiveGpxObjects {
 
 			// quick hack: track segments may have been added / removed, therefore:
 			allGroups = core.getSegments(gpxObject, SEG_ROUTE_TRACK);
+			positions = new TrackpointPositions(allGroups);
+			spatialIndex.update(gpxRoot.getGpxFiles());
 
 			// modification of the explorer tree structure most certainly
 			// affects the map - repaint it.
@@ -467,6 +472,7 @@ public class ActiveGpxObjects {
 		activeTrackpoint = null;
 		activeGroup = null;
 		allGroups.clear();
+		positions.invalidate();
 		// undoStack.clear();
 	}
 
@@ -545,13 +551,7 @@ public class ActiveGpxObjects {
 			activeTrackpoint = wpt;
 
 			if (autoSetGroup) {
-				activeGroup = null;
-				for (WaypointGroup group : allGroups) {
-					if (group.getWaypoints().contains(activeTrackpoint)) {
-						activeGroup = group;
-						break;
-					}
-				}
+				activeGroup = positions.getGroupOf(activeTrackpoint);
 			}
 			pcs.firePropertyChange(Const.PCE_ACTIVE_TRKPT, null, activeTrackpoint);
 		}
@@ -573,6 +573,7 @@ public class ActiveGpxObjects {
 			gpxObject = newObject;
 			gpxObject.setVisible(true); // current object is always visible
 			allGroups = core.getSegments(newObject, SEG_ROUTE_TRACK);
+			positions = new TrackpointPositions(allGroups);
 		}
 		// it is discouraged to use the gpxObject in event.getNewValue()
 		// it is provided here just for backward compatibility
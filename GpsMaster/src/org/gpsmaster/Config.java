@@ -37,6 +37,10 @@ public class Config {
 	private UnitSystem unitSystem = UnitSystem.METRIC;
 	private String gpsiesUsername = "";
 	private boolean showStartEnd = true;
+	private String tileCacheFile = ""; // empty: default location in user's home
+	private int tileCacheSize = 256; // MB
+	private String parseCacheDir = ""; // empty: default location in user's home
+	private int parseCacheSize = 512; // MB
 
 	private List<DeviceConfig> deviceLoaders = new ArrayList<DeviceConfig>();
 	private List<NamedConfigColor> configColors = new ArrayList<NamedConfigColor>();
@@ -280,6 +284,62 @@ public class Config {
 		this.showStartEnd = showStartEnd;
 	}
 
+	/**
+	 * @return file holding the tile cache. empty for default location
+	 */
+	public String getTileCacheFile() {
+		return tileCacheFile;
+	}
+
+	/**
+	 * @param tileCacheFile file holding the tile cache
+	 */
+	public void setTileCacheFile(String tileCacheFile) {
+		this.tileCacheFile = tileCacheFile;
+	}
+
+	/**
+	 * @return maximum size of the tile cache on disk in MB
+	 */
+	public int getTileCacheSize() {
+		return tileCacheSize;
+	}
+
+	/**
+	 * @param tileCacheSize maximum size of the tile cache on disk in MB
+	 */
+	public void setTileCacheSize(int tileCacheSize) {
+		this.tileCacheSize = tileCacheSize;
+	}
+
+	/**
+	 * @return directory holding the cache of parsed files. empty for default location
+	 */
+	public String getParseCacheDir() {
+		return parseCacheDir;
+	}
+
+	/**
+	 * @param parseCacheDir directory holding the cache of parsed files
+	 */
+	public void setParseCacheDir(String parseCacheDir) {
+		this.parseCacheDir = parseCacheDir;
+	}
+
+	/**
+	 * @return maximum size of the cache of parsed files in MB, 0 to disable
+	 */
+	public int getParseCacheSize() {
+		return parseCacheSize;
+	}
+
+	/**
+	 * @param parseCacheSize maximum size of the cache of parsed files in MB, 0 to disable
+	 */
+	public void setParseCacheSize(int parseCacheSize) {
+		this.parseCacheSize = parseCacheSize;
+	}
+
 	public boolean isShowScalebar() {
 		return showScalebar;
 	}
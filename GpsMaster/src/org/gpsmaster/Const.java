@@ -78,6 +78,8 @@ public final class Const {
 	public static final String PCE_ELEFINISHED = "eleFinished";
 	public static final String PCE_TRANSFERSTARTED = "transferStarted";
 	public static final String PCE_TRANSFERFINISHED = "transferFinished";
+	public static final String PCE_CLEANINGSTARTED = "cleaningStarted";
+	public static final String PCE_CLEANINGFINISHED = "cleaningFinished";
 	public static final String PCE_TRANSFERITEMSTATECHANGED = "transferItemStateChanged";
 	public static final String PCE_LOGCHANGED = "logChanged";
 	public static final String PCE_CENTERMAP = "centerMap"; // set the center of the map
@@ -42,6 +42,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 import javax.imageio.ImageIO;
 import javax.swing.AbstractAction;
@@ -92,6 +93,7 @@ import org.gpsmaster.gpsloader.FileDropHandler;
 import org.gpsmaster.gpsloader.GpsLoader;
 import org.gpsmaster.gpsloader.GpsLoaderFactory;
 import org.gpsmaster.gpsloader.LoaderConfig;
+import org.gpsmaster.gpsloader.ParseCache;
 import org.gpsmaster.gpxpanel.ArrowType;
 import org.gpsmaster.gpxpanel.GPXExtension;
 import org.gpsmaster.gpxpanel.GPXFile;
@@ -156,6 +158,8 @@ import org.gpsmaster.filehub.MapTarget;
 import org.gpsmaster.filehub.TransferableItem;
 import org.openstreetmap.gui.jmapviewer.Coordinate;
 import org.openstreetmap.gui.jmapviewer.OsmMercator;
+import org.openstreetmap.gui.jmapviewer.DiskTileLoader;
+import org.openstreetmap.gui.jmapviewer.DiskTileStore;
 import org.openstreetmap.gui.jmapviewer.OsmTileLoader;
 import org.openstreetmap.gui.jmapviewer.events.JMVCommandEvent;
 import org.openstreetmap.gui.jmapviewer.interfaces.JMapViewerEventListener;
@@ -299,6 +303,7 @@ public class GpsMaster extends JComponent {
     private ProgressPainter progressPainter = null;
     private ArrowPainter arrowPainter = null;
     private DbLayer db = null;
+    private DiskTileStore tileStore = null;
 
     private PropertyChangeListener propertyListener = null;
     private WindowAdapter windowListener = null;
@@ -655,10 +660,33 @@ public class GpsMaster extends JComponent {
         }
 
         try {
-            mapPanel.setTileLoader(new OsmTileLoader(mapPanel));
+        	String tileCacheFile = conf.getTileCacheFile();
+        	if (tileCacheFile.isEmpty()) {
+        		tileCacheFile = System.getProperty("user.home") + File.separator
+        				+ ".gpsmaster" + File.separator + "tiles.cache";
+        	}
+        	tileStore = new DiskTileStore(new File(tileCacheFile), conf.getTileCacheSize() * 1024L * 1024L);
+            mapPanel.setTileLoader(new DiskTileLoader(mapPanel, tileStore));
         } catch (Exception e) {
             msg.error("There was a problem constructing the tile cache on disk", e);
+            mapPanel.setTileLoader(new OsmTileLoader(mapPanel));
+        }
+
+        if (conf.getParseCacheSize() > 0) {
+        	try {
+        		String parseCacheDir = conf.getParseCacheDir();
+        		if (parseCacheDir.isEmpty()) {
+        			parseCacheDir = System.getProperty("user.home") + File.separator
+        					+ ".gpsmaster" + File.separator + "parsecache";
+        		}
+        		ParseCache parseCache = new ParseCache(new File(parseCacheDir), conf.getParseCacheSize() * 1024L * 1024L);
+        		parseCache.setMessageCenter(msg);
+        		GpsLoaderFactory.setParseCache(parseCache);
+        	} catch (Exception e) {
+        		msg.error("There was a problem constructing the cache of parsed files", e);
+        	}
         }
+        GpsLoaderFactory.setLoaderConfigs(conf.getLoaderConfigs());
 
         mapPanel.addMouseListener(new MouseAdapter() {
             @Override
@@ -1402,13 +1430,25 @@ public class GpsMaster extends JComponent {
 	                            && ((WaypointGroup) activeGPXObject).getWptGrpType() == WptGrpType.WAYPOINTS) {
 	                        group = (WaypointGroup) activeGPXObject;
 	                    }
-	                    group.addWaypoint(wpt);
+	                    Lock lock = GPXFile.getLock().writeLock();
+	                    lock.lock();
+	                    try {
+	                    	group.addWaypoint(wpt);
+	                    } finally {
+	                    	lock.unlock();
+	                    }
 	                    active.addUndoOperation(new UndoAddWaypoint(wpt, group));
 	                }
                 	if (tglAddWaypoint.isSelected()) {
                 		wpt = new WaypointMarker(lat, lon);
                 		WaypointGroup group = gpxFile.getWaypointGroup();
-                		group.addWaypoint(wpt);
+                		Lock lock = GPXFile.getLock().writeLock();
+                		lock.lock();
+                		try {
+                			group.addWaypoint(wpt);
+                		} finally {
+                			lock.unlock();
+                		}
                 		active.addUndoOperation(new UndoAddWaypoint(wpt, group));
                 		active.refreshTree();
                 	}
@@ -1428,7 +1468,13 @@ public class GpsMaster extends JComponent {
                     mapCursor = CROSSHAIR_CURSOR;
                     GPXObject gpxObject = active.getGpxObject();
                     if (gpxObject.isGPXFileWithNoRoutes()) {
-                        Route route = ((GPXFile) gpxObject).addRoute();
+                        Lock lock = GPXFile.getLock().writeLock();
+                        lock.lock();
+                        try {
+                        	((GPXFile) gpxObject).addRoute();
+                        } finally {
+                        	lock.unlock();
+                        }
                         // tree.addGpxObject(route, gpxObject);
                         active.refreshTree();
                         updateButtonVisibility();
@@ -1641,9 +1687,19 @@ public class GpsMaster extends JComponent {
                     if (tglDelPoints.isSelected()) {
                     	WaypointGroup group = active.getGroup();
                     	if (group != null) {
+                    		int idx = group.getWaypoints().indexOf(activeWpt);
                     		active.addUndoOperation(new UndoRemoveWaypoint(activeWpt, group));
-                    		group.removeWaypoint(activeWpt);
-                    		gpxFile.updateAllProperties();
+                    		Lock lock = GPXFile.getLock().writeLock();
+                    		lock.lock();
+                    		try {
+                    			group.removeWaypoint(activeWpt);
+                    		} finally {
+                    			lock.unlock();
+                    		}
+                    		group.updateParentProperties();
+                    		if (idx > -1) {
+                    			active.getSpatialIndex().pointRemoved(group, idx, activeWpt);
+                    		}
                     	}
                     } else if (tglSplitTrackseg.isSelected()) {
                         splitTrackSeg(gpxFile);
@@ -1941,6 +1997,9 @@ public class GpsMaster extends JComponent {
         	@Override
         	public void windowClosing(WindowEvent we) {
         		saveConfig();
+        		if (tileStore != null) {
+        			tileStore.close();
+        		}
         		if (db != null) {
         			try {
 						db.disconnect();
@@ -2212,6 +2271,7 @@ public class GpsMaster extends JComponent {
 
 		if (conf.getDbConfig().getDSN().isEmpty() == false) {
 			db = new DbLayer(conf.getDbConfig());
+			db.setMessageCenter(msg);
 			try {
 				db.connect();
 				btnDatabase.setVisible(true);
@@ -2363,9 +2423,15 @@ public class GpsMaster extends JComponent {
 		tracksegAfterSplit2.setWaypoints(trackptsAfterSplit2);
 
 		Track track = active.getTrackForSegment(tracksegBeforeSplit);
-		track.getTracksegs().remove(tracksegBeforeSplit);
-		track.addTrackseg(tracksegAfterSplit2);
-		track.addTrackseg(tracksegAfterSplit1);
+		Lock lock = GPXFile.getLock().writeLock();
+		lock.lock();
+		try {
+			track.getTracksegs().remove(tracksegBeforeSplit);
+			track.addTrackseg(tracksegAfterSplit2);
+			track.addTrackseg(tracksegAfterSplit1);
+		} finally {
+			lock.unlock();
+		}
 
 		gpxFile.updateAllProperties();
 		active.addUndoOperation(new UndoSplitTrackSeg(track, tracksegAfterSplit1, tracksegAfterSplit2));
@@ -2507,24 +2573,30 @@ public class GpsMaster extends JComponent {
             if (gpxObject.isGPXFile()) { // this is a GPX file
             	active.removeGpxFile(gpxFile); // TODO remove in msgPanel via active.propertyHandler
             } else {
-                if (gpxObject.isRoute()) { // this is a route
-                    gpxFile.getRoutes().remove((Route) gpxObject);
-                    // TODO remove RoutePointMarker
-                } else if (gpxObject.isTrack()) { // this is a track
-                	gpxFile.getTracks().remove((Track) gpxObject);
-                } else if (gpxObject.isWaypointGroup()) {
-                    WaypointGroup wptGrp = (WaypointGroup) gpxObject;
-                    if (wptGrp.getWptGrpType() == WptGrpType.TRACKSEG) { // track seg
-                    	for (Track track : gpxFile.getTracks()) {
-                    		if (track.getTracksegs().contains(wptGrp)) {
-                    			track.getTracksegs().remove(wptGrp);
-                    			break;
-                    		}
-                    	}
-                    } else { // this is a top-level waypoint group
-                        gpxFile.getWaypointGroup().getWaypoints().clear();
-                    }
-                }
+            	Lock lock = GPXFile.getLock().writeLock();
+            	lock.lock();
+            	try {
+	                if (gpxObject.isRoute()) { // this is a route
+	                    gpxFile.getRoutes().remove((Route) gpxObject);
+	                    // TODO remove RoutePointMarker
+	                } else if (gpxObject.isTrack()) { // this is a track
+	                	gpxFile.getTracks().remove((Track) gpxObject);
+	                } else if (gpxObject.isWaypointGroup()) {
+	                    WaypointGroup wptGrp = (WaypointGroup) gpxObject;
+	                    if (wptGrp.getWptGrpType() == WptGrpType.TRACKSEG) { // track seg
+	                    	for (Track track : gpxFile.getTracks()) {
+	                    		if (track.getTracksegs().contains(wptGrp)) {
+	                    			track.getTracksegs().remove(wptGrp);
+	                    			break;
+	                    		}
+	                    	}
+	                    } else { // this is a top-level waypoint group
+	                        gpxFile.getWaypointGroup().getWaypoints().clear();
+	                    }
+	                }
+            	} finally {
+            		lock.unlock();
+            	}
                 gpxFile.updateAllProperties();
             }
             active.refreshTree(gpxObject.getParent());
@@ -2549,7 +2621,13 @@ public class GpsMaster extends JComponent {
     	track.setDesc(route.getDesc());
     	track.setSrc(route.getSrc());
     	track.addTrackseg(new WaypointGroup(route.getPath()));
-    	gpx.addTrack(track);
+    	Lock lock = GPXFile.getLock().writeLock();
+    	lock.lock();
+    	try {
+    		gpx.addTrack(track);
+    	} finally {
+    		lock.unlock();
+    	}
     	gpx.updateAllProperties();
     	active.refresh();
     	active.refreshTree();
@@ -2570,13 +2648,19 @@ public class GpsMaster extends JComponent {
     	}
 
     	GPXFile gpx = active.getGpxFile();
-    	Route route = gpx.addRoute();
-    	route.setName(track.getName().replace("Track", "Route"));
-    	route.setCmt(track.getCmt());
-    	route.setDesc(track.getDesc());
-    	route.setSrc(track.getSrc());
-    	for (Waypoint wpt : track.getTracksegs().get(0).getWaypoints()) {
-    		route.getPath().addWaypoint(new Waypoint(wpt));
+    	Lock lock = GPXFile.getLock().writeLock();
+    	lock.lock();
+    	try {
+	    	Route route = gpx.addRoute();
+	    	route.setName(track.getName().replace("Track", "Route"));
+	    	route.setCmt(track.getCmt());
+	    	route.setDesc(track.getDesc());
+	    	route.setSrc(track.getSrc());
+	    	for (Waypoint wpt : track.getTracksegs().get(0).getWaypoints()) {
+	    		route.getPath().addWaypoint(new Waypoint(wpt));
+	    	}
+    	} finally {
+    		lock.unlock();
     	}
     	gpx.updateAllProperties();
     	active.refresh();
@@ -2589,7 +2673,14 @@ public class GpsMaster extends JComponent {
     private void addRoute() {
 
     	GPXFile gpx = active.getGpxFile();
-    	Route newRoute = gpx.addRoute();
+    	Route newRoute = null;
+    	Lock lock = GPXFile.getLock().writeLock();
+    	lock.lock();
+    	try {
+    		newRoute = gpx.addRoute();
+    	} finally {
+    		lock.unlock();
+    	}
     	newRoute.setName("New Route");
     	active.getUndoStack().push(new UndoAddRoute(newRoute, gpx));
     	active.refresh();
@@ -2745,7 +2836,13 @@ public class GpsMaster extends JComponent {
     		mapPanel.getMarkerList().remove(o);
     		GPXFile gpx = active.getGpxFile();
     		if (gpx != null) {
-    			gpx.getWaypointGroup().removeWaypoint((Marker) o);
+    			Lock lock = GPXFile.getLock().writeLock();
+    			lock.lock();
+    			try {
+    				gpx.getWaypointGroup().removeWaypoint((Marker) o);
+    			} finally {
+    				lock.unlock();
+    			}
     			mapPanel.repaint();
     		}
     	}
@@ -3264,6 +3361,7 @@ public class GpsMaster extends JComponent {
 
 		btnDatabase.setEnabled(false);
 		dbDialog.setUnitConverter(uc);
+		dbDialog.setMapPanel(mapPanel);
 		addPropertyChangeListener(dbDialog.getChangeListener());
 		dbDialog.addWindowListener(windowListener);
 		dbDialog.begin();
@@ -3313,8 +3411,24 @@ public class GpsMaster extends JComponent {
      */
     private void doCleaning() {
     	btnCleaning.setEnabled(false);
+		final ProgressWidget progressWidget = new ProgressWidget();
+		progressWidget.setTitle("Cleaning");
 		CleaningDialog dlg = new CleaningDialog(frame, msg);
 		dlg.setMarkerList(mapPanel.getMarkerList());
+		dlg.setProgressReporter(progressWidget);
+		dlg.addPropertyChangeListener(new PropertyChangeListener() {
+			@Override
+			public void propertyChange(PropertyChangeEvent evt) {
+				String propertyName = evt.getPropertyName();
+				if (propertyName.equals(Const.PCE_CLEANINGSTARTED)) {
+					mapPanel.add(progressWidget);
+					mapPanel.validate();
+				} else if (propertyName.equals(Const.PCE_CLEANINGFINISHED)) {
+					mapPanel.remove(progressWidget);
+					mapPanel.repaint();
+				}
+			}
+		});
 		dlg.addPropertyChangeListener(propertyListener);
 		dlg.addWindowListener(windowListener);
 		dlg.begin();
@@ -3465,8 +3579,8 @@ public class GpsMaster extends JComponent {
         /*
         LoaderConfig lcfg = new LoaderConfig();
         lcfg.setClassName("org.gpsmaster.gsploader.FitLoader");
-        lcfg.getMap().put("version", "2");
-        lcfg.getMap().put("keeprawdata", "0");
+        lcfg.setValue("version", "2");
+        lcfg.setValue("keeprawdata", "0");
         conf.getLoaderConfigs().add(lcfg);
 
         DeviceConfig deviceConfig = new DeviceConfig();
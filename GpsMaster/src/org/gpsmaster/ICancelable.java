@@ -9,4 +9,9 @@ package org.gpsmaster;
  */
 public interface ICancelable {
 
+	/**
+	 *
+	 * @return {@link true} if the user requested cancellation, false otherwise
+	 */
+	public boolean isCancelled();
 }
@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.gpsmaster.gpxpanel.DerivedColumns;
 import org.gpsmaster.gpxpanel.GPXPanel;
 import org.gpsmaster.gpxpanel.Waypoint;
 import org.gpsmaster.gpxpanel.WaypointGroup;
@@ -250,20 +251,18 @@ public class MeasureThings {
 	    		Waypoint wptEnd = groups.get(gEnd).getWaypoints().get(mp2.getPointIdx());
 	    		WaypointGroup g = groups.get(gIdx);
 	    		Waypoint wptStart = g.getWaypoints().get(idx);
-	    		Waypoint prev = wptStart;
-	    		Waypoint curr = null;
 	    		distance = 0.0f;
-	    		do {
-	    			idx++;
-	    			curr = g.getWaypoints().get(idx);
-	    			distance += curr.getDistance(prev);
-	    			prev = curr;
-	    			if ((idx == g.getWaypoints().size() - 1) && (gIdx < gEnd)) {
-	    				gIdx++;
-	    				g = groups.get(gIdx);
-	    				idx = -1;
-	    			}
-	    		} while (curr.equals(wptEnd) == false);
+	    		// along the groups in between, including the gaps between them
+	    		while (gIdx < gEnd) {
+	    			DerivedColumns columns = g.getDerivedColumns();
+	    			distance += columns.getDistance(idx, columns.size() - 1);
+	    			WaypointGroup next = groups.get(gIdx + 1);
+	    			distance += next.getStart().getDistance(g.getEnd());
+	    			gIdx++;
+	    			g = next;
+	    			idx = 0;
+	    		}
+	    		distance += g.getDerivedColumns().getDistance(idx, mp2.getPointIdx());
 
 	    		// show result
 	        	String dist = uc.dist(distance, Const.FMT_DIST);
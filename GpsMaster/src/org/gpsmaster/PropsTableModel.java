@@ -121,7 +121,7 @@ public class PropsTableModel extends DefaultTableModel {
 				updateWidth();
 			} else if (propertyName.equals(Const.PCE_ACTIVE_TRKPT)) {
 				Waypoint wpt = GpsMaster.active.getTrackpoint();
-				setTrackpoint(wpt, GpsMaster.active.getIndexOf(wpt));
+				setTrackpoint(wpt, GpsMaster.active.getGroup(), GpsMaster.active.getIndexOf(wpt));
 			}
 		}
 	};
@@ -201,7 +201,17 @@ public class PropsTableModel extends DefaultTableModel {
 	 * @param trackpoint
 	 */
 	public void setTrackpoint(Waypoint trackpoint, int indexOf) {
-		propsDisplayTrackpoint(trackpoint, indexOf);
+		setTrackpoint(trackpoint, null, indexOf);
+	}
+
+	/**
+	 *
+	 * @param trackpoint
+	 * @param group {@link WaypointGroup} containing the trackpoint, or {@link null}
+	 * @param indexOf position of the trackpoint in group
+	 */
+	public void setTrackpoint(Waypoint trackpoint, WaypointGroup group, int indexOf) {
+		propsDisplayTrackpoint(trackpoint, group, indexOf);
 		lastPropDisplay = System.currentTimeMillis();
 		timer.start();
 	}
@@ -362,7 +372,7 @@ public class PropsTableModel extends DefaultTableModel {
 	 *
 	 * @param wpt
 	 */
-	private void propsDisplayTrackpoint(Waypoint wpt, int indexOf) {
+	private void propsDisplayTrackpoint(Waypoint wpt, WaypointGroup group, int indexOf) {
 
 		if (wpt != null) {
 			clear();
@@ -379,6 +389,11 @@ public class PropsTableModel extends DefaultTableModel {
 			if (time != null) {
 				addRow(new Object[]{"time", sdf.format(time), false});
 			}
+			if (group != null) {
+				for (Object[] row : group.getDerivedColumns().getPropertyRows(indexOf, uc)) {
+					addRow(row);
+				}
+			}
 			if (wpt.getSat() > 0) { addRow(new Object[]{"sat", wpt.getSat(), false}); }
 			if (wpt.getHdop() > 0) { addRow(new Object[]{"hdop", wpt.getHdop(), false}); }
 			if (wpt.getVdop() > 0) { addRow(new Object[]{"vdop", wpt.getVdop(), false}); }
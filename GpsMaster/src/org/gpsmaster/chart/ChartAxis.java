@@ -5,6 +5,7 @@ import javax.swing.ImageIcon;
 import org.gpsmaster.Const;
 import org.gpsmaster.GpsMaster;
 import org.gpsmaster.gpxpanel.Waypoint;
+import org.gpsmaster.gpxpanel.WaypointGroup;
 import org.jfree.chart.axis.ValueAxis;
 import org.jfree.ui.RectangleInsets;
 
@@ -26,6 +27,20 @@ public abstract class ChartAxis {
 	public abstract double getValue(Waypoint wpt);
 	public abstract void reset();
 
+	/**
+	 * Get the values of all waypoints of the given group.
+	 * Consecutive calls continue where the previous group ended,
+	 * like consecutive calls of getValue().
+	 * @param group
+	 * @param values array to hold one value per waypoint
+	 */
+	public void getValues(WaypointGroup group, double[] values) {
+		int i = 0;
+		for (Waypoint wpt : group.getWaypoints()) {
+			values[i++] = getValue(wpt);
+		}
+	}
+
 	protected ImageIcon icon = null;
 	protected String iconFile = null;
 
@@ -3,12 +3,11 @@ package org.gpsmaster.chart;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.gpsmaster.gpxpanel.TrackpointPositions;
 import org.gpsmaster.gpxpanel.Waypoint;
 import org.gpsmaster.gpxpanel.WaypointGroup;
 import org.jfree.chart.axis.ValueAxis;
-import org.jfree.data.general.DatasetUtilities;
-import org.jfree.data.xy.XYSeries;
-import org.jfree.data.xy.XYSeriesCollection;
+import org.jfree.data.Range;
 
 /**
  *
@@ -18,7 +17,8 @@ import org.jfree.data.xy.XYSeriesCollection;
 public class ChartDataset {
 
 	private List<WaypointGroup> groups = null;
-	private XYSeriesCollection collection = null;
+	private DecimatedXYDataset collection = null;
+	private TrackpointPositions positions = null;
 	private ChartXAxis xAxis = null;
 	private ChartYAxis yAxis = null;
 
@@ -26,8 +26,9 @@ public class ChartDataset {
 	 * Default constructor
 	 */
 	public ChartDataset() {
-		collection = new XYSeriesCollection();
+		collection = new DecimatedXYDataset();
 		groups = new ArrayList<WaypointGroup>();
+		positions = new TrackpointPositions(groups);
 	}
 
 	public ChartXAxis getXAxis() {
@@ -63,6 +64,7 @@ public class ChartDataset {
 	 */
 	public void addWaypointGroup(WaypointGroup group) {
 		groups.add(group);
+		positions.invalidate();
 	}
 
 	/**
@@ -71,6 +73,7 @@ public class ChartDataset {
 	 */
 	public void addWaypointGroups(List<WaypointGroup> groups) {
 		this.groups.addAll(groups);
+		positions.invalidate();
 	}
 
 	/**
@@ -80,6 +83,7 @@ public class ChartDataset {
 	public void removeWaypointGroup(WaypointGroup group) {
 		if (groups.contains(group)){
 			groups.remove(group);
+			positions.invalidate();
 		}
 	}
 
@@ -109,13 +113,23 @@ public class ChartDataset {
 	 *
 	 * @return
 	 */
-	public XYSeriesCollection getCollection() {
+	public DecimatedXYDataset getCollection() {
 
 		fillDataset();
 
 		return collection;
 	}
 
+	/**
+	 * Decimate the dataset to the given pixel width and visible range of X values.
+	 * @param visible
+	 * @param width
+	 * @return {@link true} if the dataset has changed
+	 */
+	public boolean setResolution(Range visible, int width) {
+		return collection.setResolution(visible, width);
+	}
+
 	/**
 	 * Find the waypoint that relates to the given value on the X-Axis
 	 * @param xValue
@@ -123,11 +137,9 @@ public class ChartDataset {
 	 */
 	public Waypoint getWaypointForX(double xValue) {
 		Waypoint wpt = null;
-		int wptIdx = -1;
-		for (int i = 0; i < groups.size(); i++) {
-			int[] idx = DatasetUtilities.findItemIndicesForX(collection, i, xValue);
-			if (idx[0] != -1) {
-				wptIdx = idx[0];
+		for (int i = 0; i < collection.getSeriesCount(); i++) {
+			int wptIdx = collection.findItem(i, xValue);
+			if (wptIdx != -1) {
 				return groups.get(i).getWaypoints().get(wptIdx);
 			}
 		}
@@ -137,15 +149,15 @@ public class ChartDataset {
 	 *
 	 */
 	public void clear() {
-		collection.removeAllSeries();
+		collection.clear();
 		groups.clear();
+		positions.invalidate();
 	}
 
 	/**
 	 *
 	 */
 	public void refresh() {
-		collection.removeAllSeries();
 		fillDataset();
 	}
 
@@ -162,26 +174,39 @@ public class ChartDataset {
 			throw new NullPointerException("Y-Axis not set, use setYAxis()");
 		}
 
-		collection.removeAllSeries();
+		collection.clear();
 		xAxis.reset();
 		yAxis.reset();
 
 		for (WaypointGroup group : groups) {
-			int idx = groups.indexOf(group);
-// 			numPoints += group.getNumPts();
-			XYSeries xySeries = new XYSeries(idx);
+			double[] xValues = new double[group.getNumPts()];
+			double[] yValues = new double[group.getNumPts()];
 			// set plot.color!!
-			for (Waypoint wpt : group.getWaypoints()) {
-				double xValue = xAxis.getValue(wpt);
-				double yValue = yAxis.getValue(wpt);
-				xySeries.add(xValue, yValue);
-			}
-			collection.addSeries(xySeries);
+			xAxis.getValues(group, xValues);
+			yAxis.getValues(group, yValues);
+			collection.addSeries(xValues, yValues);
 		}
 
 	}
 
+	/**
+	 * Get the value on the X-Axis of the given waypoint
+	 * @param wpt
+	 * @return X value or Double.NaN if the waypoint is not part of this dataset
+	 */
 	public double lookupXValue(Waypoint wpt) {
-		return xAxis.lookupValue(wpt);
+		if (wpt == null) {
+			return Double.NaN;
+		}
+		int total = positions.getTotalIndexOf(wpt);
+		if (total == -1) {
+			return Double.NaN;
+		}
+		WaypointGroup group = positions.getGroup(total);
+		int series = groups.indexOf(group);
+		if (series >= collection.getSeriesCount()) {
+			return Double.NaN; // dataset not filled yet
+		}
+		return collection.getOriginalXValue(series, total - positions.getOffset(group));
 	}
 }
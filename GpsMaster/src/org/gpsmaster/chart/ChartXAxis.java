@@ -1,8 +1,5 @@
 package org.gpsmaster.chart;
 
-import java.util.Hashtable;
-
-import org.gpsmaster.gpxpanel.Waypoint;
 import org.jfree.chart.axis.AxisLabelLocation;
 import org.jfree.ui.RectangleInsets;
 
@@ -16,8 +13,6 @@ import eu.fuegenstein.unit.UnitConverter;
  */
 public abstract class ChartXAxis extends ChartAxis {
 
-	protected Hashtable<Waypoint, Double> cache = null;
-
 	public ChartXAxis(UnitConverter uc) {
 		super(uc);
 	}
@@ -35,41 +30,4 @@ public abstract class ChartXAxis extends ChartAxis {
 	    valueAxis.setTickLabelInsets(new RectangleInsets(0, 2, 0, 2)); // smaller onscreen footprint
 	    valueAxis.setLabelInsets(new RectangleInsets(0, 0, 2, 5));
 	}
-
-	/**
-	 * enable fast lookup of values to Waypoints
-	 */
-	protected void enableCaching() {
-		if (cache == null) {
-			cache = new Hashtable<Waypoint, Double>();
-		}
-	}
-
-	/**
-	 * Get the value associated to a {@link Waypoint}
-	 * @param wpt
-	 * @return associated value or Double.NaN if {@link Waypoint} not found or {@link null}
-	 */
-	public double lookupValue(Waypoint wpt) {
-		double value = Double.NaN;
-		if (wpt != null) {
-			if (cache == null) {
-				value = getValue(wpt);
-			} else if (cache.containsKey(wpt)) {
-				value = cache.get(wpt);
-			}
-		}
-		return value;
-	}
-
-	/**
-	 * Save the {@link Waypoint} and its associated value for later lookup
-	 * @param wpt
-	 * @param value
-	 */
-	protected void cache(Waypoint wpt, double value) {
-		if (cache != null) {
-			cache.put(wpt, value);
-		}
-	}
 }
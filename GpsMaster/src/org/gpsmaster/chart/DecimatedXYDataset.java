@@ -0,0 +1,395 @@
+package org.gpsmaster.chart;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.jfree.data.DomainInfo;
+import org.jfree.data.Range;
+import org.jfree.data.xy.AbstractXYDataset;
+import org.jfree.data.xy.XYDomainInfo;
+
+/**
+ * {@link org.jfree.data.xy.XYDataset} holding X/Y values in primitive arrays.
+ * <p>
+ * The values of each series are kept sorted by X. For display, the series
+ * are reduced to the pixel width of the chart (M4 decimation): for each pixel
+ * column, the first, last, minimum and maximum item within the column are
+ * exposed, so the rendered shape is the same as with all items. Call
+ * {@link #setResolution(Range, int)} whenever the visible domain or the width
+ * of the chart changes.
+ *
+ * @author rfu
+ *
+ */
+public class DecimatedXYDataset extends AbstractXYDataset implements DomainInfo, XYDomainInfo {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 3346591724075716620L;
+
+	/**
+	 * values of one series, sorted by X
+	 */
+	private static class Series {
+		private final double[] x;
+		private final double[] y;
+		private final int[] order; // original index of each sorted item, NULL if X is monotonic
+		private final int[] rank; // sorted index of each original item, NULL if X is monotonic
+		private int[] items = null; // sorted indices of exposed items, NULL for all items
+		private int itemCount = 0;
+
+		private Series(double[] x, double[] y, int[] order) {
+			this.x = x;
+			this.y = y;
+			this.order = order;
+			if (order == null) {
+				rank = null;
+			} else {
+				rank = new int[order.length];
+				for (int i = 0; i < order.length; i++) {
+					rank[order[i]] = i;
+				}
+			}
+			itemCount = x.length;
+		}
+
+		private int getIndex(int item) {
+			return (items == null) ? item : items[item];
+		}
+	}
+
+	private Series[] series = new Series[0];
+	private Range visible = null;
+	private int width = 0;
+
+	/**
+	 * Remove all series
+	 */
+	public void clear() {
+		series = new Series[0];
+		visible = null;
+		width = 0;
+		fireDatasetChanged();
+	}
+
+	/**
+	 * Add a series. If X is not monotonic, both arrays are sorted in place.
+	 * @param x X values
+	 * @param y Y values, same length as x
+	 */
+	public void addSeries(double[] x, double[] y) {
+		if (x.length != y.length) {
+			throw new IllegalArgumentException("X and Y values differ in length");
+		}
+		int[] order = null;
+		for (int i = 1; i < x.length; i++) {
+			if (x[i] < x[i - 1]) {
+				order = sort(x, y);
+				break;
+			}
+		}
+		series = Arrays.copyOf(series, series.length + 1);
+		series[series.length - 1] = new Series(x, y, order);
+		if (visible != null) {
+			decimate(series[series.length - 1]);
+		}
+		fireDatasetChanged();
+	}
+
+	/**
+	 * Set the visible domain range and the number of pixel columns
+	 * to decimate to. Does not notify listeners, since this is called
+	 * while the chart is drawn.
+	 * @param visible visible range of X values, {@link null} for all
+	 * @param width chart width in pixels
+	 * @return {@link true} if the exposed items have changed
+	 */
+	public boolean setResolution(Range visible, int width) {
+		if (width == this.width && (visible == null ? this.visible == null : visible.equals(this.visible))) {
+			return false;
+		}
+		this.visible = visible;
+		this.width = width;
+		for (Series s : series) {
+			decimate(s);
+		}
+		return true;
+	}
+
+	/**
+	 * Find the item with the highest X value less than or equal to the given value
+	 * @param seriesIdx
+	 * @param xValue
+	 * @return index of the item in the series as added, -1 if the value is
+	 * outside the series' range of X values
+	 */
+	public int findItem(int seriesIdx, double xValue) {
+		Series s = series[seriesIdx];
+		int n = s.x.length;
+		if (n == 0 || xValue < s.x[0] || xValue > s.x[n - 1]) {
+			return -1;
+		}
+		int lo = 0;
+		int hi = n - 1;
+		while (lo < hi) { // last index with x <= xValue
+			int mid = (lo + hi + 1) >>> 1;
+			if (s.x[mid] <= xValue) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return (s.order == null) ? lo : s.order[lo];
+	}
+
+	/**
+	 * Get the X value of an item by its index in the series as added
+	 * @param seriesIdx
+	 * @param index
+	 * @return
+	 */
+	public double getOriginalXValue(int seriesIdx, int index) {
+		Series s = series[seriesIdx];
+		return s.x[(s.rank == null) ? index : s.rank[index]];
+	}
+
+	@Override
+	public int getSeriesCount() {
+		return series.length;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Comparable getSeriesKey(int seriesIdx) {
+		return Integer.valueOf(seriesIdx);
+	}
+
+	@Override
+	public int getItemCount(int seriesIdx) {
+		return series[seriesIdx].itemCount;
+	}
+
+	@Override
+	public Number getX(int seriesIdx, int item) {
+		return Double.valueOf(getXValue(seriesIdx, item));
+	}
+
+	@Override
+	public double getXValue(int seriesIdx, int item) {
+		Series s = series[seriesIdx];
+		return s.x[s.getIndex(item)];
+	}
+
+	@Override
+	public Number getY(int seriesIdx, int item) {
+		return Double.valueOf(getYValue(seriesIdx, item));
+	}
+
+	@Override
+	public double getYValue(int seriesIdx, int item) {
+		Series s = series[seriesIdx];
+		return s.y[s.getIndex(item)];
+	}
+
+	@Override
+	public double getDomainLowerBound(boolean includeInterval) {
+		Range range = getDomainBounds(includeInterval);
+		return (range == null) ? Double.NaN : range.getLowerBound();
+	}
+
+	@Override
+	public double getDomainUpperBound(boolean includeInterval) {
+		Range range = getDomainBounds(includeInterval);
+		return (range == null) ? Double.NaN : range.getUpperBound();
+	}
+
+	@Override
+	public Range getDomainBounds(boolean includeInterval) {
+		Range range = null;
+		for (Series s : series) {
+			range = combine(range, s);
+		}
+		return range;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Range getDomainBounds(List visibleSeriesKeys, boolean includeInterval) {
+		Range range = null;
+		for (Object key : visibleSeriesKeys) {
+			int idx = indexOf((Comparable) key);
+			if (idx >= 0) {
+				range = combine(range, series[idx]);
+			}
+		}
+		return range;
+	}
+
+	/**
+	 * extend range by the X values of the given series
+	 */
+	private Range combine(Range range, Series s) {
+		int n = s.x.length;
+		if (n == 0) {
+			return range;
+		}
+		return Range.combine(range, new Range(s.x[0], s.x[n - 1]));
+	}
+
+	/**
+	 * determine the items of the series to expose for the current resolution
+	 * @param s
+	 */
+	private void decimate(Series s) {
+		int n = s.x.length;
+		if (visible == null || width <= 0 || n == 0) {
+			s.items = null;
+			s.itemCount = n;
+			return;
+		}
+		double lower = visible.getLowerBound();
+		double upper = visible.getUpperBound();
+		// visible items plus one neighbour on each side, so lines leave the plot area
+		int start = Math.max(0, lowerIndex(s.x, lower) - 1);
+		int end = Math.min(n, upperIndex(s.x, upper) + 2);
+		if (end - start <= 4 * width) {
+			if (start == 0 && end == n) {
+				s.items = null;
+				s.itemCount = n;
+			} else {
+				s.items = new int[end - start];
+				for (int i = 0; i < s.items.length; i++) {
+					s.items[i] = start + i;
+				}
+				s.itemCount = s.items.length;
+			}
+			return;
+		}
+
+		int[] items = new int[4 * (width + 2)]; // visible columns plus one on each side
+		int count = 0;
+		double scale = width / (upper - lower);
+		int i = start;
+		while (i < end) {
+			int column = column(s.x[i], lower, scale);
+			int first = i;
+			int min = i;
+			int max = i;
+			i++;
+			while (i < end && column(s.x[i], lower, scale) == column) {
+				if (s.y[i] < s.y[min]) {
+					min = i;
+				}
+				if (s.y[i] > s.y[max]) {
+					max = i;
+				}
+				i++;
+			}
+			int last = i - 1;
+			// emit in ascending order, without duplicates
+			items[count++] = first;
+			int lowIdx = Math.min(min, max);
+			int highIdx = Math.max(min, max);
+			if (lowIdx != first) {
+				items[count++] = lowIdx;
+			}
+			if (highIdx != lowIdx && highIdx != first) {
+				items[count++] = highIdx;
+			}
+			if (last != highIdx && last != first) {
+				items[count++] = last;
+			}
+		}
+		s.items = items;
+		s.itemCount = count;
+	}
+
+	/**
+	 * pixel column of a X value, items outside the visible range
+	 * are given columns of their own
+	 */
+	private int column(double x, double lower, double scale) {
+		if (x < lower) {
+			return -1;
+		}
+		return Math.min(width, (int) ((x - lower) * scale));
+	}
+
+	/**
+	 * @return index of the first value >= x
+	 */
+	private static int lowerIndex(double[] values, double x) {
+		int lo = 0;
+		int hi = values.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] < x) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * @return index of the last value <= x
+	 */
+	private static int upperIndex(double[] values, double x) {
+		int lo = 0;
+		int hi = values.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] <= x) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo - 1;
+	}
+
+	/**
+	 * Stable sort of both arrays by X
+	 * @return original index of each sorted item
+	 */
+	private static int[] sort(double[] x, double[] y) {
+		int n = x.length;
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		int[] buffer = new int[n];
+		// bottom-up merge sort on indices
+		for (int run = 1; run < n; run *= 2) {
+			for (int lo = 0; lo < n - run; lo += 2 * run) {
+				int mid = lo + run;
+				int hi = Math.min(lo + 2 * run, n);
+				int a = lo;
+				int b = mid;
+				int k = lo;
+				while (a < mid && b < hi) {
+					buffer[k++] = (x[order[b]] < x[order[a]]) ? order[b++] : order[a++];
+				}
+				while (a < mid) {
+					buffer[k++] = order[a++];
+				}
+				while (b < hi) {
+					buffer[k++] = order[b++];
+				}
+				System.arraycopy(buffer, lo, order, lo, hi - lo);
+			}
+		}
+		double[] sorted = new double[n];
+		for (int i = 0; i < n; i++) {
+			sorted[i] = x[order[i]];
+		}
+		System.arraycopy(sorted, 0, x, 0, n);
+		for (int i = 0; i < n; i++) {
+			sorted[i] = y[order[i]];
+		}
+		System.arraycopy(sorted, 0, y, 0, n);
+		return order;
+	}
+}
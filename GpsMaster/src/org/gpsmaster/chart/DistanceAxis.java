@@ -1,6 +1,10 @@
 package org.gpsmaster.chart;
 
+import java.util.List;
+
+import org.gpsmaster.gpxpanel.DerivedColumns;
 import org.gpsmaster.gpxpanel.Waypoint;
+import org.gpsmaster.gpxpanel.WaypointGroup;
 import org.jfree.chart.axis.NumberAxis;
 
 import eu.fuegenstein.unit.UnitConverter;
@@ -26,8 +30,6 @@ public class DistanceAxis extends ChartXAxis {
 		valueAxis = new NumberAxis();
 		valueAxis.setLabel(uc.getTargetSet().getDistanceUnit().getSymbol());
 		super.setDefaults();
-		// distance axis needs caching
-		enableCaching();
 	}
 
 	/**
@@ -40,9 +42,27 @@ public class DistanceAxis extends ChartXAxis {
 			distance += wpt.getDistance(prev);
 		}
 		prev = wpt;
-		double value = uc.dist(distance);
-		cache(wpt, value);
-		return value;
+		return uc.dist(distance);
+	}
+
+	/**
+	 * uses the cumulative distances of the group
+	 */
+	@Override
+	public void getValues(WaypointGroup group, double[] values) {
+		List<Waypoint> waypoints = group.getWaypoints();
+		if (waypoints.isEmpty()) {
+			return;
+		}
+		DerivedColumns columns = group.getDerivedColumns();
+		if (prev != null) {
+			distance += waypoints.get(0).getDistance(prev);
+		}
+		for (int i = 0; i < values.length; i++) {
+			values[i] = uc.dist(distance + columns.getDistance(i));
+		}
+		distance += columns.getDistance(values.length - 1);
+		prev = waypoints.get(waypoints.size() - 1);
 	}
 
 	/**
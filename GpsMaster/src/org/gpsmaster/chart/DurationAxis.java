@@ -3,14 +3,16 @@ package org.gpsmaster.chart;
 import java.util.Locale;
 import java.util.TimeZone;
 
+import org.gpsmaster.gpxpanel.DerivedColumns;
 import org.gpsmaster.gpxpanel.Waypoint;
+import org.gpsmaster.gpxpanel.WaypointGroup;
 import org.jfree.chart.axis.DateAxis;
 
 import eu.fuegenstein.unit.UnitConverter;
 
 public class DurationAxis extends ChartXAxis {
 
-	private Waypoint first = null;
+	private long firstTime = DerivedColumns.NO_TIME;
 
 	/**
 	 *
@@ -30,16 +32,36 @@ public class DurationAxis extends ChartXAxis {
 	public double getValue(Waypoint wpt) {
 		long duration = 0;
 		if ((wpt != null) && (wpt.getTime() != null)) {
-			if (first == null) {
-				first = wpt;
+			if (firstTime == DerivedColumns.NO_TIME) {
+				firstTime = wpt.getTime().getTime();
 			}
-			duration = wpt.getTime().getTime() - first.getTime().getTime();
+			duration = wpt.getTime().getTime() - firstTime;
 		}
 		return duration;
 	}
 
+	/**
+	 * uses the elapsed times of the group
+	 */
+	@Override
+	public void getValues(WaypointGroup group, double[] values) {
+		DerivedColumns columns = group.getDerivedColumns();
+		long startTime = columns.getStartTime();
+		if (startTime == DerivedColumns.NO_TIME) {
+			return; // no times, all 0
+		}
+		if (firstTime == DerivedColumns.NO_TIME) {
+			firstTime = startTime;
+		}
+		long offset = startTime - firstTime;
+		for (int i = 0; i < values.length; i++) {
+			double elapsed = columns.getElapsed(i);
+			values[i] = Double.isNaN(elapsed) ? 0 : elapsed + offset;
+		}
+	}
+
 	@Override
 	public void reset() {
-		first = null;
+		firstTime = DerivedColumns.NO_TIME;
 	}
 }
@@ -1,5 +1,10 @@
 package org.gpsmaster.chart;
 
+import java.awt.Graphics2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+
+import org.jfree.chart.ChartRenderingInfo;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.plot.XYPlot;
 
@@ -71,6 +76,17 @@ public class InteractiveChart extends JFreeChart {
 		plot.setDataset(dataset.getCollection());
 	}
 
+	/**
+	 * decimate the dataset to the current width and domain range before drawing
+	 */
+	@Override
+	public void draw(Graphics2D g2, Rectangle2D chartArea, Point2D anchor, ChartRenderingInfo info) {
+		if (dataset != null) {
+			dataset.setResolution(plot.getDomainAxis().getRange(), (int) Math.ceil(chartArea.getWidth()));
+		}
+		super.draw(g2, chartArea, anchor, info);
+	}
+
 	private void setDefaults() {
 		removeLegend();
 	}
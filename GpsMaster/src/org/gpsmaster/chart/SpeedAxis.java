@@ -3,7 +3,9 @@ package org.gpsmaster.chart;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.gpsmaster.gpxpanel.DerivedColumns;
 import org.gpsmaster.gpxpanel.Waypoint;
+import org.gpsmaster.gpxpanel.WaypointGroup;
 import org.jfree.chart.axis.NumberAxis;
 import org.jfree.chart.renderer.xy.XYAreaRenderer;
 
@@ -49,10 +51,39 @@ public class SpeedAxis extends ChartYAxis {
 		return speed;
 	}
 
+	/**
+	 * uses the cumulative distances and elapsed times of the group
+	 * for all windows within the group
+	 */
 	@Override
-	public void reset() {
-		// TODO Auto-generated method stub
+	public void getValues(WaypointGroup group, double[] values) {
+		List<Waypoint> waypoints = group.getWaypoints();
+		DerivedColumns columns = group.getDerivedColumns();
+		int span = windowSize - 1;
+		for (int i = 0; i < values.length; i++) {
+			if (i < span) {
+				// window continues from the previous group
+				values[i] = getValue(waypoints.get(i));
+			} else {
+				double duration = (columns.getElapsed(i) - columns.getElapsed(i - span)) / 1000D; // seconds
+				double speed = columns.getDistance(i - span, i) / duration;
+				values[i] = (Double.isNaN(speed) || Double.isInfinite(speed)) ? 0 : uc.speed(speed);
+			}
+		}
+		if (values.length > span) {
+			// keep the last waypoints for the next group
+			window.clear();
+			for (int i = values.length - span; i < values.length; i++) {
+				if (waypoints.get(i).getTime() != null) {
+					window.add(waypoints.get(i));
+				}
+			}
+		}
+	}
 
+	@Override
+	public void reset() {
+		window.clear();
 	}
 
 }
@@ -4,9 +4,16 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
 
 import javax.swing.BoxLayout;
 import javax.swing.JLabel;
@@ -16,19 +23,33 @@ import javax.swing.border.EmptyBorder;
 
 import org.gpsmaster.GenericAlgorithm;
 import org.gpsmaster.GpsMaster;
+import org.gpsmaster.ICancelable;
 import org.gpsmaster.dialogs.CleaningStats;
+import org.gpsmaster.gpxpanel.GPXFile;
 import org.gpsmaster.gpxpanel.Waypoint;
 import org.gpsmaster.gpxpanel.WaypointGroup;
 import org.gpsmaster.marker.Marker;
 import org.gpsmaster.marker.RemoveMarker;
 import org.gpsmaster.undo.UndoWaypointGroup;
+import org.openstreetmap.gui.jmapviewer.OsmMercator;
 
 import eu.fuegenstein.parameter.CommonParameter;
+import eu.fuegenstein.util.IProgressReporter;
+import eu.fuegenstein.util.ProgressInfo;
 
 /**
  * Base class implementing track cleaning
  * functionality by removing certain points from tracks
  *
+ * The algorithm is applied to all {@link WaypointGroup}s in parallel
+ * on a fork-join pool, therefore implementations of
+ * {@link #applyAlgorithm(WaypointGroup, List)} must not share
+ * unsynchronized state between groups.
+ *
+ * {@link #compute()} does not touch any GUI components and may be called
+ * from a background thread, all other public methods are to be called
+ * on the event dispatch thread.
+ *
  * @author rfu
  *
  * Inspired by GpsPrune
@@ -39,9 +60,15 @@ public abstract class CleaningAlgorithm extends GenericAlgorithm {
 	private JPanel algorithmPanel = null;
 	private CleaningStats statPanel = null;
 
-	protected Hashtable <WaypointGroup, List<Waypoint>> allGroups = new Hashtable<WaypointGroup, List<Waypoint>>();
+	// each group's delete list is only accessed by the task processing this group
+	protected Map<WaypointGroup, List<Waypoint>> allGroups = new ConcurrentHashMap<WaypointGroup, List<Waypoint>>();
 	protected List<Marker> markerList = null;
 
+	protected IProgressReporter progressReporter = null;
+	protected ICancelable cancelable = null;
+	private ProgressInfo progress = null;
+	private volatile boolean computed = false;
+
 	/**
 	 * Default constructor
 	 */
@@ -54,6 +81,7 @@ public abstract class CleaningAlgorithm extends GenericAlgorithm {
 	 * @param groups
 	 */
 	public void setWaypointGroups(List<WaypointGroup> groups) {
+		computed = false;
 		allGroups.clear();
 		for (WaypointGroup group : groups) {
 			List<Waypoint> toDelete = new ArrayList<Waypoint>();
@@ -70,28 +98,97 @@ public abstract class CleaningAlgorithm extends GenericAlgorithm {
 		markerList = markers;
 	}
 
+	/**
+	 *
+	 * @return
+	 */
+	public IProgressReporter getProgressReporter() {
+		return progressReporter;
+	}
+
+	/**
+	 * Set the progress reporter to show the number of
+	 * {@link WaypointGroup}s processed during preview and apply
+	 * @param reporter {@link IProgressReporter} or NULL
+	 */
+	public void setProgressReporter(IProgressReporter reporter) {
+		progressReporter = reporter;
+	}
+
+	/**
+	 *
+	 * @return
+	 */
+	public ICancelable getCancelable() {
+		return cancelable;
+	}
+
+	/**
+	 * @param cancelable to be polled for cancellation requests or NULL
+	 */
+	public void setCancelable(ICancelable cancelable) {
+		this.cancelable = cancelable;
+	}
+
+	/**
+	 *
+	 * @return {@link true} if cancellation was requested via
+	 * the {@link ICancelable} or the {@link IProgressReporter}
+	 */
+	public boolean isCancelled() {
+		if ((cancelable != null) && cancelable.isCancelled()) {
+			return true;
+		}
+		return (progressReporter != null) && progressReporter.isCancelled();
+	}
+
 	/**
 	 * perform cleaning - remove obsolete trackpoints
 	 */
 	@Override
 	public void apply() {
 
-		if (getNumDelete() == 0) {
+		if (!computed) {
 			applyAll();
 		}
 
-		Enumeration<WaypointGroup> keys = allGroups.keys();
-		while (keys.hasMoreElements()) {
-			WaypointGroup group = keys.nextElement();
-			UndoWaypointGroup undo = new UndoWaypointGroup("Cleaning " + getName());
-			undo.setOldGroup(group);
-			List<Waypoint> toDelete = allGroups.get(group);
-			for (Waypoint wpt : toDelete) {
-				group.getWaypoints().remove(wpt);
+		List<Callable<UndoWaypointGroup>> tasks = new ArrayList<Callable<UndoWaypointGroup>>();
+		for (final WaypointGroup group : allGroups.keySet()) {
+			tasks.add(new Callable<UndoWaypointGroup>() {
+				@Override
+				public UndoWaypointGroup call() throws Exception {
+					if (isCancelled()) {
+						return null;
+					}
+					UndoWaypointGroup undo = new UndoWaypointGroup("Cleaning " + getName());
+					undo.setOldGroup(group);
+					// hashed lookup instead of a linear search for each point to delete
+					Set<Waypoint> toDelete = new HashSet<Waypoint>(allGroups.get(group));
+					group.getWaypoints().removeAll(toDelete);
+					undo.setNewGroup(group);
+					group.updateAllProperties();
+					incrementProgress();
+					return undo;
+				}
+			});
+		}
+
+		// the tasks modify the groups while the calling thread holds the lock
+		List<UndoWaypointGroup> undos = null;
+		Lock lock = GPXFile.getLock().writeLock();
+		lock.lock();
+		try {
+			undos = runParallel(tasks);
+		} finally {
+			lock.unlock();
+		}
+
+		// undo operations are registered on the calling thread,
+		// since ActiveGpxObjects notifies its listeners
+		for (UndoWaypointGroup undo : undos) {
+			if (undo != null) {
+				GpsMaster.active.addUndoOperation(undo);
 			}
-			undo.setNewGroup(group);
-			GpsMaster.active.addUndoOperation(undo);
-			group.updateAllProperties();
 		}
 		clear();
 	}
@@ -103,6 +200,24 @@ public abstract class CleaningAlgorithm extends GenericAlgorithm {
 	public void preview() {
 		clear();
 		applyAll();
+		showPreview();
+	}
+
+	/**
+	 * determine all Trackpoints to be deleted, without showing them.
+	 * call {@link #clear()} beforehand to discard previous results.
+	 * does not touch the GUI, may be called from a background thread.
+	 */
+	public void compute() {
+		applyAll();
+	}
+
+	/**
+	 * add the Trackpoints determined by {@link #compute()}
+	 * to markerList and show their number
+	 */
+	public void showPreview() {
+		clearMarkerList();
 		populateMarkerList();
 
 		if (statPanel != null) {
@@ -119,12 +234,10 @@ public abstract class CleaningAlgorithm extends GenericAlgorithm {
 	 * @return number of trackpoints affected by this algorithm
 	 */
 	public long getAffected() {
-		int numDelete = getNumDelete();
-		if (numDelete == 0) {
+		if (!computed) {
 			applyAll();
-			numDelete = getNumDelete();
 		}
-		return numDelete;
+		return getNumDelete();
 	}
 
 
@@ -162,6 +275,7 @@ public abstract class CleaningAlgorithm extends GenericAlgorithm {
 	 */
 	public void clear() {
 		super.clear();
+		computed = false;
 		clearMarkerList();
 		for (List<Waypoint> toDelete : allGroups.values()) {
 			toDelete.clear();
@@ -255,12 +369,127 @@ public abstract class CleaningAlgorithm extends GenericAlgorithm {
 	}
 
 	/**
-	 * Apply algorithm to all active {@link WaypointGroup}s
+	 * Project trackpoints into a local equirectangular coordinate system.
+	 * Coordinates are in meters relative to the first trackpoint, which is
+	 * accurate enough for the short distances cleaning algorithms work with.
+	 *
+	 * @param trackpoints
+	 * @param x array receiving the x coordinates (east)
+	 * @param y array receiving the y coordinates (north)
+	 */
+	protected static void projectLocal(List<Waypoint> trackpoints, double[] x, double[] y) {
+		int numPts = trackpoints.size();
+		double[] lat = new double[numPts];
+		double[] lon = new double[numPts];
+		Simplification.getCoordinates(trackpoints, lat, lon);
+		if (numPts == 0) {
+			return;
+		}
+
+		double scale = Math.toRadians(OsmMercator.EARTH_RADIUS);
+		double lonScale = scale * Math.cos(Math.toRadians(lat[0]));
+		for (int i = 0; i < numPts; i++) {
+			double dLon = lon[i] - lon[0];
+			// wrap around the antimeridian
+			if (dLon > 180) {
+				dLon -= 360;
+			} else if (dLon < -180) {
+				dLon += 360;
+			}
+			x[i] = dLon * lonScale;
+			y[i] = (lat[i] - lat[0]) * scale;
+		}
+	}
+
+	/**
+	 * Apply algorithm to all active {@link WaypointGroup}s in parallel.
+	 * if cancelled, results of groups already processed are discarded.
+	 */
+	protected void applyAll() {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final WaypointGroup group : allGroups.keySet()) {
+			final List<Waypoint> toDelete = allGroups.get(group);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					if (isCancelled() == false) {
+						applyAlgorithm(group, toDelete);
+						incrementProgress();
+					}
+					return null;
+				}
+			});
+		}
+		runParallel(tasks);
+		if (isCancelled()) {
+			for (List<Waypoint> toDelete : allGroups.values()) {
+				toDelete.clear();
+			}
+		} else {
+			computed = true;
+		}
+	}
+
+	/**
+	 * run the given tasks on the common fork-join pool and wait for completion.
+	 * progress is reported as number of tasks completed.
+	 *
+	 * @param tasks
+	 * @return results in the order of the tasks
+	 */
+	private <T> List<T> runParallel(List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>();
+		startProgress(tasks.size());
+		try {
+			for (Future<T> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			endProgress();
+		}
+		return results;
+	}
+
+	/**
+	 * add a {@link ProgressInfo} for the current run to the reporter
+	 * @param numTasks
+	 */
+	private void startProgress(int numTasks) {
+		if (progressReporter != null) {
+			progress = new ProgressInfo(0, numTasks);
+			progress.setName(getName());
+			progressReporter.addProgressItem(progress);
+			progressReporter.update();
+		}
+	}
+
+	/**
+	 * called by worker threads after a group has been processed
+	 */
+	private void incrementProgress() {
+		ProgressInfo info = progress;
+		if (info != null) {
+			synchronized (info) {
+				info.incrementValue();
+			}
+			progressReporter.update();
+		}
+	}
+
+	/**
+	 * remove the {@link ProgressInfo} of the current run from the reporter
 	 */
-	private void applyAll() {
-		for (WaypointGroup group : allGroups.keySet()) {
-			List<Waypoint> toDelete = allGroups.get(group);
-			applyAlgorithm(group, toDelete);
+	private void endProgress() {
+		if (progress != null) {
+			progressReporter.removeProgressItem(progress);
+			progress = null;
 		}
 	}
 
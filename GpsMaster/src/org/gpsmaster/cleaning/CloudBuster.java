@@ -1,30 +1,120 @@
 package org.gpsmaster.cleaning;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.gpsmaster.gpxpanel.Waypoint;
 import org.gpsmaster.gpxpanel.WaypointGroup;
 
+import eu.fuegenstein.gis.GeoBounds;
 import eu.fuegenstein.parameter.DoubleParameter;
 import eu.fuegenstein.parameter.IntegerParameter;
 
 /**
  * remove point clouds
  *
+ * Trackpoints are put into a uniform grid with a cell diagonal of {radius}.
+ * All points within one cell are within {radius} of each other.
+ * Neighbours only need to be searched in the surrounding cells.
+ *
+ * A point with more than {threshold} neighbours is a cloud candidate.
+ * The first unassigned candidate in track order becomes the seed of a cloud.
+ * The unassigned candidates within {radius} of the seed are collected.
+ * They are collected again around their centroid.
+ * Clouds are thus at most 2 * {radius} wide.
+ *
+ * Candidates spread along a line are slow movement, not a cloud.
+ * They are kept.
+ * Each cloud is collapsed to the trackpoint closest to its centroid.
+ * Its points do not need to be adjacent in sequence.
+ *
+ * The former parameter "CheckNeighbours" (size of the sequence window
+ * searched) is no longer used, since neighbours are searched spatially.
+ *
  * @author rfu
  *
  */
 public class CloudBuster extends CleaningAlgorithm {
 
 	// vicinity of current point to check for other points:
-	// TODO replace circle with square
 	private DoubleParameter radius = new DoubleParameter(2.0f);
 
 	// consider it a cloud if a waypoint has more than {threshold} neighbours
 	private IntegerParameter threshold = new IntegerParameter(5);
 
-	private IntegerParameter checkNeighbours = new IntegerParameter(25);
+	// candidates whose spread along their main axis exceeds the spread across
+	// it by this factor are considered movement, not a cloud
+	private static final double MAX_ELONGATION = 4.0;
+
+	// filled concurrently by all groups
+	private List<Cloud> clouds = Collections.synchronizedList(new ArrayList<Cloud>());
+
+	/**
+	 * A cloud of trackpoints found by {@link CloudBuster}
+	 */
+	public static class Cloud {
+
+		private double lat = 0;
+		private double lon = 0;
+		private GeoBounds bounds = null;
+		private int numPts = 0;
+		private Waypoint center = null;
+
+		/**
+		 * @return latitude of the centroid
+		 */
+		public double getLat() {
+			return lat;
+		}
+
+		/**
+		 * @return longitude of the centroid
+		 */
+		public double getLon() {
+			return lon;
+		}
+
+		/**
+		 * @return bounding box of all points in this cloud
+		 */
+		public GeoBounds getBounds() {
+			return bounds;
+		}
+
+		/**
+		 * @return number of trackpoints in this cloud
+		 */
+		public int getNumPts() {
+			return numPts;
+		}
+
+		/**
+		 * @return trackpoint closest to the centroid, which is kept
+		 */
+		public Waypoint getCenter() {
+			return center;
+		}
+	}
+
+	/**
+	 * grid cell holding indices of trackpoints
+	 */
+	private static class Cell {
+		private int[] idx = new int[4];
+		private int size = 0;
 
+		private void add(int i) {
+			if (size == idx.length) {
+				int[] grow = new int[size * 2];
+				System.arraycopy(idx, 0, grow, 0, size);
+				idx = grow;
+			}
+			idx[size++] = i;
+		}
+	}
 
 	public CloudBuster() {
 		super();
@@ -38,12 +128,22 @@ public class CloudBuster extends CleaningAlgorithm {
 		threshold.setName("Threshold");
 		threshold.setDescription("# of close points defining a cloud");
 		params.add(threshold);
+	}
 
-		checkNeighbours.setName("CheckNeighbours");
-		checkNeighbours.setDescription("neighbours to check");
-		params.add(checkNeighbours);
+	/**
+	 * @return clouds found during the last run
+	 */
+	public List<Cloud> getClouds() {
+		return clouds;
 	}
 
+	@Override
+	public void clear() {
+		super.clear();
+		if (clouds != null) {
+			clouds.clear();
+		}
+	}
 
 	/**
 	 * scan waypoint group for point clouds
@@ -51,28 +151,227 @@ public class CloudBuster extends CleaningAlgorithm {
 	@Override
 	protected void applyAlgorithm(WaypointGroup group, List<Waypoint> toDelete) {
 		List<Waypoint> trackpoints = group.getWaypoints(); // shortcut
-		for (int i = 0; i < trackpoints.size(); i++) {
-			Waypoint curr = trackpoints.get(i);
-			int cloudPoints = 0;
-			int j = 0;
-			while((j < checkNeighbours.getValue()) && ((i + j + 1) < trackpoints.size())) {
-				Waypoint next = trackpoints.get(i + j + 1);
-				if (curr.getDistance(next) < radius.getValue()) {
-					cloudPoints++;
-					if (!toDelete.contains(next)) {
-						toDelete.add(next);
+		int numPts = trackpoints.size();
+		double r = radius.getValue();
+		if (numPts < 3 || r <= 0) {
+			return;
+		}
+
+		double[] x = new double[numPts];
+		double[] y = new double[numPts];
+		projectLocal(trackpoints, x, y);
+
+		// build grid. cell diagonal equals radius
+		double cellSize = r / Math.sqrt(2);
+		Map<Long, Cell> grid = new HashMap<Long, Cell>();
+		Cell[] cellOf = new Cell[numPts];
+		for (int i = 0; i < numPts; i++) {
+			long key = key(cellX(x[i], cellSize), cellY(y[i], cellSize));
+			Cell cell = grid.get(key);
+			if (cell == null) {
+				cell = new Cell();
+				grid.put(key, cell);
+			}
+			cell.add(i);
+			cellOf[i] = cell;
+		}
+
+		// find cloud (core) points
+		double r2 = r * r;
+		int minNeighbours = threshold.getValue();
+		boolean[] core = new boolean[numPts];
+		for (int i = 0; i < numPts; i++) {
+			Cell own = cellOf[i];
+			if (own.size - 1 > minNeighbours) {
+				core[i] = true; // all points within the same cell are neighbours
+			} else {
+				core[i] = countNeighbours(grid, x, y, i, cellSize, r2, minNeighbours + 1) > minNeighbours;
+			}
+		}
+
+		// form clouds around seeds, in track order
+		boolean[] assigned = new boolean[numPts];
+		List<List<Integer>> members = new ArrayList<List<Integer>>();
+		for (int i = 0; i < numPts; i++) {
+			if (core[i] && !assigned[i]) {
+				List<Integer> list = collectCloud(grid, x, y, x[i], y[i], core, assigned, cellSize, r2);
+				// re-center, so a seed at the edge of a cloud doesn't cut it in half
+				for (int j : list) {
+					assigned[j] = false;
+				}
+				double[] centroid = centroid(list, x, y);
+				list = collectCloud(grid, x, y, centroid[0], centroid[1], core, assigned, cellSize, r2);
+				if (!list.contains(i)) {
+					assigned[i] = true; // seed not within radius of centroid, don't start over with it
+				}
+				if (list.size() > minNeighbours && !isElongated(list, x, y)) {
+					members.add(list);
+				}
+			}
+		}
+
+		boolean[] delete = new boolean[numPts];
+		for (List<Integer> list : members) {
+			Cloud cloud = makeCloud(trackpoints, list, x, y);
+			clouds.add(cloud);
+			int centerIdx = -1;
+			double minDist = Double.MAX_VALUE;
+			double[] centroid = centroid(list, x, y);
+			double cx = centroid[0];
+			double cy = centroid[1];
+			for (int i : list) {
+				double d = (x[i] - cx) * (x[i] - cx) + (y[i] - cy) * (y[i] - cy);
+				if (d < minDist) {
+					minDist = d;
+					centerIdx = i;
+				}
+			}
+			cloud.center = trackpoints.get(centerIdx);
+			for (int i : list) {
+				if (i != centerIdx) {
+					delete[i] = true;
+				}
+			}
+		}
+
+		// start and end of a track are never removed
+		for (int i = 1; i < numPts - 1; i++) {
+			if (delete[i]) {
+				toDelete.add(trackpoints.get(i));
+			}
+		}
+	}
+
+	/**
+	 * count neighbours of point i within radius, stop counting at limit
+	 */
+	private int countNeighbours(Map<Long, Cell> grid, double[] x, double[] y, int i, double cellSize, double r2, int limit) {
+		int count = 0;
+		long cx = cellX(x[i], cellSize);
+		long cy = cellY(y[i], cellSize);
+		// radius equals cell diagonal, so neighbours are at most 2 cells away
+		for (long gx = cx - 2; gx <= cx + 2; gx++) {
+			for (long gy = cy - 2; gy <= cy + 2; gy++) {
+				Cell cell = grid.get(key(gx, gy));
+				if (cell != null) {
+					for (int k = 0; k < cell.size; k++) {
+						int j = cell.idx[k];
+						if (j != i && distSq(x, y, i, j) <= r2) {
+							count++;
+							if (count >= limit) {
+								return count;
+							}
+						}
 					}
-					// increase "floating window average"
-					// set cloud min/max lat/lon
 				}
-				j++;
 			}
-			if (cloudPoints > threshold.getValue()) {
-				// add found points to current cloud / toDelete list
-				// System.out.println(cloudPoints);
+		}
+		return count;
+	}
+
+	/**
+	 * collect all unassigned core points within radius of the given position
+	 * and mark them as assigned
+	 * @return indices of the collected points
+	 */
+	private List<Integer> collectCloud(Map<Long, Cell> grid, double[] x, double[] y, double px, double py,
+			boolean[] core, boolean[] assigned, double cellSize, double r2) {
+		List<Integer> list = new ArrayList<Integer>();
+		long cx = cellX(px, cellSize);
+		long cy = cellY(py, cellSize);
+		for (long gx = cx - 2; gx <= cx + 2; gx++) {
+			for (long gy = cy - 2; gy <= cy + 2; gy++) {
+				Cell cell = grid.get(key(gx, gy));
+				if (cell != null) {
+					for (int k = 0; k < cell.size; k++) {
+						int j = cell.idx[k];
+						double dx = x[j] - px;
+						double dy = y[j] - py;
+						if (core[j] && !assigned[j] && (dx * dx + dy * dy) <= r2) {
+							assigned[j] = true;
+							list.add(j);
+						}
+					}
+				}
 			}
 		}
+		return list;
+	}
 
+	/**
+	 * @return x, y of the centroid of the given points
+	 */
+	private static double[] centroid(List<Integer> list, double[] x, double[] y) {
+		double cx = 0;
+		double cy = 0;
+		for (int i : list) {
+			cx += x[i];
+			cy += y[i];
+		}
+		return new double[] { cx / list.size(), cy / list.size() };
 	}
 
+	/**
+	 * check if the given points are spread along a line, i.e. trackpoints
+	 * of slow movement, by comparing the eigenvalues of their covariance
+	 * @return {@link true} if the points are elongated
+	 */
+	private static boolean isElongated(List<Integer> list, double[] x, double[] y) {
+		double[] centroid = centroid(list, x, y);
+		double sxx = 0;
+		double syy = 0;
+		double sxy = 0;
+		for (int i : list) {
+			double dx = x[i] - centroid[0];
+			double dy = y[i] - centroid[1];
+			sxx += dx * dx;
+			syy += dy * dy;
+			sxy += dx * dy;
+		}
+		double trace = sxx + syy;
+		double diff = Math.sqrt((sxx - syy) * (sxx - syy) + 4 * sxy * sxy);
+		double major = (trace + diff) / 2;
+		double minor = (trace - diff) / 2;
+		return major > MAX_ELONGATION * minor;
+	}
+
+	/**
+	 * compute centroid and bounds of a cloud
+	 */
+	private Cloud makeCloud(List<Waypoint> trackpoints, List<Integer> list, double[] x, double[] y) {
+		Cloud cloud = new Cloud();
+		GeoBounds bounds = new GeoBounds(-180, -90, 90, 180);
+		for (int i : list) {
+			Waypoint wpt = trackpoints.get(i);
+			cloud.lat += wpt.getLat();
+			cloud.lon += wpt.getLon();
+			bounds.setN(Math.max(bounds.getN(), wpt.getLat()));
+			bounds.setS(Math.min(bounds.getS(), wpt.getLat()));
+			bounds.setE(Math.max(bounds.getE(), wpt.getLon()));
+			bounds.setW(Math.min(bounds.getW(), wpt.getLon()));
+		}
+		cloud.numPts = list.size();
+		cloud.lat /= cloud.numPts;
+		cloud.lon /= cloud.numPts;
+		cloud.bounds = bounds;
+		return cloud;
+	}
+
+	private static double distSq(double[] x, double[] y, int i, int j) {
+		double dx = x[i] - x[j];
+		double dy = y[i] - y[j];
+		return dx * dx + dy * dy;
+	}
+
+	private static long cellX(double x, double cellSize) {
+		return (long) Math.floor(x / cellSize);
+	}
+
+	private static long cellY(double y, double cellSize) {
+		return (long) Math.floor(y / cellSize);
+	}
+
+	private static long key(long cx, long cy) {
+		return (cx << 32) ^ (cy & 0xffffffffL);
+	}
 }
@@ -5,7 +5,15 @@ import java.util.List;
 import org.gpsmaster.gpxpanel.Waypoint;
 import org.gpsmaster.gpxpanel.WaypointGroup;
 
+import eu.fuegenstein.parameter.CommonParameter;
+import eu.fuegenstein.parameter.DoubleParameter;
+
 /**
+ * Douglas-Peucker line simplification.
+ *
+ * Trackpoints are projected once into a local planar coordinate system
+ * (meters), which is simplified by {@link Simplification}. The distance is
+ * measured to the chord as a line segment, see there for the reason.
  *
  * @author rfu
  * Inspired by GpsPrune
@@ -13,9 +21,7 @@ import org.gpsmaster.gpxpanel.WaypointGroup;
  */
 public class DouglasPeucker extends CleaningAlgorithm {
 
-	private WaypointGroup waypointGroup = null;
-	private List<Waypoint> trackpoints = null;
-	private List<Waypoint> toDelete = null;
+	private DoubleParameter tolerance = null;
 
 	/**
 	 *
@@ -23,6 +29,11 @@ public class DouglasPeucker extends CleaningAlgorithm {
 	 */
 	public DouglasPeucker() {
 		super();
+		tolerance = new DoubleParameter(5.0f);
+		tolerance.setDescription("Tolerance");
+		tolerance.setName("tolerance");
+		tolerance.setFormat("%.1f");
+		params.add((CommonParameter) tolerance);
 	}
 
 	@Override
@@ -32,51 +43,29 @@ public class DouglasPeucker extends CleaningAlgorithm {
 
 	@Override
 	public String getDescription() {
-		return "Find a similar track with fewer points.";
+		return "Find a similar track with fewer points. Remove all trackpoints "
+				+ "deviating less than (tolerance) meters from the simplified track.";
 	}
 
-	private void calculateRange() {
-		Waypoint start = waypointGroup.getStart();
-		Waypoint end = waypointGroup.getEnd();
-
-	}
 	@Override
 	protected void applyAlgorithm(WaypointGroup group, List<Waypoint> toDelete) {
 
-		waypointGroup = group;
-		trackpoints = group.getWaypoints();
-		this.toDelete = toDelete;
-
-		if (trackpoints.size() < 3) {
+		List<Waypoint> trackpoints = group.getWaypoints();
+		int numPts = trackpoints.size();
+		if (numPts < 3) {
 			return;
 		}
-		clear();
-
-	}
-
-	private void compressSegment(int segStart, int segEnd, double threshold) {
-		Waypoint start = trackpoints.get(segStart);
-		Waypoint end = trackpoints.get(segEnd);
-
 
-	}
+		double[] x = new double[numPts];
+		double[] y = new double[numPts];
+		projectLocal(trackpoints, x, y);
 
-	/**
-	 * find the trackpoint furthest away from the startpoint
-	 * @param startIndex
-	 * @param endIndex
-	 */
-	private int getFurthestIdx(int startIndex, int endIndex) {
-		double maxDist = 0.0f;
-		int furthest = -1;
-		Waypoint start = trackpoints.get(startIndex);
-		for (int i = startIndex; i < endIndex; i++) {
-			double dist = start.getDistance(trackpoints.get(i));
-			if (dist > maxDist) {
-				furthest = i;
-				maxDist = dist;
+		double threshold = tolerance.getValue();
+		double[] significance = Simplification.computeSignificance(x, y, threshold);
+		for (int i = 1; i < numPts - 1; i++) {
+			if (significance[i] <= threshold) {
+				toDelete.add(trackpoints.get(i));
 			}
 		}
-		return furthest;
 	}
 }
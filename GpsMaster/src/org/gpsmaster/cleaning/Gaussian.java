@@ -2,76 +2,230 @@ package org.gpsmaster.cleaning;
 
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.gpsmaster.GpsMaster;
+import org.gpsmaster.gpxpanel.ColumnarWaypointList;
 import org.gpsmaster.gpxpanel.Waypoint;
 import org.gpsmaster.gpxpanel.WaypointGroup;
+import org.gpsmaster.undo.UndoWaypointGroup;
+import org.openstreetmap.gui.jmapviewer.OsmMercator;
 
-import se.kodapan.osm.domain.Way;
+import eu.fuegenstein.parameter.CommonParameter;
+import eu.fuegenstein.parameter.DoubleParameter;
 
 /**
- * bereinigen nach gauss'scher normalverteilung:
- * badewannenkurve nach Distance(p1, p2)
- * unterste x% (kuerzeste strecken) entfernen (idle points)
- * oberste x% (laengste strecken) entfernen (ausreisser)
+ * Gaussian smoothing of position and elevation.
+ *
+ * Each trackpoint is replaced by the weighted average of its neighbours
+ * within 3 sigma, using a precomputed gaussian kernel sliding over the
+ * track. Near the ends of a track the truncated kernel is renormalized,
+ * start and end points are not moved.
+ *
+ * Unlike the other cleaning algorithms, no points are removed.
+ * Smoothed coordinates are calculated during preview and written back
+ * to the trackpoints on apply. Since smoothing moves almost every point,
+ * the preview shows no markers, only the number of points moved.
  *
  * @author rfu
  *
  */
 public class Gaussian extends CleaningAlgorithm {
 
-	// TreeMap holding a Waypoint (value) and the distance to its neighbour (key)
-	//
-	private TreeMap<Double, Waypoint> map = new TreeMap<Double, Waypoint>();
-	private List<Waypoint> trackpoints = null;
-	private List<Waypoint> toDelete = null;
+	// points moved less than this (in meters) are not counted as affected
+	private static final double MIN_DISPLACEMENT = 0.01;
+
+	private DoubleParameter sigma = null;
+
+	// smoothed {lat, lon, ele} per group
+	private Map<WaypointGroup, double[][]> smoothed = new ConcurrentHashMap<WaypointGroup, double[][]>();
 
 	public Gaussian() {
 		super();
-
+		sigma = new DoubleParameter(2.0f);
+		sigma.setDescription("Sigma (trackpoints)");
+		sigma.setName("sigma");
+		sigma.setFormat("%.1f");
+		params.add((CommonParameter) sigma);
 	}
 
 	@Override
 	public String getName() {
-		// TODO Auto-generated method stub
-		return null;
+		return "Gaussian";
 	}
 
 	@Override
 	public String getDescription() {
-		// TODO Auto-generated method stub
-		return null;
+		return "Smooth position and elevation of trackpoints with a gaussian filter. "
+				+ "Sigma is the width of the filter in number of trackpoints. "
+				+ "Preview does not mark the moved trackpoints on the map, it only shows their number.";
 	}
 
 	/**
-	 *
+	 * write smoothed coordinates back to the trackpoints
 	 */
-	private void populateMap() {
-
-		// we will not remove start- and/or endpoint
-		if (trackpoints.size() > 2) {
-			int i = 1;
-			while (i < trackpoints.size() - 2) {
-				Waypoint p1 = trackpoints.get(i);
-				Waypoint p2 = trackpoints.get(i+1);
-				map.put(p1.getDistance(p2), p1);  // round(distance)?
-				i++;
+	@Override
+	public void apply() {
+		if (smoothed.isEmpty()) {
+			applyAll();
+		}
+
+		for (WaypointGroup group : allGroups.keySet()) {
+			double[][] values = getSmoothed(group);
+			if (values != null && isCancelled() == false) {
+				UndoWaypointGroup undo = new UndoWaypointGroup("Cleaning " + getName());
+				undo.setOldGroup(group);
+				List<Waypoint> trackpoints = group.getWaypoints();
+				for (int i = 0; i < trackpoints.size(); i++) {
+					Waypoint wpt = trackpoints.get(i);
+					wpt.setLat(values[0][i]);
+					wpt.setLon(values[1][i]);
+					wpt.setEle(values[2][i]);
+				}
+				undo.setNewGroup(group);
+				GpsMaster.active.addUndoOperation(undo);
+				group.updateAllProperties();
 			}
 		}
+		clear();
 	}
 
-	private void printMap() {
-		for(Map.Entry<Double,Waypoint> entry : map.entrySet()) {
-			  System.out.println(entry.getKey());
+	/**
+	 *
+	 * @return number of trackpoints moved by more than {@link #MIN_DISPLACEMENT} meters
+	 */
+	@Override
+	public long getAffected() {
+		if (smoothed.isEmpty()) {
+			applyAll();
+		}
+		long affected = 0;
+		double scale = Math.toRadians(OsmMercator.EARTH_RADIUS);
+		double minSq = MIN_DISPLACEMENT * MIN_DISPLACEMENT;
+		for (WaypointGroup group : allGroups.keySet()) {
+			double[][] values = getSmoothed(group);
+			if (values == null) {
+				continue;
 			}
+			List<Waypoint> trackpoints = group.getWaypoints();
+			for (int i = 0; i < trackpoints.size(); i++) {
+				Waypoint wpt = trackpoints.get(i);
+				double dy = (values[0][i] - wpt.getLat()) * scale;
+				double dx = (values[1][i] - wpt.getLon()) * scale * Math.cos(Math.toRadians(wpt.getLat()));
+				if (dx * dx + dy * dy > minSq) {
+					affected++;
+				}
+			}
+		}
+		return affected;
+	}
+
+	/**
+	 * get the smoothed coordinates of the given group. if the number of
+	 * trackpoints has changed since they were calculated, they are
+	 * calculated again.
+	 * @param group
+	 * @return smoothed {lat, lon, ele} or {@link null} if the group has too few points
+	 */
+	private double[][] getSmoothed(WaypointGroup group) {
+		double[][] values = smoothed.get(group);
+		if (values != null && values[0].length != group.getWaypoints().size()) {
+			smoothed.remove(group);
+			applyAlgorithm(group, allGroups.get(group));
+			values = smoothed.get(group);
+		}
+		return values;
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		if (smoothed != null) {
+			smoothed.clear();
+		}
 	}
+
+	/**
+	 * calculate smoothed coordinates for the given group.
+	 * no points are added to toDelete. groups are independent of each other,
+	 * so this runs in parallel via {@link CleaningAlgorithm#applyAll()}.
+	 */
 	@Override
 	protected void applyAlgorithm(WaypointGroup group, List<Waypoint> toDelete) {
-		trackpoints = group.getWaypoints();
-		this.toDelete = toDelete;
+		List<Waypoint> trackpoints = group.getWaypoints();
+		int numPts = trackpoints.size();
+		if (numPts < 3) {
+			return;
+		}
+
+		double[] lat = new double[numPts];
+		double[] lon = new double[numPts];
+		double[] ele = new double[numPts];
+		if (trackpoints instanceof ColumnarWaypointList) {
+			ColumnarWaypointList columns = (ColumnarWaypointList) trackpoints;
+			for (int i = 0; i < numPts; i++) {
+				lat[i] = columns.getLat(i);
+				lon[i] = columns.getLon(i);
+				ele[i] = columns.getEle(i);
+			}
+		} else {
+			for (int i = 0; i < numPts; i++) {
+				Waypoint wpt = trackpoints.get(i);
+				lat[i] = wpt.getLat();
+				lon[i] = wpt.getLon();
+				ele[i] = wpt.getEle();
+			}
+		}
 
-		populateMap();
-		printMap(); // debug
+		double[] kernel = makeKernel(sigma.getValue());
+		double[][] values = new double[3][];
+		values[0] = smooth(lat, kernel);
+		values[1] = smooth(lon, kernel);
+		values[2] = smooth(ele, kernel);
+		smoothed.put(group, values);
 	}
 
+	/**
+	 * precompute one half of the (symmetric) gaussian kernel
+	 * @param sigma standard deviation in trackpoints
+	 * @return weights for offsets 0..3 sigma
+	 */
+	private double[] makeKernel(double sigma) {
+		if (sigma <= 0) {
+			return new double[] { 1.0 };
+		}
+		int radius = (int) Math.ceil(3 * sigma);
+		double[] kernel = new double[radius + 1];
+		for (int k = 0; k <= radius; k++) {
+			kernel[k] = Math.exp(-(k * k) / (2 * sigma * sigma));
+		}
+		return kernel;
+	}
+
+	/**
+	 * slide the kernel over the given values
+	 * @param values
+	 * @param kernel
+	 * @return smoothed values. first and last value are kept.
+	 */
+	private double[] smooth(double[] values, double[] kernel) {
+		int numPts = values.length;
+		int radius = kernel.length - 1;
+		double[] result = new double[numPts];
+		result[0] = values[0];
+		result[numPts - 1] = values[numPts - 1];
+		for (int i = 1; i < numPts - 1; i++) {
+			int from = Math.max(0, i - radius);
+			int to = Math.min(numPts - 1, i + radius);
+			double sum = 0;
+			double weights = 0;
+			for (int j = from; j <= to; j++) {
+				double w = kernel[Math.abs(j - i)];
+				sum += w * values[j];
+				weights += w;
+			}
+			result[i] = sum / weights;
+		}
+		return result;
+	}
 }
@@ -0,0 +1,151 @@
+package org.gpsmaster.cleaning;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.gpsmaster.gpxpanel.ColumnarWaypointList;
+import org.gpsmaster.gpxpanel.Waypoint;
+
+/**
+ * Douglas-Peucker line simplification on projected coordinates,
+ * shared by {@link DouglasPeucker} and the level of detail used for painting.
+ *
+ * Instead of a simplified point set for one tolerance, the significance of
+ * each point is computed: the tolerance up to which the point is kept by
+ * the simplification. The result for any tolerance at or above the minimum
+ * distance given to {@link #computeSignificance(double[], double[], double)}
+ * is the set of points with a significance greater than that tolerance.
+ *
+ * Distances are measured to the chord as a line segment, not to the
+ * infinite line through its ends. A point projecting beyond the end of the
+ * chord, like the turning point of an out-and-back spur, is far from the
+ * simplified track even if it is close to that line, and must be kept.
+ *
+ * @author rfu
+ *
+ */
+public final class Simplification {
+
+	private Simplification() {
+
+	}
+
+	/**
+	 * read the coordinates of the given trackpoints
+	 * @param trackpoints
+	 * @param lat array receiving the latitudes
+	 * @param lon array receiving the longitudes
+	 */
+	public static void getCoordinates(List<Waypoint> trackpoints, double[] lat, double[] lon) {
+		int numPts = trackpoints.size();
+		if (trackpoints instanceof ColumnarWaypointList) {
+			ColumnarWaypointList columns = (ColumnarWaypointList) trackpoints;
+			for (int i = 0; i < numPts; i++) {
+				lat[i] = columns.getLat(i);
+				lon[i] = columns.getLon(i);
+			}
+		} else {
+			for (int i = 0; i < numPts; i++) {
+				Waypoint wpt = trackpoints.get(i);
+				lat[i] = wpt.getLat();
+				lon[i] = wpt.getLon();
+			}
+		}
+	}
+
+	/**
+	 * Douglas-Peucker, iterative with an explicit stack.
+	 * the significance of each split point is its distance to the chord, capped
+	 * by the significance of its parent, so that the point sets are nested.
+	 * ranges are not split further if no point deviates more than minDistance,
+	 * the points within have a significance of 0.
+	 *
+	 * @param x projected x coordinates
+	 * @param y projected y coordinates
+	 * @param minDistance smallest tolerance the result is used for
+	 * @return significance per point. start and end are always included.
+	 */
+	public static double[] computeSignificance(double[] x, double[] y, double minDistance) {
+		int numPts = x.length;
+		double[] sig = new double[numPts];
+		if (numPts == 0) {
+			return sig;
+		}
+		sig[0] = Double.POSITIVE_INFINITY;
+		sig[numPts - 1] = Double.POSITIVE_INFINITY;
+		double minDistanceSq = minDistance * minDistance;
+
+		// stack of (first, last, parent significance)
+		int[] firstStack = new int[64];
+		int[] lastStack = new int[64];
+		double[] parentStack = new double[64];
+		int top = 0;
+		firstStack[top] = 0;
+		lastStack[top] = numPts - 1;
+		parentStack[top] = Double.POSITIVE_INFINITY;
+		top++;
+
+		while (top > 0) {
+			top--;
+			int first = firstStack[top];
+			int last = lastStack[top];
+			double parent = parentStack[top];
+			if (last - first < 2) {
+				continue;
+			}
+
+			int maxIdx = first + 1;
+			double maxDistSq = -1;
+			for (int i = first + 1; i < last; i++) {
+				double distSq = segmentDistanceSq(x[i], y[i], x[first], y[first], x[last], y[last]);
+				if (distSq > maxDistSq) {
+					maxDistSq = distSq;
+					maxIdx = i;
+				}
+			}
+			if (minDistance >= 0 && maxDistSq <= minDistanceSq) {
+				continue;
+			}
+			double s = Math.min(Math.sqrt(maxDistSq), parent);
+			sig[maxIdx] = s;
+
+			if (top + 2 > firstStack.length) {
+				int len = firstStack.length * 2;
+				firstStack = Arrays.copyOf(firstStack, len);
+				lastStack = Arrays.copyOf(lastStack, len);
+				parentStack = Arrays.copyOf(parentStack, len);
+			}
+			firstStack[top] = first;
+			lastStack[top] = maxIdx;
+			parentStack[top] = s;
+			top++;
+			firstStack[top] = maxIdx;
+			lastStack[top] = last;
+			parentStack[top] = s;
+			top++;
+		}
+		return sig;
+	}
+
+	/**
+	 * squared distance of point p to the line segment a-b.
+	 * if a and b coincide (i.e. closed loops), the distance to a is used.
+	 */
+	private static double segmentDistanceSq(double px, double py, double ax, double ay, double bx, double by) {
+		double dx = bx - ax;
+		double dy = by - ay;
+		double len2 = dx * dx + dy * dy;
+		double t = 0;
+		if (len2 > 0) {
+			t = ((px - ax) * dx + (py - ay) * dy) / len2;
+			if (t < 0) {
+				t = 0;
+			} else if (t > 1) {
+				t = 1;
+			}
+		}
+		double ex = px - (ax + t * dx);
+		double ey = py - (ay + t * dy);
+		return ex * ex + ey * ey;
+	}
+}
@@ -9,8 +9,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.List;
 
+import eu.fuegenstein.gis.GeoBounds;
+import eu.fuegenstein.messagecenter.MessageCenter;
 import eu.fuegenstein.util.NamedParameterStatement;
 
 /**
@@ -22,12 +26,30 @@ import eu.fuegenstein.util.NamedParameterStatement;
  *
  * long term goal is to use only BLOBs internally.
  *
+ * Selecting records by area and start date is supported by indexes,
+ * which are created on connect if they don't exist: an R*Tree over the
+ * bounds on SQLite, a GiST index over the bounds box on PostgreSQL.
+ *
  * @author rfu
  */
 public class DbLayer {
 
+	// required column names explicitly listed to prevent loading [data].
+	// [data] is retrieved by getGpsData()
+	private static final String RECORD_COLUMNS = "id, name, color, start_dt, end_dt, distance, duration, "
+			+ "min_lat, max_lat, min_lon, max_lon, activity, loader_class, fileformat, "
+			+ " prog_version, source_urn, user_id, compressed, entry_dt, checksum ";
+
+	// R*Tree rejects entries with min > max
+	private static final String RTREE_BOUNDS = "min(min_lat, max_lat), max(min_lat, max_lat), "
+			+ "min(min_lon, max_lon), max(min_lon, max_lon)";
+	private static final String RTREE_NEW_BOUNDS = "min(new.min_lat, new.max_lat), max(new.min_lat, new.max_lat), "
+			+ "min(new.min_lon, new.max_lon), max(new.min_lon, new.max_lon)";
+
 	private DBConfig dbConfig = null;
 	private Connection connection = null;
+	private boolean rtree = false; // SQLite R*Tree over bounds available
+	private MessageCenter msg = null;
 
 	/**
 	 * Constructor
@@ -37,6 +59,14 @@ public class DbLayer {
 		this.dbConfig = config;
 	}
 
+	/**
+	 *
+	 * @param msg {@link MessageCenter} to report failures to
+	 */
+	public void setMessageCenter(MessageCenter msg) {
+		this.msg = msg;
+	}
+
 	/**
 	 * get connection state (opened or closed)
 	 * @return true if connection is open, false otherwise
@@ -73,6 +103,102 @@ public class DbLayer {
 
 		connection = DriverManager.getConnection(dbConfig.getDSN(), dbConfig.getUsername(), dbConfig.getPassword());
 		connection.setAutoCommit(false);
+		createIndexes();
+	}
+
+	/**
+	 * create the indexes on dat_gps required by getGpsRecords(List, GpsRecordFilter, long, int)
+	 * if they don't exist. records are selected without index support if this fails.
+	 */
+	private void createIndexes() {
+		rtree = false;
+		try {
+			if (isSQLite()) {
+				executeUpdate("CREATE INDEX IF NOT EXISTS idx_dat_gps_start_dt ON dat_gps(start_dt)");
+				if (!exists("SELECT name FROM sqlite_master WHERE name = 'idx_dat_gps_bounds'")) {
+					executeUpdate("CREATE VIRTUAL TABLE idx_dat_gps_bounds USING rtree(id, min_lat, max_lat, min_lon, max_lon)");
+					executeUpdate("INSERT INTO idx_dat_gps_bounds SELECT id, " + RTREE_BOUNDS + " FROM dat_gps");
+				}
+				// keep the R*Tree in sync with dat_gps
+				executeUpdate("CREATE TRIGGER IF NOT EXISTS trg_dat_gps_bounds_ins AFTER INSERT ON dat_gps BEGIN "
+						+ "INSERT INTO idx_dat_gps_bounds VALUES (new.id, " + RTREE_NEW_BOUNDS + "); END");
+				executeUpdate("CREATE TRIGGER IF NOT EXISTS trg_dat_gps_bounds_upd AFTER UPDATE ON dat_gps BEGIN "
+						+ "DELETE FROM idx_dat_gps_bounds WHERE id = old.id; "
+						+ "INSERT INTO idx_dat_gps_bounds VALUES (new.id, " + RTREE_NEW_BOUNDS + "); END");
+				executeUpdate("CREATE TRIGGER IF NOT EXISTS trg_dat_gps_bounds_del AFTER DELETE ON dat_gps BEGIN "
+						+ "DELETE FROM idx_dat_gps_bounds WHERE id = old.id; END");
+				connection.commit();
+				rtree = true;
+			} else if (isPostgreSQL()) {
+				if (!exists("SELECT indexname FROM pg_indexes WHERE indexname = 'idx_dat_gps_start_dt'")) {
+					executeUpdate("CREATE INDEX idx_dat_gps_start_dt ON dat_gps (start_dt)");
+				}
+				if (!exists("SELECT indexname FROM pg_indexes WHERE indexname = 'idx_dat_gps_bounds'")) {
+					executeUpdate("CREATE INDEX idx_dat_gps_bounds ON dat_gps USING gist "
+							+ "(box(point(min_lon, min_lat), point(max_lon, max_lat)))");
+				}
+				connection.commit();
+			}
+		} catch (SQLException e) {
+			if (msg != null) {
+				msg.volatileWarning("Unable to create database indexes, searching will be slow", e);
+			}
+			try {
+				connection.rollback();
+			} catch (SQLException re) {
+				if (msg != null) {
+					msg.volatileWarning("Rollback failed", re);
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return {@link true} if connected to a SQLite database
+	 */
+	private boolean isSQLite() {
+		return dbConfig.getDSN().startsWith("jdbc:sqlite:");
+	}
+
+	/**
+	 *
+	 * @return {@link true} if connected to a PostgreSQL database
+	 */
+	private boolean isPostgreSQL() {
+		return dbConfig.getDSN().startsWith("jdbc:postgresql:");
+	}
+
+	/**
+	 *
+	 * @param sql
+	 * @throws SQLException
+	 */
+	private void executeUpdate(String sql) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			stmt.executeUpdate(sql);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 *
+	 * @param sql
+	 * @return {@link true} if the query returns at least one row
+	 * @throws SQLException
+	 */
+	private boolean exists(String sql) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(sql);
+			boolean found = rs.next();
+			rs.close();
+			return found;
+		} finally {
+			stmt.close();
+		}
 	}
 
 	/**
@@ -204,12 +330,7 @@ public class DbLayer {
 	 */
 	public void getGpsRecords(List<GpsRecord> gpsList) throws SQLException {
 
-		// required column names explicitly listed to prevent loading [data].
-		// [data] is retrieved by getGpsData()
-		String sqlStmt = "SELECT id, name, color, start_dt, end_dt, distance, duration, "
-				+ "min_lat, max_lat, min_lon, max_lon, activity, loader_class, fileformat, "
-				+ " prog_version, source_urn, user_id, compressed, entry_dt, checksum "
-				+ " FROM dat_gps";
+		String sqlStmt = "SELECT " + RECORD_COLUMNS + " FROM dat_gps";
 		PreparedStatement stmt = connection.prepareStatement(sqlStmt);
 		ResultSet rs = stmt.executeQuery();
 		while (rs.next()) {
@@ -220,6 +341,95 @@ public class DbLayer {
 		rs.close();
 	}
 
+	/**
+	 * Get one page of the GPS entries in table dat_gps matching the given filter,
+	 * in descending order of their IDs. To get the next page, pass the ID
+	 * of the last entry of the previous page as beforeId.
+	 * Gps Data Field is not filled!
+	 * @param gpsList list to add entries to
+	 * @param filter criteria to select entries by, {@link null} for all entries
+	 * @param beforeId only entries with a lower ID are returned, 0 for the first page
+	 * @param limit maximum number of entries to return, 0 for all
+	 * @return number of entries added to the list
+	 * @throws SQLException
+	 */
+	public int getGpsRecords(List<GpsRecord> gpsList, GpsRecordFilter filter, long beforeId, int limit) throws SQLException {
+
+		StringBuilder sql = new StringBuilder("SELECT " + RECORD_COLUMNS + " FROM dat_gps WHERE 1 = 1");
+		List<Object> params = new ArrayList<Object>();
+		if (beforeId > 0) {
+			sql.append(" AND id < ?");
+			params.add(beforeId);
+		}
+		if (filter != null) {
+			if (filter.getStartFrom() != null) {
+				sql.append(" AND start_dt >= ?");
+				params.add(new Timestamp(filter.getStartFrom().getTime()));
+			}
+			if (filter.getStartTo() != null) {
+				sql.append(" AND start_dt < ?");
+				params.add(new Timestamp(filter.getStartTo().getTime()));
+			}
+			GeoBounds bounds = filter.getBounds();
+			if (bounds != null) {
+				if (rtree) {
+					sql.append(" AND id IN (SELECT id FROM idx_dat_gps_bounds"
+							+ " WHERE max_lat >= ? AND min_lat <= ? AND max_lon >= ? AND min_lon <= ?)");
+					params.add(bounds.getS());
+					params.add(bounds.getN());
+					params.add(bounds.getW());
+					params.add(bounds.getE());
+				} else if (isPostgreSQL()) {
+					// && on the indexed box expression
+					sql.append(" AND box(point(min_lon, min_lat), point(max_lon, max_lat)) && box(point(?, ?), point(?, ?))");
+					params.add(bounds.getW());
+					params.add(bounds.getS());
+					params.add(bounds.getE());
+					params.add(bounds.getN());
+				}
+				// exact test, the R*Tree stores bounds with reduced precision
+				sql.append(" AND max_lat >= ? AND min_lat <= ? AND max_lon >= ? AND min_lon <= ?");
+				params.add(bounds.getS());
+				params.add(bounds.getN());
+				params.add(bounds.getW());
+				params.add(bounds.getE());
+			}
+		}
+		sql.append(" ORDER BY id DESC");
+		if (limit > 0) {
+			sql.append(" LIMIT ?");
+			params.add(limit);
+		}
+
+		int count = 0;
+		PreparedStatement stmt = connection.prepareStatement(sql.toString());
+		try {
+			for (int i = 0; i < params.size(); i++) {
+				Object param = params.get(i);
+				if (param instanceof Timestamp) {
+					stmt.setTimestamp(i + 1, (Timestamp) param);
+				} else if (param instanceof Double) {
+					stmt.setDouble(i + 1, (Double) param);
+				} else if (param instanceof Long) {
+					stmt.setLong(i + 1, (Long) param);
+				} else {
+					stmt.setInt(i + 1, (Integer) param);
+				}
+			}
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				GpsRecord gps = new GpsRecord();
+				rsToItem(rs, gps);
+				gpsList.add(gps);
+				count++;
+			}
+			rs.close();
+		} finally {
+			stmt.close();
+		}
+		return count;
+	}
+
 	/**
 	 *
 	 * @param id
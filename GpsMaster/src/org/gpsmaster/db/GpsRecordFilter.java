@@ -0,0 +1,68 @@
+package org.gpsmaster.db;
+
+import java.util.Date;
+
+import eu.fuegenstein.gis.GeoBounds;
+
+/**
+ * Criteria for selecting records from the dat_gps table.
+ * Criteria not set ({@link null}) are not applied.
+ *
+ * @author rfu
+ */
+public class GpsRecordFilter {
+
+	private GeoBounds bounds = null;
+	private Date startFrom = null;
+	private Date startTo = null;
+
+	/**
+	 * @return area the tracks have to intersect, or {@link null}
+	 */
+	public GeoBounds getBounds() {
+		return bounds;
+	}
+
+	/**
+	 * @param bounds area the tracks have to intersect, {@link null} for any
+	 */
+	public void setBounds(GeoBounds bounds) {
+		this.bounds = bounds;
+	}
+
+	/**
+	 * @return earliest start date (inclusive), or {@link null}
+	 */
+	public Date getStartFrom() {
+		return startFrom;
+	}
+
+	/**
+	 * @param startFrom earliest start date (inclusive), {@link null} for any
+	 */
+	public void setStartFrom(Date startFrom) {
+		this.startFrom = startFrom;
+	}
+
+	/**
+	 * @return latest start date (exclusive), or {@link null}
+	 */
+	public Date getStartTo() {
+		return startTo;
+	}
+
+	/**
+	 * @param startTo latest start date (exclusive), {@link null} for any
+	 */
+	public void setStartTo(Date startTo) {
+		this.startTo = startTo;
+	}
+
+	/**
+	 *
+	 * @return {@link true} if no criteria are set
+	 */
+	public boolean isEmpty() {
+		return (bounds == null) && (startFrom == null) && (startTo == null);
+	}
+}
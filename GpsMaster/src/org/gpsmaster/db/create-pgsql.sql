@@ -28,3 +28,6 @@ CREATE TABLE dat_gps
 )
 WITHOUT OIDS;
 ALTER TABLE dat_gps OWNER TO gpsmaster;
+
+CREATE INDEX idx_dat_gps_start_dt ON dat_gps (start_dt);
+CREATE INDEX idx_dat_gps_bounds ON dat_gps USING gist (box(point(min_lon, min_lat), point(max_lon, max_lat)));
@@ -22,3 +22,22 @@ compressed	integer NOT NULL default 0,
 entry_dt		integer,
 checksum	text
 )
+;
+
+CREATE INDEX idx_dat_gps_start_dt ON dat_gps(start_dt);
+
+-- bounds index, maintained by the triggers below
+CREATE VIRTUAL TABLE idx_dat_gps_bounds USING rtree(id, min_lat, max_lat, min_lon, max_lon);
+
+CREATE TRIGGER trg_dat_gps_bounds_ins AFTER INSERT ON dat_gps BEGIN
+INSERT INTO idx_dat_gps_bounds VALUES (new.id, min(new.min_lat, new.max_lat), max(new.min_lat, new.max_lat), min(new.min_lon, new.max_lon), max(new.min_lon, new.max_lon));
+END;
+
+CREATE TRIGGER trg_dat_gps_bounds_upd AFTER UPDATE ON dat_gps BEGIN
+DELETE FROM idx_dat_gps_bounds WHERE id = old.id;
+INSERT INTO idx_dat_gps_bounds VALUES (new.id, min(new.min_lat, new.max_lat), max(new.min_lat, new.max_lat), min(new.min_lon, new.max_lon), max(new.min_lon, new.max_lon));
+END;
+
+CREATE TRIGGER trg_dat_gps_bounds_del AFTER DELETE ON dat_gps BEGIN
+DELETE FROM idx_dat_gps_bounds WHERE id = old.id;
+END;
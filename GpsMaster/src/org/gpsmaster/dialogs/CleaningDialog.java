@@ -13,24 +13,33 @@ import javax.swing.JButton;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
 import javax.swing.JRadioButton;
+import javax.swing.SwingWorker;
 import javax.swing.border.EmptyBorder;
 
 import org.gpsmaster.Const;
 import org.gpsmaster.GpsMaster;
+import org.gpsmaster.ICancelable;
 import org.gpsmaster.cleaning.CleaningAlgorithm;
 import org.gpsmaster.cleaning.CloudBuster;
+import org.gpsmaster.cleaning.DouglasPeucker;
 import org.gpsmaster.cleaning.Duplicates;
+import org.gpsmaster.cleaning.Gaussian;
 import org.gpsmaster.cleaning.MinDistance;
 import org.gpsmaster.cleaning.Singleton;
 import org.gpsmaster.gpxpanel.WaypointGroup;
 import org.gpsmaster.marker.Marker;
 
 import eu.fuegenstein.messagecenter.MessageCenter;
+import eu.fuegenstein.util.IProgressReporter;
 
 /**
+ * Preview and apply are run in the background, progress is shown
+ * on the {@link IProgressReporter} and can be cancelled from this
+ * dialog or from the reporter.
+ *
  * @author rfu
  */
-public class CleaningDialog extends RadioButtonDialog {
+public class CleaningDialog extends RadioButtonDialog implements ICancelable {
 
 	/**
 	 *
@@ -43,6 +52,13 @@ public class CleaningDialog extends RadioButtonDialog {
 	private List<Marker> markerList = null;
 	private CleaningAlgorithm selected = null;
 	private CleaningStats statPanel = null;
+	private IProgressReporter progressReporter = null;
+	private JButton previewButton = null;
+	private JButton applyButton = null;
+	private JButton cancelButton = null;
+	private volatile boolean cancelled = false;
+	private boolean running = false;
+	private boolean groupsChanged = false;
 
 
 	/**
@@ -58,6 +74,8 @@ public class CleaningDialog extends RadioButtonDialog {
 		algorithms.add(new MinDistance());
 		algorithms.add(new Singleton());
 		algorithms.add(new CloudBuster());
+		algorithms.add(new DouglasPeucker());
+		algorithms.add(new Gaussian());
 		setIcon(Const.ICONPATH_TOOLBAR, "clean-distance.png");
 
 		setGpxObject();
@@ -104,6 +122,29 @@ public class CleaningDialog extends RadioButtonDialog {
 		}
 	}
 
+	/**
+	 *
+	 * @return
+	 */
+	public IProgressReporter getProgressReporter() {
+		return progressReporter;
+	}
+
+	/**
+	 * @param reporter to show the progress of preview and apply, or NULL
+	 */
+	public void setProgressReporter(IProgressReporter reporter) {
+		progressReporter = reporter;
+		for (CleaningAlgorithm algo : algorithms) {
+			algo.setProgressReporter(reporter);
+		}
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
 	@Override
 	public void begin() {
 
@@ -144,7 +185,11 @@ public class CleaningDialog extends RadioButtonDialog {
 		selected = algorithms.get(0); // list may not be empty
 		setInfoPanel(selected.getPanel(backgroundColor));
 
-		JButton previewButton = new JButton("Preview");
+		for (CleaningAlgorithm algo : algorithms) {
+			algo.setCancelable(this);
+		}
+
+		previewButton = new JButton("Preview");
 		previewButton.addActionListener(new ActionListener() {
 	        @Override
 	        public void actionPerformed(ActionEvent e) {
@@ -152,7 +197,7 @@ public class CleaningDialog extends RadioButtonDialog {
 	        }
 	    });
 		buttonPanel.add(previewButton);
-		JButton applyButton = new JButton("Apply");
+		applyButton = new JButton("Apply");
 		applyButton.addActionListener(new ActionListener() {
 	        @Override
 	        public void actionPerformed(ActionEvent e) {
@@ -160,6 +205,18 @@ public class CleaningDialog extends RadioButtonDialog {
 	        }
 	    });
 		buttonPanel.add(applyButton);
+		cancelButton = new JButton("Cancel");
+		cancelButton.setEnabled(false);
+		cancelButton.addActionListener(new ActionListener() {
+	        @Override
+	        public void actionPerformed(ActionEvent e) {
+	        	cancelled = true;
+	        	if (progressReporter != null) {
+	        		progressReporter.cancel();
+	        	}
+	        }
+	    });
+		buttonPanel.add(cancelButton);
 		JButton closeButton = new JButton("Close");
 		closeButton.addActionListener(new ActionListener() {
 	        @Override
@@ -179,6 +236,7 @@ public class CleaningDialog extends RadioButtonDialog {
 	 * to be called before destruction
 	 */
 	public void dispose() {
+		cancelled = true;
 		GpsMaster.active.removePropertyChangeListener(changeListener);
     	for (CleaningAlgorithm algo : algorithms) {
     		algo.clear();
@@ -192,6 +250,13 @@ public class CleaningDialog extends RadioButtonDialog {
 	 * TODO move to parent class
 	 */
 	private void setGpxObject() {
+		if (running) {
+			// groups are being processed, results would be stale.
+			// set the new groups after the run has ended
+			cancelled = true;
+			groupsChanged = true;
+			return;
+		}
 		for (CleaningAlgorithm algo : algorithms) {
 			algo.clear();
 			algo.setWaypointGroups(GpsMaster.active.getGroups());
@@ -199,25 +264,111 @@ public class CleaningDialog extends RadioButtonDialog {
 	}
 
 	/**
-	 *
+	 * determine the trackpoints to delete in the background,
+	 * then remove them on the event dispatch thread
 	 */
 	private void apply() {
-		if (selected != null) {
-			selected.apply();
-			selected.clear();
-			GpsMaster.active.refresh();
-			GpsMaster.active.repaintMap();
+		if (selected == null || running) {
+			return;
+		}
+		final CleaningAlgorithm algo = selected;
+		startRun();
+		SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+
+			@Override
+			protected Void doInBackground() throws Exception {
+				algo.getAffected();
+				return null;
+			}
+
+			@Override
+			protected void done() {
+				try {
+					get();
+					if (algo.isCancelled()) {
+						algo.clear();
+						msg.volatileWarning("Cleaning cancelled");
+					} else {
+						algo.apply();
+						algo.clear();
+						GpsMaster.active.refresh();
+					}
+				} catch (Exception e) {
+					algo.clear();
+					msg.error(e);
+				}
+				endRun();
+			}
+		};
+		worker.execute();
+	}
+
+	/**
+	 * determine the trackpoints to delete in the background
+	 * and show them on the map
+	 */
+	private void preview() {
+		if (selected == null || running) {
+			return;
 		}
+		final CleaningAlgorithm algo = selected;
+		algo.clear();
+		startRun();
+		SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+
+			@Override
+			protected Void doInBackground() throws Exception {
+				algo.compute();
+				return null;
+			}
+
+			@Override
+			protected void done() {
+				try {
+					get();
+					if (algo.isCancelled()) {
+						msg.volatileWarning("Cleaning cancelled");
+					} else {
+						algo.showPreview();
+					}
+				} catch (Exception e) {
+					msg.error(e);
+				}
+				endRun();
+			}
+		};
+		worker.execute();
+	}
+
+	/**
+	 * disable actions and show progress while an algorithm is running
+	 */
+	private void startRun() {
+		running = true;
+		cancelled = false;
+		previewButton.setEnabled(false);
+		applyButton.setEnabled(false);
+		cancelButton.setEnabled(true);
+		if (progressReporter != null) {
+			progressReporter.clear();
+		}
+		firePropertyChange(Const.PCE_CLEANINGSTARTED, null, null);
 	}
 
 	/**
 	 *
 	 */
-	private void preview() {
-		if (selected != null) {
-			selected.preview();
-			GpsMaster.active.repaintMap();
+	private void endRun() {
+		running = false;
+		previewButton.setEnabled(true);
+		applyButton.setEnabled(true);
+		cancelButton.setEnabled(false);
+		if (groupsChanged) {
+			groupsChanged = false;
+			setGpxObject();
 		}
+		firePropertyChange(Const.PCE_CLEANINGFINISHED, null, null);
+		GpsMaster.active.repaintMap();
 	}
 
 }
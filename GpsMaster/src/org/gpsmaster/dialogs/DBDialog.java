@@ -6,20 +6,30 @@ import java.awt.Cursor;
 import java.awt.Point;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
 import java.awt.event.MouseEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.zip.ZipInputStream;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
+import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingConstants;
 import javax.swing.SwingWorker;
@@ -30,11 +40,13 @@ import javax.swing.table.DefaultTableCellRenderer;
 import org.gpsmaster.Const;
 import org.gpsmaster.db.DbLayer;
 import org.gpsmaster.db.GpsRecord;
+import org.gpsmaster.db.GpsRecordFilter;
 import org.gpsmaster.filehub.DataType;
 import org.gpsmaster.filehub.FileHub;
 import org.gpsmaster.filehub.IItemSource;
 import org.gpsmaster.filehub.TransferableItem;
 import org.gpsmaster.gpxpanel.GPXFile;
+import org.gpsmaster.gpxpanel.GPXPanel;
 
 import eu.fuegenstein.messagecenter.MessageCenter;
 import eu.fuegenstein.messagecenter.MessagePanel;
@@ -79,6 +91,13 @@ public class DBDialog extends GenericDialog implements Runnable, IItemSource {
 	private JButton btnCancel = null;
 	private JButton btnClose = null;
 
+	// filter
+	private JTextField fromField = null;
+	private JTextField toField = null;
+	private JCheckBox areaCheck = null;
+	private GPXPanel mapPanel = null;
+	private volatile boolean loadingMore = false;
+
 	private TransferableItem currentItem = null;
 	private final List<TransferableItem> items = Collections.synchronizedList(new ArrayList<TransferableItem>());
 	private InputStream dbInputStream = null;
@@ -122,6 +141,15 @@ public class DBDialog extends GenericDialog implements Runnable, IItemSource {
 	}
 
 
+	/**
+	 * Set the map whose visible area is offered for filtering.
+	 * the area is read when the filter is applied.
+	 * @param panel
+	 */
+	public void setMapPanel(GPXPanel panel) {
+		mapPanel = panel;
+	}
+
 	/**
 	 * @return the changeListener
 	 */
@@ -257,6 +285,44 @@ public class DBDialog extends GenericDialog implements Runnable, IItemSource {
 
 		JScrollPane scrollPane = new JScrollPane(dbTable);
 		dbTable.setFillsViewportHeight(true);
+		// load next page when scrolled to the end of the table
+		scrollPane.getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener() {
+
+			@Override
+			public void adjustmentValueChanged(AdjustmentEvent e) {
+				JScrollBar bar = (JScrollBar) e.getAdjustable();
+				if (!e.getValueIsAdjusting() && (bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum())
+						&& bar.getMaximum() > bar.getVisibleAmount()) {
+					loadMore();
+				}
+			}
+		});
+
+		// filter
+		ActionListener filterListener = new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				applyFilter();
+			}
+		};
+		filterPanel.add(new JLabel("Start from"));
+		fromField = new JTextField(8);
+		fromField.setToolTipText("yyyy-MM-dd");
+		fromField.addActionListener(filterListener);
+		filterPanel.add(fromField);
+		filterPanel.add(new JLabel("to"));
+		toField = new JTextField(8);
+		toField.setToolTipText("yyyy-MM-dd");
+		toField.addActionListener(filterListener);
+		filterPanel.add(toField);
+		areaCheck = new JCheckBox("in visible map area");
+		areaCheck.setEnabled(mapPanel != null);
+		filterPanel.add(areaCheck);
+		JButton btnFilter = new JButton("Filter");
+		btnFilter.setToolTipText("Show only entries matching the criteria");
+		btnFilter.addActionListener(filterListener);
+		filterPanel.add(btnFilter);
 
 		// buttons
 		btnLoad = new JButton();
@@ -380,12 +446,16 @@ public class DBDialog extends GenericDialog implements Runnable, IItemSource {
 	}
 
 	/**
-	 * refresh table with content from database
+	 * refresh table with content from database.
+	 * the first page is fetched in the background, the table model
+	 * is only modified on the event dispatch thread.
 	 */
 	private synchronized void refreshTable() {
 
 		SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
 
+			private List<GpsRecord> page = null;
+
 			@Override
 			protected Void doInBackground() throws Exception {
 
@@ -394,12 +464,7 @@ public class DBDialog extends GenericDialog implements Runnable, IItemSource {
 				try {
 					busyOn();
 					disableAllButtons();
-					dbModel.refresh();
-					dbTable.minimizeColumnWidth(1, ExtendedTable.WIDTH_PREFERRED);
-					dbTable.minimizeColumnWidth(2, ExtendedTable.WIDTH_PREFERRED);
-					dbTable.minimizeColumnWidth(3, ExtendedTable.WIDTH_MIN);
-					dbTable.minimizeColumnWidth(4, ExtendedTable.WIDTH_MIN);
-					dbTable.minimizeColumnWidth(5, ExtendedTable.WIDTH_PREFERRED);
+					page = dbModel.fetchPage(0);
 				} catch(Exception e) {
 					msg.error(e);
 				}
@@ -409,6 +474,14 @@ public class DBDialog extends GenericDialog implements Runnable, IItemSource {
 
 	        @Override
 	        protected void done() {
+	        	if (page != null) {
+	        		dbModel.setPage(page);
+					dbTable.minimizeColumnWidth(1, ExtendedTable.WIDTH_PREFERRED);
+					dbTable.minimizeColumnWidth(2, ExtendedTable.WIDTH_PREFERRED);
+					dbTable.minimizeColumnWidth(3, ExtendedTable.WIDTH_MIN);
+					dbTable.minimizeColumnWidth(4, ExtendedTable.WIDTH_MIN);
+					dbTable.minimizeColumnWidth(5, ExtendedTable.WIDTH_PREFERRED);
+	        	}
 	        	btnRefresh.setEnabled(true);
 	        	busyOff();
 	        }
@@ -417,6 +490,83 @@ public class DBDialog extends GenericDialog implements Runnable, IItemSource {
 
 	}
 
+	/**
+	 * append the next page of entries to the table.
+	 * the page is fetched in the background and appended on the event
+	 * dispatch thread, unless the table has been refreshed meanwhile.
+	 */
+	private void loadMore() {
+		if (loadingMore || !dbModel.hasMore()) {
+			return;
+		}
+		loadingMore = true;
+		final long lastId = dbModel.getLastId();
+		SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+
+			private List<GpsRecord> page = null;
+
+			@Override
+			protected Void doInBackground() throws Exception {
+				try {
+					page = dbModel.fetchPage(lastId);
+				} catch(Exception e) {
+					msg.error(e);
+				}
+				return null;
+			}
+
+			@Override
+			protected void done() {
+				if (page != null) {
+					dbModel.appendPage(lastId, page);
+				}
+				loadingMore = false;
+			}
+		};
+		worker.execute();
+	}
+
+	/**
+	 * set filter criteria from the filter panel and reload the table
+	 */
+	private void applyFilter() {
+		GpsRecordFilter filter = new GpsRecordFilter();
+		try {
+			filter.setStartFrom(parseDate(fromField.getText()));
+			Date to = parseDate(toField.getText());
+			if (to != null) {
+				// include the whole day
+				Calendar cal = Calendar.getInstance();
+				cal.setTime(to);
+				cal.add(Calendar.DAY_OF_MONTH, 1);
+				filter.setStartTo(cal.getTime());
+			}
+		} catch (ParseException e) {
+			msg.error("Invalid date, expected yyyy-MM-dd");
+			return;
+		}
+		if (areaCheck.isSelected()) {
+			filter.setBounds(mapPanel.getVisibleBounds());
+		}
+		dbModel.setFilter(filter.isEmpty() ? null : filter);
+		refreshTable();
+	}
+
+	/**
+	 *
+	 * @param text date as yyyy-MM-dd
+	 * @return {@link null} if text is empty
+	 * @throws ParseException
+	 */
+	private Date parseDate(String text) throws ParseException {
+		if (text.trim().isEmpty()) {
+			return null;
+		}
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+		sdf.setLenient(false);
+		return sdf.parse(text.trim());
+	}
+
 	/**
 	 * load selected entries from database
 	 */
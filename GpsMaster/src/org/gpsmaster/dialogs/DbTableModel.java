@@ -15,12 +15,18 @@ import org.gpsmaster.Const;
 import org.gpsmaster.GpsMaster;
 import org.gpsmaster.db.DbLayer;
 import org.gpsmaster.db.GpsRecord;
+import org.gpsmaster.db.GpsRecordFilter;
 import org.gpsmaster.online.GpsiesTableModel;
 
 import eu.fuegenstein.swing.PlainColorIcon;
 import eu.fuegenstein.util.XTime;
 
 /**
+ * Table model for the records in the GPS database.
+ * Records are loaded in pages, newest first: pages are fetched via
+ * {@link #fetchPage(long)}, which may be called from a background thread,
+ * and applied via {@link #setPage(List)} or {@link #appendPage(long, List)}
+ * on the event dispatch thread.
  *
  * @author rfu
  * TODO unify with / inherit from {@link GpsiesTableModel}
@@ -37,8 +43,11 @@ public class DbTableModel extends AbstractTableModel {
             "Activity"};
 
 	private final int COLUMNCOUNT = 6;
+	private final int PAGESIZE = 500;
 
 	private DbLayer db = null;
+	private GpsRecordFilter filter = null;
+	private boolean hasMore = false;
 
 	private SimpleDateFormat sdf = new SimpleDateFormat(Const.SDF_DATETIME);
 	private List<GpsRecord> gpsEntries = new ArrayList<GpsRecord>();
@@ -136,20 +145,97 @@ public class DbTableModel extends AbstractTableModel {
 	}
 
 	/**
+	 * @return the filter
+	 */
+	public GpsRecordFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * set the criteria for records to be shown. takes effect on next refresh()
+	 * @param filter criteria or {@link null} for all records
+	 */
+	public void setFilter(GpsRecordFilter filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 *
+	 * @return {@link true} if there are more records than loaded so far
+	 */
+	public boolean hasMore() {
+		return hasMore;
+	}
+
+	/**
+	 * reload the first page of records
 	 * @throws SQLException
 	 *
 	 */
 	public void refresh() throws SQLException {
-		gpsEntries.clear(); // TODO fill delta
-		db.getGpsRecords(gpsEntries);
+		setPage(fetchPage(0)); // TODO fill delta
+	}
+
+	/**
+	 *
+	 * @return id of the last record loaded, 0 if none
+	 */
+	public long getLastId() {
+		if (gpsEntries.isEmpty()) {
+			return 0;
+		}
+		return gpsEntries.get(gpsEntries.size() - 1).getId();
+	}
+
+	/**
+	 * load a page of records from the database without modifying the model.
+	 * @param lastId id of the last record already loaded, 0 for the first page
+	 * @return records of the page
+	 * @throws SQLException
+	 */
+	public List<GpsRecord> fetchPage(long lastId) throws SQLException {
+		List<GpsRecord> page = new ArrayList<GpsRecord>();
+		db.getGpsRecords(page, filter, lastId, PAGESIZE);
+		return page;
+	}
+
+	/**
+	 * replace all records by the given first page
+	 * @param page
+	 */
+	public void setPage(List<GpsRecord> page) {
+		gpsEntries.clear();
+		gpsEntries.addAll(page);
+		hasMore = (page.size() == PAGESIZE);
 		fireTableDataChanged();
 	}
 
+	/**
+	 * append the given page of records
+	 * @param lastId id of the last record when the page was fetched
+	 * @param page
+	 * @return {@link false} if the records have been reloaded meanwhile
+	 * and the page has been discarded
+	 */
+	public boolean appendPage(long lastId, List<GpsRecord> page) {
+		if (gpsEntries.isEmpty() || lastId != getLastId()) {
+			return false;
+		}
+		int first = gpsEntries.size();
+		gpsEntries.addAll(page);
+		hasMore = (page.size() == PAGESIZE);
+		if (page.size() > 0) {
+			fireTableRowsInserted(first, first + page.size() - 1);
+		}
+		return true;
+	}
+
 	/**
 	 *
 	 */
 	public void clear() {
 		gpsEntries.clear();
+		hasMore = false;
 		fireTableDataChanged();
 	}
 
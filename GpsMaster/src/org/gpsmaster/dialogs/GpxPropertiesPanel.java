@@ -23,6 +23,7 @@ import org.gpsmaster.GpsMaster;
 import org.gpsmaster.gpxpanel.GPXExtension;
 import org.gpsmaster.gpxpanel.GPXObject;
 import org.gpsmaster.gpxpanel.Waypoint;
+import org.gpsmaster.gpxpanel.WaypointGroup;
 
 import eu.fuegenstein.swing.ExtendedTable;
 import eu.fuegenstein.unit.UnitConverter;
@@ -55,7 +56,7 @@ public class GpxPropertiesPanel extends JPanel {
 				setActiveGpxObject(GpsMaster.active.getGpxObject());
 			} else if (command.equals(Const.PCE_ACTIVE_TRKPT)) {
 				Waypoint wpt = GpsMaster.active.getTrackpoint();
-				setTrackpoint(wpt, GpsMaster.active.getIndexOf(wpt));
+				setTrackpoint(wpt, GpsMaster.active.getGroup(), GpsMaster.active.getIndexOf(wpt));
 			}  else if (command.equals(Const.PCE_ACTIVE_WPT)) {
 				Waypoint waypoint = GpsMaster.active.getWaypoint();
 				setWaypoint(waypoint);
@@ -146,11 +147,12 @@ public class GpxPropertiesPanel extends JPanel {
 	/**
 	 *
 	 * @param trackpoint
+	 * @param group
 	 * @param indexOf
 	 */
-	private void setTrackpoint(Waypoint trackpoint, int indexOf) {
+	private void setTrackpoint(Waypoint trackpoint, WaypointGroup group, int indexOf) {
 		if (trackpoint != null) {
-			propsTableModel.setTrackpoint(trackpoint, indexOf);
+			propsTableModel.setTrackpoint(trackpoint, group, indexOf);
 			updateExtensionTree(null != trackpoint ? trackpoint.getExtension() : null);
 			updateWidth();
 			lastPropDisplay = System.currentTimeMillis();
@@ -65,7 +65,7 @@ public class GpxPropertiesTableModel extends DefaultTableModel {
 	 * @param trackpoint
 	 */
 	public void setTrackpoint(Waypoint trackpoint) {
-		propsDisplayTrackpoint(trackpoint, -1);
+		propsDisplayTrackpoint(trackpoint, null, -1);
 	}
 
 	/**
@@ -74,7 +74,17 @@ public class GpxPropertiesTableModel extends DefaultTableModel {
 	 * @param indexOf position (index) of trackpoint in parent list
 	 */
 	public void setTrackpoint(Waypoint trackpoint, int indexOf) {
-		propsDisplayTrackpoint(trackpoint, indexOf);
+		propsDisplayTrackpoint(trackpoint, null, indexOf);
+	}
+
+	/**
+	 * Show trackpoint properties, including values derived from its position in the group
+	 * @param trackpoint trackpoint to show properties of
+	 * @param group {@link WaypointGroup} containing the trackpoint
+	 * @param indexOf position (index) of trackpoint in group
+	 */
+	public void setTrackpoint(Waypoint trackpoint, WaypointGroup group, int indexOf) {
+		propsDisplayTrackpoint(trackpoint, group, indexOf);
 	}
 
     /**
@@ -232,7 +242,7 @@ public class GpxPropertiesTableModel extends DefaultTableModel {
 	 *
 	 * @param wpt
 	 */
-	private void propsDisplayTrackpoint(Waypoint wpt, int indexOf) {
+	private void propsDisplayTrackpoint(Waypoint wpt, WaypointGroup group, int indexOf) {
 
 		if (wpt != null) {
 			clear();
@@ -249,6 +259,11 @@ public class GpxPropertiesTableModel extends DefaultTableModel {
 			if (time != null) {
 				addRow(new Object[]{"time", sdf.format(time), false});
 			}
+			if (group != null) {
+				for (Object[] row : group.getDerivedColumns().getPropertyRows(indexOf, uc)) {
+					addRow(row);
+				}
+			}
 			if (wpt.getSat() > 0) { addRow(new Object[]{"sat", wpt.getSat(), false}); }
 			if (wpt.getHdop() > 0) { addRow(new Object[]{"hdop", wpt.getHdop(), false}); }
 			if (wpt.getVdop() > 0) { addRow(new Object[]{"vdop", wpt.getVdop(), false}); }
@@ -7,6 +7,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.util.concurrent.locks.Lock;
 
 import javax.swing.BoxLayout;
 import javax.swing.ImageIcon;
@@ -318,7 +319,13 @@ public class NameSearchPanel extends JPanel {
 			GpsMaster.active.refreshTree();
 		}
 		// wpt.getExtensions().putAll(place.getAll()); // doesn't make much sense
-		gpx.getWaypointGroup().addWaypoint(wpt);
+		Lock lock = GPXFile.getLock().writeLock();
+		lock.lock();
+		try {
+			gpx.getWaypointGroup().addWaypoint(wpt);
+		} finally {
+			lock.unlock();
+		}
 		GpsMaster.active.refresh();
 		GpsMaster.active.repaintMap();
 	}
@@ -2,13 +2,25 @@ package org.gpsmaster.filehub;
 
 import java.beans.PropertyChangeListener;
 import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import javax.swing.SwingWorker.StateValue;
 
@@ -35,7 +47,11 @@ import eu.fuegenstein.util.LogEntry;
  * TODO handle transfer of a single file differently
  * 		(i.e. no progress bar)
  *
- * Runs in background and reports progress.
+ * Runs in background and reports progress. Items are processed in a pipeline:
+ * the content of each item is read from the source by a reader thread, parsed
+ * into a {@link GPXFile} by a pool of parser threads, and dispatched to the
+ * targets in the order of the source's items. If all targets accept streams,
+ * items are not buffered, but piped from the source to the targets directly.
  *
  * TODO progress report of bytes transferred
  * 		http://docs.oracle.com/javase/6/docs/api/javax/swing/ProgressMonitorInputStream.html
@@ -50,6 +66,9 @@ public class FileHub {
 	private MessageCenter msg = null;
 	private IProgressReporter progressReporter = null;
 	private ProgressInfo totalProgress = null;
+	private ProgressInfo readProgress = null;
+	private ProgressInfo parseProgress = null;
+	private int parserThreads = Runtime.getRuntime().availableProcessors();
 
 	private IItemSource itemSource = null;
 	private List<IItemTarget> itemTargets = null;
@@ -62,6 +81,25 @@ public class FileHub {
 	private GPXFile currentGpx = null; // for source/targets providing/requiring a GPXFile
 
 	private byte[] streamBuffer = null;
+	private Future<GPXFile> currentParse = null; // background parse of streamBuffer, if any
+
+	/**
+	 * An item on its way through the pipeline
+	 */
+	private static class PipelineItem {
+		private final TransferableItem item;
+		private byte[] buffer = null; // content, for sources providing a stream
+		private Future<GPXFile> gpx = null; // parse result, if required by targets
+		private Exception error = null; // reading from the source failed
+		private boolean direct = false; // to be piped from the source to the targets
+
+		private PipelineItem(TransferableItem item) {
+			this.item = item;
+		}
+	}
+
+	// marks the end of the items to process
+	private static final PipelineItem END = new PipelineItem(null);
 
 	/**
 	 *
@@ -160,6 +198,28 @@ public class FileHub {
 		totalProgress = new ProgressInfo();
 		totalProgress.setMinValue(0);
 		progressReporter.addProgressItem(totalProgress);
+		readProgress = new ProgressInfo();
+		readProgress.setName("Reading");
+		progressReporter.addProgressItem(readProgress);
+		parseProgress = new ProgressInfo();
+		parseProgress.setName("Parsing");
+		progressReporter.addProgressItem(parseProgress);
+	}
+
+	/**
+	 * @return number of items parsed in parallel
+	 */
+	public int getParserThreads() {
+		return parserThreads;
+	}
+
+	/**
+	 * Set the number of items to be parsed in parallel.
+	 * Takes effect with the next call to {@link #run()}.
+	 * @param threads
+	 */
+	public void setParserThreads(int threads) {
+		parserThreads = Math.max(1, threads);
 	}
 
 	/**
@@ -270,68 +330,92 @@ public class FileHub {
 
 			@Override
 			protected Void doInBackground() throws Exception {
-				int i = 0;
 				if (progressReporter != null) {
 					progressReporter.reset();
 				}
 
-				int size = itemSource.getItems().size();
 				firePropertyChange(Const.PCE_TRANSFERSTARTED, null, null);
 
-				while ((i < size) && !isCancelled()) {
-
-					TransferableItem item = itemSource.getItems().get(i);
-					setProgressTitle("Getting " + item.getName() + " from " + itemSource.getName());
-
-					// update progress
-					if (progressReporter != null) {
-						totalProgress.setMaxValue(processedItems.size() + itemSource.getItems().size());
-						totalProgress.incrementValue();
-						progressReporter.update();
-						if (progressReporter.isCancelled()) {
-							cancel(true);
-						}
+				// items are piped to the targets without buffering if no conversion is required
+				final boolean direct = (itemSource.getDataType() == DataType.STREAM) && isStreamOnly();
+				final int threads = parserThreads;
+				final ExecutorService parsers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "FileHub parser");
+						thread.setDaemon(true);
+						return thread;
 					}
+				});
+				// limits the number of items read ahead of dispatching
+				final BlockingQueue<PipelineItem> pipeline = new ArrayBlockingQueue<PipelineItem>(2 * threads);
+				Thread reader = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						readItems(pipeline, parsers, direct);
+					}
+				}, "FileHub reader");
+				reader.setDaemon(true);
+				reader.start();
 
-					item.setTransferState(TransferableItem.STATE_PROCESSING);
-					firePropertyChange(Const.PCE_TRANSFERITEMSTATECHANGED, null, item);
-
-					try {
-						if (itemSource.getDataType() == DataType.STREAM) {
-							itemSource.open(item);
-							streamBuffer = IOUtils.toByteArray(itemSource.getInputStream());
-							itemSource.close();
+				try {
+					while (!isCancelled()) {
+						PipelineItem next = pipeline.take();
+						if (next == END) {
+							break;
+						}
+						TransferableItem item = next.item;
+
+						// update progress
+						if (progressReporter != null) {
+							totalProgress.setMaxValue(processedItems.size() + itemSource.getItems().size());
+							totalProgress.incrementValue();
+							progressReporter.update();
+							if (progressReporter.isCancelled()) {
+								cancel(true);
+							}
 						}
 
-						// dispatch to target(s)
-						for (IItemTarget target : itemTargets) {
-							if (target.isEnabled()) {
-								if (target.doShowProgressText()) {
-									setProgressTitle("Sending " + item.getName() + " to " + target.getName());
-								}
-								try {
-									dispatch(item, itemSource, target);
-								} catch (Exception e) {
-									item.log.addEntry(LogEntry.ERROR, "sending to " + target.getName() + " failed", e);
+						streamBuffer = next.buffer;
+						currentParse = next.gpx;
+						if (next.direct) {
+							pipeItem(item);
+						} else if (next.error == null) {
+							// dispatch to target(s)
+							for (IItemTarget target : itemTargets) {
+								if (target.isEnabled()) {
+									if (target.doShowProgressText()) {
+										setProgressTitle("Sending " + item.getName() + " to " + target.getName());
+									}
+									try {
+										dispatch(item, itemSource, target);
+									} catch (Exception e) {
+										item.log.addEntry(LogEntry.ERROR, "sending to " + target.getName() + " failed", e);
+									}
 								}
 							}
+						} else {
+							item.getLog().addEntry(LogEntry.ERROR, "loading from " + itemSource.getName() + " failed", next.error);
 						}
 
-					}
-					catch (Exception e) { // catches only if (DataType.STREAM) above
-						item.getLog().addEntry(LogEntry.ERROR, "loading from " + itemSource.getName() + " failed", e);
-					}
+						processedItems.add(item);
+						item.setTransferState(TransferableItem.STATE_FINISHED);
 
-					processedItems.add(item);
-					item.setTransferState(TransferableItem.STATE_FINISHED);
+						// reset global GPX / stream buffers
+						currentGpx = null;
+						currentParse = null;
+						streamBuffer = null;
 
-					// reset global GPX / stream buffers
+						firePropertyChange(Const.PCE_TRANSFERITEMSTATECHANGED, null, item);
+					}
+				} catch (InterruptedException e) {
+					// cancelled
+				} finally {
+					reader.interrupt();
+					parsers.shutdownNow();
 					currentGpx = null;
+					currentParse = null;
 					streamBuffer = null;
-
-					firePropertyChange(Const.PCE_TRANSFERITEMSTATECHANGED, null, item);
-					i++;
-					size = itemSource.getItems().size();
 				}
 
 				return null;
@@ -345,6 +429,123 @@ public class FileHub {
 		};
 	}
 
+	/**
+	 * Read all items from the source, start parsing them and pass them on to the pipeline.
+	 * Runs on the reader thread. The source is only accessed from here, since
+	 * open(), getInputStream() and close() operate on the source's current item.
+	 * @param pipeline queue to pass items on to dispatching
+	 * @param parsers executor to run the parsing on
+	 * @param direct {@link true} if the items are to be piped to the targets by the
+	 * dispatching stage, without being read here
+	 */
+	private void readItems(BlockingQueue<PipelineItem> pipeline, ExecutorService parsers, boolean direct) {
+		int i = 0;
+		boolean interrupted = false;
+		try {
+			while ((i < itemSource.getItems().size()) && !isCancelled()) {
+				final TransferableItem item = itemSource.getItems().get(i);
+				PipelineItem next = new PipelineItem(item);
+				try {
+					setProgressTitle("Getting " + item.getName() + " from " + itemSource.getName());
+
+					item.setTransferState(TransferableItem.STATE_PROCESSING);
+					transferWorker.firePropertyChange(Const.PCE_TRANSFERITEMSTATECHANGED, null, item);
+
+					if (direct) {
+						next.direct = true;
+					} else if (itemSource.getDataType() == DataType.STREAM) {
+						try {
+							itemSource.open(item);
+							next.buffer = IOUtils.toByteArray(itemSource.getInputStream());
+							itemSource.close();
+						} catch (Exception e) {
+							next.error = e;
+						}
+						incrementProgress(readProgress);
+						if ((next.buffer != null) && isGpxRequired()) {
+							final byte[] buffer = next.buffer;
+							next.gpx = parsers.submit(new Callable<GPXFile>() {
+								@Override
+								public GPXFile call() throws Exception {
+									try {
+										return parse(item, buffer);
+									} finally {
+										incrementProgress(parseProgress);
+									}
+								}
+							});
+						}
+					}
+				} catch (RuntimeException e) {
+					// logged on the item when dispatching
+					next.direct = false;
+					next.gpx = null;
+					next.error = e;
+				}
+				pipeline.put(next);
+				i++;
+			}
+		} catch (InterruptedException e) {
+			// cancelled, dispatching is not waiting for further items
+			interrupted = true;
+		} finally {
+			// dispatching waits for the end of the items, even if reading failed
+			if (!interrupted) {
+				try {
+					pipeline.put(END);
+				} catch (InterruptedException e) {
+					// cancelled
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return {@link true} if any of the enabled targets requires a {@link GPXFile}
+	 */
+	private boolean isGpxRequired() {
+		for (IItemTarget target : itemTargets) {
+			if (target.isEnabled() && ((target.getDataType() == DataType.GPXFILE)
+					|| (target.getDataType() == DataType.STREAMGPX))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 *
+	 * @return {@link true} if all enabled targets accept streams
+	 */
+	private boolean isStreamOnly() {
+		for (IItemTarget target : itemTargets) {
+			if (target.isEnabled() && (target.getDataType() != DataType.STREAM)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * count a processed item in the given stage's progress.
+	 * called from the reader and parser threads, the progress is
+	 * modified on the EDT, like the widget of the progress reporter.
+	 * @param progress
+	 */
+	private void incrementProgress(final ProgressInfo progress) {
+		if (progressReporter != null) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					progress.setMaxValue(processedItems.size() + itemSource.getItems().size());
+					progress.incrementValue();
+					progressReporter.update();
+				}
+			});
+		}
+	}
+
 	/***
 	 * Send given item to given target. convert from GPX to stream (and vice versa) if necessary
 	 * @param item item to transfer
@@ -386,26 +587,144 @@ public class FileHub {
 	 * @throws Exception
 	 */
 	private void streamToGpx(TransferableItem item, byte[] inputBuffer) throws Exception {
-		GpsLoader loader = null;
 		// create the GPXFile only if it hasn't been created for a different target before
 		if (currentGpx == null) {
-			if (item.getLoaderClassName() != null) {
-				loader = GpsLoaderFactory.getLoaderByClassName(item.getLoaderClassName());
-			} else if (item.getSourceFormat() != null) {
-				loader = GpsLoaderFactory.getLoaderByExtension(item.getSourceFormat());
+			if (currentParse != null) {
+				try {
+					currentGpx = currentParse.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			} else {
+				currentGpx = parse(item, inputBuffer);
 			}
-			if (loader == null) {
-				throw new IllegalArgumentException("unknown file type / loader class");
+		}
+	}
+
+	/**
+	 * create a {@link GPXFile} from the given inputBuffer by using the appropriate {@link GpsLoader}.
+	 * may be called from multiple threads concurrently.
+	 * @param item used for Metadata
+	 * @param inputBuffer containing the content of the {@link IItemSource}'s {@link InputStream}
+	 * @return
+	 * @throws Exception
+	 */
+	private GPXFile parse(TransferableItem item, byte[] inputBuffer) throws Exception {
+		GpsLoader loader = null;
+		if (item.getLoaderClassName() != null) {
+			loader = GpsLoaderFactory.getLoaderByClassName(item.getLoaderClassName());
+		} else if (item.getSourceFormat() != null) {
+			loader = GpsLoaderFactory.getLoaderByExtension(item.getSourceFormat());
+		}
+		if (loader == null) {
+			throw new IllegalArgumentException("unknown file type / loader class");
+		}
+		item.setLoaderClassName(loader.getClass().getName());
+		GPXFile gpx = GpsLoaderFactory.getCached(loader, inputBuffer, item.getSourceFormat());
+		if (gpx != null) {
+			return gpx;
+		}
+		if (loader.canValidate()) {
+			try {
+				loader.validate(new ByteArrayInputStream(inputBuffer));
+			} catch (Exception e) {
+				item.getLog().addEntry(LogEntry.WARNING, "validation failed", e);
 			}
-			item.setLoaderClassName(loader.getClass().getName());
-			if (loader.canValidate()) {
-				try {
-					loader.validate(new ByteArrayInputStream(inputBuffer));
-				} catch (Exception e) {
-					item.getLog().addEntry(LogEntry.WARNING, "validation failed", e);
+		}
+		loader.setProgressReporter(progressReporter);
+		gpx = loader.load(new ByteArrayInputStream(inputBuffer), item.getSourceFormat());
+		GpsLoaderFactory.putCached(loader, inputBuffer, item.getSourceFormat(), gpx);
+		return gpx;
+	}
+
+	/**
+	 * Pipe the given item from the source's {@link InputStream} to all enabled targets,
+	 * without holding its content in memory. File targets are written via
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+	 * if the source is a file, all other targets are fed from a single buffer.
+	 * A failing target is logged and skipped, the others continue.
+	 * @param item
+	 */
+	private void pipeItem(TransferableItem item) {
+		List<IItemTarget> targets = new ArrayList<IItemTarget>();
+		List<OutputStream> outStreams = new ArrayList<OutputStream>();
+		try {
+			itemSource.open(item);
+			try {
+				InputStream inStream = itemSource.getInputStream();
+				for (IItemTarget target : itemTargets) {
+					if (target.isEnabled()) {
+						try {
+							target.open(item);
+							targets.add(target);
+							outStreams.add(target.getOutputStream());
+						} catch (Exception e) {
+							item.getLog().addEntry(LogEntry.ERROR, "sending to " + target.getName() + " failed", e);
+							closeTarget(item, target);
+						}
+					}
+				}
+
+				if (inStream instanceof FileInputStream) {
+					FileChannel inChannel = ((FileInputStream) inStream).getChannel();
+					for (int i = targets.size() - 1; i >= 0; i--) {
+						if (outStreams.get(i) instanceof FileOutputStream) {
+							IItemTarget target = targets.remove(i);
+							FileChannel outChannel = ((FileOutputStream) outStreams.remove(i)).getChannel();
+							try {
+								long position = 0;
+								long size = inChannel.size();
+								while (position < size) {
+									position += inChannel.transferTo(position, size - position, outChannel);
+								}
+							} catch (IOException e) {
+								item.getLog().addEntry(LogEntry.ERROR, "sending to " + target.getName() + " failed", e);
+							}
+							closeTarget(item, target);
+						}
+					}
+				}
+
+				if (!targets.isEmpty()) {
+					byte[] buffer = new byte[65536];
+					int read;
+					while ((read = inStream.read(buffer)) != -1) {
+						for (int i = targets.size() - 1; i >= 0; i--) {
+							try {
+								outStreams.get(i).write(buffer, 0, read);
+							} catch (IOException e) {
+								item.getLog().addEntry(LogEntry.ERROR, "sending to " + targets.get(i).getName() + " failed", e);
+								closeTarget(item, targets.remove(i));
+								outStreams.remove(i);
+							}
+						}
+					}
 				}
+			} finally {
+				itemSource.close();
 			}
-			currentGpx = loader.load(new ByteArrayInputStream(inputBuffer), item.getSourceFormat());
+			incrementProgress(readProgress);
+		} catch (Exception e) {
+			item.getLog().addEntry(LogEntry.ERROR, "loading from " + itemSource.getName() + " failed", e);
+		}
+		for (IItemTarget target : targets) {
+			closeTarget(item, target);
+		}
+	}
+
+	/**
+	 * close the given target, log failures on the item
+	 * @param item
+	 * @param target
+	 */
+	private void closeTarget(TransferableItem item, IItemTarget target) {
+		try {
+			target.close();
+		} catch (Exception e) {
+			item.getLog().addEntry(LogEntry.ERROR, "closing " + target.getName() + " failed", e);
 		}
 	}
 
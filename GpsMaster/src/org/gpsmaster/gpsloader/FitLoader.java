@@ -4,7 +4,6 @@ package org.gpsmaster.gpsloader;
  * Created by KarstenEnsinger on 03.01.17.
  */
 
-import javolution.io.Struct;
 import org.gpsmaster.gpxpanel.*;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -13,7 +12,6 @@ import org.joda.time.format.DateTimeFormatter;
 
 import javax.xml.bind.ValidationException;
 import java.io.*;
-import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.*;
@@ -24,38 +22,40 @@ public class FitLoader extends GpsLoader {
 
     /**
      * Encapsulates the FIT structure reading.
+     *
+     * The whole file is decoded from a single {@link ByteBuffer}. Each definition message
+     * is compiled into a {@link MessageDefinition} holding the offset and base type of
+     * every field, data messages are decoded by absolute reads at these offsets.
+     * Trackpoint values are collected in the primitive columns of {@link FitRecords}.
      */
     static class FitParser {
-        private static final Integer TIMESTAMP_FIELD = 253;
+        private static final int TIMESTAMP_FIELD = 253;
         private static final int FILEID_MSG = 0;
-        private static final Integer FILEID_FIELD_TYPE = 0;
-        private static final Integer FILEID_FIELD_SERIAL = 3;
-        private static final Integer FILEID_FIELD_CREATETIME = 4;
-        private static final Integer FILEID_TYPE_ACTIVITY = 4;
+        private static final int FILEID_FIELD_TYPE = 0;
+        private static final int FILEID_FIELD_SERIAL = 3;
+        private static final int FILEID_FIELD_CREATETIME = 4;
+        private static final int FILEID_TYPE_ACTIVITY = 4;
         private static final int CREATOR_MSG = 49;
-        private static final Integer CREATOR_FIELD_SVERSION = 0;
-        private static final Integer CREATOR_FIELD_HVERSION = 1;
+        private static final int CREATOR_FIELD_SVERSION = 0;
+        private static final int CREATOR_FIELD_HVERSION = 1;
         private static final int HRV_MSG = 78;
-        private static final Integer HRV_FIELD_TIME = 0;
-        private static final Integer HRV_TIME_SCALE = 1000;
+        private static final int HRV_FIELD_TIME = 0;
+        private static final int HRV_TIME_SCALE = 1000;
         private static final int RECORD_MSG = 20;
-        private static final Integer RECORD_FIELD_TIMESTAMP = TIMESTAMP_FIELD;
-        private static final Integer RECORD_FIELD_POS_LAT = 0;
-        private static final Integer RECORD_FIELD_POS_LONG = 1;
-        private static final Integer RECORD_FIELD_ALTITUDE = 2;
-        private static final Integer RECORD_FIELD_HEARTRATE = 3;
-        private static final Integer RECORD_FIELD_CADENCE = 4;
-        private static final Integer RECORD_FIELD_ENHANCED_SPEED = 73;
-        private static final Integer RECORD_FIELD_TEMPERATURE = 13;
-        private static final Integer RECORD_FIELD_ZONE = 50;
-        private static final Integer RECORD_ALTITUDE_SCALE = 5;
-        private static final Integer RECORD_ALTITUDE_OFFSET = -500;
-        private static final Integer RECORD_ENHANCED_SPEED_SCALE = 1000;
+        private static final int RECORD_FIELD_TIMESTAMP = TIMESTAMP_FIELD;
+        private static final int RECORD_FIELD_POS_LAT = 0;
+        private static final int RECORD_FIELD_POS_LONG = 1;
+        private static final int RECORD_FIELD_ALTITUDE = 2;
+        private static final int RECORD_FIELD_HEARTRATE = 3;
+        private static final int RECORD_FIELD_CADENCE = 4;
+        private static final int RECORD_FIELD_ENHANCED_SPEED = 73;
+        private static final int RECORD_FIELD_TEMPERATURE = 13;
+        private static final int RECORD_FIELD_ZONE = 50;
+        private static final int RECORD_ALTITUDE_SCALE = 5;
+        private static final int RECORD_ALTITUDE_OFFSET = -500;
+        private static final int RECORD_ENHANCED_SPEED_SCALE = 1000;
         private static final int LAP_MSG = 19;
-        private static final Integer LAP_FIELD_INDEX = 254;
-        private static final Integer LAP_FIELD_TIMESTAMP = TIMESTAMP_FIELD;
-        private static final Integer LAP_FIELD_EVENT = 0;
-        private static final Integer LAP_FIELD_EVENTTYPE = 1;
+        private static final int LAP_FIELD_TIMESTAMP = TIMESTAMP_FIELD;
         private static final int FIELD_TYPE_ENUM = 0; // 0x00;
         private static final int FIELD_TYPE_SINT8 = 1; // 0x01;
         private static final int FIELD_TYPE_UINT8 = 2; // 0x02;
@@ -73,12 +73,37 @@ public class FitLoader extends GpsLoader {
         private static final int FIELD_TYPE_SINT64 = 14; // 0x8E;
         private static final int FIELD_TYPE_UINT64 = 15; // 0x8F;
         private static final int FIELD_TYPE_UINT64Z = 16; // 0x90;
-        private String creator = new String("");
-        private String name = new String("");
-        private Double lastHrv = 0.0;
-        private ArrayList<ArrayList<FitRecord>> laps = new ArrayList<>(256);
-        private ArrayList<FitRecord> records = new ArrayList<>(1024*256);
-        private Integer lap = 1;
+        // size in bytes of the base types above, 0 for unknown types
+        private static final int[] BASE_TYPE_SIZE = { 1, 1, 1, 2, 2, 4, 4, 1, 4, 8, 1, 2, 4, 1, 8, 8, 8 };
+        /**
+         * returned by {@link MessageDefinition#getLong(ByteBuffer, ByteBuffer, int, int)}
+         * for fields holding the invalid value of their base type
+         */
+        private static final long INVALID = Long.MIN_VALUE;
+        private static final int FIT_MAGIC = 0x5449462E; // ".FIT"
+        // FIT timestamps are seconds since 31.12.1989 00:00:00 UTC
+        private static final long FIT_EPOCH_MILLIS = 631065600000L;
+        private static final int[] CRC_TABLE = new int[256];
+
+        static {
+            // table driven variant of the CRC-16 defined in the FIT specification
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int bit = 0; bit < 8; bit++) {
+                    crc = ((crc & 1) != 0) ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+                }
+                CRC_TABLE[i] = crc;
+            }
+        }
+
+        private String creator = "";
+        private String name = "";
+        private double lastHrv = 0.0;
+        private long lastTimestamp = 0;
+        private final FitRecords records = new FitRecords();
+        // index of the first record of each lap, plus the number of records at the end
+        private int[] lapStarts = new int[16];
+        private int lap = 0;
 
         public String getCreator() {
             return creator;
@@ -86,1425 +111,627 @@ public class FitLoader extends GpsLoader {
         public String getName() {
             return name;
         }
-        public Integer getLaps() {
+        public int getLaps() {
             return lap;
         }
-        public ArrayList<FitRecord> getLapRecords(final Integer lap) {
-            return laps.get(lap);
+        public FitRecords getRecords() {
+            return records;
         }
         /**
-         * Convert a semicircle into degrees.
-         * @param semicircle The semicircle to convert
-         * @return The value in degree
+         * @param lap
+         * @return index of the first record of the given lap
          */
-        private Double convertSemicirclesToDegree(final Integer semicircle) {
-            Double degree;
-            degree = semicircle * (180.0 / Math.pow(2, 31));
-            return degree;
+        public int getLapStart(final int lap) {
+            return lapStarts[lap];
+        }
+        /**
+         * @param lap
+         * @return index after the last record of the given lap
+         */
+        public int getLapEnd(final int lap) {
+            return lapStarts[lap + 1];
         }
 
         /**
-         * Convert a value in degree to semicircle.
-         * @param degree The value in degree to convert
-         * @return The value as semicircle
+         * Convert a semicircle into degrees.
+         * @param semicircle The semicircle to convert
+         * @return The value in degree
          */
-        private Integer convertDegreeToSemicircles(final Double degree) {
-            Integer semicircle;
-            // Let's assume, we never get a semicircle resulting in something
-            // not capable to be displayed as an Integer. Hope springs eternal. ;-)
-            semicircle = (int) Math.round(degree * (Math.pow(2, 31)));
-            return semicircle;
+        private static double convertSemicirclesToDegree(final long semicircle) {
+            return semicircle * (180.0 / 2147483648.0);
         }
 
         /**
          * Calculate the CRC based on FIT specifications.
+         * @param crc CRC of the preceding data
+         * @param data
+         * @param from index of the first byte
+         * @param to index after the last byte
+         * @return updated CRC
          */
-        static final class Crc {
-            private static final int[] crc_table = { 0x0000, 0xCC01, 0xD801, 0x1400, 0xF001, 0x3C00, 0x2800, 0xE401, 0xA001, 0x6C00, 0x7800, 0xB401, 0x5000, 0x9C01, 0x8801, 0x4400 };
-
-            private int crc;
-
-            public Crc() {
-                reset();
-            }
-
-            public long getValue() {
-                return crc;
-            }
-
-            public void reset() {
-                crc = 0;
-            }
-
-            public void calculate(final byte b) {
-                int tmp;
-                // checksum of lower four bits
-                tmp = crc_table[crc & 0x0F];
-                crc = (crc >> 4) & 0x0FFF;
-                crc = crc ^ tmp ^ crc_table[b & 0x0F];
-
-                // checksum of upper four bits
-                tmp = crc_table[crc & 0x0F];
-                crc = (crc >> 4) & 0x0FFF;
-                crc = crc ^ tmp ^ crc_table[(b >> 4) & 0x0F];
-            }
-
-            public void calculate(final ByteBuffer buffer) {
-                for (int i = 0; i < buffer.capacity(); ++i) {
-                    byte b = buffer.get(i);
-                    calculate(b);
-                }
-            }
-
-            public void calculate(final byte[] buffer) {
-                for (byte aBuffer : buffer) {
-                    calculate(aBuffer);
-                }
+        static int crc(int crc, final byte[] data, final int from, final int to) {
+            for (int i = from; i < to; i++) {
+                crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ data[i]) & 0xFF];
             }
+            return crc;
         }
+
         /**
-         * Contains the structure of a FIT data message as declared by a FIT definition message.
+         * A definition message compiled for decoding the data messages referring to it.
          */
-        static class FitDataMessage {
-            private Integer globalMessageNumber;
-            private Integer localMessageNumber;
-            private ArrayList<FitDataMessageField> fields;
-            private HashMap<Integer, FitDataMessageField> mapFields;
-            private ArrayList<FitDataMessageField> devFields;
-            private HashMap<Integer, FitDataMessageField> mapDevFields;
-            private Long lastDateRead = 0L;
-            public FitDataMessage(final Integer globalMessageNumber,
-                                  final Integer localMessageNumber,
-                                  final Integer numberOfFields) {
+        static final class MessageDefinition {
+            private final int globalMessageNumber;
+            private final boolean littleEndian;
+            private final int size; // of the data message content, including developer fields
+            private final int[] offsets; // of the fields within the data message
+            private final int[] sizes;
+            private final int[] baseTypes;
+            private final int[] fieldIndex = new int[256]; // field number -> index, -1 if not defined
+
+            MessageDefinition(final int globalMessageNumber, final boolean littleEndian,
+                              final int[] fieldNumbers, final int[] sizes, final int[] baseTypes, final int devSize) {
                 this.globalMessageNumber = globalMessageNumber;
-                this.localMessageNumber = localMessageNumber;
-                this.fields = new ArrayList<>(numberOfFields);
-                this.mapFields = new HashMap<>(numberOfFields);
-            }
-            public Collection<FitDataMessageField> getFields() {
-                return mapFields.values();
-            }
-            public void addField(final FitDataMessageField field) {
-                fields.add(field);
-                mapFields.put(field.getFieldNumber(), field);
-            }
-            public FitDataMessageField getField(final Integer fieldNumber) {
-                return mapFields.get(fieldNumber);
-            }
-            public void addDevFields(final short numDevFields) {
-                this.devFields = new ArrayList<>(numDevFields);
-                this.mapDevFields = new HashMap<>(numDevFields);
-            }
-            public void addDevField(final FitDataMessageField field) {
-                devFields.add(field);
-                mapDevFields.put(field.getFieldNumber(), field);
-            }
-            public Collection<FitDataMessageField> getDevFields() {
-                return mapDevFields.values();
-            }
-            public Integer read(final InputStream inStream, final Boolean compressed, final Crc crc) throws IOException {
-                Integer numberOfBytesRead = 0;
-                for (FitDataMessageField field : fields) {
-                    if (field.getFieldNumber().equals(TIMESTAMP_FIELD)) {
-                        if (compressed) {
-                            field.injectLong(lastDateRead);
-                            System.out.println("Compressed header detected. Field #253 not read but set to last timestamp read.");
-                            continue;
-                        }
-                    }
-                    numberOfBytesRead += field.read(inStream, crc);
-                    if (field.getFieldNumber().equals(TIMESTAMP_FIELD)) {
-                        lastDateRead = field.asLong();
-                    }
+                this.littleEndian = littleEndian;
+                this.sizes = sizes;
+                this.baseTypes = baseTypes;
+                offsets = new int[fieldNumbers.length];
+                Arrays.fill(fieldIndex, -1);
+                int offset = 0;
+                for (int i = 0; i < fieldNumbers.length; i++) {
+                    offsets[i] = offset;
+                    offset += sizes[i];
+                    fieldIndex[fieldNumbers[i]] = i;
+                }
+                size = offset + devSize;
+            }
+
+            boolean hasField(final int fieldNumber) {
+                return fieldIndex[fieldNumber] >= 0;
+            }
+
+            /**
+             * Get the (first) value of a numeric field
+             * @param le the content as little endian buffer
+             * @param be the content as big endian buffer
+             * @param position of the data message content
+             * @param fieldNumber
+             * @return the value or {@link #INVALID} if the field is not defined,
+             * holds the invalid value or is not numeric
+             */
+            long getLong(final ByteBuffer le, final ByteBuffer be, final int position, final int fieldNumber) {
+                final int i = fieldIndex[fieldNumber];
+                if (i < 0) {
+                    return INVALID;
+                }
+                final int baseType = baseTypes[i];
+                if (baseType >= BASE_TYPE_SIZE.length || sizes[i] < BASE_TYPE_SIZE[baseType]) {
+                    return INVALID;
+                }
+                final ByteBuffer buffer = littleEndian ? le : be;
+                final int offset = position + offsets[i];
+                long value;
+                switch (baseType) {
+                    case FIELD_TYPE_ENUM:
+                    case FIELD_TYPE_UINT8:
+                    case FIELD_TYPE_BYTE:
+                        value = buffer.get(offset) & 0xFF;
+                        return (value == 0xFF) ? INVALID : value;
+                    case FIELD_TYPE_UINT8Z:
+                        value = buffer.get(offset) & 0xFF;
+                        return (value == 0) ? INVALID : value;
+                    case FIELD_TYPE_SINT8:
+                        value = buffer.get(offset);
+                        return (value == 0x7F) ? INVALID : value;
+                    case FIELD_TYPE_SINT16:
+                        value = buffer.getShort(offset);
+                        return (value == 0x7FFF) ? INVALID : value;
+                    case FIELD_TYPE_UINT16:
+                        value = buffer.getShort(offset) & 0xFFFF;
+                        return (value == 0xFFFF) ? INVALID : value;
+                    case FIELD_TYPE_UINT16Z:
+                        value = buffer.getShort(offset) & 0xFFFF;
+                        return (value == 0) ? INVALID : value;
+                    case FIELD_TYPE_SINT32:
+                        value = buffer.getInt(offset);
+                        return (value == 0x7FFFFFFF) ? INVALID : value;
+                    case FIELD_TYPE_UINT32:
+                        value = buffer.getInt(offset) & 0xFFFFFFFFL;
+                        return (value == 0xFFFFFFFFL) ? INVALID : value;
+                    case FIELD_TYPE_UINT32Z:
+                        value = buffer.getInt(offset) & 0xFFFFFFFFL;
+                        return (value == 0) ? INVALID : value;
+                    case FIELD_TYPE_SINT64:
+                        value = buffer.getLong(offset);
+                        return (value == Long.MAX_VALUE) ? INVALID : value;
+                    case FIELD_TYPE_UINT64:
+                        value = buffer.getLong(offset);
+                        return (value == -1L) ? INVALID : value;
+                    case FIELD_TYPE_UINT64Z:
+                        value = buffer.getLong(offset);
+                        return (value == 0) ? INVALID : value;
+                    default: // strings and floats
+                        return INVALID;
                 }
-                if (null != devFields) {
-                    for (FitDataMessageField field : devFields) {
-                        numberOfBytesRead += field.read(inStream, crc);
-                    }
-                }
-                return numberOfBytesRead;
-            }
-            public String toString() {
-                final StringBuilder result = new StringBuilder(1024);
-                result.append("FitMessage[");
-                result.append(globalMessageNumber);
-                result.append("][");
-                result.append(localMessageNumber);
-                result.append("]=\n");
-                for (FitDataMessageField field : fields) {
-                    if (field.isInvalid() == null || field.isInvalid()) {
-                        result.append("  ! ");
-                    } else {
-                        result.append("    ");
-                    }
-                    result.append(field.getFieldNumber());
-                    result.append("[");
-                    result.append(field.content.getTypeName());
-                    if (field.isArray()) {
-                        result.append("[");
-                        result.append(field.getSizeInBytes() / field.content.getInvalidValue().length);
-                        result.append("]");
-                    }
-                    result.append("]");
-                    result.append("=");
-                    result.append(field.asString());
-                    result.append("\n");
-                }
-                if (null != devFields) {
-                    for (FitDataMessageField field : devFields) {
-                        if (field.isInvalid() == null || field.isInvalid()) {
-                            result.append("  ! ");
-                        } else {
-                            result.append("    ");
-                        }
-                        result.append(field.getFieldNumber());
-                        result.append("[");
-                        result.append(field.content.getTypeName());
-                        result.append("]");
-                        result.append("=");
-                        result.append(field.asString());
-                        result.append("\n");
-                    }
-                }
-                return result.toString();
             }
         }
 
         /**
-         * Class for all kinds of data message field varieties.
-         * Data message fields can have different content with different kind of endian.
-         * The {@link #content} contains the real data.
+         * Contains the information, we use in GPSMaster for {@link Waypoint} content,
+         * one column per value.
          */
-        static class FitDataMessageField {
-            private FitDataMessageFieldType content;
-            private Boolean isArray;
-            private Integer sizeInBytes;
-            public FitDataMessageField(final Integer fieldNumber,
-                                       final Integer sizeInBytes,
-                                       final Boolean isLittleEndian,
-                                       final FitBaseType baseType) {
-                this.isArray = !baseType.size.equals(sizeInBytes);
-                this.sizeInBytes = sizeInBytes;
-                content = FitDataMessageFieldTypeFactory.getFieldType(fieldNumber, sizeInBytes, isLittleEndian, baseType);
-            }
-            public String asString() {
-                return content.asString();
-            }
-            public Integer asInteger() {
-                return content.asInteger();
-            }
-            public Long asLong() {
-                return content.asLong();
-            }
-            public Iterator<String> iteratorString() {
-                return content.iteratorString();
-            }
-            public Iterator<Long> iteratorLong() {
-                return content.iteratorLong();
-            }
-            public Boolean isInvalid() {
-                return content.isInvalid();
-            }
-            public Boolean isArray() {
-                return isArray;
-            }
-            public Integer getFieldNumber() {
-                return content.getFieldNumber();
-            }
-            public Integer getSizeInBytes() {
-                return sizeInBytes;
-            }
-            public Integer read(final InputStream inStream, final Crc crc) throws IOException {
-                content.read(inStream, crc);
-                return sizeInBytes;
-            }
-            public void injectLong(final Long toInject) {
-                content.addLong(toInject);
+        static final class FitRecords {
+            static final long NO_TIME = Long.MIN_VALUE;
+            static final int NO_VALUE = Integer.MIN_VALUE;
+            private int size = 0;
+            double[] posLat = new double[0]; // NaN if not set
+            double[] posLong = new double[0]; // NaN if not set
+            double[] altitude = new double[0]; // NaN if not set
+            double[] hrv = new double[0];
+            long[] timestamp = new long[0]; // milliseconds since epoch, NO_TIME if not set
+            int[] cadence = new int[0]; // NO_VALUE if not set
+            int[] heartrate = new int[0];
+            int[] temperature = new int[0];
+            int[] zone = new int[0];
+            int[] enhancedSpeed = new int[0];
+
+            public int size() {
+                return size;
+            }
+
+            /**
+             * Append a record with all values not set
+             * @return index of the new record
+             */
+            int add() {
+                if (size == posLat.length) {
+                    final int capacity = Math.max(1024, size * 2);
+                    posLat = Arrays.copyOf(posLat, capacity);
+                    posLong = Arrays.copyOf(posLong, capacity);
+                    altitude = Arrays.copyOf(altitude, capacity);
+                    hrv = Arrays.copyOf(hrv, capacity);
+                    timestamp = Arrays.copyOf(timestamp, capacity);
+                    cadence = Arrays.copyOf(cadence, capacity);
+                    heartrate = Arrays.copyOf(heartrate, capacity);
+                    temperature = Arrays.copyOf(temperature, capacity);
+                    zone = Arrays.copyOf(zone, capacity);
+                    enhancedSpeed = Arrays.copyOf(enhancedSpeed, capacity);
+                }
+                final int i = size++;
+                posLat[i] = Double.NaN;
+                posLong[i] = Double.NaN;
+                altitude[i] = Double.NaN;
+                hrv[i] = 0.0;
+                timestamp[i] = NO_TIME;
+                cadence[i] = NO_VALUE;
+                heartrate[i] = NO_VALUE;
+                temperature[i] = NO_VALUE;
+                zone[i] = NO_VALUE;
+                enhancedSpeed[i] = NO_VALUE;
+                return i;
+            }
+
+            void clear() {
+                size = 0;
             }
         }
 
         /**
-         * Base class for all kind of data message content.
-         * Encapsulates the endian handling and the conversion of content to String.
+         * FIT stores timestamps as long values with seconds since 31.12.1989 00:00:000.000.
+         *
+         * @param fitTimestamp The value to convert
+         * @return The converted timestamp
          */
-        static abstract class FitDataMessageFieldType {
-            private Integer fieldNumber;
-            private ArrayList<String> contentArrayAsString;
-            private ArrayList<Long> contentArrayAsLong;
-            private Boolean isInvalid;
-            private Byte[] invalidValue;
-
-            public abstract void read(final InputStream inStream, final Crc crc) throws IOException;
-
-            public FitDataMessageFieldType(final Integer fieldNumber,
-                                           final Integer numberOfElements,
-                                           final Byte[] invalidValue) {
-                this.fieldNumber = fieldNumber;
-                this.contentArrayAsString = new ArrayList<>(numberOfElements);
-                this.contentArrayAsLong = new ArrayList<>(numberOfElements);
-                this.invalidValue = invalidValue;
-            }
-            protected void clearForRead() {
-                contentArrayAsString.clear();
-                contentArrayAsLong.clear();
-                isInvalid = false;
-            }
-            protected void addString(final String content) {
-                contentArrayAsString.add(content);
-            }
-            protected void addLong(final Long content) {
-                contentArrayAsLong.add(content);
-            }
-            public Integer getFieldNumber() {
-                return fieldNumber;
-            }
-            public Byte[] getInvalidValue() {
-                return invalidValue;
-            }
-            public Boolean isInvalid() {
-                return isInvalid;
-            }
-            protected void setInvalid(final Boolean isInvalid) {
-                this.isInvalid = isInvalid;
-            }
-            public String asString() {
-                if (1 == contentArrayAsString.size()) {
-                    return contentArrayAsString.get(0);
-                }
-                return Arrays.toString(contentArrayAsString.toArray());
-            }
-            public Integer asInteger() {
-                return contentArrayAsLong.get(0).intValue();
-            }
-            public Long asLong() {
-                return contentArrayAsLong.get(0);
-            }
-            public Iterator<String> iteratorString() {
-                return contentArrayAsString.iterator();
-            }
-            public Iterator<Long> iteratorLong() {
-                return contentArrayAsLong.iterator();
-            }
-            abstract public String getTypeName();
+        public DateTime convertToJodaTime(final long fitTimestamp) {
+            return new DateTime(FIT_EPOCH_MILLIS + fitTimestamp * 1000L, DateTimeZone.UTC);
         }
 
         /**
-         * Encapsulates the creation of the specific FitDataMessageFieldType instances.
+         * To store the definition message objects read from the file, by local message type.
          */
-        static class FitDataMessageFieldTypeFactory {
-            public static FitDataMessageFieldType getFieldType(final Integer fieldNumber,
-                                                               final Integer sizeInBytes,
-                                                               final Boolean isLittleEndian,
-                                                               final FitBaseType baseTye) {
-                FitDataMessageFieldType result = null;
-                final Integer numberOfElements = sizeInBytes / baseTye.size;
-                if (FIELD_TYPE_ENUM == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeEnum(fieldNumber, numberOfElements, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_SINT8 == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeSigned8(fieldNumber, numberOfElements, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_UINT8 == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeUnsigned8(fieldNumber, numberOfElements, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_SINT16 == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeSigned16(fieldNumber, numberOfElements, isLittleEndian, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_UINT16 == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeUnsigned16(fieldNumber, numberOfElements, isLittleEndian, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_SINT32 == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeSigned32(fieldNumber, numberOfElements, isLittleEndian, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_UINT32 == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeUnsigned32(fieldNumber, numberOfElements, isLittleEndian, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_STRING == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeString(fieldNumber, numberOfElements, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_FLOAT32 == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeFloat32(fieldNumber, numberOfElements, isLittleEndian, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_FLOAT64 == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeFloat64(fieldNumber, numberOfElements, isLittleEndian, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_UINT8Z == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeUnsigned8(fieldNumber, numberOfElements, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_UINT16Z == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeUnsigned16(fieldNumber, numberOfElements, isLittleEndian, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_UINT32Z == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeUnsigned32(fieldNumber, numberOfElements, isLittleEndian, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_BYTE == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeUnsigned8(fieldNumber, numberOfElements, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_SINT64 == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeSigned64(fieldNumber, numberOfElements, isLittleEndian, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_UINT64 == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeUnsigned64(fieldNumber, numberOfElements, isLittleEndian, baseTye.invalidValue);
-                }
-                if (FIELD_TYPE_UINT64Z == baseTye.typeNumber) {
-                    result = new FitDataMessageFieldTypeUnsigned64(fieldNumber, numberOfElements, isLittleEndian, baseTye.invalidValue);
-                }
-                return result;
-            }
-        }
-        static class FitDataMessageFieldTypeString extends FitDataMessageFieldType {
-            final StringArray data;
-            public FitDataMessageFieldTypeString(final Integer fieldNumber,
-                                                 final Integer numberOfElements,
-                                                 final Byte[] invalidValue) {
-                super(fieldNumber, numberOfElements, invalidValue);
-                data = new StringArray(numberOfElements);
-            }
-            @Override
-            public void read(final InputStream inStream, final Crc crc) throws IOException {
-                clearForRead();
-                data.getByteBuffer().clear();
-                data.read(inStream, crc);
-                setInvalid(data.isInvalid(getInvalidValue()));
-                this.addString(data.toString());
-            }
-            @Override
-            public String getTypeName() {
-                return "String";
-            }
-        }
-        static class FitDataMessageFieldTypeSigned8 extends FitDataMessageFieldType {
-            final Signed8Array data;
-            public FitDataMessageFieldTypeSigned8(final Integer fieldNumber,
-                                                  final Integer numberOfElements,
-                                                  final Byte[] invalidValue) {
-                super(fieldNumber, numberOfElements, invalidValue);
-                data = new Signed8Array(numberOfElements);
-            }
-            @Override
-            public void read(final InputStream inStream, final Crc crc) throws IOException {
-                clearForRead();
-                data.getByteBuffer().clear();
-                data.read(inStream, crc);
-                setInvalid(data.isInvalid(getInvalidValue()));
-                for (Struct.Signed8 content : data.data) {
-                    this.addLong((long) content.get());
-                    this.addString(content.toString());
-                }
-            }
-            @Override
-            public String getTypeName() {
-                return "sint8";
-            }
-        }
-        static class FitDataMessageFieldTypeUnsigned8 extends FitDataMessageFieldType {
-            final Unsigned8Array data;
-            public FitDataMessageFieldTypeUnsigned8(final Integer fieldNumber,
-                                                    final Integer numberOfElements,
-                                                    final Byte[] invalidValue) {
-                super(fieldNumber, numberOfElements, invalidValue);
-                data = new Unsigned8Array(numberOfElements);
-            }
-            @Override
-            public void read(final InputStream inStream, final Crc crc) throws IOException {
-                clearForRead();
-                data.getByteBuffer().clear();
-                data.read(inStream, crc);
-                setInvalid(data.isInvalid(getInvalidValue()));
-                for (Struct.Unsigned8 content : data.data) {
-                    this.addLong((long) content.get());
-                    this.addString(content.toString());
-                }
-            }
-            @Override
-            public String getTypeName() {
-                return "uint8";
-            }
-        }
-        static class FitDataMessageFieldTypeEnum extends FitDataMessageFieldTypeUnsigned8 {
-            public FitDataMessageFieldTypeEnum(Integer fieldNumber, Integer numberOfElements, Byte[] invalidValue) {
-                super(fieldNumber, numberOfElements, invalidValue);
-            }
-            @Override
-            public String getTypeName() {
-                return "enum";
-            }
-        }
-        static class FitDataMessageFieldTypeSigned16 extends FitDataMessageFieldType {
-            final Signed16Array data;
-            public FitDataMessageFieldTypeSigned16(final Integer fieldNumber,
-                                                   final Integer numberOfElements,
-                                                   final Boolean isLittleEndian,
-                                                   final Byte[] invalidValue) {
-                super(fieldNumber, numberOfElements, invalidValue);
-                data = new Signed16Array(numberOfElements, isLittleEndian);
-            }
-            @Override
-            public void read(final InputStream inStream, final Crc crc) throws IOException {
-                clearForRead();
-                data.getByteBuffer().clear();
-                data.read(inStream, crc);
-                setInvalid(data.isInvalid(getInvalidValue()));
-                for (Struct.Signed16 content : data.data) {
-                    this.addLong((long) content.get());
-                    this.addString(content.toString());
-                }
-            }
-            @Override
-            public String getTypeName() {
-                return "sint16";
-            }
-        }
-        static class FitDataMessageFieldTypeUnsigned16 extends FitDataMessageFieldType {
-            final Unsigned16Array data;
-            public FitDataMessageFieldTypeUnsigned16(final Integer fieldNumber,
-                                                     final Integer numberOfElements,
-                                                     final Boolean isLittleEndian,
-                                                     final Byte[] invalidValue) {
-                super(fieldNumber, numberOfElements, invalidValue);
-                data = new Unsigned16Array(numberOfElements, isLittleEndian);
-            }
-            @Override
-            public void read(final InputStream inStream, final Crc crc) throws IOException {
-                clearForRead();
-                data.getByteBuffer().clear();
-                data.read(inStream, crc);
-                setInvalid(data.isInvalid(getInvalidValue()));
-                for (Struct.Unsigned16 content : data.data) {
-                    this.addLong((long) content.get());
-                    this.addString(content.toString());
-                }
-            }
-            @Override
-            public String getTypeName() {
-                return "uint16";
-            }
-        }
-        static class FitDataMessageFieldTypeSigned32 extends FitDataMessageFieldType {
-            final Signed32Array data;
-            public FitDataMessageFieldTypeSigned32(final Integer fieldNumber,
-                                                   final Integer numberOfElements,
-                                                   final Boolean isLittleEndian,
-                                                   final Byte[] invalidValue) {
-                super(fieldNumber, numberOfElements, invalidValue);
-                data = new Signed32Array(numberOfElements, isLittleEndian);
-            }
-            @Override
-            public void read(final InputStream inStream, final Crc crc) throws IOException {
-                clearForRead();
-                data.getByteBuffer().clear();
-                data.read(inStream, crc);
-                setInvalid(data.isInvalid(getInvalidValue()));
-                for (Struct.Signed32 content : data.data) {
-                    this.addLong((long) content.get());
-                    this.addString(content.toString());
-                }
-            }
-            @Override
-            public String getTypeName() {
-                return "sint32";
-            }
-        }
-        static class FitDataMessageFieldTypeUnsigned32 extends FitDataMessageFieldType {
-            final Unsigned32Array data;
-            public FitDataMessageFieldTypeUnsigned32(final Integer fieldNumber,
-                                                     final Integer numberOfElements,
-                                                     final Boolean isLittleEndian,
-                                                     final Byte[] invalidValue) {
-                super(fieldNumber, numberOfElements, invalidValue);
-                data = new Unsigned32Array(numberOfElements, isLittleEndian);
-            }
-            @Override
-            public void read(final InputStream inStream, final Crc crc) throws IOException {
-                clearForRead();
-                data.getByteBuffer().clear();
-                data.read(inStream, crc);
-                setInvalid(data.isInvalid(getInvalidValue()));
-                for (Struct.Unsigned32 content : data.data) {
-                    this.addLong(content.get());
-                    this.addString(content.toString());
-                }
-            }
-            @Override
-            public String getTypeName() {
-                return "uint32";
-            }
-        }
-        static class FitDataMessageFieldTypeFloat32 extends FitDataMessageFieldType {
-            final Float32Array data;
-            public FitDataMessageFieldTypeFloat32(final Integer fieldNumber,
-                                                  final Integer numberOfElements,
-                                                  final Boolean isLittleEndian,
-                                                  final Byte[] invalidValue) {
-                super(fieldNumber, numberOfElements, invalidValue);
-                data = new Float32Array(numberOfElements, isLittleEndian);
-            }
-            @Override
-            public void read(final InputStream inStream, final Crc crc) throws IOException {
-                clearForRead();
-                data.getByteBuffer().clear();
-                data.read(inStream, crc);
-                setInvalid(data.isInvalid(getInvalidValue()));
-                for (Struct.Float32 content : data.data) {
-                    //this.addLong(Float.valueOf(content.get()).longValue());
-                    this.addString(content.toString());
-                    // Maybe we should provide the float value as float too?
-                }
-            }
-            @Override
-            public String getTypeName() {
-                return "float32";
-            }
-        }
-        static class FitDataMessageFieldTypeFloat64 extends FitDataMessageFieldType {
-            final Float64Array data;
-            public FitDataMessageFieldTypeFloat64(final Integer fieldNumber,
-                                                  final Integer numberOfElements,
-                                                  final Boolean isLittleEndian,
-                                                  final Byte[] invalidValue) {
-                super(fieldNumber, numberOfElements, invalidValue);
-                data = new Float64Array(numberOfElements, isLittleEndian);
-            }
-            @Override
-            public void read(final InputStream inStream, final Crc crc) throws IOException {
-                clearForRead();
-                data.getByteBuffer().clear();
-                data.read(inStream, crc);
-                setInvalid(data.isInvalid(getInvalidValue()));
-                for (Struct.Float64 content : data.data) {
-                    //this.addLong(Float.valueOf(content.get()).longValue());
-                    this.addString(content.toString());
-                    // Maybe we should provide the float value as float too?
-                }
-            }
-            @Override
-            public String getTypeName() {
-                return "float64";
-            }
-        }
-        static class FitDataMessageFieldTypeSigned64 extends FitDataMessageFieldType {
-            final Signed64Array data;
-            public FitDataMessageFieldTypeSigned64(final Integer fieldNumber,
-                                                   final Integer numberOfElements,
-                                                   final Boolean isLittleEndian,
-                                                   final Byte[] invalidValue) {
-                super(fieldNumber, numberOfElements, invalidValue);
-                data = new Signed64Array(numberOfElements, isLittleEndian);
-            }
-            @Override
-            public void read(final InputStream inStream, final Crc crc) throws IOException {
-                clearForRead();
-                data.getByteBuffer().clear();
-                data.read(inStream, crc);
-                setInvalid(data.isInvalid(getInvalidValue()));
-                for (Struct.Signed64 content : data.data) {
-                    this.addLong((long) content.get());
-                    this.addString(content.toString());
-                }
-            }
-            @Override
-            public String getTypeName() {
-                return "sint64";
-            }
-        }
-        static class FitDataMessageFieldTypeUnsigned64 extends FitDataMessageFieldType {
-            final Unsigned64Array data;
-            public FitDataMessageFieldTypeUnsigned64(final Integer fieldNumber,
-                                                     final Integer numberOfElements,
-                                                     final Boolean isLittleEndian,
-                                                     final Byte[] invalidValue) {
-                super(fieldNumber, numberOfElements, invalidValue);
-                data = new Unsigned64Array(numberOfElements, isLittleEndian);
-            }
-            @Override
-            public void read(final InputStream inStream, final Crc crc) throws IOException {
-                clearForRead();
-                data.getByteBuffer().clear();
-                data.read(inStream, crc);
-                setInvalid(data.isInvalid(getInvalidValue()));
-                for (Struct.Signed64 content : data.data) {
-                    this.addLong(content.get());
-                    this.addString(content.toString());
-                }
-            }
-            @Override
-            public String getTypeName() {
-                return "uint64";
-            }
-        }
+        private final MessageDefinition[] messageDefinitions = new MessageDefinition[16];
+
         /**
-         * All fixed globale header structs are little endian and packed.
-         * Only the specific structs can be big endian.
+         * Read the whole stream into a buffer
+         * @param inStream
+         * @return
+         * @throws IOException
          */
-        static class FitStructPacked extends Struct {
-            private Boolean isLittleEndian = true;
-            public FitStructPacked() {}
-            public FitStructPacked(final Boolean isLittleEndian) {
-                this.isLittleEndian = isLittleEndian;
-            }
-            public void setEndian(final Boolean isLittleEndian) {
-                this.isLittleEndian = isLittleEndian;
-            }
-            @Override
-            public ByteOrder byteOrder() {
-                if (isLittleEndian) {
-                    return ByteOrder.LITTLE_ENDIAN;
-                } else {
-                    return ByteOrder.BIG_ENDIAN;
-                }
-            }
-            @Override
-            public boolean isPacked() {
-                return true;
-            }
-            public int read(final InputStream in, final Crc crc) throws IOException {
-                int ret = super.read(in);
-                crc.calculate(getByteBuffer());
-                return ret;
+        static ByteBuffer readFully(final InputStream inStream) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(inStream.available(), 8192));
+            final byte[] chunk = new byte[65536];
+            int read;
+            while ((read = inStream.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
             }
+            return ByteBuffer.wrap(out.toByteArray());
         }
 
         /**
-         * ALL data types modelled as arrays except Strings.
+         * Check the file header and the header CRC
+         * @param buffer
+         * @return offset of the first message
+         * @throws ValidationException
          */
-        static class StringArray extends FitStructPacked {
-            public final UTF8String data;
-            public StringArray(final Integer numberOfElements) {
-                data = new UTF8String(numberOfElements);
-            }
-            public Boolean isInvalid(final Byte[] invalidValue) {
-                if (data.struct().getByteBuffer().get(0) != invalidValue[0]) {
-                    return false;
-                }
-                return true;
-            }
-        }
-        static class Unsigned8Array extends FitStructPacked {
-            public final Unsigned8[] data;
-            public Unsigned8Array(final Integer numberOfElements) {
-                data = array(new Unsigned8[numberOfElements]);
-            }
-            public Boolean isInvalid(final Byte[] invalidValue) {
-                for (Unsigned8 datum : data) {
-                    for (int i = 0; i < invalidValue.length; ++i) {
-                        if (datum.struct().getByteBuffer().get(i) != invalidValue[i]) {
-                            return false;
-                        }
-                    }
-                }
-                return true;
-            }
-        }
-        static class Signed8Array extends FitStructPacked {
-            public final Signed8[] data;
-            public Signed8Array(final Integer numberOfElements) {
-                data = array(new Signed8[numberOfElements]);
-            }
-            public Boolean isInvalid(final Byte[] invalidValue) {
-                for (Signed8 datum : data) {
-                    for (int i = 0; i < invalidValue.length; ++i) {
-                        if (datum.struct().getByteBuffer().get(i) != invalidValue[i]) {
-                            return false;
-                        }
-                    }
-                }
-                return true;
-            }
-        }
-        static class Unsigned16Array extends FitStructPacked {
-            public final Unsigned16[] data;
-            public Unsigned16Array(final Integer numberOfElements, final Boolean isLittleEndian) {
-                super(isLittleEndian);
-                data = array(new Unsigned16[numberOfElements]);
-            }
-            public Boolean isInvalid(final Byte[] invalidValue) {
-                for (Unsigned16 datum : data) {
-                    for (int i = 0; i < invalidValue.length; ++i) {
-                        if (datum.struct().getByteBuffer().get(i) != invalidValue[i]) {
-                            return false;
-                        }
-                    }
-                }
-                return true;
-            }
-        }
-        static class Signed16Array extends FitStructPacked {
-            public final Signed16[] data;
-            public Signed16Array(final Integer numberOfElements, final Boolean isLittleEndian) {
-                super(isLittleEndian);
-                data = array(new Signed16[numberOfElements]);
-            }
-            public Boolean isInvalid(final Byte[] invalidValue) {
-                for (Signed16 datum : data) {
-                    for (int i = 0; i < invalidValue.length; ++i) {
-                        if (datum.struct().getByteBuffer().get(i) != invalidValue[i]) {
-                            return false;
-                        }
-                    }
-                }
-                return true;
-            }
-        }
-        static class Unsigned32Array extends FitStructPacked {
-            public final Unsigned32[] data;
-            public Unsigned32Array(final Integer numberOfElements, final Boolean isLittleEndian) {
-                super(isLittleEndian);
-                data = array(new Unsigned32[numberOfElements]);
-            }
-            public Boolean isInvalid(final Byte[] invalidValue) {
-                for (Unsigned32 datum : data) {
-                    for (int i = 0; i < invalidValue.length; ++i) {
-                        if (datum.struct().getByteBuffer().get(i) != invalidValue[i]) {
-                            return false;
-                        }
-                    }
-                }
-                return true;
-            }
-        }
-        static class Signed32Array extends FitStructPacked {
-            public final Signed32[] data;
-            public Signed32Array(final Integer numberOfElements, final Boolean isLittleEndian) {
-                super(isLittleEndian);
-                data = array(new Signed32[numberOfElements]);
-            }
-            public Boolean isInvalid(final Byte[] invalidValue) {
-                for (Signed32 datum : data) {
-                    for (int i = 0; i < invalidValue.length; ++i) {
-                        if (datum.struct().getByteBuffer().get(i) != invalidValue[i]) {
-                            return false;
-                        }
-                    }
-                }
-                return true;
-            }
-        }
-        static class Unsigned64Array extends FitStructPacked {
-            public final Signed64[] data;
-            public Unsigned64Array(final Integer numberOfElements, final Boolean isLittleEndian) {
-                super(isLittleEndian);
-                data = array(new Signed64[numberOfElements]);
-            }
-            public Boolean isInvalid(final Byte[] invalidValue) {
-                for (Signed64 datum : data) {
-                    for (int i = 0; i < invalidValue.length; ++i) {
-                        if (datum.struct().getByteBuffer().get(i) != invalidValue[i]) {
-                            return false;
-                        }
-                    }
-                }
-                return true;
-            }
-        }
-        static class Signed64Array extends FitStructPacked {
-            public final Signed64[] data;
-            public Signed64Array(final Integer numberOfElements, final Boolean isLittleEndian) {
-                super(isLittleEndian);
-                data = array(new Signed64[numberOfElements]);
-            }
-            public Boolean isInvalid(final Byte[] invalidValue) {
-                for (Signed64 datum : data) {
-                    for (int i = 0; i < invalidValue.length; ++i) {
-                        if (datum.struct().getByteBuffer().get(i) != invalidValue[i]) {
-                            return false;
-                        }
-                    }
-                }
-                return true;
-            }
-        }
-        static class Float32Array extends FitStructPacked {
-            public final Float32[] data;
-            public Float32Array(final Integer numberOfElements, final Boolean isLittleEndian) {
-                super(isLittleEndian);
-                data = array(new Float32[numberOfElements]);
-            }
-            public Boolean isInvalid(final Byte[] invalidValue) {
-                for (Float32 datum : data) {
-                    for (int i = 0; i < invalidValue.length; ++i) {
-                        if (datum.struct().getByteBuffer().get(i) != invalidValue[i]) {
-                            return false;
-                        }
-                    }
-                }
-                return true;
+        private int checkHeader(final ByteBuffer buffer) throws ValidationException {
+            final ByteBuffer le = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            final int start = buffer.position();
+            if (buffer.remaining() < 12) {
+                throw new ValidationException("File is not a FIT file!");
             }
-        }
-        static class Float64Array extends FitStructPacked {
-            public final Float64[] data;
-            public Float64Array(final Integer numberOfElements, final Boolean isLittleEndian) {
-                super(isLittleEndian);
-                data = array(new Float64[numberOfElements]);
+            final int headerSize = le.get(start) & 0xFF;
+            if (le.getInt(start + 8) != FIT_MAGIC || headerSize < 12 || headerSize > buffer.remaining()) {
+                throw new ValidationException("File is not a FIT file!");
             }
-            public Boolean isInvalid(final Byte[] invalidValue) {
-                for (Float64 datum : data) {
-                    for (int i = 0; i < invalidValue.length; ++i) {
-                        if (datum.struct().getByteBuffer().get(i) != invalidValue[i]) {
-                            return false;
-                        }
-                    }
+            if (14 == headerSize) {
+                final int headerCrc = crc(0, array(buffer, start, 12), 0, 12);
+                final int expected = le.getShort(start + 12) & 0xFFFF;
+                if (expected != 0 && expected != headerCrc) {
+                    throw new ValidationException("FIT header CRC mismatch. Expected:" + Integer.toHexString(expected)
+                            + " but calculated:" + Integer.toHexString(headerCrc));
                 }
-                return true;
             }
+            return start + headerSize;
         }
 
         /**
-         * Encapsulates the basic data types as defined by the FIT standard.
+         * @return size of the data records as given in the header
          */
-        static class FitBaseType {
-            public String typeName;
-            public Integer typeNumber;
-            public Boolean endianAbility = false;
-            public Byte[] invalidValue;
-            public Integer size;
-            public FitBaseType(final Integer typeNumber,
-                               final String typeName,
-                               final Boolean endianAbility,
-                               final Byte[] invalidValue,
-                               final Integer size) {
-                this.typeNumber = typeNumber;
-                this.typeName = typeName;
-                this.endianAbility = endianAbility;
-                this.invalidValue = invalidValue;
-                this.size = size;
-            }
+        private long getDataSize(final ByteBuffer buffer) {
+            return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(buffer.position() + 4) & 0xFFFFFFFFL;
         }
 
         /**
-         * These are the basic data types as defined by the FIT standard.
+         * Calculate the CRC over the given range of the buffer
          */
-        static class FitDataTypes {
-            private static final HashMap<Integer, FitBaseType> fitBaseTypeViaNumbers = new HashMap<>(16);
-
-            static {
-                new FitDataTypes();
-            }
-
-            private FitDataTypes() {
-                FitBaseType baseType = new FitBaseType(FIELD_TYPE_ENUM, "enum", false, new Byte[]{(byte) 0xFF}, 1);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_SINT8, "sint8", false, new Byte[]{(byte) 0x7F}, 1);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_UINT8, "uint8", false, new Byte[]{(byte) 0xFF}, 1);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_SINT16, "sint16", true, new Byte[]{(byte) 0x7F, (byte) 0xFF}, 2);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_UINT16, "uint16", true, new Byte[]{(byte) 0xFF, (byte) 0xFF}, 2);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_SINT32, "sint32", true, new Byte[]{(byte) 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, 4);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_UINT32, "uint32", true, new Byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, 4);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_STRING, "string", false, new Byte[]{(byte) 0x00}, 1);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_FLOAT32, "float32", true, new Byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, 4);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_FLOAT64, "float64", true, new Byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, 8);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_UINT8Z, "uint8z", false, new Byte[]{(byte) 0x00}, 1);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_UINT16Z, "uint16z", true, new Byte[]{(byte) 0x00, (byte) 0x00}, 2);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_UINT32Z, "uint32z", true, new Byte[]{(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00}, 4);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_BYTE, "byte", false, new Byte[]{(byte) 0xFF}, 1);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_SINT64, "sint64", true, new Byte[]{(byte) 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, 8);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_UINT64, "uint64", true, new Byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, 8);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
-                baseType = new FitBaseType(FIELD_TYPE_UINT64Z, "uint64z", true, new Byte[]{(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00}, 8);
-                fitBaseTypeViaNumbers.put(baseType.typeNumber, baseType);
+        private int crc(final ByteBuffer buffer, final int from, final int to) {
+            if (buffer.hasArray()) {
+                return crc(0, buffer.array(), buffer.arrayOffset() + from, buffer.arrayOffset() + to);
             }
-            public static FitBaseType getBaseType(final Integer typeNumber) {
-                return fitBaseTypeViaNumbers.get(typeNumber);
+            final byte[] chunk = new byte[65536];
+            final ByteBuffer source = buffer.duplicate();
+            source.position(from);
+            int crc = 0;
+            for (int i = from; i < to; i += chunk.length) {
+                final int length = Math.min(chunk.length, to - i);
+                source.get(chunk, 0, length);
+                crc = crc(crc, chunk, 0, length);
             }
+            return crc;
         }
 
         /**
-         * Record header structs.
+         * @return copy of the given range of the buffer
          */
-        static class FitByte extends FitStructPacked {
-            public final Unsigned8 fitByte = new Unsigned8();
-        }
-
-        static class FitCrc extends FitStructPacked {
-            public final Unsigned16 fitCrc = new Unsigned16();
-            public FitCrc() {
-                setEndian(true);
-            }
-        }
-
-        static class FitHeader extends FitStructPacked {
-            public final Unsigned8 headerSize = new Unsigned8();
-            public final Unsigned8 protocolVersion = new Unsigned8();
-            public final Unsigned16 profileVersion = new Unsigned16();
-            public final Unsigned32 dataSize = new Unsigned32();
-            public final Unsigned32 dataType = new Unsigned32();
-        }
-
-        static class FitRecordHeader extends FitStructPacked {
-            public final BitField localMessageType = new BitField(4);
-            public final BitField reserved2 = new BitField(1);
-            public final BitField devDataFlag = new BitField(1);
-            public final BitField messageType = new BitField(1);
-            public final BitField normal = new BitField(1);
-        }
-
-        static class FitCompressedHeader extends FitStructPacked {
-            public final BitField timeOffset = new BitField(5);
-            public final BitField localMessageType = new BitField(2);
-            public final BitField normal = new BitField(1);
+        private static byte[] array(final ByteBuffer buffer, final int from, final int length) {
+            final byte[] bytes = new byte[length];
+            final ByteBuffer source = buffer.duplicate();
+            source.position(from);
+            source.get(bytes);
+            return bytes;
         }
 
         /**
-         * Definition message fixed content structs.
-         */
-        static class FitDefinitionMessageContentFixed extends FitStructPacked {
-            public final Unsigned16 globalMsgNum = new Unsigned16();
-            public final Unsigned8 numberOfFields = new Unsigned8();
-            public FitDefinitionMessageContentFixed(final Boolean isLittleEndian) {
-                super(isLittleEndian);
-            }
-        }
-
-        /**
-         * Definition message field structs (aka. variable content structs).
+         * Validation means only to check the header for the ".FIT" magic and to check the crc.
+         * @param inStream The FIT file to validate
+         * @throws IOException
+         * @throws ValidationException
          */
-        static class FitDefinitionField extends FitStructPacked {
-            public final Unsigned8 fieldDefinitionNumber = new Unsigned8();
-            public final Unsigned8 size = new Unsigned8();
-            public FitDefinitionField(final Boolean isLittleEndian) {
-                super(isLittleEndian);
-            }
+        public void validateFitFile(final InputStream inStream) throws IOException, ValidationException {
+            validateFitFile(readFully(inStream));
         }
 
         /**
-         * Definition message base type structs.
+         * Validation means only to check the header for the ".FIT" magic and to check the crc.
+         * @param buffer The FIT file to validate, from the current position
+         * @throws ValidationException
          */
-        static class FitDefinitionFieldBaseType extends FitStructPacked {
-            public final BitField baseTypeNumber = new BitField(5);
-            public final BitField reserved = new BitField(2);
-            public final BitField endianess = new BitField(1);
-            public FitDefinitionFieldBaseType(final Boolean isLittleEndian) {
-                super(isLittleEndian);
+        public void validateFitFile(final ByteBuffer buffer) throws ValidationException {
+            final int start = buffer.position();
+            final int dataStart = checkHeader(buffer);
+            final long dataEnd = dataStart + getDataSize(buffer);
+            if (dataEnd + 2 > buffer.limit()) {
+                throw new ValidationException("Failed to read all data. Read:" + (buffer.limit() - dataStart)
+                        + " but expected:" + getDataSize(buffer));
             }
-        }
-
-        /**
-         * Contains the information, we use in GPSMaster for {@link Waypoint} content.
-         */
-        static class FitRecord {
-            public Double posLat;
-            public Double posLong;
-            public Double altitude;
-            public Integer cadence;
-            public Integer heartrate;
-            public Integer temperature;
-            public Integer zone;
-            public Integer enhancedSpeed;
-            public DateTime timestamp;
-            public Double hrv;
-            public String toString() {
-                String content = "FitRecord:" +
-                        "\n  posLat=" + posLat +
-                        "\n  posLong=" + posLong +
-                        "\n  altitude=" + altitude +
-                        "\n  cadence=" + cadence +
-                        "\n  heartrate=" + heartrate +
-                        "\n  temperature=" + temperature +
-                        "\n  zone=" + zone +
-                        "\n  speed=" + enhancedSpeed +
-                        "\n  hrv=" + hrv +
-                        "\n  time=" + timestamp;
-                return content;
+            final int crc = crc(buffer, start, (int) dataEnd);
+            final int expected = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).getShort((int) dataEnd) & 0xFFFF;
+            if (crc == 0 || expected != crc) {
+                throw new ValidationException("FIT file CRC mismatch. Expected:" + Integer.toHexString(expected)
+                        + " but calculated:" + Integer.toHexString(crc));
             }
         }
 
         /**
-         * FIT stores timestamps as long values with seconds since 31.12.1989 00:00:000.000.
+         * Reads the FIT file into the {@link FitRecords}.
+         * Does not handle multiple files within one file!!! The FIT specification would allow something like that.
          *
-         * @param fitTimestamp The value to convert
-         * @return The converted timestamp
-         */
-        public DateTime convertToJodaTime(final Integer fitTimestamp) {
-            final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-            cal.set(Calendar.DAY_OF_MONTH, 31);
-            cal.set(Calendar.MONTH, Calendar.DECEMBER);
-            cal.set(Calendar.HOUR_OF_DAY, 0);
-            cal.set(Calendar.MINUTE, 0);
-            cal.set(Calendar.SECOND, 0);
-            cal.set(Calendar.MILLISECOND, 0);
-            cal.set(Calendar.YEAR, 1989);
- //           System.err.println("***Time before add=" + cal.getTime().toString());
-            cal.add(Calendar.SECOND, fitTimestamp);
- //           System.err.println("***Time after add=" + cal.getTime().toString());
-            return new DateTime(cal.getTime(), DateTimeZone.UTC);
-        }
-
-        /**
-         * To store the definition message objects read from the file.
-         */
-        private HashMap<Integer, FitDataMessage> messageDefinitions = new HashMap<>(16);
-
-        /**
-         * Validation means only to check the header for the ".FIT" magic and to check the crc.
-         * @param inStream The FIT file to validate
+         * @param inStream The FIT file.
          * @throws IOException
          * @throws ValidationException
          */
-        public void validateFitFile(final InputStream inStream) throws IOException, ValidationException {
-            final Crc crc = new Crc();
-            final FitHeader header = new FitHeader();
-            header.read(inStream, crc);
-            //(".FIT");
-            if (header.dataType.get() != 0x5449462E) {
-                throw new ValidationException("File is not a FIT file!");
-            }
-            Long bytesToRead = header.dataSize.get();
-            if (14 == header.headerSize.get()) {
-                long headerCrc = crc.getValue();
-                final FitCrc crcHeader = new FitCrc();
-                crcHeader.read(inStream, crc);
-                if (crcHeader.fitCrc.get() != 0 && crcHeader.fitCrc.get() != headerCrc) {
-                    throw new ValidationException("FIT header CRC mismatch. Expected:" + Integer.toHexString(crcHeader.fitCrc.get())
-                            + " but calculated:" + Long.toHexString(crc.getValue()));
-                }
-            }
-            final byte[] buffer = new byte[bytesToRead.intValue()];
-            int read = inStream.read(buffer);
-            if (read != bytesToRead.intValue()) {
-                throw new ValidationException("Failed to read all data. Read:" + read + " but expected:" + bytesToRead);
-            }
-            crc.calculate(buffer);
-            FitCrc crcFile = new FitCrc();
-            crcFile.read(inStream);
-            if (crc.getValue() == 0 || crcFile.fitCrc.get() != crc.getValue()) {
-                throw new ValidationException("FIT file CRC mismatch. Expected:" + Integer.toHexString(crcFile.fitCrc.get())
-                        + " but calculated:" + Long.toHexString(crc.getValue()));
-            }
+        public void parseFitFile(final InputStream inStream) throws IOException, ValidationException {
+            parseFitFile(readFully(inStream));
         }
 
         /**
-         * Reads the FIT file into the {@link FitRecord}s.
+         * Reads the FIT file into the {@link FitRecords}.
          * Does not handle multiple files within one file!!! The FIT specification would allow something like that.
          *
-         * @param inStream The FIT file.
-         * @throws IOException
-         * @throws InstantiationException
-         * @throws IllegalAccessException
-         * @throws NoSuchMethodException
-         * @throws InvocationTargetException
+         * @param buffer The FIT file, from the current position. Heap or memory mapped.
+         * @throws ValidationException
          */
-        public void parseFitFile(final InputStream inStream)
-                throws IOException, InstantiationException, IllegalAccessException, NoSuchMethodException, InvocationTargetException, ValidationException {
+        public void parseFitFile(final ByteBuffer buffer) throws ValidationException {
             // We start at lap 0
             lap = 0;
-            laps.clear();
+            lapStarts[0] = 0;
             records.clear();
-            final Crc crc = new Crc();
-            final FitHeader header = new FitHeader();
-            header.read(inStream, crc);
-            final Boolean isFit = (header.dataType.get() == 0x5449462E); //(".FIT");
-            final Long bytesToRead = header.dataSize.get();
-            System.err.println("  Bytes to read: " + bytesToRead);
-//            System.err.println("header size:" + header.headerSize.toString());
-//            System.err.println("data size:" + header.dataSize.toString());
-//            System.err.println("data type:" + header.dataType.toString());
-//            System.err.println("header:" + header.toString());
-            if (14 == header.headerSize.get()) {
-                long headerCrc = crc.getValue();
-                final FitCrc crcHeader = new FitCrc();
-                crcHeader.read(inStream, crc);
-                if (crcHeader.fitCrc.get() != 0 && crcHeader.fitCrc.get() != headerCrc) {
-                    throw new ValidationException("FIT header CRC mismatch. Expected:" + Integer.toHexString(crcHeader.fitCrc.get())
-                            + " but calculated:" + Long.toHexString(headerCrc));
-                }
-            }
-            if (!isFit) {
-                System.err.println("File is not a FIT file!");
-                throw new ValidationException("File is not a FIT file!");
+            Arrays.fill(messageDefinitions, null);
+            final ByteBuffer le = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            final ByteBuffer be = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+            final int start = buffer.position();
+            final int dataStart = checkHeader(buffer);
+            final long bytesToRead = getDataSize(buffer);
+            final long dataEnd = dataStart + bytesToRead;
+            if (dataEnd > buffer.limit()) {
+                throw new ValidationException("Had to read " + bytesToRead + " bytes, but read only "
+                        + (buffer.limit() - dataStart) + ". Can not proceed.");
             }
 
-            long bytesRead = 0;
             // A FIT file starts with messages right behind the header.
-            final FitRecordHeader messageHeader = new FitRecordHeader();
-            final FitCompressedHeader compressedHeader = new FitCompressedHeader();
-            Integer localMessageType = -1;
-            Boolean compressed = false;
-            final FitDefinitionMessageContentFixed definitionHeader = new FitDefinitionMessageContentFixed(true);
-            final FitDefinitionField definitionField = new FitDefinitionField(true);
-            final FitDefinitionFieldBaseType definitionBaseType = new FitDefinitionFieldBaseType(true);
-            final FitByte reserved = new FitByte();
-            final FitByte endianess = new FitByte();
-            final FitByte numDevFields = new FitByte();
-
-            while (0 != inStream.available() && bytesRead < bytesToRead) {
-                messageHeader.read(inStream, crc);
-                bytesRead += messageHeader.size();
-                // Regular data message/definition message (0) or compressed data message (1)?
-                if (0 == messageHeader.normal.shortValue()) {
-                    compressed = false;
-                    localMessageType = messageHeader.localMessageType.intValue();
-                    if (1 == messageHeader.messageType.shortValue()) {
-//                        System.err.println(" record is definition message ->");
-                        bytesRead += reserved.read(inStream, crc);
-                        bytesRead += endianess.read(inStream, crc);
-                        final Boolean isLittleEndian = (0 == endianess.fitByte.get());
-                        definitionHeader.setEndian(isLittleEndian);
-                        bytesRead += definitionHeader.read(inStream, crc);
-                        final FitDataMessage dataMessage = new FitDataMessage(definitionHeader.globalMsgNum.get(),
-                                messageHeader.localMessageType.intValue(),
-                                Integer.valueOf(definitionHeader.numberOfFields.get()));
-                        messageDefinitions.put(dataMessage.localMessageNumber, dataMessage);
-                        for (int i = 0; i < definitionHeader.numberOfFields.get(); ++i) {
-                            definitionField.setEndian(isLittleEndian);
-                            bytesRead += definitionField.read(inStream, crc);
-                            definitionBaseType.setEndian(isLittleEndian);
-                            bytesRead += definitionBaseType.read(inStream, crc);
-                            FitBaseType bt = FitDataTypes.getBaseType(definitionBaseType.baseTypeNumber.intValue());
-                            final FitDataMessageField dataField = new FitDataMessageField(Integer.valueOf(definitionField.fieldDefinitionNumber.get()),
-                                    Integer.valueOf(definitionField.size.get()),
-                                    isLittleEndian,
-                                    bt);
-                            dataMessage.addField(dataField);
-                        }
-                        if (0 != messageHeader.devDataFlag.intValue()) {
-//                            System.err.println("  devDataFlag is set!");
-                            bytesRead += numDevFields.read(inStream, crc);
-//                            System.err.println("Number of DevFields=" + numDevFields.fitByte.toString());
-                            dataMessage.addDevFields(numDevFields.fitByte.get());
-                            for (int i = 0; i < numDevFields.fitByte.get(); ++i) {
-                                definitionField.setEndian(isLittleEndian);
-                                bytesRead += definitionField.read(inStream, crc);
-                                definitionBaseType.setEndian(isLittleEndian);
-                                bytesRead += definitionBaseType.read(inStream, crc);
-                                FitBaseType bt = FitDataTypes.getBaseType(definitionBaseType.baseTypeNumber.intValue());
-                                final FitDataMessageField dataField = new FitDataMessageField(Integer.valueOf(definitionField.fieldDefinitionNumber.get()),
-                                        Integer.valueOf(definitionField.size.get()),
-                                        isLittleEndian,
-                                        bt);
-                                dataMessage.addDevField(dataField);
-                            }
-                        }
-//                        System.err.println(dataMessage.toString());
-//                        System.err.println(" end of definition message");
+            int position = dataStart;
+            while (position < dataEnd) {
+                final int header = le.get(position++) & 0xFF;
+                final int localMessageType;
+                final boolean compressed = (header & 0x80) != 0;
+                if (!compressed) {
+                    localMessageType = header & 0x0F;
+                    if ((header & 0x40) != 0) {
+                        position = readDefinition(le, position, localMessageType, (header & 0x20) != 0, dataEnd);
                         // Processing complete -> next message
                         continue;
                     }
                 } else {
-                    compressed = true;
-                    compressedHeader.setByteBuffer(messageHeader.getByteBuffer(), 0);
-                    if (1 != compressedHeader.normal.shortValue()) {
-                        System.err.println("Failed to set compressed header content");
-                        throw new ValidationException("Failed to set compressed header content");
+                    localMessageType = (header >> 5) & 0x03;
+                    // the header holds the 5 least significant bits of the timestamp
+                    final int timeOffset = header & 0x1F;
+                    long timestamp = (lastTimestamp & ~0x1FL) + timeOffset;
+                    if (timeOffset < (lastTimestamp & 0x1F)) {
+                        timestamp += 0x20;
                     }
-                    localMessageType = compressedHeader.localMessageType.intValue();
-//                    System.err.println("record.normal:" + compressedHeader.normal.toString());
-//                    System.err.println("record.localMessageType:" + compressedHeader.localMessageType.toString());
-//                    System.err.println("record.timeOffset:" + compressedHeader.timeOffset.toString());
-//                    System.err.println("recordHeader:" + compressedHeader.toString());
+                    lastTimestamp = timestamp;
                 }
-                FitDataMessage dataMessage = messageDefinitions.get(localMessageType);
-                if (null == dataMessage) {
+                final MessageDefinition definition = messageDefinitions[localMessageType];
+                if (null == definition) {
                     System.err.println("Invalid FIT structure. Data message references unknown definition message.");
                     throw new ValidationException("Invalid FIT structure. Data message references unknown definition message.");
                 }
-                bytesRead += dataMessage.read(inStream, compressed, crc);
-//                System.err.println(dataMessage.toString());
-                switch (dataMessage.globalMessageNumber) {
-                    case FILEID_MSG: {
-                        FitDataMessageField field = dataMessage.getField(FILEID_FIELD_TYPE);
-                        if (null != field) {
-                            if (!field.asString().equals(FILEID_TYPE_ACTIVITY.toString())) {
-                                System.err.println("FIT file is not an activity file. Unable to proceed!");
-                                records.clear();
-                                throw new ValidationException("FIT file is not an activity file. Unable to proceed!");
-                            } else {
-                                System.out.println("FIT activity file detected!");
-                            }
-                        }
-                        field = dataMessage.getField(FILEID_FIELD_CREATETIME);
-                        if (null != field) {
-                            DateTime dateTime = convertToJodaTime(field.asInteger());
-                            DateTimeFormatter fmt = DateTimeFormat.forPattern("yyyy/MM/dd HH:mm:ss Z");
-                            name = fmt.print(dateTime);
-                        }
-                        field = dataMessage.getField(FILEID_FIELD_SERIAL);
-                        if (null != field && !field.isInvalid()) {
-                            creator = field.asString();
-                        }
+                if (position + definition.size > dataEnd) {
+                    throw new ValidationException("Data message exceeds the data size given in the header. Can not proceed.");
+                }
+                if (!compressed) {
+                    final long timestamp = definition.getLong(le, be, position, TIMESTAMP_FIELD);
+                    if (timestamp != INVALID) {
+                        lastTimestamp = timestamp;
                     }
-                    break;
-                    case HRV_MSG: {
-                        FitDataMessageField field = dataMessage.getField(HRV_FIELD_TIME);
-                        if (null != field) {
-                            Integer raw = field.asInteger();
-                            Double hrv = 1.0 * raw / HRV_TIME_SCALE;
-                            lastHrv = hrv;
+                }
+                readData(definition, le, be, position, compressed);
+                position += definition.size;
+            }
+            // Collected records since last lap change? -> store
+            if (records.size() > lapStarts[lap]) {
+                addLap();
+            }
+            if (dataEnd + 2 <= buffer.limit()) {
+                final int crc = crc(buffer, start, (int) dataEnd);
+                final int expected = le.getShort((int) dataEnd) & 0xFFFF;
+                if (crc != expected) {
+                    throw new ValidationException("FIT file CRC mismatch. Expected:" + Integer.toHexString(expected)
+                            + " but calculated:" + Integer.toHexString(crc));
+                }
+            }
+        }
+
+        /**
+         * Compile a definition message
+         * @return position after the definition message
+         */
+        private int readDefinition(final ByteBuffer le, int position, final int localMessageType,
+                                   final boolean devData, final long dataEnd) throws ValidationException {
+            if (position + 5 > dataEnd) {
+                throw new ValidationException("Definition message exceeds the data size given in the header. Can not proceed.");
+            }
+            position++; // reserved
+            final boolean isLittleEndian = (0 == le.get(position++));
+            final int globalMessageNumber = isLittleEndian ? le.getShort(position) & 0xFFFF
+                    : Short.reverseBytes(le.getShort(position)) & 0xFFFF;
+            position += 2;
+            final int numberOfFields = le.get(position++) & 0xFF;
+            if (position + 3L * numberOfFields + (devData ? 1 : 0) > dataEnd) {
+                throw new ValidationException("Definition message exceeds the data size given in the header. Can not proceed.");
+            }
+            final int[] fieldNumbers = new int[numberOfFields];
+            final int[] sizes = new int[numberOfFields];
+            final int[] baseTypes = new int[numberOfFields];
+            for (int i = 0; i < numberOfFields; ++i) {
+                fieldNumbers[i] = le.get(position) & 0xFF;
+                sizes[i] = le.get(position + 1) & 0xFF;
+                baseTypes[i] = le.get(position + 2) & 0x1F;
+                position += 3;
+            }
+            int devSize = 0;
+            if (devData) {
+                final int numDevFields = le.get(position++) & 0xFF;
+                if (position + 3L * numDevFields > dataEnd) {
+                    throw new ValidationException("Definition message exceeds the data size given in the header. Can not proceed.");
+                }
+                for (int i = 0; i < numDevFields; ++i) {
+                    devSize += le.get(position + 1) & 0xFF;
+                    position += 3;
+                }
+            }
+            messageDefinitions[localMessageType] = new MessageDefinition(globalMessageNumber, isLittleEndian,
+                    fieldNumbers, sizes, baseTypes, devSize);
+            return position;
+        }
+
+        /**
+         * Evaluate a data message
+         * @param position of the data message content
+         * @param compressed {@link true} if the message has a compressed timestamp header
+         */
+        private void readData(final MessageDefinition definition, final ByteBuffer le, final ByteBuffer be,
+                              final int position, final boolean compressed) throws ValidationException {
+            switch (definition.globalMessageNumber) {
+                case FILEID_MSG: {
+                    if (definition.hasField(FILEID_FIELD_TYPE)) {
+                        if (definition.getLong(le, be, position, FILEID_FIELD_TYPE) != FILEID_TYPE_ACTIVITY) {
+                            System.err.println("FIT file is not an activity file. Unable to proceed!");
+                            records.clear();
+                            throw new ValidationException("FIT file is not an activity file. Unable to proceed!");
+                        } else {
+                            System.out.println("FIT activity file detected!");
                         }
                     }
-                    break;
-                    case RECORD_MSG: {
-                        final FitRecord record = new FitRecord();
-                        record.hrv = lastHrv;
-                        FitDataMessageField field = dataMessage.getField(RECORD_FIELD_POS_LAT);
-                        if (null != field) {
-                            Integer raw = field.asInteger();
-                            Double latitude = convertSemicirclesToDegree(raw);
-                            record.posLat = latitude;
-                        }
-                        field = dataMessage.getField(RECORD_FIELD_POS_LONG);
-                        if (null != field) {
-                            Integer raw = field.asInteger();
-                            Double longitude = convertSemicirclesToDegree(raw);
-                            record.posLong = longitude;
-                        }
-                        field = dataMessage.getField(RECORD_FIELD_ALTITUDE);
-                        if (null != field) {
-                            Double alt = field.asLong().doubleValue();
-                            alt = alt / RECORD_ALTITUDE_SCALE;
-                            alt += RECORD_ALTITUDE_OFFSET;
-                            record.altitude = alt;
-                        }
-                        field = dataMessage.getField(RECORD_FIELD_TIMESTAMP);
-                        if (null != field) {
-                            Integer raw = field.asInteger();
-                            DateTime dt = convertToJodaTime(raw);
-                            record.timestamp = dt;
-                        }
-                        field = dataMessage.getField(RECORD_FIELD_CADENCE);
-                        if (null != field) {
-                            record.cadence = field.asInteger();
-                        }
-                        field = dataMessage.getField(RECORD_FIELD_HEARTRATE);
-                        if (null != field) {
-                            record.heartrate = field.asInteger();
-                        }
-                        field = dataMessage.getField(RECORD_FIELD_TEMPERATURE);
-                        if (null != field) {
-                            record.temperature = field.asInteger();
-                        }
-                        field = dataMessage.getField(RECORD_FIELD_ENHANCED_SPEED);
-                        if (null != field) {
-                            Integer speed = field.asInteger();
-                            speed = speed / RECORD_ENHANCED_SPEED_SCALE;
-                            record.enhancedSpeed = speed;
-                        }
-                        field = dataMessage.getField(RECORD_FIELD_ZONE);
-                        if (null != field) {
-                            record.zone = field.asInteger();
-                        }
-                        records.add(record);
-//                        System.err.println(record.toString());
+                    long value = definition.getLong(le, be, position, FILEID_FIELD_CREATETIME);
+                    if (INVALID != value) {
+                        DateTimeFormatter fmt = DateTimeFormat.forPattern("yyyy/MM/dd HH:mm:ss Z");
+                        name = fmt.print(convertToJodaTime(value));
                     }
-                    break;
-                    case LAP_MSG: {
-                        FitDataMessageField field = dataMessage.getField(LAP_FIELD_TIMESTAMP);
-                        if (null != field) {
-                            laps.add(new ArrayList<>(records));
-                            records.clear();
-                            ++lap;
-                        }
+                    value = definition.getLong(le, be, position, FILEID_FIELD_SERIAL);
+                    if (INVALID != value) {
+                        creator = Long.toString(value);
                     }
-                    break;
-                    case CREATOR_MSG: {
-                        FitDataMessageField field = dataMessage.getField(CREATOR_FIELD_SVERSION);
-                        if (null != field && !field.isInvalid()) {
-                            creator += "." + field.asString();
-                        }
-                        field = dataMessage.getField(CREATOR_FIELD_HVERSION);
-                        if (null != field && !field.isInvalid()) {
-                            creator += "." + field.asString();
-                        }
+                }
+                break;
+                case HRV_MSG: {
+                    final long raw = definition.getLong(le, be, position, HRV_FIELD_TIME);
+                    if (INVALID != raw) {
+                        lastHrv = 1.0 * raw / HRV_TIME_SCALE;
                     }
                 }
-            }
-            // Collected records since last lap change? -> store
-            if (!records.isEmpty()) {
-                laps.add(records);
-            }
-            System.err.println("  Bytes read: " + bytesRead);
-            if (bytesRead != bytesToRead) {
-                throw new ValidationException("Had to read " + bytesToRead + " bytes, but read only " + bytesRead + ". Can not proceed.");
-            }
-            if (inStream.available() > 0) {
-                final FitCrc crcFile = new FitCrc();
-                crcFile.read(inStream);
-                if (crc.getValue() != crcFile.fitCrc.get()) {
-                    throw new ValidationException("FIT file CRC mismatch. Expected:" + Integer.toHexString(crcFile.fitCrc.get())
-                            + " but calculated:" + Long.toHexString(crc.getValue()));
+                break;
+                case RECORD_MSG: {
+                    final int i = records.add();
+                    records.hrv[i] = lastHrv;
+                    long raw = definition.getLong(le, be, position, RECORD_FIELD_POS_LAT);
+                    if (INVALID != raw) {
+                        records.posLat[i] = convertSemicirclesToDegree(raw);
+                    }
+                    raw = definition.getLong(le, be, position, RECORD_FIELD_POS_LONG);
+                    if (INVALID != raw) {
+                        records.posLong[i] = convertSemicirclesToDegree(raw);
+                    }
+                    raw = definition.getLong(le, be, position, RECORD_FIELD_ALTITUDE);
+                    if (INVALID != raw) {
+                        records.altitude[i] = (double) raw / RECORD_ALTITUDE_SCALE + RECORD_ALTITUDE_OFFSET;
+                    }
+                    if (compressed || definition.hasField(RECORD_FIELD_TIMESTAMP)) {
+                        records.timestamp[i] = FIT_EPOCH_MILLIS + lastTimestamp * 1000L;
+                    }
+                    raw = definition.getLong(le, be, position, RECORD_FIELD_CADENCE);
+                    if (INVALID != raw) {
+                        records.cadence[i] = (int) raw;
+                    }
+                    raw = definition.getLong(le, be, position, RECORD_FIELD_HEARTRATE);
+                    if (INVALID != raw) {
+                        records.heartrate[i] = (int) raw;
+                    }
+                    raw = definition.getLong(le, be, position, RECORD_FIELD_TEMPERATURE);
+                    if (INVALID != raw) {
+                        records.temperature[i] = (int) raw;
+                    }
+                    raw = definition.getLong(le, be, position, RECORD_FIELD_ENHANCED_SPEED);
+                    if (INVALID != raw) {
+                        records.enhancedSpeed[i] = (int) (raw / RECORD_ENHANCED_SPEED_SCALE);
+                    }
+                    raw = definition.getLong(le, be, position, RECORD_FIELD_ZONE);
+                    if (INVALID != raw) {
+                        records.zone[i] = (int) raw;
+                    }
+                }
+                break;
+                case LAP_MSG: {
+                    if (definition.hasField(LAP_FIELD_TIMESTAMP)) {
+                        addLap();
+                    }
+                }
+                break;
+                case CREATOR_MSG: {
+                    long value = definition.getLong(le, be, position, CREATOR_FIELD_SVERSION);
+                    if (INVALID != value) {
+                        creator += "." + value;
+                    }
+                    value = definition.getLong(le, be, position, CREATOR_FIELD_HVERSION);
+                    if (INVALID != value) {
+                        creator += "." + value;
+                    }
                 }
             }
         }
 
         /**
-         * Generate the {@link Waypoint}s out of the {@link FitRecord}s.
+         * end the current lap after the last record read
+         */
+        private void addLap() {
+            ++lap;
+            if (lap + 1 > lapStarts.length) {
+                lapStarts = Arrays.copyOf(lapStarts, lapStarts.length * 2);
+            }
+            lapStarts[lap] = records.size();
+        }
+
+        /**
+         * Generate the {@link Waypoint}s out of the {@link FitRecords}.
          *
-         * @param lapRecords The ordered list of records to convert to waypoints
+         * @param from index of the first record to convert
+         * @param to index after the last record to convert
          * @param wptGroup The group to add the waypoints to
          * @param gpx The {@link GPXFile} to add the extension praefix to
          */
-        public void generateWaypoints(ArrayList<FitRecord> lapRecords, final WaypointGroup wptGroup, final GPXFile gpx) {
-            for (final FitRecord record : lapRecords) {
-                if (record.posLat == null || record.posLong == null) {
+        public void generateWaypoints(final int from, final int to, final WaypointGroup wptGroup, final GPXFile gpx) {
+            final FitRecords r = records;
+            for (int i = from; i < to; i++) {
+                if (Double.isNaN(r.posLat[i]) || Double.isNaN(r.posLong[i])) {
                     System.err.println("Record with empty latitude or empty longitude ignored!");
                     continue;
                 }
-                final Waypoint wpt = new Waypoint(record.posLat, record.posLong);
-                if (null != record.timestamp) {
-                    wpt.setTime(record.timestamp.toDate());
+                final Waypoint wpt = new Waypoint(r.posLat[i], r.posLong[i]);
+                if (FitRecords.NO_TIME != r.timestamp[i]) {
+                    wpt.setTime(new Date(r.timestamp[i]));
                 }
-                if (null != record.altitude) {
-                    wpt.setEle(record.altitude);
+                if (!Double.isNaN(r.altitude[i])) {
+                    wpt.setEle(r.altitude[i]);
                 }
                 // Now some stuff for the extensions
-                if (null != record.cadence) {
-                    if (!gpx.getExtensionPrefixes().contains("tp1")) {
-                        gpx.addExtensionPrefix("tp1");
-                    }
-                    GPXExtension gpxExtension = wpt.getExtension().getExtension("tp1:TrackPointExtension");
-                    if (null == gpxExtension) {
-                        gpxExtension = new GPXExtension("tp1:TrackPointExtension");
-                        gpxExtension.setNamespace("http://www.garmin.com/xmlschemas/TrackPointExtension/v1");
-                        wpt.getExtension().add(gpxExtension);
-                    }
-                    gpxExtension.add("tp1:cad", record.cadence.toString());
-                }
-                if (null != record.heartrate) {
+                if (FitRecords.NO_VALUE != r.cadence[i]
+                        || FitRecords.NO_VALUE != r.heartrate[i]
+                        || FitRecords.NO_VALUE != r.temperature[i]) {
                     if (!gpx.getExtensionPrefixes().contains("tp1")) {
                         gpx.addExtensionPrefix("tp1");
                     }
-                    GPXExtension gpxExtension = wpt.getExtension().getExtension("tp1:TrackPointExtension");
-                    if (null == gpxExtension) {
-                        gpxExtension = new GPXExtension("tp1:TrackPointExtension");
-                        gpxExtension.setNamespace("http://www.garmin.com/xmlschemas/TrackPointExtension/v1");
-                        wpt.getExtension().add(gpxExtension);
+                    GPXExtension gpxExtension = new GPXExtension("tp1:TrackPointExtension");
+                    gpxExtension.setNamespace("http://www.garmin.com/xmlschemas/TrackPointExtension/v1");
+                    wpt.getExtension().add(gpxExtension);
+                    if (FitRecords.NO_VALUE != r.cadence[i]) {
+                        gpxExtension.add("tp1:cad", Integer.toString(r.cadence[i]));
                     }
-                    gpxExtension.add("tp1:hr", record.heartrate.toString());
-                }
-                if (null != record.temperature) {
-                    if (!gpx.getExtensionPrefixes().contains("tp1")) {
-                        gpx.addExtensionPrefix("tp1");
+                    if (FitRecords.NO_VALUE != r.heartrate[i]) {
+                        gpxExtension.add("tp1:hr", Integer.toString(r.heartrate[i]));
                     }
-                    GPXExtension gpxExtension = wpt.getExtension().getExtension("tp1:TrackPointExtension");
-                    if (null == gpxExtension) {
-                        gpxExtension = new GPXExtension("tp1:TrackPointExtension");
-                        gpxExtension.setNamespace("http://www.garmin.com/xmlschemas/TrackPointExtension/v1");
-                        wpt.getExtension().add(gpxExtension);
+                    if (FitRecords.NO_VALUE != r.temperature[i]) {
+                        gpxExtension.add("tp1:atemp", Integer.toString(r.temperature[i]));
                     }
-                    gpxExtension.add("tp1:atemp", record.temperature.toString());
                 }
-                if (record.hrv != 0.0) {
-                    GPXExtension gpxExtension = new GPXExtension("gpsm:HeartRateVariability", Double.toString(record.hrv));
+                if (r.hrv[i] != 0.0) {
+                    GPXExtension gpxExtension = new GPXExtension("gpsm:HeartRateVariability", Double.toString(r.hrv[i]));
                     wpt.getExtension().add(gpxExtension);
                 }
-                if (null != record.enhancedSpeed) {
-                    GPXExtension gpxExtension = new GPXExtension("gpsm:Acceleration", record.enhancedSpeed.toString());
+                if (FitRecords.NO_VALUE != r.enhancedSpeed[i]) {
+                    GPXExtension gpxExtension = new GPXExtension("gpsm:Acceleration", Integer.toString(r.enhancedSpeed[i]));
                     wpt.getExtension().add(gpxExtension);
                 }
-                if (null != record.zone) {
-                    GPXExtension gpxExtension = new GPXExtension("gpsm:Zone", record.zone.toString());
+                if (FitRecords.NO_VALUE != r.zone[i]) {
+                    GPXExtension gpxExtension = new GPXExtension("gpsm:Zone", Integer.toString(r.zone[i]));
                     wpt.getExtension().add(gpxExtension);
                 }
                 wptGroup.addWaypoint(wpt);
@@ -1525,21 +752,34 @@ public class FitLoader extends GpsLoader {
      */
     @Override
     public GPXFile load(InputStream inStream, String format) throws Exception {
+        return load(FitParser.readFully(inStream));
+    }
+
+    /**
+     * Load a FIT file from a buffer, i.e. a memory mapped file
+     * @param buffer containing the FIT file from its current position
+     * @return
+     * @throws Exception
+     */
+    public GPXFile load(ByteBuffer buffer) throws Exception {
         gpx = new GPXFile();
         final FitParser reader = new FitParser();
-        reader.parseFitFile(inStream);
+        reader.parseFitFile(buffer);
 
         DateTimeFormatter fmt = DateTimeFormat.forPattern("HH:mm:ss");
-        final Integer laps = reader.getLaps();
+        final FitParser.FitRecords records = reader.getRecords();
+        final int laps = reader.getLaps();
         for (int i = 0; i < laps; ++i) {
-            ArrayList<FitParser.FitRecord> lapRecords = reader.getLapRecords(i);
-            if (null == lapRecords || lapRecords.isEmpty()) {
+            final int from = reader.getLapStart(i);
+            final int to = reader.getLapEnd(i);
+            if (from == to) {
                 continue;
             }
             Track track = new Track(gpx.getColor(currentLoadColor++));
-            track.setName(fmt.print(lapRecords.get(0).timestamp));
+            final long start = records.timestamp[from];
+            track.setName(fmt.print(start == FitParser.FitRecords.NO_TIME ? null : new DateTime(start, DateTimeZone.UTC)));
             WaypointGroup waypointGroup = track.addTrackseg();
-            reader.generateWaypoints(lapRecords, waypointGroup, gpx);
+            reader.generateWaypoints(from, to, waypointGroup, gpx);
             if (waypointGroup.getNumPts() != 0) {
                 gpx.addTrack(track);
             } else {
@@ -11,15 +11,23 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Locale;
+import java.util.TreeSet;
 
 import javax.xml.bind.ValidationException;
 
 import org.gpsmaster.gpxpanel.GPXFile;
 
+import eu.fuegenstein.util.IProgressReporter;
+import eu.fuegenstein.util.ProgressInfo;
+
 
 /**
  * base class for file format specific loader classes
  *
+ * Instances hold the state of the current load operation and are not
+ * thread safe. Use a separate instance from {@link GpsLoaderFactory}
+ * for each file.
+ *
  * @author rfu
  *
  */
@@ -35,6 +43,9 @@ public abstract class GpsLoader {
 	protected Hashtable<File, GPXFile> gpxFiles = new Hashtable<File, GPXFile>();
 
 	protected LoaderConfig loaderConfig = null;
+	protected IProgressReporter progressReporter = null;
+	protected ProgressInfo loadProgress = null;
+	protected int progressInterval = 1000; // update reporter every n trackpoints
 
 	protected Locale numLocale = new Locale("en", "US"); // locale for . as comma separator
 
@@ -64,12 +75,45 @@ public abstract class GpsLoader {
 
 	/**
 	 * set loader-specific configuration
+	 * @param config may be shared with other instances, must not be modified
 	 */
 	public void setConfig(LoaderConfig config) {
 		loaderConfig = config;
 	}
 
 
+	/**
+	 * @return representation of the effective configuration, i.e. all settings
+	 * affecting the result of {@link #load(InputStream, String)}.
+	 * results loaded with different keys are not shared via the {@link ParseCache}.
+	 */
+	public String getConfigKey() {
+		if (loaderConfig == null) {
+			return "";
+		}
+		StringBuilder key = new StringBuilder();
+		for (String name : new TreeSet<String>(loaderConfig.getMap().keySet())) {
+			key.append(name).append('=').append(loaderConfig.getValue(name)).append(';');
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the progressReporter or NULL
+	 */
+	public IProgressReporter getProgressReporter() {
+		return progressReporter;
+	}
+
+	/**
+	 * set a reporter to receive progress updates while loading
+	 * (only supported by some loaders)
+	 * @param reporter {@link IProgressReporter} or NULL
+	 */
+	public void setProgressReporter(IProgressReporter reporter) {
+		progressReporter = reporter;
+	}
+
 	/**
 	 * Gets all GPX files loaded via loadCumulative() so far.
 	 * @return
@@ -128,6 +172,46 @@ public abstract class GpsLoader {
 		return extensions;
 	}
 
+	// Region progress reporting
+
+	/**
+	 * add a {@link ProgressInfo} for the current load operation to the reporter
+	 * @param name
+	 */
+	protected void startProgress(String name) {
+		if (progressReporter != null) {
+			loadProgress = new ProgressInfo();
+			loadProgress.setName(name);
+			progressReporter.addProgressItem(loadProgress);
+		}
+	}
+
+	/**
+	 * count a single trackpoint.
+	 * the reporter is updated every progressInterval trackpoints.
+	 */
+	protected void incrementProgress() {
+		if (loadProgress != null) {
+			loadProgress.incrementValue();
+			loadProgress.setMaxValue(loadProgress.getValue());
+			if ((loadProgress.getValue() % progressInterval) == 0) {
+				progressReporter.update();
+			}
+		}
+	}
+
+	/**
+	 * remove the {@link ProgressInfo} of the current load operation from the reporter
+	 */
+	protected void endProgress() {
+		if (loadProgress != null) {
+			progressReporter.removeProgressItem(loadProgress);
+			loadProgress = null;
+		}
+	}
+
+	// EndRegion
+
 	/**
 	 *
 	 */
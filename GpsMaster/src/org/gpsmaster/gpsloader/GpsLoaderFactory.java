@@ -1,9 +1,18 @@
 package org.gpsmaster.gpsloader;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+
+import org.gpsmaster.gpxpanel.GPXFile;
 
 /**
+ *
+ * Hands out a new {@link GpsLoader} instance for each request, so
+ * multiple files can be loaded (or saved) concurrently. Loaders keep
+ * per-invocation state and must not be shared between threads.
  *
  * @author rfu
  * TODO get all available loader classes via reflection
@@ -12,10 +21,13 @@ public class GpsLoaderFactory {
 
 	// list of supported extensions
 	List<String> extensions = new ArrayList<String>();
+	// one instance per loader class, only used to look up formats and class names
 	static final List<GpsLoader> loaders = new ArrayList<GpsLoader>();
+	// read only copies of the loader specific configs, by class name
+	private static volatile Map<String, LoaderConfig> loaderConfigs = Collections.emptyMap();
+	private static ParseCache parseCache = null;
 
-	public GpsLoaderFactory() {
-		loaders.clear();
+	static {
 		// TODO build list of available loader classes dynamically
 		loaders.add(new GpxLoader());
 		loaders.add(new KmlLoader());
@@ -29,6 +41,10 @@ public class GpsLoaderFactory {
 		// loaders.add("org.gpsmaster.gpsloader.XmlLoader");
 	}
 
+	public GpsLoaderFactory() {
+
+	}
+
 	/**
 	 *
 	 * @return
@@ -40,7 +56,7 @@ public class GpsLoaderFactory {
 	}
 
 	/**
-	 * returns the loader class which supports the requested sourceFmt
+	 * returns a new instance of the loader class which supports the requested sourceFmt
 	 * @param sourceFmt
 	 * @return
 	 * @throws ClassNotFoundException
@@ -48,10 +64,10 @@ public class GpsLoaderFactory {
 	public static GpsLoader getLoaderByExtension(String extension) throws ClassNotFoundException {
 		for (GpsLoader loader : loaders) {
 			if (loader.getLoadFormats().contains(extension.toLowerCase())) {
-				return loader;
+				return newInstance(loader);
 			}
 			if (loader.getLoadFormats().contains(extension.toUpperCase())) {
-				return loader;
+				return newInstance(loader);
 			}
 
 		}
@@ -91,18 +107,100 @@ public class GpsLoaderFactory {
 	/**
 	 *
 	 * @param className
-	 * @return
+	 * @return new instance of the loader class with the given name
 	 * @throws ClassNotFoundException
 	 */
 	public static GpsLoader getLoaderByClassName(String className) throws ClassNotFoundException {
 		for (GpsLoader loader : loaders) {
 			if (loader.getClass().getName().equals(className)) {
-				return loader;
+				return newInstance(loader);
 			}
 		}
 		throw new ClassNotFoundException(className);
 	}
 
+	/**
+	 * Set the loader specific configs. Each loader created afterwards
+	 * gets the config matching its class name. The configs are copied,
+	 * later changes to the given configs have no effect.
+	 * @param configs
+	 */
+	public static void setLoaderConfigs(List<LoaderConfig> configs) {
+		Map<String, LoaderConfig> copies = new HashMap<String, LoaderConfig>();
+		for (LoaderConfig config : configs) {
+			copies.put(config.getClassName(), new LoaderConfig(config));
+		}
+		loaderConfigs = Collections.unmodifiableMap(copies);
+	}
+
+	/**
+	 * create a new loader of the same class as the given one
+	 * and apply its config, if any.
+	 * @param prototype
+	 * @return
+	 */
+	private static GpsLoader newInstance(GpsLoader prototype) {
+		GpsLoader loader;
+		try {
+			loader = prototype.getClass().getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new IllegalStateException("unable to create " + prototype.getClass().getName(), e);
+		}
+		LoaderConfig config = loaderConfigs.get(loader.getClass().getName());
+		if (config != null) {
+			// shared between all instances, loaders only read from it
+			loader.setConfig(config);
+		}
+		return loader;
+	}
+
+	/**
+	 *
+	 * @return cache of parsed files or {@link null} if caching is disabled
+	 */
+	public static ParseCache getParseCache() {
+		return parseCache;
+	}
+
+	/**
+	 *
+	 * @param cache cache of parsed files, {@link null} to disable caching
+	 */
+	public static void setParseCache(ParseCache cache) {
+		parseCache = cache;
+	}
+
+	/**
+	 * Get the result of a previous load of the given content from the parse cache.
+	 * Call this before invoking the loader.
+	 * @param loader loader to be used for the content
+	 * @param content
+	 * @param format source format
+	 * @return {@link GPXFile} or {@link null} if not cached
+	 */
+	public static GPXFile getCached(GpsLoader loader, byte[] content, String format) {
+		ParseCache cache = parseCache;
+		if (cache == null) {
+			return null;
+		}
+		return cache.get(content, loader, format);
+	}
+
+	/**
+	 * Store the result of loading the given content in the parse cache.
+	 * Call this right after the loader returned, before the {@link GPXFile} is modified.
+	 * @param loader loader used for the content
+	 * @param content
+	 * @param format source format
+	 * @param gpx {@link GPXFile} returned by the loader
+	 */
+	public static void putCached(GpsLoader loader, byte[] content, String format, GPXFile gpx) {
+		ParseCache cache = parseCache;
+		if (cache != null) {
+			cache.put(content, loader, format, gpx);
+		}
+	}
+
 	/**
 	 *
 	 */
@@ -16,7 +16,9 @@ import javax.xml.bind.JAXBException;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.gpsmaster.Const;
 import org.gpsmaster.GpsMaster;
@@ -39,6 +41,14 @@ import com.topografix.gpx._1._1.LinkType;
 
 public class GpxLoader extends XmlLoader {
 
+	public static final String CFG_STREAMING = "streaming";
+	public static final String CFG_COLUMNAR = "columnar";
+
+	// parse via XMLStreamReader instead of building a DOM tree first
+	private boolean streaming = true;
+	// store trackpoints of segments & routes in columnar format
+	private boolean columnar = false;
+
 	/**
 	 * Constructor
 	 */
@@ -50,6 +60,70 @@ public class GpxLoader extends XmlLoader {
 		xsdResource = "/org/gpsmaster/schema/gpx-1.1.xsd";
 	}
 
+	/**
+	 * @return {@link true} if files are parsed in streaming mode
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * set if files are to be parsed in streaming mode (default)
+	 * or via a DOM tree.
+	 * @param streaming
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * @return {@link true} if tracksegs and routes are created with columnar storage
+	 */
+	public boolean isColumnar() {
+		return columnar;
+	}
+
+	/**
+	 * set if tracksegs and routes are to be created with columnar storage
+	 * (see {@link WaypointGroup#setColumnar(boolean)})
+	 * @param columnar
+	 */
+	public void setColumnar(boolean columnar) {
+		this.columnar = columnar;
+	}
+
+	/**
+	 * supported keys: "streaming" (0|1), "columnar" (0|1)
+	 */
+	@Override
+	public void setConfig(LoaderConfig config) {
+		super.setConfig(config);
+		streaming = getFlag(config, CFG_STREAMING, streaming);
+		columnar = getFlag(config, CFG_COLUMNAR, columnar);
+	}
+
+	@Override
+	public String getConfigKey() {
+		return CFG_STREAMING + "=" + streaming + ";" + CFG_COLUMNAR + "=" + columnar;
+	}
+
+	/**
+	 *
+	 * @param config
+	 * @param key
+	 * @param defaultValue
+	 * @return
+	 */
+	private boolean getFlag(LoaderConfig config, String key, boolean defaultValue) {
+		String value = config.getValue(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		return !(value.equals("0") || value.equalsIgnoreCase("false"));
+	}
+
+	// Region DOM parser
+
 	/**
 	 *
 	 * @param link
@@ -196,6 +270,7 @@ public class GpxLoader extends XmlLoader {
 			// TODO report NumberFormat warning back to caller
 			System.out.println("caught numberFormat Exception");
 		}
+		incrementProgress();
 
 		return wpt;
 	}
@@ -277,6 +352,327 @@ public class GpxLoader extends XmlLoader {
 		}
 	}
 
+	// EndRegion
+
+	// Region streaming parser
+
+	/**
+	 *
+	 * @param reader positioned on the <link> element
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	private LinkType parseLink(XMLStreamReader reader) throws XMLStreamException {
+		LinkType link = new LinkType();
+		link.setHref(getAttribute(reader, "href"));
+		while (nextSubElement(reader)) {
+			String nodeName = getNodeName(reader);
+			if (nodeName.equals("text")) {
+				link.setText(getTextContent(reader));
+			} else if (nodeName.equals("type")) {
+				link.setType(getTextContent(reader));
+			} else {
+				skipElement(reader);
+			}
+		}
+		return link;
+	}
+
+	/**
+	 *
+	 * @param metadata
+	 * @param reader positioned on the <metadata> element
+	 * @throws XMLStreamException
+	 */
+	private void parseMetadata(GpxMetadata metadata, XMLStreamReader reader) throws XMLStreamException {
+
+		while (nextSubElement(reader)) {
+			String nodeName = getNodeName(reader);
+			if (nodeName.equals("name")) {
+				metadata.setName(getTextContent(reader));
+			} else if (nodeName.equals("desc")) {
+				metadata.setDesc(getTextContent(reader));
+			} else if (nodeName.equals("keywords")) {
+				metadata.setKeywords(getTextContent(reader));
+			} else if (nodeName.equals("time")) {
+				Calendar cal = DatatypeConverter.parseDateTime(getTextContent(reader));
+				metadata.setTime(cal.getTime());
+			} else if (nodeName.equals("link")) {
+				metadata.getLink().add(parseLink(reader));
+			} else if (nodeName.equals("extensions")) {
+				parseExtension(metadata.getExtension(), reader);
+			} else {
+				// author, copyright, bounds
+				skipElement(reader);
+			}
+		}
+	}
+
+	/**
+	 * Parse all sub elements of the current element into the given {@link GPXExtension}
+	 * @param parent {@link GPXExtension} to add elements to
+	 * @param reader positioned on the parent element
+	 * @throws XMLStreamException
+	 */
+	private void parseExtension(GPXExtension parent, XMLStreamReader reader) throws XMLStreamException {
+
+		while (nextSubElement(reader)) {
+			GPXExtension extension = new GPXExtension();
+			extension.setKey(getNodeName(reader));
+			parent.add(extension);
+			parseExtensionElement(extension, reader);
+		}
+	}
+
+	/**
+	 * Recursively parse value and sub elements of the current element.
+	 * Like the DOM parser, only the text preceding the first sub element is used as value.
+	 * @param extension {@link GPXExtension} representing the current element
+	 * @param reader positioned on the START_ELEMENT of the current element
+	 * @throws XMLStreamException
+	 */
+	private void parseExtensionElement(GPXExtension extension, XMLStreamReader reader) throws XMLStreamException {
+
+		StringBuilder value = null;
+		boolean hasSubElements = false;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				hasSubElements = true;
+				GPXExtension subExtension = new GPXExtension();
+				subExtension.setKey(getNodeName(reader));
+				extension.add(subExtension);
+				parseExtensionElement(subExtension, reader);
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				break;
+			} else if ((hasSubElements == false) && ((event == XMLStreamConstants.CHARACTERS)
+					|| (event == XMLStreamConstants.CDATA) || (event == XMLStreamConstants.SPACE))) {
+				if (value == null) {
+					value = new StringBuilder();
+				}
+				value.append(reader.getText());
+			}
+		}
+		if (value != null) {
+			extension.setValue(value.toString().replace("\n", "").trim());
+		}
+	}
+
+	/**
+	 *
+	 * @param reader positioned on a <wpt>, <trkpt> or <rtept> element
+	 * @return waypoint containing data from trkpt or NULL if coordinates are invalid.
+	 * the reader is positioned on the end of the element in any case.
+	 * @throws XMLStreamException
+	 */
+	private Waypoint parseTrackPoint(XMLStreamReader reader) throws XMLStreamException {
+		Waypoint wpt = null;
+		double lat = 0;
+		double lon = 0;
+		try {
+			lat = Double.parseDouble(getAttribute(reader, "lat"));
+			lon = Double.parseDouble(getAttribute(reader, "lon"));
+
+			wpt = new Waypoint(lat, lon);
+
+			while (nextSubElement(reader)) {
+				String nodeName = getNodeName(reader);
+				if (nodeName.equals("extensions")) {
+					parseExtension(wpt.getExtension(), reader);
+				} else if (nodeName.equals("link")) {
+					wpt.getLink().add(parseLink(reader));
+				} else {
+					String content = getTextContent(reader).replace("\n", "");
+					if (nodeName.equals("ele")) {
+						if (!content.isEmpty()) {
+							wpt.setEle(Double.parseDouble(content));
+						}
+					} else if (nodeName.equals("time")) {
+						Calendar cal = DatatypeConverter.parseDateTime(content);
+						wpt.setTime(cal.getTime());
+					} else if (nodeName.equals("name")) {
+						wpt.setName(content);
+					} else if (nodeName.equals("cmt")) {
+						wpt.setCmt(content);
+					} else if (nodeName.equals("desc")) {
+						wpt.setDesc(content);
+					} else if (nodeName.equals("src")) {
+						wpt.setSrc(content);
+					} else if (nodeName.equals("sym")) {
+						wpt.setSym(content);
+					} else if (nodeName.equals("fix")) {
+						wpt.setFix(content);
+					} else if (nodeName.equals("type")) {
+						wpt.setType(content);
+					} else if (nodeName.equals("sat")) {
+						wpt.setSat(Integer.parseInt(content));
+					} else if (nodeName.equals("hdop")) {
+						wpt.setHdop(Double.parseDouble(content));
+					} else if (nodeName.equals("vdop")) {
+						wpt.setVdop(Double.parseDouble(content));
+					} else if (nodeName.equals("pdop")) {
+						wpt.setPdop(Double.parseDouble(content));
+					} else if (nodeName.equals("magvar")) {
+						wpt.setMagvar(Double.parseDouble(content));
+					} else if (nodeName.equals("geoidheight")) {
+						wpt.setGeoidheight(Double.parseDouble(content));
+					} else if (nodeName.equals("ageofdgpsdata")) {
+						wpt.setAgeofdgpsdata(Double.parseDouble(content));
+					} else if (nodeName.equals("dgpsid")) {
+						wpt.setDgpsid(Integer.parseInt(content));
+					} else {
+						// for now: treat everything else as an sourceFmt
+						wpt.getExtension().add(new GPXExtension(nodeName, content));
+					}
+				}
+			}
+		}
+		catch (NumberFormatException e) {
+			// trackpoints with invalid coordinates are ignored and NULL is returned.
+			// skip the remainder of the trackpoint
+			System.out.println("caught numberFormat Exception");
+			skipElement(reader);
+		}
+		incrementProgress();
+
+		return wpt;
+	}
+
+	/**
+	 *
+	 * @param route
+	 * @param reader positioned on the <rte> element
+	 * @throws XMLStreamException
+	 */
+	private void parseRoute(Route route, XMLStreamReader reader) throws XMLStreamException {
+		while (nextSubElement(reader)) {
+			String nodeName = getNodeName(reader);
+			if (nodeName.equals("number")) {
+				route.setNumber(Integer.parseInt(getTextContent(reader)));
+			} else if (nodeName.equals("name")) {
+				route.setName(getTextContent(reader));
+			} else if (nodeName.equals("desc")) {
+				route.setDesc(getTextContent(reader));
+			} else if (nodeName.equals("type")) {
+				route.setType(getTextContent(reader));
+			} else if (nodeName.equals("extensions")) {
+				parseExtension(route.getExtension(), reader);
+			} else if (nodeName.equals("rtept")) {
+				Waypoint wpt = parseTrackPoint(reader);
+				if (wpt != null) {
+					route.getPath().addWaypoint(wpt);
+				}
+			} else {
+				skipElement(reader);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param segment
+	 * @param reader positioned on the <trkseg> element
+	 * @throws XMLStreamException
+	 */
+	private void parseSegment(WaypointGroup segment, XMLStreamReader reader) throws XMLStreamException {
+		while (nextSubElement(reader)) {
+			String nodeName = getNodeName(reader);
+			if (nodeName.equals("trkpt")) {
+				Waypoint wpt = parseTrackPoint(reader);
+				if (wpt != null) {
+					segment.addWaypoint(wpt);
+				}
+			} else if (nodeName.equals("extensions")) {
+				parseExtension(segment.getExtension(), reader);
+			} else {
+				skipElement(reader);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param track
+	 * @param reader positioned on the <trk> element
+	 * @throws XMLStreamException
+	 */
+	private void parseTrack(Track track, XMLStreamReader reader) throws XMLStreamException {
+		while (nextSubElement(reader)) {
+			String nodeName = getNodeName(reader);
+			if (nodeName.equals("link")) {
+				track.getLink().add(parseLink(reader));
+			} else if (nodeName.equals("extensions")) {
+				parseExtension(track.getExtension(), reader);
+			} else if (nodeName.equals("trkseg")) {
+				WaypointGroup wptGrp = track.addTrackseg();
+				parseSegment(wptGrp, reader);
+			} else {
+				String content = getTextContent(reader).replace("\n", "");
+				if (nodeName.equals("number")) {
+					track.setNumber(Integer.parseInt(content));
+				} else if (nodeName.equals("name")) {
+					track.setName(content);
+				} else if (nodeName.equals("desc")) {
+					track.setDesc(content);
+				} else if (nodeName.equals("type")) {
+					track.setType(content);
+				} else if (nodeName.equals("src")) {
+					track.setSrc(content);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Build the {@link GPXFile} incrementally while reading the stream,
+	 * without holding a DOM tree of the whole document in memory.
+	 * @param inputStream
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	private GPXFile loadStream(InputStream inputStream) throws XMLStreamException {
+		gpx = new GPXFile();
+		XMLStreamReader reader = createStreamReader(inputStream);
+		try {
+			reader.nextTag(); // root element
+			String creator = getAttribute(reader, "creator");
+			if (!creator.isEmpty()) { gpx.setCreator(creator); }
+
+			while (nextSubElement(reader)) {
+				String nodeName = getNodeName(reader);
+				if (nodeName.equals("metadata")) {
+					parseMetadata(gpx.getMetadata(), reader);
+				} else if (nodeName.equals("extensions")) {
+					parseExtension(gpx.getExtension(), reader);
+				} else if (nodeName.equals("trk")) {
+					Track track = new Track(gpx.getColor());
+					parseTrack(track, reader);
+					if (track.getTracksegs().size() > 0) {
+						gpx.addTrack(track);
+					}
+				} else if (nodeName.equals("rte")) {
+					Route route = new Route(gpx.getColor());
+					parseRoute(route, reader);
+					if (route.getPath().getWaypoints().size() > 0) {
+						gpx.addRoute(route);
+					}
+				} else if (nodeName.equals("wpt")) {
+					Waypoint wpt = parseTrackPoint(reader);
+					if (wpt != null) {
+						gpx.getWaypointGroup().addWaypoint(waypointToMarker(wpt));
+					}
+				} else {
+					skipElement(reader);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return gpx;
+	}
+
+	// EndRegion
+
 	/**
 	 * Create a Marker according to gpsm:type sourceFmt of the waypoint
 	 * @param wpt
@@ -316,6 +712,36 @@ public class GpxLoader extends XmlLoader {
 	 *
 	 */
 	public GPXFile load(InputStream inputStream, String ext) throws Exception {
+		startProgress("Loading trackpoints");
+		try {
+			if (streaming) {
+				loadStream(inputStream);
+			} else {
+				loadDom(inputStream);
+			}
+		} finally {
+			endProgress();
+		}
+		if (columnar) {
+			for (Track track : gpx.getTracks()) {
+				for (WaypointGroup trackseg : track.getTracksegs()) {
+					trackseg.setColumnar(true);
+				}
+			}
+			for (Route route : gpx.getRoutes()) {
+				route.getPath().setColumnar(true);
+			}
+		}
+		return gpx;
+	}
+
+	/**
+	 * Build the {@link GPXFile} from a DOM representation of the whole document
+	 * @param inputStream
+	 * @return
+	 * @throws Exception
+	 */
+	private GPXFile loadDom(InputStream inputStream) throws Exception {
 		gpx = new GPXFile();
 		DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
 		DocumentBuilder builder = builderFactory.newDocumentBuilder();
@@ -1,6 +1,8 @@
 package org.gpsmaster.gpsloader;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 
 
 /*
@@ -10,6 +12,23 @@ public class LoaderConfig {
 
 	private String className = "";
 	private HashMap<String, String> config = new HashMap<String, String>();
+
+	/**
+	 * Constructor
+	 */
+	public LoaderConfig() {
+
+	}
+
+	/**
+	 * Copy constructor
+	 * @param source config to copy className and Key/Value pairs from
+	 */
+	public LoaderConfig(LoaderConfig source) {
+		className = source.getClassName();
+		config.putAll(source.getMap());
+	}
+
 	/**
 	 * @return the className
 	 */
@@ -23,10 +42,28 @@ public class LoaderConfig {
 		this.className = className;
 	}
 	/**
-	 * @return the config
+	 * @return read-only view of the Key/Value pairs
+	 */
+	public Map<String, String> getMap() {
+		return Collections.unmodifiableMap(config);
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return value for the given key or {@link null} if not set
+	 */
+	public String getValue(String key) {
+		return config.get(key);
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @param value
 	 */
-	public HashMap<String, String> getMap() {
-		return config;
+	public void setValue(String key, String value) {
+		config.put(key, value);
 	}
 
 }
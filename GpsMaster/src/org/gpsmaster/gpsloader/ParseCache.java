@@ -0,0 +1,257 @@
+package org.gpsmaster.gpsloader;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.gpsmaster.gpxpanel.GPXFile;
+import org.gpsmaster.gpxpanel.GpxBinaryCodec;
+
+import eu.fuegenstein.messagecenter.MessageCenter;
+
+/**
+ * On-disk cache of parsed files, so re-opening a file doesn't require
+ * running the {@link GpsLoader} again.
+ *
+ * Entries are keyed by a hash over the file content, the loader, its
+ * effective configuration (see {@link GpsLoader#getConfigKey()}) and the
+ * source format. Each entry is a single file holding the {@link GPXFile}
+ * in the format of {@link GpxBinaryCodec}, which is read into a heap buffer
+ * at once, so the file isn't kept open. The cache is bounded by its total
+ * size, least recently used entries are removed first.
+ *
+ * Entries written by a previous version are not used, see {@link #FORMAT_VERSION}.
+ *
+ * @author rfu
+ *
+ */
+public class ParseCache {
+
+	private static final String SUFFIX = ".gpc";
+
+	/**
+	 * version of the cached results. has to be increased whenever a
+	 * {@link GpsLoader} or the {@link GpxBinaryCodec} is changed in a way
+	 * that the same content is loaded or stored differently.
+	 * part of the key and the header of each entry.
+	 */
+	public static final int FORMAT_VERSION = 1;
+
+	private final File dir;
+	private final long maxSize;
+	private MessageCenter msg = null;
+
+	// key of the most recent lookup, to avoid hashing the same content twice
+	private WeakReference<byte[]> lastContent = new WeakReference<byte[]>(null);
+	private String lastLoader = null;
+	private String lastFormat = null;
+	private String lastKey = null;
+
+	/**
+	 * Constructor
+	 * @param dir directory holding the cache entries. created if it doesn't exist.
+	 * @param maxSize maximum total size of all entries in bytes
+	 * @throws IOException if the directory can't be created
+	 */
+	public ParseCache(File dir, long maxSize) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("unable to create " + dir.getPath());
+		}
+		this.dir = dir;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 *
+	 * @param msg {@link MessageCenter} to report failures to
+	 */
+	public void setMessageCenter(MessageCenter msg) {
+		this.msg = msg;
+	}
+
+	/**
+	 * Get the cached result of loading the given content
+	 * @param content
+	 * @param loader
+	 * @param format source format as passed to the loader
+	 * @return the {@link GPXFile} or {@link null} if the content is not in the cache
+	 */
+	public GPXFile get(byte[] content, GpsLoader loader, String format) {
+		File file = getFile(content, loader, format);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			ByteBuffer buffer = null;
+			FileInputStream inStream = new FileInputStream(file);
+			try {
+				FileChannel channel = inStream.getChannel();
+				if (channel.size() > Integer.MAX_VALUE) {
+					throw new IOException("entry too large");
+				}
+				buffer = ByteBuffer.allocate((int) channel.size());
+				while (buffer.hasRemaining() && (channel.read(buffer) != -1)) {
+					// continue reading
+				}
+				buffer.flip();
+			} finally {
+				inStream.close();
+			}
+			if ((buffer.remaining() < 4) || (buffer.getInt() != FORMAT_VERSION)) {
+				throw new IOException("entry of another version");
+			}
+			GPXFile gpx = GpxBinaryCodec.read(buffer);
+			file.setLastModified(System.currentTimeMillis());
+			return gpx;
+		} catch (Exception e) {
+			// treat a damaged or outdated entry as a cache miss
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Store the result of loading the given content
+	 * @param content
+	 * @param loader
+	 * @param format source format as passed to the loader
+	 * @param gpx {@link GPXFile} as returned by the loader
+	 */
+	public void put(byte[] content, GpsLoader loader, String format, GPXFile gpx) {
+		File file = getFile(content, loader, format);
+		File temp = null;
+		try {
+			temp = File.createTempFile("entry", ".tmp", dir);
+			OutputStream outStream = new BufferedOutputStream(new FileOutputStream(temp), 65536);
+			try {
+				outStream.write(ByteBuffer.allocate(4).putInt(FORMAT_VERSION).array());
+				GpxBinaryCodec.write(gpx, outStream);
+			} finally {
+				outStream.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			if (msg != null) {
+				msg.volatileWarning("Unable to store " + gpx.getName() + " in the cache of parsed files", e);
+			}
+			if (temp != null) {
+				temp.delete();
+			}
+			return;
+		}
+		evict();
+	}
+
+	/**
+	 * remove all entries from the cache
+	 */
+	public void clear() {
+		for (File file : getEntries()) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * remove least recently used entries until the total size is within the limit
+	 */
+	private void evict() {
+		File[] files = getEntries();
+		long total = 0;
+		for (File file : files) {
+			total += file.length();
+		}
+		if (total <= maxSize) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for (int i = 0; (i < files.length) && (total > maxSize); i++) {
+			long length = files[i].length();
+			if (files[i].delete()) {
+				total -= length;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return
+	 */
+	private File[] getEntries() {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		int count = 0;
+		for (File file : files) {
+			if (file.getName().endsWith(SUFFIX)) {
+				files[count++] = file;
+			}
+		}
+		return Arrays.copyOf(files, count);
+	}
+
+	/**
+	 *
+	 * @return file holding the cache entry for the given content
+	 */
+	private File getFile(byte[] content, GpsLoader loader, String format) {
+		String loaderName = loader.getClass().getName() + "/" + loader.getConfigKey();
+		return new File(dir, getKey(content, loaderName, format) + SUFFIX);
+	}
+
+	/**
+	 *
+	 * @param content
+	 * @param loaderName name and effective configuration of the loader
+	 * @param format
+	 * @return hex representation of the hash over the given parameters
+	 */
+	private synchronized String getKey(byte[] content, String loaderName, String format) {
+		if ((content == lastContent.get()) && loaderName.equals(lastLoader)
+				&& (format == null ? lastFormat == null : format.equals(lastFormat))) {
+			return lastKey;
+		}
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update(ByteBuffer.allocate(4).putInt(FORMAT_VERSION).array());
+		digest.update(loaderName.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		if (format != null) {
+			digest.update(format.toLowerCase().getBytes(StandardCharsets.UTF_8));
+		}
+		digest.update((byte) 0);
+		digest.update(content);
+		StringBuilder key = new StringBuilder(64);
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0x0F, 16));
+			key.append(Character.forDigit(b & 0x0F, 16));
+		}
+		lastContent = new WeakReference<byte[]>(content);
+		lastLoader = loaderName;
+		lastFormat = format;
+		lastKey = key.toString();
+		return lastKey;
+	}
+}
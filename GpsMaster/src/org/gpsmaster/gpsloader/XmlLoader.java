@@ -11,7 +11,10 @@ import java.util.Locale;
 
 import javax.xml.XMLConstants;
 import javax.xml.bind.ValidationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
@@ -161,6 +164,124 @@ public abstract class XmlLoader extends GpsLoader {
 		 return out;
 	 }
 
+	// EndRegion
+
+	// Region XML-specific helper methods (stream reader)
+
+	/**
+	 * create a non-validating {@link XMLStreamReader} on the given stream.
+	 * namespace processing is disabled, so element names are reported
+	 * with their prefix (i.e. "gpxtpx:hr"), the same way as the DOM parser does.
+	 * @param inStream
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	protected XMLStreamReader createStreamReader(InputStream inStream) throws XMLStreamException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory.createXMLStreamReader(inStream);
+	}
+
+	/**
+	 *
+	 * @param reader positioned on a START_ELEMENT or END_ELEMENT
+	 * @return name of the current element, including namespace prefix
+	 */
+	protected String getNodeName(XMLStreamReader reader) {
+		String prefix = reader.getPrefix();
+		if ((prefix == null) || prefix.isEmpty()) {
+			return reader.getLocalName();
+		}
+		return prefix + ":" + reader.getLocalName();
+	}
+
+	/**
+	 *
+	 * @param reader positioned on a START_ELEMENT
+	 * @param name
+	 * @return value of the given attribute or an empty string if not found
+	 */
+	protected String getAttribute(XMLStreamReader reader, String name) {
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			if (reader.getAttributeLocalName(i).equals(name)) {
+				return reader.getAttributeValue(i);
+			}
+		}
+		return "";
+	}
+
+	/**
+	 * advance the reader to the next child element of the current element.
+	 * @param reader
+	 * @return {@link true} if positioned on the START_ELEMENT of the next child,
+	 * {@link false} if the END_ELEMENT of the current element has been reached.
+	 * @throws XMLStreamException
+	 */
+	protected boolean nextSubElement(XMLStreamReader reader) throws XMLStreamException {
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				return true;
+			}
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * read the textual content of the current element and all its sub elements
+	 * (equivalent to {@link Node#getTextContent()}). The reader is positioned
+	 * on the END_ELEMENT of the current element afterwards.
+	 * @param reader positioned on a START_ELEMENT
+	 * @return
+	 * @throws XMLStreamException
+	 */
+	protected String getTextContent(XMLStreamReader reader) throws XMLStreamException {
+		StringBuilder content = new StringBuilder();
+		int depth = 1;
+		while (reader.hasNext() && (depth > 0)) {
+			switch (reader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				depth--;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				content.append(reader.getText());
+				break;
+			default:
+				break;
+			}
+		}
+		return content.toString();
+	}
+
+	/**
+	 * skip the remainder of the current element, including all sub elements.
+	 * The reader is positioned on the END_ELEMENT of the current element afterwards.
+	 * @param reader
+	 * @throws XMLStreamException
+	 */
+	protected void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (reader.hasNext() && (depth > 0)) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
 	// EndRegion
 
 	 // Region XML-specific helper methods (writer)
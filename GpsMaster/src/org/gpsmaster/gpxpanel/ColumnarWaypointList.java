@@ -0,0 +1,800 @@
+package org.gpsmaster.gpxpanel;
+
+import java.awt.Color;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.gpsmaster.Const;
+
+import com.topografix.gpx._1._1.LinkType;
+
+/**
+ * Memory efficient list of trackpoints, storing coordinates, elevation
+ * and time in parallel primitive arrays ("columns") instead of one
+ * {@link Waypoint} object per trackpoint. Rarely used fields (hdop, name,
+ * links, ...) are held in a sparse side table.
+ *
+ * {@link #get(int)} returns a lightweight {@link Waypoint} view on a single
+ * row. All getters and setters of the view read from and write to the columns.
+ * Views of the same row are equal to each other, so identity based operations
+ * like indexOf(), contains() and remove(Object) work as expected.
+ *
+ * Removed rows are taken out of the logical order and reused for trackpoints
+ * added later, so repeated remove/add cycles (i.e. cleaning and undo) do not
+ * grow the columns. Rows of trackpoints remaining in the list never move,
+ * so their views stay valid. A removed view can be re-inserted as long as
+ * its row has not been reused. Afterwards it is no longer equal to any view of
+ * this list, but reads the data of the reusing trackpoint - keep a copy
+ * (i.e. for an undo operation) to retain the data of a removed trackpoint.
+ *
+ * ATTENTION - {@link Waypoint}s added to this list are copied.
+ * Use the element returned by {@link #get(int)} for subsequent operations.
+ *
+ * @author rfu
+ *
+ */
+public class ColumnarWaypointList extends AbstractList<Waypoint> implements RandomAccess {
+
+	static final long NO_TIME = Long.MIN_VALUE;
+	private static final int INITIAL_CAPACITY = 64;
+
+	// physical rows
+	private double[] lat;
+	private double[] lon;
+	private double[] ele;
+	private long[] time;
+	private GPXExtension[] extensions = null; // allocated on first use
+	private HashMap<Integer, Waypoint> details = new HashMap<Integer, Waypoint>();
+	private int rows = 0;
+	private int[] generation; // per physical row, incremented when the row is reused
+
+	// removed rows to be reused. may contain duplicates
+	// and rows re-inserted in the meantime
+	private int[] free = new int[INITIAL_CAPACITY];
+	private int freeCount = 0;
+
+	// logical order: position in list -> physical row and vice versa
+	private int[] order;
+	private int[] position;
+	private int size = 0;
+
+	/**
+	 * Constructor
+	 */
+	public ColumnarWaypointList() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Constructor
+	 * @param capacity initial number of rows
+	 */
+	public ColumnarWaypointList(int capacity) {
+		capacity = Math.max(capacity, 1);
+		lat = new double[capacity];
+		lon = new double[capacity];
+		ele = new double[capacity];
+		time = new long[capacity];
+		generation = new int[capacity];
+		order = new int[capacity];
+		position = new int[capacity];
+	}
+
+	/**
+	 * Constructs a columnar copy of the given waypoints
+	 * @param source
+	 */
+	public ColumnarWaypointList(Collection<Waypoint> source) {
+		this(source.size());
+		addAll(source);
+	}
+
+	/**
+	 * Constructs a list on the given columns, in row order.
+	 * The arrays are adopted, not copied.
+	 * @param lat
+	 * @param lon
+	 * @param ele
+	 * @param time timestamps in milliseconds since epoch, {@link #NO_TIME} if none
+	 */
+	ColumnarWaypointList(double[] lat, double[] lon, double[] ele, long[] time) {
+		this.lat = lat;
+		this.lon = lon;
+		this.ele = ele;
+		this.time = time;
+		rows = lat.length;
+		size = rows;
+		generation = new int[rows];
+		order = new int[Math.max(rows, 1)];
+		position = new int[rows];
+		for (int i = 0; i < rows; i++) {
+			order[i] = i;
+			position[i] = i;
+		}
+	}
+
+	// Region primitive accessors
+
+	/**
+	 * @param index position in list
+	 * @return latitude of the trackpoint at the given position
+	 */
+	public double getLat(int index) {
+		return lat[row(index)];
+	}
+
+	/**
+	 * @param index position in list
+	 * @return longitude of the trackpoint at the given position
+	 */
+	public double getLon(int index) {
+		return lon[row(index)];
+	}
+
+	/**
+	 * @param index position in list
+	 * @return elevation of the trackpoint at the given position
+	 */
+	public double getEle(int index) {
+		return ele[row(index)];
+	}
+
+	/**
+	 * @param index position in list
+	 * @return {@link true} if the trackpoint at the given position has a timestamp
+	 */
+	public boolean hasTime(int index) {
+		return time[row(index)] != NO_TIME;
+	}
+
+	/**
+	 * @param index position in list
+	 * @return timestamp in milliseconds since epoch. undefined if hasTime() is false
+	 */
+	public long getTimeMillis(int index) {
+		return time[row(index)];
+	}
+
+	/**
+	 * @param index position in list
+	 * @return extension of the trackpoint at the given position or NULL if it has none
+	 */
+	public GPXExtension getExtension(int index) {
+		int row = row(index);
+		return (extensions == null) ? null : extensions[row];
+	}
+
+	// EndRegion
+
+	// Region List implementation
+
+	@Override
+	public Waypoint get(int index) {
+		return view(row(index));
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Waypoint set(int index, Waypoint wpt) {
+		int oldRow = row(index);
+		int newRow = toRow(wpt);
+		order[index] = newRow;
+		release(oldRow);
+		position[newRow] = index;
+		return view(oldRow);
+	}
+
+	@Override
+	public void add(int index, Waypoint wpt) {
+		if (index < 0 || index > size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		int newRow = toRow(wpt);
+		ensureOrderCapacity(size + 1);
+		System.arraycopy(order, index, order, index + 1, size - index);
+		order[index] = newRow;
+		size++;
+		for (int i = index; i < size; i++) {
+			position[order[i]] = i;
+		}
+		modCount++;
+	}
+
+	@Override
+	public Waypoint remove(int index) {
+		int oldRow = row(index);
+		System.arraycopy(order, index + 1, order, index, size - index - 1);
+		size--;
+		release(oldRow);
+		for (int i = index; i < size; i++) {
+			position[order[i]] = i;
+		}
+		modCount++;
+		return view(oldRow);
+	}
+
+	/**
+	 * remove all given trackpoints in a single compacting pass
+	 * instead of shifting the order array once per removed element.
+	 */
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		int newSize = 0;
+		for (int i = 0; i < size; i++) {
+			int r = order[i];
+			if (c.contains(view(r))) {
+				release(r);
+			} else {
+				order[newSize] = r;
+				position[r] = newSize;
+				newSize++;
+			}
+		}
+		boolean modified = (newSize != size);
+		if (modified) {
+			size = newSize;
+			modCount++;
+		}
+		return modified;
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			release(order[i]);
+		}
+		size = 0;
+		modCount++;
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		if (o instanceof View) {
+			View view = (View) o;
+			if ((view.store == this) && (view.generation == generation[view.row])) {
+				return position[view.row];
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		return indexOf(o);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return indexOf(o) != -1;
+	}
+
+	// EndRegion
+
+	/**
+	 * Create a list of plain {@link Waypoint} objects containing
+	 * copies of all trackpoints in this list.
+	 * @param target list to add the copies to
+	 */
+	public void inflate(List<Waypoint> target) {
+		for (int i = 0; i < size; i++) {
+			target.add(new Waypoint(get(i)));
+		}
+	}
+
+	/**
+	 * Set the rarely used fields of the trackpoint at the given position
+	 * @param index
+	 * @param detail {@link Waypoint} holding the fields. adopted, not copied.
+	 */
+	void setDetails(int index, Waypoint detail) {
+		details.put(row(index), detail);
+	}
+
+	/**
+	 * Get the list holding the given trackpoint
+	 * @param wpt
+	 * @return the list the given view belongs to, or {@link null}
+	 * if the waypoint is not a view of a {@link ColumnarWaypointList}
+	 */
+	static ColumnarWaypointList getStore(Waypoint wpt) {
+		if (wpt instanceof View) {
+			return ((View) wpt).store;
+		}
+		return null;
+	}
+
+	/**
+	 *
+	 * @param row
+	 * @return view on the current content of the given physical row
+	 */
+	private View view(int row) {
+		return new View(this, row, generation[row]);
+	}
+
+	/**
+	 *
+	 * @param index
+	 * @return physical row of the given position
+	 */
+	private int row(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		return order[index];
+	}
+
+	/**
+	 * get the physical row for a waypoint to be inserted.
+	 * views of removed rows of this list are re-used if the row has not
+	 * been reused meanwhile, everything else is copied.
+	 * @param wpt
+	 * @return
+	 */
+	private int toRow(Waypoint wpt) {
+		if (wpt instanceof View) {
+			View view = (View) wpt;
+			if ((view.store == this) && (view.generation == generation[view.row]) && (position[view.row] == -1)) {
+				return view.row;
+			}
+		}
+		return appendRow(wpt);
+	}
+
+	/**
+	 * take a row out of the logical order and make it available for reuse
+	 * @param row
+	 */
+	private void release(int row) {
+		if (freeCount == free.length) {
+			if (freeCount >= rows) {
+				// duplicates of rows removed and re-inserted repeatedly
+				collectFree();
+			} else {
+				free = Arrays.copyOf(free, free.length + (free.length >> 1) + 1);
+			}
+		}
+		position[row] = -1;
+		free[freeCount++] = row;
+	}
+
+	/**
+	 * rebuild the list of removed rows from scratch
+	 */
+	private void collectFree() {
+		freeCount = 0;
+		for (int r = 0; r < rows; r++) {
+			if (position[r] == -1) {
+				free[freeCount++] = r;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return a removed row to be reused, or -1 if there is none
+	 */
+	private int takeFree() {
+		while (freeCount > 0) {
+			int row = free[--freeCount];
+			if (position[row] == -1) {
+				return row;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * copy the given waypoint into a removed or new physical row
+	 * @param wpt
+	 * @return
+	 */
+	private int appendRow(Waypoint wpt) {
+		int row = takeFree();
+		if (row != -1) {
+			// invalidate views of the removed trackpoint
+			generation[row]++;
+			writeRow(row, wpt);
+			return row;
+		}
+		if (rows == lat.length) {
+			int capacity = lat.length + (lat.length >> 1) + 1;
+			lat = Arrays.copyOf(lat, capacity);
+			lon = Arrays.copyOf(lon, capacity);
+			ele = Arrays.copyOf(ele, capacity);
+			time = Arrays.copyOf(time, capacity);
+			generation = Arrays.copyOf(generation, capacity);
+			position = Arrays.copyOf(position, capacity);
+			if (extensions != null) {
+				extensions = Arrays.copyOf(extensions, capacity);
+			}
+		}
+		row = rows++;
+		writeRow(row, wpt);
+		return row;
+	}
+
+	/**
+	 * copy the given waypoint into the given physical row
+	 * @param row
+	 * @param wpt
+	 */
+	private void writeRow(int row, Waypoint wpt) {
+		lat[row] = wpt.getLat();
+		lon[row] = wpt.getLon();
+		ele[row] = wpt.getEle();
+		time[row] = (wpt.getTime() == null) ? NO_TIME : wpt.getTime().getTime();
+		position[row] = -1;
+		if (wpt.hasExtension()) {
+			setExtension(row, wpt.getExtension());
+		} else if (extensions != null) {
+			extensions[row] = null;
+		}
+		if (wpt.hasDetails()) {
+			Waypoint detail = new Waypoint(0, 0);
+			detail.copyDetails(wpt);
+			details.put(row, detail);
+		} else {
+			details.remove(row);
+		}
+	}
+
+	/**
+	 *
+	 * @param capacity
+	 */
+	private void ensureOrderCapacity(int capacity) {
+		if (capacity > order.length) {
+			order = Arrays.copyOf(order, Math.max(capacity, order.length + (order.length >> 1)));
+		}
+	}
+
+	/**
+	 *
+	 * @param row
+	 * @param extension
+	 */
+	private void setExtension(int row, GPXExtension extension) {
+		if (extensions == null) {
+			extensions = new GPXExtension[lat.length];
+		}
+		extensions[row] = extension;
+	}
+
+	/**
+	 * get the side table entry holding the rarely used fields of the given row
+	 * @param row
+	 * @param create create the entry if it doesn't exist
+	 * @return entry or NULL
+	 */
+	private Waypoint getDetails(int row, boolean create) {
+		Waypoint detail = details.get(row);
+		if ((detail == null) && create) {
+			detail = new Waypoint(0, 0);
+			details.put(row, detail);
+		}
+		return detail;
+	}
+
+	/**
+	 * {@link Waypoint} view on a single row of a {@link ColumnarWaypointList}
+	 */
+	private static class View extends Waypoint {
+
+		private final ColumnarWaypointList store;
+		private final int row;
+		private final int generation;
+
+		View(ColumnarWaypointList store, int row, int generation) {
+			super(0, 0);
+			this.store = store;
+			this.row = row;
+			this.generation = generation;
+		}
+
+		@Override
+		public double getLat() {
+			return store.lat[row];
+		}
+
+		@Override
+		public void setLat(double lat) {
+			store.lat[row] = lat;
+		}
+
+		@Override
+		public double getLon() {
+			return store.lon[row];
+		}
+
+		@Override
+		public void setLon(double lon) {
+			store.lon[row] = lon;
+		}
+
+		@Override
+		public double getEle() {
+			return store.ele[row];
+		}
+
+		@Override
+		public void setEle(double ele) {
+			store.ele[row] = ele;
+		}
+
+		@Override
+		public Date getTime() {
+			long millis = store.time[row];
+			return (millis == NO_TIME) ? null : new Date(millis);
+		}
+
+		@Override
+		public void setTime(Date time) {
+			store.time[row] = (time == null) ? NO_TIME : time.getTime();
+		}
+
+		@Override
+		public GPXExtension getExtension() {
+			if ((store.extensions == null) || (store.extensions[row] == null)) {
+				store.setExtension(row, new GPXExtension(Const.TAG_EXTENSIONS));
+			}
+			return store.extensions[row];
+		}
+
+		@Override
+		public void setExtension(GPXExtension extension) {
+			store.setExtension(row, extension);
+		}
+
+		@Override
+		public boolean hasExtension() {
+			return (store.extensions != null) && (store.extensions[row] != null);
+		}
+
+		@Override
+		protected boolean hasDetails() {
+			return store.getDetails(row, false) != null;
+		}
+
+		// rarely used fields
+
+		private Waypoint get() {
+			return store.getDetails(row, false);
+		}
+
+		private Waypoint put() {
+			return store.getDetails(row, true);
+		}
+
+		@Override
+		public String getName() {
+			return (get() == null) ? "" : get().getName();
+		}
+
+		@Override
+		public void setName(String name) {
+			put().setName(name);
+		}
+
+		@Override
+		public String getDesc() {
+			return (get() == null) ? "" : get().getDesc();
+		}
+
+		@Override
+		public void setDesc(String desc) {
+			put().setDesc(desc);
+		}
+
+		@Override
+		public String getCmt() {
+			return (get() == null) ? "" : get().getCmt();
+		}
+
+		@Override
+		public void setCmt(String value) {
+			put().setCmt(value);
+		}
+
+		@Override
+		public String getType() {
+			return (get() == null) ? "" : get().getType();
+		}
+
+		@Override
+		public void setType(String type) {
+			put().setType(type);
+		}
+
+		@Override
+		public String getSrc() {
+			return (get() == null) ? "" : get().getSrc();
+		}
+
+		@Override
+		public void setSrc(String value) {
+			put().setSrc(value);
+		}
+
+		@Override
+		public String getSym() {
+			return (get() == null) ? "" : get().getSym();
+		}
+
+		@Override
+		public void setSym(String value) {
+			put().setSym(value);
+		}
+
+		@Override
+		public String getFix() {
+			return (get() == null) ? "" : get().getFix();
+		}
+
+		@Override
+		public void setFix(String value) {
+			put().setFix(value);
+		}
+
+		@Override
+		public List<LinkType> getLink() {
+			if (get() != null) {
+				return get().getLink();
+			}
+			return new Links();
+		}
+
+		@Override
+		public double getHdop() {
+			return (get() == null) ? 0 : get().getHdop();
+		}
+
+		@Override
+		public void setHdop(double hdop) {
+			put().setHdop(hdop);
+		}
+
+		@Override
+		public double getVdop() {
+			return (get() == null) ? 0 : get().getVdop();
+		}
+
+		@Override
+		public void setVdop(double vdop) {
+			put().setVdop(vdop);
+		}
+
+		@Override
+		public double getPdop() {
+			return (get() == null) ? 0 : get().getPdop();
+		}
+
+		@Override
+		public void setPdop(double pdop) {
+			put().setPdop(pdop);
+		}
+
+		@Override
+		public int getSat() {
+			return (get() == null) ? 0 : get().getSat();
+		}
+
+		@Override
+		public void setSat(int sat) {
+			put().setSat(sat);
+		}
+
+		@Override
+		public double getMagvar() {
+			return (get() == null) ? 0 : get().getMagvar();
+		}
+
+		@Override
+		public void setMagvar(double value) {
+			put().setMagvar(value);
+		}
+
+		@Override
+		public double getGeoidheight() {
+			return (get() == null) ? 0 : get().getGeoidheight();
+		}
+
+		@Override
+		public void setGeoidheight(double value) {
+			put().setGeoidheight(value);
+		}
+
+		@Override
+		public double getAgeofdgpsdata() {
+			return (get() == null) ? 0 : get().getAgeofdgpsdata();
+		}
+
+		@Override
+		public void setAgeofdgpsdata(double value) {
+			put().setAgeofdgpsdata(value);
+		}
+
+		@Override
+		public int getDgpsid() {
+			return (get() == null) ? 0 : get().getDgpsid();
+		}
+
+		@Override
+		public void setDgpsid(int value) {
+			put().setDgpsid(value);
+		}
+
+		@Override
+		public Color getSegmentColor() {
+			return (get() == null) ? null : get().getSegmentColor();
+		}
+
+		@Override
+		public void setSegmentColor(Color color) {
+			if ((color != null) || (get() != null)) {
+				put().setSegmentColor(color);
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof View) {
+				View view = (View) o;
+				return (view.store == store) && (view.row == row) && (view.generation == generation);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(store) * 31 + row;
+		}
+
+		/**
+		 * links of a trackpoint without side table entry.
+		 * the entry is only created when a link is added.
+		 */
+		private class Links extends AbstractList<LinkType> {
+
+			private List<LinkType> links() {
+				Waypoint detail = store.getDetails(row, false);
+				return (detail == null) ? Collections.<LinkType>emptyList() : detail.getLink();
+			}
+
+			@Override
+			public LinkType get(int index) {
+				return links().get(index);
+			}
+
+			@Override
+			public int size() {
+				return links().size();
+			}
+
+			@Override
+			public LinkType set(int index, LinkType link) {
+				return links().set(index, link);
+			}
+
+			@Override
+			public void add(int index, LinkType link) {
+				store.getDetails(row, true).getLink().add(index, link);
+			}
+
+			@Override
+			public LinkType remove(int index) {
+				return links().remove(index);
+			}
+		}
+	}
+}
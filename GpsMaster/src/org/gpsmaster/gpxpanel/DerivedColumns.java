@@ -0,0 +1,260 @@
+package org.gpsmaster.gpxpanel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.gpsmaster.Const;
+import org.openstreetmap.gui.jmapviewer.OsmMercator;
+
+import eu.fuegenstein.unit.UnitConverter;
+
+/**
+ * Per-trackpoint values derived from the waypoints of a {@link WaypointGroup},
+ * held in primitive arrays: cumulative distance, elapsed time, segment speed,
+ * grade and vertical speed.
+ *
+ * Values are computed once and shared by all consumers (charts, painters,
+ * measurement, properties). Appended waypoints are added incrementally,
+ * all other modifications require a new instance, see
+ * {@link WaypointGroup#getDerivedColumns()}.
+ *
+ * Segment values (speed, grade, vertical speed) of a trackpoint refer to the
+ * segment from the previous trackpoint to this one, they are 0 for the first
+ * trackpoint and for segments without time.
+ *
+ * @author rfu
+ *
+ */
+public class DerivedColumns {
+
+	/**
+	 * start time if none of the waypoints has a time
+	 */
+	public static final long NO_TIME = Long.MIN_VALUE;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private volatile int count = 0; // written after the values, read before
+	private double[] distance; // meters from the first trackpoint
+	private double[] elapsed; // milliseconds since startTime, NaN if without time
+	private double[] speed; // meters per second
+	private double[] grade; // rise per meter
+	private double[] verticalSpeed; // meters per second
+
+	private long startTime = NO_TIME;
+	private Waypoint first = null;
+	private Waypoint last = null;
+	private double lastLat;
+	private double lastLon;
+	private double lastEle;
+	private long lastTime;
+
+	/**
+	 * Compute all values for the given waypoints
+	 * @param waypoints
+	 */
+	public DerivedColumns(List<Waypoint> waypoints) {
+		allocate(Math.max(waypoints.size(), INITIAL_CAPACITY));
+		if (waypoints instanceof ColumnarWaypointList) {
+			ColumnarWaypointList columns = (ColumnarWaypointList) waypoints;
+			for (int i = 0; i < columns.size(); i++) {
+				add(columns.getLat(i), columns.getLon(i), columns.getEle(i),
+					columns.hasTime(i) ? columns.getTimeMillis(i) : NO_TIME);
+			}
+		} else {
+			for (Waypoint wpt : waypoints) {
+				add(wpt.getLat(), wpt.getLon(), wpt.getEle(), getMillis(wpt));
+			}
+		}
+		if (waypoints.size() > 0) {
+			first = waypoints.get(0);
+			last = waypoints.get(waypoints.size() - 1);
+		}
+	}
+
+	/**
+	 * add the values of a waypoint appended to the group
+	 * @param wpt
+	 */
+	public synchronized void append(Waypoint wpt) {
+		if (count == distance.length) {
+			allocate(count * 2);
+		}
+		add(wpt.getLat(), wpt.getLon(), wpt.getEle(), getMillis(wpt));
+		if (first == null) {
+			first = wpt;
+		}
+		last = wpt;
+	}
+
+	/**
+	 *
+	 * @return number of trackpoints
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @param i index of the trackpoint
+	 * @return distance from the first trackpoint along the track, in meters
+	 */
+	public double getDistance(int i) {
+		return distance[i];
+	}
+
+	/**
+	 * @param from index of the first trackpoint
+	 * @param to index of the second trackpoint
+	 * @return distance between the trackpoints along the track, in meters
+	 */
+	public double getDistance(int from, int to) {
+		return Math.abs(distance[to] - distance[from]);
+	}
+
+	/**
+	 *
+	 * @return time of the first trackpoint with a time, in milliseconds,
+	 * or {@link #NO_TIME}
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * @param i index of the trackpoint
+	 * @return milliseconds since {@link #getStartTime()},
+	 * Double.NaN if the trackpoint has no time
+	 */
+	public double getElapsed(int i) {
+		return elapsed[i];
+	}
+
+	/**
+	 * @param i index of the trackpoint
+	 * @return speed on the segment to the trackpoint, in meters per second
+	 */
+	public double getSpeed(int i) {
+		return speed[i];
+	}
+
+	/**
+	 * @param i index of the trackpoint
+	 * @return grade of the segment to the trackpoint (rise / distance)
+	 */
+	public double getGrade(int i) {
+		return grade[i];
+	}
+
+	/**
+	 * @param i index of the trackpoint
+	 * @return vertical speed on the segment to the trackpoint, in meters per second
+	 */
+	public double getVerticalSpeed(int i) {
+		return verticalSpeed[i];
+	}
+
+	/**
+	 * rows (name, formatted value, editable) of the values derived for a
+	 * trackpoint, as displayed in the properties tables
+	 * @param i index of the trackpoint
+	 * @param uc
+	 * @return rows, empty if the index is out of range
+	 */
+	public List<Object[]> getPropertyRows(int i, UnitConverter uc) {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		if ((i < 0) || (i >= count)) {
+			return rows;
+		}
+		rows.add(new Object[]{"distance", uc.dist(distance[i], Const.FMT_DIST), false});
+		if (i > 0) {
+			rows.add(new Object[]{"grade", String.format("%.1f%%", grade[i] * 100), false});
+			if (!Double.isNaN(elapsed[i]) && !Double.isNaN(elapsed[i - 1])) {
+				rows.add(new Object[]{"speed", uc.speed(speed[i], Const.FMT_SPEED), false});
+				rows.add(new Object[]{"vertical speed", uc.vertSpeed(verticalSpeed[i], Const.FMT_ELESPEED), false});
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * check if the waypoints have (most likely) not been modified
+	 * since the values have been computed
+	 * @param waypoints
+	 * @return
+	 */
+	boolean isCurrent(List<Waypoint> waypoints) {
+		int size = waypoints.size();
+		if (size != count) {
+			return false;
+		}
+		return (size == 0) || (same(first, waypoints.get(0)) && same(last, waypoints.get(size - 1)));
+	}
+
+	private boolean same(Waypoint a, Waypoint b) {
+		return (a == b) || (a != null && a.equals(b));
+	}
+
+	/**
+	 * (re)allocate all columns with the given capacity
+	 */
+	private void allocate(int capacity) {
+		if (distance == null) {
+			distance = new double[capacity];
+			elapsed = new double[capacity];
+			speed = new double[capacity];
+			grade = new double[capacity];
+			verticalSpeed = new double[capacity];
+		} else {
+			distance = Arrays.copyOf(distance, capacity);
+			elapsed = Arrays.copyOf(elapsed, capacity);
+			speed = Arrays.copyOf(speed, capacity);
+			grade = Arrays.copyOf(grade, capacity);
+			verticalSpeed = Arrays.copyOf(verticalSpeed, capacity);
+		}
+	}
+
+	/**
+	 * compute the values of the next trackpoint
+	 */
+	private void add(double lat, double lon, double ele, long time) {
+		int i = count;
+		if ((startTime == NO_TIME) && (time != NO_TIME)) {
+			startTime = time;
+		}
+		elapsed[i] = (time == NO_TIME) ? Double.NaN : time - startTime;
+		if (i == 0) {
+			distance[i] = 0;
+		} else {
+			double segment = OsmMercator.MERCATOR_256.getDistance(lat, lon, lastLat, lastLon);
+			if (Double.isNaN(segment)) {
+				segment = 0;
+			}
+			double rise = ele - lastEle;
+			distance[i] = distance[i - 1] + segment;
+			grade[i] = (segment > 0) ? rise / segment : 0;
+			if ((time != NO_TIME) && (lastTime != NO_TIME) && (time != lastTime)) {
+				double seconds = (time - lastTime) / 1000D;
+				speed[i] = segment / seconds;
+				verticalSpeed[i] = rise / seconds;
+			}
+		}
+		lastLat = lat;
+		lastLon = lon;
+		lastEle = ele;
+		lastTime = time;
+		count = i + 1;
+	}
+
+	/**
+	 *
+	 * @param wpt
+	 * @return
+	 */
+	private long getMillis(Waypoint wpt) {
+		Date time = wpt.getTime();
+		return (time == null) ? NO_TIME : time.getTime();
+	}
+}
@@ -6,6 +6,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.swing.tree.TreeNode;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -27,6 +29,11 @@ import com.topografix.gpx._1._1.BoundsType;
 @XmlRootElement
 public class GPXFile extends GPXObject /* implements TreeNode */ {
 
+    /**
+     * guards the structure of displayed GPX data, see {@link #getLock()}
+     */
+    private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+
     private String creator;
     private GpxMetadata metadata;
     private WaypointGroup waypointGroup;
@@ -37,6 +44,19 @@ public class GPXFile extends GPXObject /* implements TreeNode */ {
 
     private long dbId = -1;
 
+    /**
+     * Lock guarding the structure (lists of tracks, segments and waypoints)
+     * of all {@link GPXFile}s displayed on the map. The read lock is held
+     * while the overlay is rendered in background, the write lock has to be
+     * held while adding or removing elements of displayed data.
+     * Data not (yet) displayed, i.e. while loading, doesn't need locking.
+     *
+     * @return the lock shared by all {@link GPXFile}s
+     */
+    public static ReadWriteLock getLock() {
+        return lock;
+    }
+
     /**
      * Creates an empty {@link GPXFile}.
      */
@@ -242,14 +262,6 @@ public class GPXFile extends GPXObject /* implements TreeNode */ {
     @Override
     public void updateAllProperties() {
 
-    	lengthMeters = 0;
-    	duration = 0;
-    	maxSpeedMps = 0;
-    	riseTime = 0;
-    	fallTime = 0;
-    	grossRiseMeters = 0;
-    	grossFallMeters = 0;
-
         if (waypointGroup.getWaypoints().size() > 1) {
             waypointGroup.updateAllProperties();
         }
@@ -259,6 +271,24 @@ public class GPXFile extends GPXObject /* implements TreeNode */ {
         for (Track track : tracks) {
             track.updateAllProperties();
         }
+        updateFromChildren();
+    }
+
+    /**
+     * update the properties of this file from its tracks, routes and
+     * waypoints, without recomputing the tracks and routes
+     */
+    public void updateFromChildren() {
+
+    	lengthMeters = 0;
+    	duration = 0;
+    	exStop = 0;
+    	maxSpeedMps = 0;
+    	minMaxExtensions.clear();
+    	riseTime = 0;
+    	fallTime = 0;
+    	grossRiseMeters = 0;
+    	grossFallMeters = 0;
 
         minLat =  86;
         maxLat = -86;
@@ -297,7 +327,7 @@ public class GPXFile extends GPXObject /* implements TreeNode */ {
                         meta.name = key;
                         minMaxExtensions.put(key, meta);
                     }
-                    meta.values.addAll(trackMeta.values);
+                    meta.merge(trackMeta);
                 }
             }
         }
@@ -1,8 +1,6 @@
 package org.gpsmaster.gpxpanel;
 
 import java.awt.Color;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 
@@ -11,6 +9,8 @@ import javax.swing.tree.TreeNode;
 import org.gpsmaster.Const;
 import org.gpsmaster.gpxpanel.WaypointGroup.WptGrpType;
 
+import eu.fuegenstein.util.TDigest;
+
 
 /**
  *
@@ -79,73 +79,115 @@ public abstract class GPXObject implements TreeNode {
     protected HashMap<String, ExtensionMeta> minMaxExtensions;
     protected GPXObject parent = null;
 
+    /**
+     * Statistics of a numeric extension value (heart rate, cadence, ...).
+     *
+     * Values are not stored. Mean and standard deviation are accumulated
+     * using Welford's algorithm, median is estimated via a {@link TDigest}.
+     * Memory use is constant, and the statistics of child objects
+     * (segments, tracks) can be combined via {@link #merge(ExtensionMeta)}.
+     */
     public static class ExtensionMeta {
         public String name;
-        public ArrayList<Double> values = new ArrayList<>();
-        private boolean sorted = false;
-        private void sort() {
-            if (!sorted) {
-                Collections.sort(values);
-                sorted = true;
+        private long count = 0;
+        private double mean = 0.0;
+        private double m2 = 0.0; // sum of squared differences from the mean
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private TDigest digest = new TDigest();
+
+        public ExtensionMeta() {
+        }
+
+        public ExtensionMeta(String name) {
+            this.name = name;
+        }
+
+        public void add(double value) {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            digest.add(value);
+        }
+
+        /**
+         * remove a previously added value. min and max can't be updated,
+         * so removing an extreme value is not possible.
+         * @param value
+         * @return {@link true} if the value has been removed,
+         * {@link false} if the statistics have to be recomputed
+         */
+        public boolean remove(double value) {
+            if (count <= 1 || value <= min || value >= max) {
+                return false;
             }
+            double delta = value - mean;
+            mean = (mean * count - value) / (count - 1);
+            m2 = Math.max(0.0, m2 - delta * (value - mean));
+            count--;
+            digest.remove(value);
+            return true;
         }
-        public double getMin() {
-            sort();
-            if (0 < values.size()) {
-                return values.get(0);
-            } else {
-                return 0.0;
+
+        /**
+         * add the statistics of another object (Chan et al.)
+         * @param other
+         */
+        public void merge(ExtensionMeta other) {
+            if (other.count == 0) {
+                return;
             }
+            long total = count + other.count;
+            double delta = other.mean - mean;
+            mean += delta * other.count / total;
+            m2 += other.m2 + delta * delta * count * other.count / total;
+            count = total;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            digest.merge(other.digest);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return (count > 0) ? min : 0.0;
         }
+
         public double getMax() {
-            sort();
-            if (0 < values.size()) {
-                return values.get(values.size() - 1);
-            } else {
-                return 0.0;
-            }
+            return (count > 0) ? max : 0.0;
         }
+
         double getSum() {
-            if (0 < values.size()) {
-                double sum = 0.0;
-                for (Double value : values) {
-                    sum += value;
-                }
-                return sum;
-            } else {
-                return 0.0;
-            }
+            return mean * count;
         }
+
         public double getMean() {
-            if (0 < values.size()) {
-                return getSum() / (values.size() * 1.0);
-            } else {
-                return 0.0;
-            }
+            return mean;
         }
+
         public double getMedian() {
-            sort();
-            if (0 < values.size()) {
-                int middle = values.size() / 2;
-                if (values.size() % 2 == 1) {
-                    return values.get(middle);
-                } else {
-                    return (values.get(middle - 1) + values.get(middle)) / 2.0;
-                }
-            } else {
-                return 0.0;
-            }
+            return digest.quantile(0.5);
         }
+
+        /**
+         *
+         * @param q 0..1
+         * @return estimated value at quantile q
+         */
+        public double getQuantile(double q) {
+            return digest.quantile(q);
+        }
+
         public double getStandardDeviation() {
-            double sum = 0.0;
-            double mean = getMean();
-            for (Double value : values) {
-                sum += Math.pow(value - mean, 2.0);
-            }
-            if (values.size() > 1000) {
-                return Math.sqrt(sum / values.size());
+            if (count > 1000) {
+                return Math.sqrt(m2 / count);
             } else {
-                return Math.sqrt(sum / (values.size() - 1));
+                return Math.sqrt(m2 / (count - 1));
             }
         }
     }
@@ -15,21 +15,23 @@ import java.awt.event.MouseEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Collections;
+import java.util.Set;
 
 import javax.swing.ImageIcon;
 
 import org.gpsmaster.Const;
 import org.gpsmaster.GpsMaster;
 import org.gpsmaster.marker.Marker;
-import org.gpsmaster.painter.PaintCoordinator;
 import org.gpsmaster.painter.Painter;
 import org.openstreetmap.gui.jmapviewer.Coordinate;
 import org.openstreetmap.gui.jmapviewer.DefaultMapController;
 import org.openstreetmap.gui.jmapviewer.JMapViewer;
 import org.openstreetmap.gui.jmapviewer.MemoryTileCache;
 import org.openstreetmap.gui.jmapviewer.OsmMercator;
+import org.openstreetmap.gui.jmapviewer.interfaces.ICoordinate;
 import org.openstreetmap.gui.jmapviewer.tilesources.OsmTileSource;
 
 import eu.fuegenstein.gis.GeoBounds;
@@ -60,7 +62,13 @@ public class GPXPanel extends JMapViewer {
     private MouseAdapter mouseAdapter = null;
     private List<Marker> markerList;
     private List<Painter> painterList;
-    private PaintCoordinator coordinator = new PaintCoordinator();
+    private OverlayRenderer overlay = null;
+
+    // distance of a clickable marker icon or label from the marker's location
+    private static final int MARKER_HIT_WIDTH = 256;
+    private static final int MARKER_HIT_HEIGHT = 64;
+    // maximum distance of a click from the trackpoint to be selected, in pixels
+    private static final int SNAP_DISTANCE = 5;
 
     /**
      * Constructs a new {@link GPXPanel} instance.
@@ -80,6 +88,12 @@ public class GPXPanel extends JMapViewer {
 
         markerList = new ArrayList<Marker>();
         painterList = new ArrayList<Painter>();
+        overlay = new OverlayRenderer(new Runnable() {
+			@Override
+			public void run() {
+				repaintView();
+			}
+		});
 
         mouseAdapter = new MouseAdapter() {
 			@Override
@@ -105,6 +119,7 @@ public class GPXPanel extends JMapViewer {
      */
     public void setGpxFiles(List<GPXFile> gpxFiles) {
     	this.gpxFiles = gpxFiles;
+    	overlay.invalidate();
     }
 
     /**
@@ -120,10 +135,11 @@ public class GPXPanel extends JMapViewer {
      * @param painter
      */
     public void addPainter(Painter painter) {
-    	painter.setMapViewer(this);
-    	painter.setCoordinator(coordinator);
+    	painter.setMapViewer(overlay.getViewport());
+    	painter.setCoordinator(overlay.getCoordinator());
     	painterList.add(painter);
     	Collections.sort(painterList);
+    	overlay.invalidate();
     }
 
     /**
@@ -132,6 +148,8 @@ public class GPXPanel extends JMapViewer {
      */
     public void removePainter(Painter painter) {
     	painterList.remove(painter);
+    	painter.dispose();
+    	overlay.invalidate();
     }
 
     // TODO --- redesign the following methods to be more consistent
@@ -208,6 +226,7 @@ public class GPXPanel extends JMapViewer {
     public void addMarker(Marker m) {
     	if (markerList.contains(m) == false) {
     		markerList.add(m);
+    		overlay.invalidate();
     	}
     }
 
@@ -218,9 +237,29 @@ public class GPXPanel extends JMapViewer {
     public void removeMarker(Marker m) {
     	if (markerList.contains(m)) {
     		markerList.remove(m);
+    		overlay.invalidate();
     	}
     }
 
+    /**
+     * repaint the map including the GPX overlay
+     */
+    @Override
+    public void repaint() {
+    	if (overlay != null) {
+    		overlay.invalidate();
+    	}
+    	super.repaint();
+    }
+
+    /**
+     * repaint the map, reusing the GPX overlay if possible
+     */
+    @Override
+    protected void repaintView() {
+    	super.repaint();
+    }
+
     @Override
     protected synchronized void paintComponent(Graphics g) {
         super.paintComponent(g);
@@ -233,14 +272,8 @@ public class GPXPanel extends JMapViewer {
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
 
-		coordinator.clear();
-		// invoke all registered painters
-    	for (Painter painter : painterList) {
-    		for (GPXFile gpx : gpxFiles) {
-    			painter.paint(g2d, gpx);
-    		}
-    		painter.paint(g2d, markerList);
-    	}
+		// output of all registered painters, rendered in background
+		overlay.paint(g2d, this, painterList, gpxFiles, markerList);
 
         if (showCrosshair) {
             Point p = null;
@@ -280,26 +313,92 @@ public class GPXPanel extends JMapViewer {
      * check if a marker was clicked
      * and fire PropertyChangeEvent if applicable.
      * only the first matching marker will be considered.
+     * if no marker was clicked, the closest trackpoint of the
+     * active {@link WaypointGroup}s within {@link #SNAP_DISTANCE}
+     * is set active.
      *
      */
     private void checkMarkerClick(MouseEvent e) {
+    	// marker bounds are set when painting the overlay
+    	Point point = overlay.toOverlay(e.getPoint(), this);
     	for (Marker marker : markerList) {
-			if (marker.contains(e.getPoint())) { // redundant code, consolidate
+			if (isMarkerClicked(marker, e.getPoint(), point)) { // redundant code, consolidate
 				firePropertyChange(e.getClickCount() + "click", null, marker);
 				// marker.Callback(e);
 				return;
 			}
     	}
+    	if (gpxFiles == null) {
+    		return;
+    	}
+
+    	// waypoints located close enough for their icon or label to be clicked
+    	final Set<WaypointGroup> waypointGroups = new HashSet<WaypointGroup>();
     	for (GPXFile gpx : gpxFiles) {
-    		for (Waypoint wpt : gpx.getWaypointGroup().getWaypoints()) {
-    			Marker marker = (Marker) wpt;
-    			if (marker.contains(e.getPoint())) {  // redundant code, consolidate
-    				firePropertyChange(e.getClickCount() + "click", null, marker);
-    				// marker.Callback(e);
-    				return;
-    			}
+    		waypointGroups.add(gpx.getWaypointGroup());
+    	}
+    	ICoordinate topLeft = getPosition(e.getX() - MARKER_HIT_WIDTH, e.getY() - MARKER_HIT_HEIGHT);
+    	ICoordinate bottomRight = getPosition(e.getX() + MARKER_HIT_WIDTH, e.getY() + MARKER_HIT_HEIGHT);
+    	List<SpatialIndex.Hit> hits = GpsMaster.active.getSpatialIndex().query(
+    			bottomRight.getLat(), topLeft.getLon(), topLeft.getLat(), bottomRight.getLon(),
+    			new SpatialIndex.Filter() {
+					@Override
+					public boolean accept(WaypointGroup group) {
+						return waypointGroups.contains(group);
+					}
+				});
+    	for (SpatialIndex.Hit hit : hits) {
+    		Marker marker = (Marker) hit.getWaypoint();
+    		if (isMarkerClicked(marker, e.getPoint(), point)) {  // redundant code, consolidate
+    			firePropertyChange(e.getClickCount() + "click", null, marker);
+    			// marker.Callback(e);
+    			return;
     		}
     	}
+
+    	final List<WaypointGroup> activeGroups = GpsMaster.active.getGroups();
+    	SpatialIndex.Hit hit = getTrackpointAt(e.getPoint(), SNAP_DISTANCE, new SpatialIndex.Filter() {
+			@Override
+			public boolean accept(WaypointGroup group) {
+				return activeGroups.contains(group);
+			}
+		});
+    	if (hit != null) {
+    		GpsMaster.active.setGroup(hit.getGroup());
+    		GpsMaster.active.setTrackpoint(hit.getWaypoint(), false);
+    	}
+    }
+
+    /**
+     * check if the icon or label of a marker has been clicked
+     *
+     * @param marker
+     * @param click point on the map
+     * @param overlayPoint click on the overlay image, {@link null} if
+     * the overlay displayed has been rendered for another zoom level.
+     * in this case, the current position of the marker on the map is used.
+     * @return
+     */
+    private boolean isMarkerClicked(Marker marker, Point click, Point overlayPoint) {
+    	if (overlayPoint != null) {
+    		return marker.contains(overlayPoint);
+    	}
+    	return marker.contains(click, getMapPosition(marker.getLat(), marker.getLon(), false));
+    }
+
+    /**
+     * Find the trackpoint closest to the given point on the map,
+     * i.e. for snapping or highlighting trackpoints under the mouse pointer
+     *
+     * @param point point on the map
+     * @param tolerance maximum distance in pixels
+     * @param filter {@link WaypointGroup}s to search, {@link null} for all
+     * @return closest trackpoint or {@link null} if there is none within tolerance
+     */
+    public SpatialIndex.Hit getTrackpointAt(Point point, int tolerance, SpatialIndex.Filter filter) {
+    	ICoordinate position = getPosition(point);
+    	double distance = SpatialIndex.toWorldDistance(tolerance, getTileController().getTileSource().getTileSize(), getZoom());
+    	return GpsMaster.active.getSpatialIndex().nearest(position.getLat(), position.getLon(), distance, filter);
     }
 
     /**
@@ -312,7 +411,7 @@ public class GPXPanel extends JMapViewer {
     		repaint();
     	} else if (command.equals(Const.PCE_ACTIVE_TRKPT)) {
     		setShownWaypoint(GpsMaster.active.getTrackpoint(), autoCenter);
-    		repaint();
+    		repaintView(); // highlighted trackpoint is not part of the overlay
     	} else if (command.equals(Const.PCE_ACTIVE_WPT)) {
     		setShownWaypoint(GpsMaster.active.getWaypoint(), autoCenter);
     		repaint();
@@ -325,6 +424,21 @@ public class GPXPanel extends JMapViewer {
     	} else if (command.equals(Const.PCE_CENTERMAP)) {
     		Waypoint wpt = (Waypoint) evt.getNewValue();
     		setDisplayPosition(new Coordinate(wpt.getLat(), wpt.getLon()), getZoom());
+    	} else if (command.equals(Const.PCE_ACTIVEGPX)) {
+    		setPrefetchArea(GpsMaster.active.getGpxObject());
+    	}
+    }
+
+    /**
+     * prefer tiles covering the given {@link GPXObject} when loading tiles in advance
+     * @param gpxObject
+     */
+    private void setPrefetchArea(GPXObject gpxObject) {
+    	if (gpxObject != null && gpxObject.getMinLat() <= gpxObject.getMaxLat()) {
+    		tileController.setPrefetchArea(gpxObject.getMaxLat(), gpxObject.getMinLon(),
+    				gpxObject.getMinLat(), gpxObject.getMaxLon());
+    	} else {
+    		tileController.clearPrefetchArea();
     	}
     }
 
@@ -0,0 +1,593 @@
+package org.gpsmaster.gpxpanel;
+
+import java.awt.Color;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.datatype.DatatypeFactory;
+
+import org.gpsmaster.gpxpanel.WaypointGroup.WptGrpType;
+import org.gpsmaster.marker.Marker;
+import org.gpsmaster.marker.WaypointMarker;
+
+import com.topografix.gpx._1._1.CopyrightType;
+import com.topografix.gpx._1._1.EmailType;
+import com.topografix.gpx._1._1.LinkType;
+import com.topografix.gpx._1._1.PersonType;
+
+/**
+ * Compact binary representation of a {@link GPXFile}, used to cache
+ * parsed files on disk.
+ *
+ * Trackpoints are stored column by column (all latitudes, all longitudes,
+ * ...), so a group of trackpoints is restored into a {@link ColumnarWaypointList}
+ * by a few bulk copies. Extensions and the rarely used fields of a waypoint
+ * are stored as sparse records following the columns. Strings are stored
+ * once and referenced by number afterwards, since keys and values of
+ * extensions repeat for most trackpoints.
+ *
+ * Computed properties (length, duration, min/max etc.) are not part of
+ * the format, updateAllProperties() has to be called after reading.
+ *
+ * @author rfu
+ *
+ */
+public class GpxBinaryCodec {
+
+	private static final int MAGIC = 0x47504D43; // "GPMC"
+	private static final int VERSION = 1;
+
+	// string references
+	private static final int NULL_STRING = -1;
+	private static final int NEW_STRING = -2;
+
+	private static final long NO_TIME = ColumnarWaypointList.NO_TIME;
+
+	/**
+	 * Write a {@link GPXFile}
+	 * @param gpx
+	 * @param outStream
+	 * @throws IOException if the file contains elements which can't be restored
+	 */
+	public static void write(GPXFile gpx, OutputStream outStream) throws IOException {
+		new Writer(outStream).writeFile(gpx);
+	}
+
+	/**
+	 * Read a {@link GPXFile} previously written by {@link #write(GPXFile, OutputStream)}
+	 * @param buffer positioned at the beginning of the data
+	 * @return
+	 * @throws IOException if the data is not valid
+	 */
+	public static GPXFile read(ByteBuffer buffer) throws IOException {
+		try {
+			return new Reader(buffer).readFile();
+		} catch (BufferUnderflowException e) {
+			throw new IOException("unexpected end of data", e);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("invalid data", e);
+		}
+	}
+
+	/**
+	 *
+	 */
+	private static class Writer {
+
+		private final DataOutputStream out;
+		private final HashMap<String, Integer> strings = new HashMap<String, Integer>();
+
+		private Writer(OutputStream outStream) {
+			out = new DataOutputStream(outStream);
+		}
+
+		private void writeFile(GPXFile gpx) throws IOException {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(gpx.getCreator());
+			out.writeInt(gpx.getExtensionPrefixes().size());
+			for (String prefix : gpx.getExtensionPrefixes()) {
+				writeString(prefix);
+			}
+			writeExtension(gpx.getExtension());
+			writeMetadata(gpx.getMetadata());
+			writeGroup(gpx.getWaypointGroup());
+			out.writeInt(gpx.getRoutes().size());
+			for (Route route : gpx.getRoutes()) {
+				writeCommon(route);
+				writeGroup(route.getPath());
+			}
+			out.writeInt(gpx.getTracks().size());
+			for (Track track : gpx.getTracks()) {
+				writeCommon(track);
+				out.writeInt(track.getTracksegs().size());
+				for (WaypointGroup trackseg : track.getTracksegs()) {
+					writeGroup(trackseg);
+				}
+			}
+			out.flush();
+		}
+
+		private void writeMetadata(GpxMetadata metadata) throws IOException {
+			writeString(metadata.getName());
+			writeString(metadata.getDesc());
+			writeString(metadata.getKeywords());
+			writeTime(metadata.getTime());
+			writeLinks(metadata.getLink());
+			PersonType author = metadata.getAuthor();
+			out.writeBoolean(author != null);
+			if (author != null) {
+				writeString(author.getName());
+				EmailType email = author.getEmail();
+				writeString(email == null ? null : email.getId());
+				writeString(email == null ? null : email.getDomain());
+				writeLink(author.getLink());
+			}
+			CopyrightType copyright = metadata.getCopyright();
+			out.writeBoolean(copyright != null);
+			if (copyright != null) {
+				writeString(copyright.getAuthor());
+				writeString(copyright.getLicense());
+				writeString(copyright.getYear() == null ? null : copyright.getYear().toXMLFormat());
+			}
+			writeExtension(metadata.getExtension());
+		}
+
+		/**
+		 * write the fields common to tracks and routes
+		 */
+		private void writeCommon(GPXObjectCommon object) throws IOException {
+			writeString(object.getName());
+			writeString(object.getDesc());
+			out.writeInt(object.getNumber());
+			writeString(object.getCmt());
+			writeString(object.getSrc());
+			writeString(object.getType());
+			writeLinks(object.getLink());
+			writeExtension(object.getExtension());
+		}
+
+		private void writeGroup(WaypointGroup group) throws IOException {
+			List<Waypoint> waypoints = group.getWaypoints();
+			int n = waypoints.size();
+			writeString(group.getName());
+			writeString(group.getDesc());
+			writeExtension(group.getExtension());
+			out.writeBoolean(group.isColumnar());
+			out.writeInt(n);
+
+			// columns
+			ByteBuffer column = ByteBuffer.allocate(n * 8);
+			for (Waypoint wpt : waypoints) {
+				column.putDouble(wpt.getLat());
+			}
+			writeColumn(column);
+			for (Waypoint wpt : waypoints) {
+				column.putDouble(wpt.getLon());
+			}
+			writeColumn(column);
+			for (Waypoint wpt : waypoints) {
+				column.putDouble(wpt.getEle());
+			}
+			writeColumn(column);
+			for (Waypoint wpt : waypoints) {
+				column.putLong(wpt.getTime() == null ? NO_TIME : wpt.getTime().getTime());
+			}
+			writeColumn(column);
+
+			// sparse records
+			int count = 0;
+			for (Waypoint wpt : waypoints) {
+				if (wpt.hasExtension()) {
+					count++;
+				}
+			}
+			out.writeInt(count);
+			for (int i = 0; i < n; i++) {
+				Waypoint wpt = waypoints.get(i);
+				if (wpt.hasExtension()) {
+					out.writeInt(i);
+					writeExtension(wpt.getExtension());
+				}
+			}
+			count = 0;
+			for (Waypoint wpt : waypoints) {
+				if (wpt.hasDetails()) {
+					count++;
+				}
+			}
+			out.writeInt(count);
+			for (int i = 0; i < n; i++) {
+				Waypoint wpt = waypoints.get(i);
+				if (wpt.hasDetails()) {
+					out.writeInt(i);
+					writeDetails(wpt);
+				}
+			}
+
+			if (group.getWptGrpType() == WptGrpType.WAYPOINTS) {
+				for (Waypoint wpt : waypoints) {
+					writeMarkerClass(wpt);
+				}
+			}
+		}
+
+		private void writeColumn(ByteBuffer column) throws IOException {
+			out.write(column.array(), 0, column.position());
+			column.clear();
+		}
+
+		private void writeDetails(Waypoint wpt) throws IOException {
+			out.writeDouble(wpt.getHdop());
+			out.writeDouble(wpt.getVdop());
+			out.writeDouble(wpt.getPdop());
+			out.writeDouble(wpt.getMagvar());
+			out.writeDouble(wpt.getGeoidheight());
+			out.writeDouble(wpt.getAgeofdgpsdata());
+			out.writeInt(wpt.getSat());
+			out.writeInt(wpt.getDgpsid());
+			writeString(wpt.getName());
+			writeString(wpt.getDesc());
+			writeString(wpt.getType());
+			writeString(wpt.getCmt());
+			writeString(wpt.getSym());
+			writeString(wpt.getSrc());
+			writeString(wpt.getFix());
+			Color color = wpt.getSegmentColor();
+			out.writeBoolean(color != null);
+			if (color != null) {
+				out.writeInt(color.getRGB());
+			}
+			writeLinks(wpt.getLink());
+		}
+
+		/**
+		 * markers are restored via their (Waypoint) constructor,
+		 * fail for classes without one.
+		 */
+		private void writeMarkerClass(Waypoint wpt) throws IOException {
+			if (wpt instanceof Marker) {
+				try {
+					wpt.getClass().getConstructor(Waypoint.class);
+				} catch (NoSuchMethodException e) {
+					throw new IOException("marker can't be restored: " + wpt.getClass().getName());
+				}
+				writeString(wpt.getClass().getName());
+			} else {
+				writeString(null);
+			}
+		}
+
+		private void writeExtension(GPXExtension extension) throws IOException {
+			out.writeBoolean(extension != null);
+			if (extension != null) {
+				writeString(extension.getKey());
+				writeString(extension.getValue());
+				writeString(extension.getNamespace());
+				out.writeInt(extension.getExtensions().size());
+				for (GPXExtension sub : extension.getExtensions()) {
+					writeExtension(sub);
+				}
+			}
+		}
+
+		private void writeLinks(List<LinkType> links) throws IOException {
+			out.writeInt(links.size());
+			for (LinkType link : links) {
+				writeLink(link);
+			}
+		}
+
+		private void writeLink(LinkType link) throws IOException {
+			out.writeBoolean(link != null);
+			if (link != null) {
+				writeString(link.getHref());
+				writeString(link.getText());
+				writeString(link.getType());
+			}
+		}
+
+		private void writeTime(Date time) throws IOException {
+			out.writeLong(time == null ? NO_TIME : time.getTime());
+		}
+
+		/**
+		 * write a string on first occurrence, a reference to it afterwards
+		 */
+		private void writeString(String value) throws IOException {
+			if (value == null) {
+				out.writeInt(NULL_STRING);
+				return;
+			}
+			Integer ref = strings.get(value);
+			if (ref != null) {
+				out.writeInt(ref);
+			} else {
+				strings.put(value, strings.size());
+				byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(NEW_STRING);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+	}
+
+	/**
+	 *
+	 */
+	private static class Reader {
+
+		private final ByteBuffer in;
+		private final List<String> strings = new ArrayList<String>();
+
+		private Reader(ByteBuffer buffer) {
+			in = buffer;
+		}
+
+		private GPXFile readFile() throws IOException {
+			if (in.getInt() != MAGIC) {
+				throw new IOException("not a cached GPX file");
+			}
+			int version = in.getInt();
+			if (version != VERSION) {
+				throw new IOException("unsupported version " + version);
+			}
+			GPXFile gpx = new GPXFile();
+			gpx.setCreator(readString());
+			int prefixes = in.getInt();
+			for (int i = 0; i < prefixes; i++) {
+				String prefix = readString();
+				if (!gpx.getExtensionPrefixes().contains(prefix)) {
+					gpx.addExtensionPrefix(prefix);
+				}
+			}
+			gpx.setExtension(readExtension());
+			readMetadata(gpx.getMetadata());
+			readGroup(gpx.getWaypointGroup());
+			int routes = in.getInt();
+			for (int i = 0; i < routes; i++) {
+				Route route = new Route(gpx.getColor());
+				readCommon(route);
+				readGroup(route.getPath());
+				gpx.addRoute(route);
+			}
+			int tracks = in.getInt();
+			for (int i = 0; i < tracks; i++) {
+				Track track = new Track(gpx.getColor());
+				readCommon(track);
+				int tracksegs = in.getInt();
+				for (int j = 0; j < tracksegs; j++) {
+					readGroup(track.addTrackseg());
+				}
+				gpx.addTrack(track);
+			}
+			return gpx;
+		}
+
+		private void readMetadata(GpxMetadata metadata) throws IOException {
+			metadata.setName(readString());
+			metadata.setDesc(readString());
+			metadata.setKeywords(readString());
+			metadata.setTime(readTime());
+			readLinks(metadata.getLink());
+			if (in.get() != 0) {
+				PersonType author = new PersonType();
+				author.setName(readString());
+				String id = readString();
+				String domain = readString();
+				if ((id != null) || (domain != null)) {
+					EmailType email = new EmailType();
+					email.setId(id);
+					email.setDomain(domain);
+					author.setEmail(email);
+				}
+				author.setLink(readLink());
+				metadata.setAuthor(author);
+			} else {
+				metadata.setAuthor(null);
+			}
+			if (in.get() != 0) {
+				CopyrightType copyright = new CopyrightType();
+				copyright.setAuthor(readString());
+				copyright.setLicense(readString());
+				String year = readString();
+				if (year != null) {
+					try {
+						copyright.setYear(DatatypeFactory.newInstance().newXMLGregorianCalendar(year));
+					} catch (Exception e) {
+						throw new IOException("invalid copyright year", e);
+					}
+				}
+				metadata.setCopyright(copyright);
+			} else {
+				metadata.setCopyright(null);
+			}
+			GPXExtension extension = readExtension();
+			if (extension != null) {
+				metadata.setExtension(extension);
+			}
+		}
+
+		private void readCommon(GPXObjectCommon object) throws IOException {
+			object.setName(readString());
+			object.setDesc(readString());
+			object.setNumber(in.getInt());
+			object.setCmt(readString());
+			object.setSrc(readString());
+			object.setType(readString());
+			readLinks(object.getLink());
+			object.setExtension(readExtension());
+		}
+
+		private void readGroup(WaypointGroup group) throws IOException {
+			group.setName(readString());
+			group.setDesc(readString());
+			group.setExtension(readExtension());
+			boolean columnar = in.get() != 0;
+			int n = in.getInt();
+			if (n < 0 || (long) n * 32 > in.remaining()) {
+				throw new IOException("invalid number of waypoints: " + n);
+			}
+
+			double[] lat = new double[n];
+			double[] lon = new double[n];
+			double[] ele = new double[n];
+			long[] time = new long[n];
+			readColumn(lat);
+			readColumn(lon);
+			readColumn(ele);
+			in.asLongBuffer().get(time);
+			in.position(in.position() + n * 8);
+			List<Waypoint> waypoints;
+			if (columnar) {
+				waypoints = new ColumnarWaypointList(lat, lon, ele, time);
+			} else {
+				waypoints = new ArrayList<Waypoint>(n);
+				for (int i = 0; i < n; i++) {
+					Waypoint wpt = new Waypoint(lat[i], lon[i]);
+					wpt.setEle(ele[i]);
+					if (time[i] != NO_TIME) {
+						wpt.setTime(new Date(time[i]));
+					}
+					waypoints.add(wpt);
+				}
+			}
+
+			int count = in.getInt();
+			for (int i = 0; i < count; i++) {
+				int index = in.getInt();
+				waypoints.get(index).setExtension(readExtension());
+			}
+			count = in.getInt();
+			for (int i = 0; i < count; i++) {
+				int index = in.getInt();
+				Waypoint detail = readDetails();
+				if (columnar) {
+					((ColumnarWaypointList) waypoints).setDetails(index, detail);
+				} else {
+					waypoints.get(index).copyDetails(detail);
+				}
+			}
+
+			if (group.getWptGrpType() == WptGrpType.WAYPOINTS) {
+				for (int i = 0; i < n; i++) {
+					group.addWaypoint(readMarker(waypoints.get(i)));
+				}
+			} else {
+				group.setWaypoints(waypoints);
+			}
+		}
+
+		private void readColumn(double[] column) {
+			in.asDoubleBuffer().get(column);
+			in.position(in.position() + column.length * 8);
+		}
+
+		private Waypoint readDetails() throws IOException {
+			Waypoint detail = new Waypoint(0, 0);
+			detail.setHdop(in.getDouble());
+			detail.setVdop(in.getDouble());
+			detail.setPdop(in.getDouble());
+			detail.setMagvar(in.getDouble());
+			detail.setGeoidheight(in.getDouble());
+			detail.setAgeofdgpsdata(in.getDouble());
+			detail.setSat(in.getInt());
+			detail.setDgpsid(in.getInt());
+			detail.setName(readString());
+			detail.setDesc(readString());
+			detail.setType(readString());
+			detail.setCmt(readString());
+			detail.setSym(readString());
+			detail.setSrc(readString());
+			detail.setFix(readString());
+			if (in.get() != 0) {
+				detail.setSegmentColor(new Color(in.getInt(), true));
+			}
+			readLinks(detail.getLink());
+			return detail;
+		}
+
+		/**
+		 * create a copy of the given waypoint, as a {@link Marker} if it was one
+		 */
+		@SuppressWarnings("unchecked")
+		private Waypoint readMarker(Waypoint wpt) throws IOException {
+			String className = readString();
+			if (className == null) {
+				return new Waypoint(wpt);
+			}
+			try {
+				Class<?> c = Class.forName(className);
+				Constructor<? extends Marker> con = (Constructor<? extends Marker>) c.getConstructor(Waypoint.class);
+				return con.newInstance(wpt);
+			} catch (Exception e) {
+				return new WaypointMarker(wpt);
+			}
+		}
+
+		private GPXExtension readExtension() throws IOException {
+			if (in.get() == 0) {
+				return null;
+			}
+			GPXExtension extension = new GPXExtension(readString());
+			extension.setValue(readString());
+			extension.setNamespace(readString());
+			int subs = in.getInt();
+			for (int i = 0; i < subs; i++) {
+				extension.subs.add(readExtension()); // keys are unique already
+			}
+			return extension;
+		}
+
+		private void readLinks(List<LinkType> links) throws IOException {
+			int count = in.getInt();
+			for (int i = 0; i < count; i++) {
+				links.add(readLink());
+			}
+		}
+
+		private LinkType readLink() throws IOException {
+			if (in.get() == 0) {
+				return null;
+			}
+			LinkType link = new LinkType();
+			link.setHref(readString());
+			link.setText(readString());
+			link.setType(readString());
+			return link;
+		}
+
+		private Date readTime() {
+			long time = in.getLong();
+			return (time == NO_TIME) ? null : new Date(time);
+		}
+
+		private String readString() throws IOException {
+			int ref = in.getInt();
+			if (ref == NULL_STRING) {
+				return null;
+			}
+			if (ref == NEW_STRING) {
+				int length = in.getInt();
+				if (length < 0 || length > in.remaining()) {
+					throw new IOException("invalid string length: " + length);
+				}
+				byte[] bytes = new byte[length];
+				in.get(bytes);
+				String value = new String(bytes, StandardCharsets.UTF_8);
+				strings.add(value);
+				return value;
+			}
+			return strings.get(ref);
+		}
+	}
+}
@@ -0,0 +1,436 @@
+package org.gpsmaster.gpxpanel;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import javax.swing.SwingUtilities;
+
+import org.gpsmaster.marker.Marker;
+import org.gpsmaster.painter.PaintCoordinator;
+import org.gpsmaster.painter.Painter;
+import org.openstreetmap.gui.jmapviewer.JMapViewer;
+import org.openstreetmap.gui.jmapviewer.MemoryTileCache;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+
+/**
+ * Renders the GPX overlay (output of all {@link Painter}s) into an offscreen
+ * image on a background thread, so painting the map on the EDT never waits
+ * for track painting.
+ *
+ * The overlay is rendered with a margin around the visible area. While the
+ * map is panned, the last image is drawn with an offset, a new one is rendered
+ * before the margin is used up. After a zoom change, the last image is drawn
+ * scaled until the new one is available.
+ * The overlay is only rendered again if the zoom level or the size of the
+ * map changes, or after {@link #invalidate()}, i.e. when the displayed data
+ * or painter settings have changed.
+ *
+ * {@link Painter}s supporting it ({@link Painter#isTileable()}) are run
+ * for screen tiles in parallel, each tile painted into its own region of the
+ * overlay image. Since each tile is painted with the same coordinates and
+ * settings as the whole image, just clipped, the result is the same as
+ * painting the whole image at once. Other painters are run on the whole
+ * image, in between, to keep the order of painting.
+ *
+ * The painters read the displayed data while holding the read lock of
+ * {@link GPXFile#getLock()}, code modifying it holds the write lock.
+ *
+ * @author rfu
+ *
+ */
+public class OverlayRenderer {
+
+	/**
+	 * overlay is rendered this many pixels beyond each edge of the visible area
+	 */
+	public static final int MARGIN = 256;
+
+	/**
+	 * width and height of the tiles painted in parallel
+	 */
+	public static final int TILE_SIZE = 512;
+
+	/**
+	 * copy of the map's viewport used by the painters during rendering
+	 */
+	@SuppressWarnings("serial")
+	private static class RenderViewport extends JMapViewer {
+		private int width = 0;
+		private int height = 0;
+
+		private RenderViewport() {
+			super(new MemoryTileCache());
+		}
+
+		private void setViewport(TileSource source, Point center, int zoom, int width, int height) {
+			this.tileSource = source;
+			this.tileController.setTileSource(source);
+			this.center = new Point(center);
+			this.zoom = zoom;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+
+		@Override
+		public Rectangle getBounds() {
+			return new Rectangle(0, 0, width, height);
+		}
+	}
+
+	/**
+	 * a rendered overlay image and the viewport it was rendered for
+	 */
+	private static class Frame {
+		private BufferedImage image = null;
+		private Point center;
+		private int zoom;
+		private int width; // of the visible area
+		private int height;
+		private int version;
+
+		private Frame(JMapViewer viewer, int version) {
+			center = new Point(viewer.getCenter());
+			zoom = viewer.getZoom();
+			width = viewer.getWidth();
+			height = viewer.getHeight();
+			this.version = version;
+		}
+	}
+
+	/**
+	 * everything required for rendering, copied on the EDT
+	 */
+	private static class Request {
+		private Frame frame;
+		private TileSource tileSource;
+		private List<Painter> painters;
+		private List<GPXFile> gpxFiles;
+		private List<Marker> markers;
+	}
+
+	private final RenderViewport viewport;
+	private final PaintCoordinator coordinator = new PaintCoordinator();
+	private final Runnable repaint;
+	private final ExecutorService executor;
+	private final ForkJoinPool tilePool = new ForkJoinPool();
+
+	private final AtomicInteger version = new AtomicInteger();
+	private volatile Frame requested = null; // last requested frame, EDT only
+	private Request pending = null;
+	private boolean running = false;
+
+	private final Object frameLock = new Object();
+	private Frame front = null; // currently displayed
+	private BufferedImage back = null; // image to be reused for rendering
+
+	/**
+	 * Constructor. Has to be called on the EDT.
+	 * @param repaint called on the EDT when a new overlay is available
+	 */
+	public OverlayRenderer(Runnable repaint) {
+		this.repaint = repaint;
+		viewport = new RenderViewport();
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "OverlayRenderer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 *
+	 * @return viewport to be used by the painters
+	 */
+	public JMapViewer getViewport() {
+		return viewport;
+	}
+
+	/**
+	 *
+	 * @return coordinator to be used by the painters
+	 */
+	public PaintCoordinator getCoordinator() {
+		return coordinator;
+	}
+
+	/**
+	 * The overlay has to be rendered again, i.e. because the
+	 * displayed data or painter settings have changed
+	 */
+	public void invalidate() {
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Draw the last rendered overlay for the current viewport of the given map
+	 * and request rendering a new one if required. Called on the EDT.
+	 *
+	 * @param g2d
+	 * @param viewer map to draw on
+	 * @param painters
+	 * @param gpxFiles
+	 * @param markers
+	 */
+	public void paint(Graphics2D g2d, JMapViewer viewer, List<Painter> painters, List<GPXFile> gpxFiles, List<Marker> markers) {
+		Frame wanted = new Frame(viewer, version.get());
+		Frame last = requested;
+		if (last == null || last.version != wanted.version || last.zoom != wanted.zoom
+				|| last.width != wanted.width || last.height != wanted.height
+				|| Math.abs(last.center.x - wanted.center.x) > MARGIN / 2
+				|| Math.abs(last.center.y - wanted.center.y) > MARGIN / 2) {
+			Request request = new Request();
+			request.frame = wanted;
+			request.tileSource = viewer.getTileController().getTileSource();
+			request.painters = new ArrayList<Painter>(painters);
+			request.gpxFiles = (gpxFiles == null) ? new ArrayList<GPXFile>() : new ArrayList<GPXFile>(gpxFiles);
+			request.markers = new ArrayList<Marker>(markers);
+			requested = wanted;
+			submit(request);
+		}
+
+		synchronized (frameLock) {
+			if (front == null || Math.abs(front.zoom - wanted.zoom) > 3) {
+				return;
+			}
+			// position of the image origin in the viewer
+			double scale = Math.pow(2, wanted.zoom - front.zoom);
+			int imageWidth = front.image.getWidth();
+			int imageHeight = front.image.getHeight();
+			int x = (int) Math.round((front.center.x - imageWidth / 2) * scale) - wanted.center.x + wanted.width / 2;
+			int y = (int) Math.round((front.center.y - imageHeight / 2) * scale) - wanted.center.y + wanted.height / 2;
+			if (front.zoom == wanted.zoom) {
+				g2d.drawImage(front.image, x, y, null);
+			} else {
+				Object interpolation = g2d.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+				g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g2d.drawImage(front.image, x, y, (int) (imageWidth * scale), (int) (imageHeight * scale), null);
+				if (interpolation != null) {
+					g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Convert a point on the map to a point on the displayed overlay image,
+	 * i.e. to check if a marker has been clicked.
+	 *
+	 * @param point point on the map
+	 * @param viewer the map
+	 * @return point on the overlay image, or <code>null</code> if the
+	 * overlay displayed has been rendered for another zoom level
+	 */
+	public Point toOverlay(Point point, JMapViewer viewer) {
+		synchronized (frameLock) {
+			if (front == null || front.zoom != viewer.getZoom()) {
+				return null;
+			}
+			Point center = viewer.getCenter();
+			int x = front.center.x - front.image.getWidth() / 2 - center.x + viewer.getWidth() / 2;
+			int y = front.center.y - front.image.getHeight() / 2 - center.y + viewer.getHeight() / 2;
+			return new Point(point.x - x, point.y - y);
+		}
+	}
+
+	/**
+	 * queue a request. only the latest request is rendered.
+	 * @param request
+	 */
+	private void submit(Request request) {
+		synchronized (this) {
+			pending = request;
+			if (running) {
+				return;
+			}
+			running = true;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				renderPending();
+			}
+		});
+	}
+
+	private void renderPending() {
+		while (true) {
+			Request request;
+			synchronized (this) {
+				request = pending;
+				pending = null;
+				if (request == null) {
+					running = false;
+					return;
+				}
+			}
+			Lock lock = GPXFile.getLock().readLock();
+			lock.lock();
+			try {
+				render(request);
+				SwingUtilities.invokeLater(repaint);
+			} catch (RuntimeException e) {
+				// painter failed. keep the last overlay, render
+				// again when the next request comes in
+				e.printStackTrace();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * render the overlay for the given request and make it the displayed one
+	 * @param request
+	 */
+	private void render(Request request) {
+		Frame frame = request.frame;
+		int width = frame.width + 2 * MARGIN;
+		int height = frame.height + 2 * MARGIN;
+
+		BufferedImage image;
+		synchronized (frameLock) {
+			image = back;
+			back = null;
+		}
+		if (image == null || image.getWidth() != width || image.getHeight() != height) {
+			image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+		}
+
+		Graphics2D g2d = image.createGraphics();
+		try {
+			g2d.setComposite(AlphaComposite.Clear);
+			g2d.fillRect(0, 0, width, height);
+			g2d.setComposite(AlphaComposite.SrcOver);
+			g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+			g2d.setColor(Color.BLACK);
+
+			viewport.setViewport(request.tileSource, frame.center, frame.zoom, width, height);
+			coordinator.clear();
+			List<Painter> painters = request.painters;
+			int i = 0;
+			while (i < painters.size()) {
+				if (painters.get(i).isTileable()) {
+					// paint all subsequent tileable painters per tile
+					int end = i;
+					while (end < painters.size() && painters.get(end).isTileable()) {
+						end++;
+					}
+					paintTiles(g2d, painters.subList(i, end), request, width, height);
+					i = end;
+				} else {
+					paint(g2d, painters.get(i), request);
+					i++;
+				}
+			}
+		} catch (RuntimeException e) {
+			synchronized (frameLock) {
+				back = image;
+			}
+			throw e;
+		} finally {
+			g2d.dispose();
+		}
+
+		frame.image = image;
+		synchronized (frameLock) {
+			if (front != null) {
+				back = front.image;
+			}
+			front = frame;
+		}
+	}
+
+	/**
+	 * run a single painter for all data of the request
+	 * @param g2d
+	 * @param painter
+	 * @param request
+	 */
+	private void paint(Graphics2D g2d, Painter painter, Request request) {
+		for (GPXFile gpx : request.gpxFiles) {
+			painter.paint(g2d, gpx);
+		}
+		painter.paint(g2d, request.markers);
+	}
+
+	/**
+	 * run the given painters for each tile of the image in parallel.
+	 * returns after all tiles have been painted. on a single core,
+	 * the painters are run on the whole image instead.
+	 *
+	 * @param g2d graphics of the whole image
+	 * @param painters painters supporting painting tiles
+	 * @param request
+	 * @param width width of the image
+	 * @param height height of the image
+	 */
+	private void paintTiles(final Graphics2D g2d, final List<Painter> painters, final Request request, int width, int height) {
+		if (tilePool.getParallelism() == 1) {
+			for (Painter painter : painters) {
+				paint(g2d, painter, request);
+			}
+			return;
+		}
+
+		final List<RecursiveAction> tiles = new ArrayList<RecursiveAction>();
+		for (int y = 0; y < height; y += TILE_SIZE) {
+			for (int x = 0; x < width; x += TILE_SIZE) {
+				final Rectangle tile = new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+				tiles.add(new RecursiveAction() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected void compute() {
+						// same settings as the whole image, limited to the tile
+						Graphics2D tileGraphics = (Graphics2D) g2d.create();
+						try {
+							tileGraphics.clip(tile);
+							for (Painter painter : painters) {
+								paint(tileGraphics, painter, request);
+							}
+						} finally {
+							tileGraphics.dispose();
+						}
+					}
+				});
+			}
+		}
+
+		tilePool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(tiles);
+			}
+		});
+	}
+}
@@ -73,7 +73,14 @@ public class Route extends GPXObjectCommon {
     @Override
     public void updateAllProperties() {
         path.updateAllProperties();
+        updateFromPath();
+    }
 
+    /**
+     * update the properties of this route from its path,
+     * without recomputing the path
+     */
+    public void updateFromPath() {
         duration = path.getDuration();
         maxSpeedMps = path.getMaxSpeedMps();
         lengthMeters = path.getLengthMeters();
@@ -89,6 +96,7 @@ public class Route extends GPXObjectCommon {
         minLon = path.getMinLon();
         maxLat = path.getMaxLat();
         maxLon = path.getMaxLon();
+        minMaxExtensions.clear();
         if (0 != path.minMaxExtensions.size()) {
             for (String key : path.getMinMaxExtensions().keySet()) {
                 ExtensionMeta pathMeta = path.getMinMaxExtensions().get(key);
@@ -98,7 +106,7 @@ public class Route extends GPXObjectCommon {
                     meta.name = key;
                     minMaxExtensions.put(key, meta);
                 }
-                meta.values.addAll(pathMeta.values);
+                meta.merge(pathMeta);
             }
         }
 
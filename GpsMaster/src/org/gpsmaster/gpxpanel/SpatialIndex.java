@@ -0,0 +1,692 @@
+package org.gpsmaster.gpxpanel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Spatial index over the waypoints and trackpoints of {@link GPXFile}s,
+ * for nearest-neighbour and bounding box queries, i.e. hit-testing
+ * clicks on the map.
+ *
+ * Each {@link WaypointGroup} is indexed by its own packed Hilbert R-tree:
+ * points are sorted along a Hilbert curve and packed into nodes of
+ * {@link #NODE_SIZE} entries, bottom up. Trees are built on first use.
+ *
+ * Single points inserted or removed via {@link #pointInserted} and
+ * {@link #pointRemoved} are kept in a small edit log per tree: indices found
+ * in the tree are shifted by the logged edits and inserted points are
+ * searched linearly. The tree is only rebuilt when the log is full.
+ * Invalidated trees are verified against a checksum of the group's points
+ * on next use and only rebuilt if the points have actually changed.
+ *
+ * Coordinates are kept in Mercator projection normalized to the size of the
+ * world (0..1), so distances correspond to distances on the map at any
+ * zoom level. A distance of <code>n</code> pixels at a given zoom level is
+ * <code>n / (tileSize * 2^zoom)</code>.
+ *
+ * @author rfu
+ *
+ */
+public class SpatialIndex {
+
+	/**
+	 * number of entries per node
+	 */
+	public static final int NODE_SIZE = 16;
+
+	private static final int HILBERT_ORDER = 16;
+
+	/**
+	 * max. number of edits logged before a tree is rebuilt
+	 */
+	private static final int MAX_EDITS = 32;
+
+	/**
+	 * selects the {@link WaypointGroup}s to be searched
+	 */
+	public interface Filter {
+		boolean accept(WaypointGroup group);
+	}
+
+	/**
+	 * a point found by a query
+	 */
+	public static class Hit {
+		private final WaypointGroup group;
+		private final int index;
+		private final double distance;
+
+		private Hit(WaypointGroup group, int index, double distance) {
+			this.group = group;
+			this.index = index;
+			this.distance = distance;
+		}
+
+		/**
+		 * @return the group containing the point
+		 */
+		public WaypointGroup getGroup() {
+			return group;
+		}
+
+		/**
+		 * @return index of the point within its group
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return the point
+		 */
+		public Waypoint getWaypoint() {
+			return group.getWaypoints().get(index);
+		}
+
+		/**
+		 * @return distance to the location queried, in world units. 0 for bounding box queries.
+		 */
+		public double getDistance() {
+			return distance;
+		}
+	}
+
+	/**
+	 * packed Hilbert R-tree of a single {@link WaypointGroup}
+	 */
+	private static class GroupTree {
+
+		private final WaypointGroup group;
+		private final int builtPts; // number of points in the tree
+		private int numPts; // current number of points, including edits
+		private Waypoint first;
+		private Waypoint last;
+		private long checksum;
+		private boolean verify = false;
+
+		// point indices in Hilbert order
+		private final int[] order;
+		// node bounds (minX, minY, maxX, maxY) per level, leaves first
+		private final double[][] bounds;
+
+		// edit log: index and type (true for insert) of each edit
+		private final int[] editIndex = new int[MAX_EDITS];
+		private final boolean[] editInsert = new boolean[MAX_EDITS];
+		private int edits = 0;
+
+		private GroupTree(WaypointGroup group) {
+			this.group = group;
+			List<Waypoint> waypoints = group.getWaypoints();
+			builtPts = waypoints.size();
+			numPts = builtPts;
+			first = group.getStart();
+			last = group.getEnd();
+
+			double[] x = new double[numPts];
+			double[] y = new double[numPts];
+			double minX = Double.MAX_VALUE;
+			double minY = Double.MAX_VALUE;
+			double maxX = -Double.MAX_VALUE;
+			double maxY = -Double.MAX_VALUE;
+			checksum = 0;
+			for (int i = 0; i < numPts; i++) {
+				double lat = getLat(i);
+				double lon = getLon(i);
+				checksum += hash(lat, lon);
+				x[i] = lonToX(lon);
+				y[i] = latToY(lat);
+				minX = Math.min(minX, x[i]);
+				minY = Math.min(minY, y[i]);
+				maxX = Math.max(maxX, x[i]);
+				maxY = Math.max(maxY, y[i]);
+			}
+
+			// sort by position on the Hilbert curve, the point index in the lower bits
+			long[] keys = new long[numPts];
+			double scaleX = (maxX > minX) ? ((1 << HILBERT_ORDER) - 1) / (maxX - minX) : 0;
+			double scaleY = (maxY > minY) ? ((1 << HILBERT_ORDER) - 1) / (maxY - minY) : 0;
+			for (int i = 0; i < numPts; i++) {
+				int hx = (int) ((x[i] - minX) * scaleX);
+				int hy = (int) ((y[i] - minY) * scaleY);
+				keys[i] = (hilbert(hx, hy) << 31) | i;
+			}
+			Arrays.sort(keys);
+			order = new int[numPts];
+			for (int i = 0; i < numPts; i++) {
+				order[i] = (int) (keys[i] & Integer.MAX_VALUE);
+			}
+
+			// leaves
+			List<double[]> levels = new ArrayList<double[]>();
+			int count = (numPts + NODE_SIZE - 1) / NODE_SIZE;
+			double[] level = new double[count * 4];
+			for (int node = 0; node < count; node++) {
+				int start = node * NODE_SIZE;
+				int end = Math.min(start + NODE_SIZE, numPts);
+				int b = node * 4;
+				level[b] = level[b + 1] = Double.MAX_VALUE;
+				level[b + 2] = level[b + 3] = -Double.MAX_VALUE;
+				for (int j = start; j < end; j++) {
+					int i = order[j];
+					level[b] = Math.min(level[b], x[i]);
+					level[b + 1] = Math.min(level[b + 1], y[i]);
+					level[b + 2] = Math.max(level[b + 2], x[i]);
+					level[b + 3] = Math.max(level[b + 3], y[i]);
+				}
+			}
+			levels.add(level);
+
+			// upper levels, until there is a single root node
+			while (count > 1) {
+				double[] children = level;
+				int childCount = count;
+				count = (childCount + NODE_SIZE - 1) / NODE_SIZE;
+				level = new double[count * 4];
+				for (int node = 0; node < count; node++) {
+					int start = node * NODE_SIZE;
+					int end = Math.min(start + NODE_SIZE, childCount);
+					int b = node * 4;
+					level[b] = level[b + 1] = Double.MAX_VALUE;
+					level[b + 2] = level[b + 3] = -Double.MAX_VALUE;
+					for (int c = start * 4; c < end * 4; c += 4) {
+						level[b] = Math.min(level[b], children[c]);
+						level[b + 1] = Math.min(level[b + 1], children[c + 1]);
+						level[b + 2] = Math.max(level[b + 2], children[c + 2]);
+						level[b + 3] = Math.max(level[b + 3], children[c + 3]);
+					}
+				}
+				levels.add(level);
+			}
+			bounds = levels.toArray(new double[levels.size()][]);
+		}
+
+		/**
+		 * check if the group's trackpoints have (most likely) not been modified
+		 * since this tree has been built, apart from the logged edits.
+		 * after invalidation, the points are compared by checksum.
+		 */
+		private boolean isCurrent() {
+			if ((numPts != group.getNumPts())
+				|| !same(first, group.getStart())
+				|| !same(last, group.getEnd())) {
+				return false;
+			}
+			if (verify) {
+				long sum = 0;
+				for (int i = 0; i < numPts; i++) {
+					sum += hash(getLat(i), getLon(i));
+				}
+				if (sum != checksum) {
+					return false;
+				}
+				verify = false;
+			}
+			return true;
+		}
+
+		/**
+		 * log an edit of the group
+		 * @param index index of the point inserted or removed
+		 * @param insert
+		 * @param wpt the point inserted or removed
+		 * @return {@link false} if the log is full and the tree has to be rebuilt
+		 */
+		private boolean edit(int index, boolean insert, Waypoint wpt) {
+			if (edits == MAX_EDITS) {
+				return false;
+			}
+			editIndex[edits] = index;
+			editInsert[edits] = insert;
+			edits++;
+			if (insert) {
+				numPts++;
+				checksum += hash(wpt.getLat(), wpt.getLon());
+			} else {
+				numPts--;
+				checksum -= hash(wpt.getLat(), wpt.getLon());
+			}
+			first = group.getStart();
+			last = group.getEnd();
+			return true;
+		}
+
+		/**
+		 * apply the logged edits to the index of a point
+		 * @param index index of the point before the given edit
+		 * @param from first edit to apply
+		 * @return current index of the point, -1 if it has been removed
+		 */
+		private int translate(int index, int from) {
+			for (int e = from; e < edits; e++) {
+				if (editInsert[e]) {
+					if (index >= editIndex[e]) {
+						index++;
+					}
+				} else if (index == editIndex[e]) {
+					return -1;
+				} else if (index > editIndex[e]) {
+					index--;
+				}
+			}
+			return index;
+		}
+
+		/**
+		 * @return current indices of the points inserted since the tree has been built
+		 */
+		private List<Integer> getInserted() {
+			List<Integer> inserted = new ArrayList<Integer>();
+			for (int e = 0; e < edits; e++) {
+				if (editInsert[e]) {
+					int index = translate(editIndex[e], e + 1);
+					if (index != -1) {
+						inserted.add(index);
+					}
+				}
+			}
+			return inserted;
+		}
+
+		private boolean same(Waypoint a, Waypoint b) {
+			return (a == b) || (a != null && a.equals(b));
+		}
+
+		private int getRootLevel() {
+			return bounds.length - 1;
+		}
+
+		private double getLat(int i) {
+			List<Waypoint> waypoints = group.getWaypoints();
+			if (waypoints instanceof ColumnarWaypointList) {
+				return ((ColumnarWaypointList) waypoints).getLat(i);
+			}
+			return waypoints.get(i).getLat();
+		}
+
+		private double getLon(int i) {
+			List<Waypoint> waypoints = group.getWaypoints();
+			if (waypoints instanceof ColumnarWaypointList) {
+				return ((ColumnarWaypointList) waypoints).getLon(i);
+			}
+			return waypoints.get(i).getLon();
+		}
+
+		/**
+		 * squared distance between the given location and the bounds of a node
+		 */
+		private double distanceSq(int level, int node, double x, double y) {
+			int b = node * 4;
+			double[] box = bounds[level];
+			double dx = Math.max(0, Math.max(box[b] - x, x - box[b + 2]));
+			double dy = Math.max(0, Math.max(box[b + 1] - y, y - box[b + 3]));
+			return dx * dx + dy * dy;
+		}
+
+		private boolean intersects(int level, int node, double minX, double minY, double maxX, double maxY) {
+			int b = node * 4;
+			double[] box = bounds[level];
+			return box[b] <= maxX && box[b + 2] >= minX && box[b + 1] <= maxY && box[b + 3] >= minY;
+		}
+
+		/**
+		 * @return end of the range of entries (children or points) of the given node
+		 */
+		private int getEnd(int level, int node) {
+			int entries = (level == 0) ? builtPts : bounds[level - 1].length / 4;
+			return Math.min((node + 1) * NODE_SIZE, entries);
+		}
+
+		/**
+		 * collect indices of all points within the given box
+		 */
+		private void query(int level, int node, double minX, double minY, double maxX, double maxY, List<Integer> result) {
+			if (intersects(level, node, minX, minY, maxX, maxY) == false) {
+				return;
+			}
+			int end = getEnd(level, node);
+			for (int e = node * NODE_SIZE; e < end; e++) {
+				if (level == 0) {
+					int i = translate(order[e], 0);
+					if (i == -1) {
+						continue;
+					}
+					double x = lonToX(getLon(i));
+					double y = latToY(getLat(i));
+					if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+						result.add(i);
+					}
+				} else {
+					query(level - 1, e, minX, minY, maxX, maxY, result);
+				}
+			}
+		}
+
+		/**
+		 * collect indices of all points within the given box,
+		 * including points inserted since the tree has been built
+		 */
+		private void query(double minX, double minY, double maxX, double maxY, List<Integer> result) {
+			query(getRootLevel(), 0, minX, minY, maxX, maxY, result);
+			for (int i : getInserted()) {
+				double x = lonToX(getLon(i));
+				double y = latToY(getLat(i));
+				if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+					result.add(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * entry in the queue of the nearest neighbour search:
+	 * a group not searched yet, a node or a point
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+		private final double distanceSq;
+		private final WaypointGroup group;
+		private final GroupTree tree; // null if group is not searched yet
+		private final int level; // -1 for points
+		private final int node; // node or point index
+
+		private Candidate(double distanceSq, WaypointGroup group, GroupTree tree, int level, int node) {
+			this.distanceSq = distanceSq;
+			this.group = group;
+			this.tree = tree;
+			this.level = level;
+			this.node = node;
+		}
+
+		@Override
+		public int compareTo(Candidate o) {
+			return Double.compare(distanceSq, o.distanceSq);
+		}
+	}
+
+	private final Map<GPXFile, List<WaypointGroup>> files = new LinkedHashMap<GPXFile, List<WaypointGroup>>();
+	private final Map<WaypointGroup, GroupTree> trees = new HashMap<WaypointGroup, GroupTree>();
+
+	/**
+	 * Set the {@link GPXFile}s to be indexed. Groups added to or removed
+	 * from the files since the last call are added or removed, trees of
+	 * existing groups are kept.
+	 *
+	 * @param gpxFiles
+	 */
+	public synchronized void update(List<GPXFile> gpxFiles) {
+		files.clear();
+		Map<WaypointGroup, GroupTree> current = new HashMap<WaypointGroup, GroupTree>();
+		for (GPXFile gpx : gpxFiles) {
+			List<WaypointGroup> groups = new ArrayList<WaypointGroup>();
+			groups.add(gpx.getWaypointGroup());
+			for (Route route : gpx.getRoutes()) {
+				groups.add(route.getPath());
+			}
+			for (Track track : gpx.getTracks()) {
+				groups.addAll(track.getTracksegs());
+			}
+			for (WaypointGroup group : groups) {
+				if (trees.containsKey(group)) {
+					current.put(group, trees.get(group));
+				}
+			}
+			files.put(gpx, groups);
+		}
+		trees.clear();
+		trees.putAll(current);
+	}
+
+	/**
+	 * verify the index of the given groups on next use and rebuild it
+	 * if required, i.e. after their trackpoints have been modified
+	 * @param groups
+	 */
+	public synchronized void invalidate(Collection<WaypointGroup> groups) {
+		for (WaypointGroup group : groups) {
+			GroupTree tree = trees.get(group);
+			if (tree != null) {
+				tree.verify = true;
+			}
+		}
+	}
+
+	/**
+	 * update the index after a point has been inserted into a group
+	 * @param group
+	 * @param index index of the inserted point
+	 */
+	public synchronized void pointInserted(WaypointGroup group, int index) {
+		edit(group, index, true, group.getWaypoints().get(index));
+	}
+
+	/**
+	 * update the index after a point has been removed from a group
+	 * @param group
+	 * @param index former index of the removed point
+	 * @param wpt the removed point
+	 */
+	public synchronized void pointRemoved(WaypointGroup group, int index, Waypoint wpt) {
+		edit(group, index, false, wpt);
+	}
+
+	/**
+	 * log an edit in the group's tree, or drop the tree if it can't be logged
+	 */
+	private void edit(WaypointGroup group, int index, boolean insert, Waypoint wpt) {
+		GroupTree tree = trees.get(group);
+		if (tree != null && tree.edit(index, insert, wpt) == false) {
+			trees.remove(group);
+		}
+	}
+
+	/**
+	 * remove all files from the index
+	 */
+	public synchronized void clear() {
+		files.clear();
+		trees.clear();
+	}
+
+	/**
+	 * Find the point closest to the given location
+	 *
+	 * @param lat
+	 * @param lon
+	 * @param maxDistance maximum distance in world units
+	 * @param filter groups to search, {@link null} for all
+	 * @return closest point or {@link null} if there is no point within maxDistance
+	 */
+	public synchronized Hit nearest(double lat, double lon, double maxDistance, Filter filter) {
+		double x = lonToX(lon);
+		double y = latToY(lat);
+		double maxDistanceSq = maxDistance * maxDistance;
+
+		PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+		for (WaypointGroup group : getGroups(filter)) {
+			if (group.getNumPts() == 0) {
+				continue;
+			}
+			GroupTree tree = trees.get(group);
+			if (tree != null && tree.isCurrent()) {
+				addTree(queue, tree, x, y, maxDistanceSq);
+			} else {
+				// build tree only if the group is close enough to be searched
+				double dx = Math.max(0, Math.max(lonToX(group.getMinLon()) - x, x - lonToX(group.getMaxLon())));
+				double dy = Math.max(0, Math.max(latToY(group.getMaxLat()) - y, y - latToY(group.getMinLat())));
+				add(queue, dx * dx + dy * dy, group, null, 0, 0, maxDistanceSq);
+			}
+		}
+
+		while (queue.isEmpty() == false) {
+			Candidate candidate = queue.poll();
+			if (candidate.tree == null) {
+				addTree(queue, getTree(candidate.group), x, y, maxDistanceSq);
+			} else if (candidate.level == -1) {
+				return new Hit(candidate.group, candidate.node, Math.sqrt(candidate.distanceSq));
+			} else {
+				GroupTree tree = candidate.tree;
+				int end = tree.getEnd(candidate.level, candidate.node);
+				for (int e = candidate.node * NODE_SIZE; e < end; e++) {
+					if (candidate.level == 0) {
+						int i = tree.translate(tree.order[e], 0);
+						if (i == -1) {
+							continue;
+						}
+						double dx = lonToX(tree.getLon(i)) - x;
+						double dy = latToY(tree.getLat(i)) - y;
+						add(queue, dx * dx + dy * dy, tree.group, tree, -1, i, maxDistanceSq);
+					} else {
+						add(queue, tree.distanceSq(candidate.level - 1, e, x, y), tree.group, tree, candidate.level - 1, e, maxDistanceSq);
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find all points within the given bounding box
+	 *
+	 * @param minLat
+	 * @param minLon
+	 * @param maxLat
+	 * @param maxLon
+	 * @param filter groups to search, {@link null} for all
+	 * @return points found, ordered by file, group and index within group
+	 */
+	public synchronized List<Hit> query(double minLat, double minLon, double maxLat, double maxLon, Filter filter) {
+		double minX = lonToX(minLon);
+		double maxX = lonToX(maxLon);
+		double minY = latToY(maxLat);
+		double maxY = latToY(minLat);
+
+		List<Hit> hits = new ArrayList<Hit>();
+		List<Integer> indices = new ArrayList<Integer>();
+		for (WaypointGroup group : getGroups(filter)) {
+			if (group.getNumPts() == 0
+				|| group.getMinLat() > maxLat || group.getMaxLat() < minLat
+				|| group.getMinLon() > maxLon || group.getMaxLon() < minLon) {
+				continue;
+			}
+			GroupTree tree = getTree(group);
+			indices.clear();
+			tree.query(minX, minY, maxX, maxY, indices);
+			Collections.sort(indices);
+			for (int i : indices) {
+				hits.add(new Hit(group, i, 0));
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * @param pixels distance on the map
+	 * @param tileSize
+	 * @param zoom
+	 * @return the given distance in world units
+	 */
+	public static double toWorldDistance(int pixels, int tileSize, int zoom) {
+		return pixels / ((double) tileSize * (1L << zoom));
+	}
+
+	/**
+	 * get all indexed groups accepted by the filter, in order of files
+	 */
+	private List<WaypointGroup> getGroups(Filter filter) {
+		List<WaypointGroup> groups = new ArrayList<WaypointGroup>();
+		for (List<WaypointGroup> fileGroups : files.values()) {
+			for (WaypointGroup group : fileGroups) {
+				if (filter == null || filter.accept(group)) {
+					groups.add(group);
+				}
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * get the tree of the given group, (re)building it if required
+	 */
+	private GroupTree getTree(WaypointGroup group) {
+		GroupTree tree = trees.get(group);
+		if (tree == null || tree.isCurrent() == false) {
+			tree = new GroupTree(group);
+			trees.put(group, tree);
+		}
+		return tree;
+	}
+
+	/**
+	 * add the root of the given tree and the points inserted since it has been built
+	 */
+	private void addTree(PriorityQueue<Candidate> queue, GroupTree tree, double x, double y, double maxDistanceSq) {
+		add(queue, tree.distanceSq(tree.getRootLevel(), 0, x, y), tree.group, tree, tree.getRootLevel(), 0, maxDistanceSq);
+		for (int i : tree.getInserted()) {
+			double dx = lonToX(tree.getLon(i)) - x;
+			double dy = latToY(tree.getLat(i)) - y;
+			add(queue, dx * dx + dy * dy, tree.group, tree, -1, i, maxDistanceSq);
+		}
+	}
+
+	private void add(PriorityQueue<Candidate> queue, double distanceSq, WaypointGroup group, GroupTree tree, int level, int node, double maxDistanceSq) {
+		if (distanceSq <= maxDistanceSq) {
+			queue.add(new Candidate(distanceSq, group, tree, level, node));
+		}
+	}
+
+	/**
+	 * order independent hash of a point, summed up to a checksum
+	 */
+	private static long hash(double lat, double lon) {
+		long h = Double.doubleToLongBits(lat) * 0x9E3779B97F4A7C15L + Double.doubleToLongBits(lon);
+		h ^= (h >>> 31);
+		return h * 0xBF58476D1CE4E5B9L;
+	}
+
+	/*
+	 * normalized Mercator projection
+	 */
+
+	private static double lonToX(double lon) {
+		return (lon + 180.0) / 360.0;
+	}
+
+	private static double latToY(double lat) {
+		double clamped = Math.max(-85.05112877980659, Math.min(85.05112877980659, lat));
+		double sin = Math.sin(Math.toRadians(clamped));
+		return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+	}
+
+	/**
+	 * position of the given cell on a Hilbert curve of order {@link #HILBERT_ORDER}
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	private static long hilbert(int x, int y) {
+		int n = 1 << HILBERT_ORDER;
+		long d = 0;
+		for (int s = n / 2; s > 0; s >>= 1) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			// rotate quadrant
+			if (ry == 0) {
+				if (rx == 1) {
+					x = n - 1 - x;
+					y = n - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+}
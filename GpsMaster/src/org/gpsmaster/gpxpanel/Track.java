@@ -104,9 +104,22 @@ public class Track extends GPXObjectCommon implements Comparable<Track> {
      */
     @Override
     public void updateAllProperties() {
+        for (WaypointGroup trackseg : tracksegs) {
+            trackseg.updateAllProperties();
+        }
+        updateFromTracksegs();
+    }
+
+    /**
+     * update the properties of this track from its tracksegs,
+     * without recomputing the tracksegs
+     */
+    public void updateFromTracksegs() {
     	lengthMeters = 0;
         maxSpeedMps = 0;
         duration = 0;
+        exStop = 0;
+        minMaxExtensions.clear();
         eleMinMeters = Integer.MAX_VALUE;
         eleMaxMeters = Integer.MIN_VALUE;
         riseTime = 0;
@@ -119,8 +132,6 @@ public class Track extends GPXObjectCommon implements Comparable<Track> {
         maxLon = -180;
 
         for (WaypointGroup trackseg : tracksegs) {
-            trackseg.updateAllProperties();
-
             duration += trackseg.getDuration();
             exStop += trackseg.getDurationExStop();
             maxSpeedMps = Math.max(maxSpeedMps, trackseg.getMaxSpeedMps());
@@ -145,7 +156,7 @@ public class Track extends GPXObjectCommon implements Comparable<Track> {
                         meta.name = key;
                         minMaxExtensions.put(key, meta);
                     }
-                    meta.values.addAll(segMeta.values);
+                    meta.merge(segMeta);
                 }
             }
         }
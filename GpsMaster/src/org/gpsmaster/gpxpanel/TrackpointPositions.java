@@ -0,0 +1,254 @@
+package org.gpsmaster.gpxpanel;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the trackpoints of a list of {@link WaypointGroup}s to their
+ * overall position within all groups ("total index") and vice versa.
+ *
+ * Offsets of the groups are kept as prefix sums, so the group containing
+ * a total index is found by binary search. Trackpoints held in a
+ * {@link ColumnarWaypointList} know their position within their list.
+ * For other trackpoints, an identity based map of positions is built on
+ * first use.
+ *
+ * On each lookup, the number of trackpoints of each group is compared to
+ * the mapping (which is cheap, since there are few groups), and positions
+ * found are verified against the groups. The mapping is rebuilt if it turns
+ * out to be outdated. {@link #invalidate()} should still be called after
+ * trackpoints have been added or removed, to catch modifications not
+ * changing the number of trackpoints of a group.
+ *
+ * @author rfu
+ *
+ */
+public class TrackpointPositions {
+
+	private final List<WaypointGroup> groups;
+
+	private int[] offsets = null; // offsets[i]: total index of the first point of group i, offsets[size]: total
+	private Map<WaypointGroup, Integer> groupIndex = null;
+	private Map<List<Waypoint>, Integer> lists = null; // waypoint list -> group
+	private Map<Waypoint, Integer> positions = null; // total index of trackpoints not held in columnar lists
+
+	/**
+	 * Constructor
+	 * @param groups the groups to map. the list is not copied.
+	 */
+	public TrackpointPositions(List<WaypointGroup> groups) {
+		this.groups = groups;
+	}
+
+	/**
+	 * trackpoints have been added to or removed from the groups
+	 */
+	public void invalidate() {
+		offsets = null;
+		groupIndex = null;
+		lists = null;
+		positions = null;
+	}
+
+	/**
+	 * @return number of trackpoints in all groups
+	 */
+	public int size() {
+		return getOffsets()[groups.size()];
+	}
+
+	/**
+	 * @param wpt
+	 * @return position of the given trackpoint within all groups, or -1 if
+	 * none of the groups contains it
+	 */
+	public int getTotalIndexOf(Waypoint wpt) {
+		// offsets of preceding groups are used without verification
+		if (isCurrent() == false) {
+			invalidate();
+		}
+		return find(wpt);
+	}
+
+	/**
+	 * @param wpt
+	 * @return the group containing the given trackpoint or {@link null}
+	 */
+	public WaypointGroup getGroupOf(Waypoint wpt) {
+		int total = getTotalIndexOf(wpt);
+		if (total == -1) {
+			return null;
+		}
+		return groups.get(getGroupIndex(total));
+	}
+
+	/**
+	 * @param totalIndex position within all groups
+	 * @return the group containing the trackpoint at the given position,
+	 * or {@link null} if the position is out of bounds
+	 */
+	public WaypointGroup getGroup(int totalIndex) {
+		if (isCurrent() == false) {
+			invalidate();
+		}
+		if (totalIndex < 0 || totalIndex >= size()) {
+			return null;
+		}
+		return groups.get(getGroupIndex(totalIndex));
+	}
+
+	/**
+	 * @param totalIndex position within all groups
+	 * @return the trackpoint at the given position,
+	 * or {@link null} if the position is out of bounds
+	 */
+	public Waypoint getTrackpoint(int totalIndex) {
+		WaypointGroup group = getGroup(totalIndex);
+		if (group == null) {
+			return null;
+		}
+		int idx = totalIndex - offsets[getGroupIndex(totalIndex)];
+		if (idx >= group.getNumPts()) {
+			// group has been modified without notice
+			invalidate();
+			return getTrackpoint(totalIndex);
+		}
+		return group.getWaypoints().get(idx);
+	}
+
+	/**
+	 * @param group one of the mapped groups
+	 * @return total index of the group's first trackpoint or -1 if the group is not mapped
+	 */
+	public int getOffset(WaypointGroup group) {
+		if (groupIndex == null) {
+			groupIndex = new IdentityHashMap<WaypointGroup, Integer>();
+			for (int i = groups.size() - 1; i >= 0; i--) {
+				groupIndex.put(groups.get(i), i);
+			}
+		}
+		Integer idx = groupIndex.get(group);
+		if (idx == null) {
+			return -1;
+		}
+		return getOffsets()[idx];
+	}
+
+	/**
+	 * find the position of the given trackpoint using the current mapping
+	 * @param wpt
+	 * @return total index or -1
+	 */
+	private int find(Waypoint wpt) {
+		if (wpt == null) {
+			return -1;
+		}
+		ColumnarWaypointList store = ColumnarWaypointList.getStore(wpt);
+		if (store != null) {
+			Integer group = getLists().get(store);
+			if (group == null) {
+				lists = null; // storage of a group may have been changed
+				group = getLists().get(store);
+				if (group == null) {
+					return -1;
+				}
+			}
+			int idx = store.indexOf(wpt);
+			return (idx == -1) ? -1 : getOffsets()[group] + idx;
+		}
+
+		Integer total = getPositions().get(wpt);
+		if (total == null) {
+			return -1;
+		}
+		int group = getGroupIndex(total);
+		List<Waypoint> waypoints = groups.get(group).getWaypoints();
+		int idx = total - offsets[group];
+		if (idx < waypoints.size() && waypoints.get(idx) == wpt) {
+			return total;
+		}
+		// points have been inserted or removed
+		invalidate();
+		total = getPositions().get(wpt);
+		return (total == null) ? -1 : total;
+	}
+
+	/**
+	 * @param totalIndex position within all groups, has to be within bounds
+	 * @return index of the group containing the given position
+	 */
+	private int getGroupIndex(int totalIndex) {
+		int[] offsets = getOffsets();
+		// last group starting at or before the position, skipping empty groups
+		int low = 0;
+		int high = groups.size() - 1;
+		while (low < high) {
+			int mid = (low + high + 1) / 2;
+			if (offsets[mid] <= totalIndex) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * check if the number of groups and their trackpoints is unchanged
+	 */
+	private boolean isCurrent() {
+		if (offsets == null) {
+			return true;
+		}
+		if (offsets.length != groups.size() + 1) {
+			return false;
+		}
+		for (int i = 0; i < groups.size(); i++) {
+			if (offsets[i + 1] - offsets[i] != groups.get(i).getNumPts()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int[] getOffsets() {
+		if (offsets == null) {
+			offsets = new int[groups.size() + 1];
+			for (int i = 0; i < groups.size(); i++) {
+				offsets[i + 1] = offsets[i] + groups.get(i).getNumPts();
+			}
+		}
+		return offsets;
+	}
+
+	private Map<List<Waypoint>, Integer> getLists() {
+		if (lists == null) {
+			lists = new IdentityHashMap<List<Waypoint>, Integer>();
+			for (int i = 0; i < groups.size(); i++) {
+				lists.put(groups.get(i).getWaypoints(), i);
+			}
+		}
+		return lists;
+	}
+
+	private Map<Waypoint, Integer> getPositions() {
+		if (positions == null) {
+			positions = new IdentityHashMap<Waypoint, Integer>();
+			int[] offsets = getOffsets();
+			for (int i = 0; i < groups.size(); i++) {
+				List<Waypoint> waypoints = groups.get(i).getWaypoints();
+				if (waypoints instanceof ColumnarWaypointList) {
+					continue;
+				}
+				for (int idx = 0; idx < waypoints.size(); idx++) {
+					Waypoint wpt = waypoints.get(idx);
+					if (positions.containsKey(wpt) == false) { // keep first occurrence
+						positions.put(wpt, offsets[i] + idx);
+					}
+				}
+			}
+		}
+		return positions;
+	}
+}
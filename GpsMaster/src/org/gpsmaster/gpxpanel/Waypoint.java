@@ -67,24 +67,63 @@ public class Waypoint implements Comparable<Waypoint> {
      * @param source {@link Waypoint} to be cloned
      */
     public Waypoint(Waypoint source) {
-    	this.lat = source.lat;
-    	this.lon = source.lon;
-    	this.ele = source.ele;
-    	this.hdop = source.hdop;
-    	this.vdop = source.vdop;
-    	this.pdop = source.pdop;
-    	this.sat = source.sat;
-    	this.time = source.time;
-    	this.name = source.name;
-    	this.desc = source.desc;
-    	this.type = source.type;
-    	// TODO all others also
-
-    	if (source.extension != null) {
-    		extension = new GPXExtension(source.extension);
+    	this.lat = source.getLat();
+    	this.lon = source.getLon();
+    	this.ele = source.getEle();
+    	this.time = source.getTime();
+    	copyDetails(source);
+
+    	if (source.hasExtension()) {
+    		extension = new GPXExtension(source.getExtension());
     	}
     }
 
+    /**
+     * copy the rarely used fields (all except coordinates, elevation,
+     * time and extension) from the given {@link Waypoint}
+     * @param source
+     */
+    protected void copyDetails(Waypoint source) {
+    	if (source.hasDetails()) {
+	    	this.hdop = source.getHdop();
+	    	this.vdop = source.getVdop();
+	    	this.pdop = source.getPdop();
+	    	this.magvar = source.getMagvar();
+	    	this.geoidheight = source.getGeoidheight();
+	    	this.ageofdgpsdata = source.getAgeofdgpsdata();
+	    	this.sat = source.getSat();
+	    	this.dgpsid = source.getDgpsid();
+	    	this.name = source.getName();
+	    	this.desc = source.getDesc();
+	    	this.type = source.getType();
+	    	this.cmt = source.getCmt();
+	    	this.sym = source.getSym();
+	    	this.src = source.getSrc();
+	    	this.fix = source.getFix();
+	    	this.segmentColor = source.getSegmentColor();
+	    	if (source.getLink().size() > 0) {
+	    		this.links = new ArrayList<LinkType>(source.getLink());
+	    	}
+    	}
+    }
+
+    /**
+     *
+     * @return {@link true} if any of the rarely used fields
+     * (all except coordinates, elevation, time and extension) is set
+     */
+    protected boolean hasDetails() {
+    	return (hdop != 0) || (vdop != 0) || (pdop != 0) || (magvar != 0)
+    			|| (geoidheight != 0) || (ageofdgpsdata != 0) || (sat != 0) || (dgpsid != 0)
+    			|| !isEmpty(name) || !isEmpty(desc) || !isEmpty(type) || !isEmpty(cmt)
+    			|| !isEmpty(sym) || !isEmpty(src) || !isEmpty(fix)
+    			|| (segmentColor != null) || ((links != null) && (links.size() > 0));
+    }
+
+    private static boolean isEmpty(String value) {
+    	return (value == null) || value.isEmpty();
+    }
+
     public double getLat() {
         return lat;
     }
@@ -428,6 +467,14 @@ public class Waypoint implements Comparable<Waypoint> {
     	this.extension = extension;
     }
 
+    /**
+     *
+     * @return {@link true} if an extension has been set or created for this waypoint
+     */
+    public boolean hasExtension() {
+    	return (extension != null);
+    }
+
     /**
      * calculate distance from this waypoint
      * to @param wpt
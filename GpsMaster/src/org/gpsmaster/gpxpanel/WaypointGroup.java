@@ -34,11 +34,8 @@ public class WaypointGroup extends GPXObjectND implements Comparable<WaypointGro
 
     private WptGrpType wptGrpType;
     private List<Waypoint> waypoints = new ArrayList<Waypoint>();
-
-    // every distance below this value is considered a stop
-    // (for ex.stop calculation)
-
-    private final double exMinDist = 0.2f;
+    private final WaypointStatistics statistics = new WaypointStatistics();
+    private DerivedColumns columns = null;
 
     /**
      * Default constructor.
@@ -74,6 +71,7 @@ public class WaypointGroup extends GPXObjectND implements Comparable<WaypointGro
     	for (Waypoint wpt : source.waypoints) {
     		waypoints.add(new Waypoint(wpt));
     	}
+    	setColumnar(source.isColumnar());
     }
 
     public WptGrpType getWptGrpType() {
@@ -86,223 +84,171 @@ public class WaypointGroup extends GPXObjectND implements Comparable<WaypointGro
 
     public void setWaypoints(List<Waypoint> waypoints) {
         this.waypoints = waypoints;
+        statistics.invalidate();
+        invalidateColumns();
     }
 
     /**
-     * Adds a waypoint to the group.
+     *
+     * @return {@link true} if the waypoints of this group are held in a {@link ColumnarWaypointList}
      */
-    public void addWaypoint(Waypoint wpt) {
-        waypoints.add(wpt);
+    public boolean isColumnar() {
+    	return (waypoints instanceof ColumnarWaypointList);
     }
 
     /**
-     * Removes a waypoint from the group.
+     * Switch between columnar (memory efficient) and object based storage of the waypoints.
+     * Only supported for tracksegs and routes, ignored for groups of waypoints (markers).
+     * ATTENTION - the {@link Waypoint} objects returned by getWaypoints() before
+     * the switch do no longer belong to this group afterwards.
+     * @param columnar
      */
-    public void removeWaypoint(Waypoint wpt) {
-        waypoints.remove(wpt);
-        updateBounds();
-    }
-
-    public int getNumPts() {
-        return waypoints.size();
+    public void setColumnar(boolean columnar) {
+    	if (wptGrpType == WptGrpType.WAYPOINTS || columnar == isColumnar()) {
+    		return;
+    	}
+    	if (columnar) {
+    		waypoints = new ColumnarWaypointList(waypoints);
+    	} else {
+    		List<Waypoint> inflated = new ArrayList<Waypoint>(waypoints.size());
+    		((ColumnarWaypointList) waypoints).inflate(inflated);
+    		waypoints = inflated;
+    	}
     }
 
-    public Waypoint getStart() {
-        if (waypoints.size() > 0) {
-            return waypoints.get(0);
-        } else {
-            return null;
+    /**
+     * Adds a waypoint to the group.
+     * Properties are updated incrementally if they have been computed before.
+     */
+    public void addWaypoint(Waypoint wpt) {
+        waypoints.add(wpt);
+        appendColumns(wpt);
+        if (statistics.isValid()) {
+            statistics.append(wpt);
+            statistics.apply(this);
         }
     }
 
-    public Waypoint getEnd() {
-        if (waypoints.size() > 0) {
-            return waypoints.get(waypoints.size() - 1);
+    /**
+     * Inserts a waypoint at the given position.
+     * Properties are updated incrementally if they have been computed before.
+     * @param index
+     * @param wpt
+     */
+    public void insertWaypoint(int index, Waypoint wpt) {
+        waypoints.add(index, wpt);
+        invalidateColumns();
+        if (statistics.isValid()) {
+            statistics.insert(waypoints, wpt, index);
+            statistics.apply(this);
         } else {
-            return null;
+            updateAllProperties();
         }
     }
 
-
-
-    /* (non-Javadoc)
-     * @see org.gpsmaster.gpxpanel.GPXObject#updateAllProperties()
+    /**
+     * Update the properties of the parent {@link Track} or {@link Route}
+     * and its {@link GPXFile} after this group has been modified,
+     * without recomputing the other groups.
      */
-    @Override
-    public void updateAllProperties() {
-        if (waypoints.size() > 0) {
-            updateDuration();
-            updateLength();
-            updateEx();
-            updateMaxSpeed();
-            updateEleProps();
-            updateBounds();
-            updateStartEnd();
-            updateExtensions();
-            extToColor();
+    public void updateParentProperties() {
+        if (parent instanceof Track) {
+            ((Track) parent).updateFromTracksegs();
+        } else if (parent instanceof Route) {
+            ((Route) parent).updateFromPath();
         }
-    }
-
-    private void updateExtensions() {
-        for (Waypoint wpt : waypoints) {
-            updateExtension(wpt.getExtension());
+        GPXObject file = parent;
+        if ((file != null) && !(file instanceof GPXFile)) {
+            file = file.getParent();
+        }
+        if (file instanceof GPXFile) {
+            ((GPXFile) file).updateFromChildren();
         }
     }
 
-    private void updateExtension(final GPXExtension extension) {
-        if (null != extension) {
-            for (GPXExtension sub : extension.getExtensions()) {
-                if (null != sub.getValue() && !sub.getValue().trim().isEmpty()) {
-                    final String[] split = sub.getKey().split(":");
-                    final String key = split[split.length - 1];
-                    try {
-                        double parseDouble = Double.parseDouble(sub.getValue());
-                        ExtensionMeta meta = minMaxExtensions.get(key);
-                        if (null == meta) {
-                            meta = new ExtensionMeta();
-                            meta.name = key;
-                            minMaxExtensions.put(key, meta);
-                        }
-                        meta.values.add(parseDouble);
-                    } catch (final NumberFormatException nfe) {
-                        System.err.println("GPXExtension is not a number! " + sub.getKey() + " | " + sub.getValue());
-                    }
+    /**
+     * Removes a waypoint from the group.
+     * Properties are updated incrementally if they have been computed before.
+     */
+    public void removeWaypoint(Waypoint wpt) {
+        int idx = waypoints.indexOf(wpt);
+        if (idx > -1) {
+            waypoints.remove(idx);
+            invalidateColumns();
+            if (statistics.isValid()) {
+                statistics.remove(waypoints, wpt, idx);
+                if (waypoints.size() > 0) {
+                    statistics.apply(this);
                 }
-                updateExtension(sub);
+            } else {
+                updateAllProperties();
             }
         }
     }
 
-    private void updateDuration() {
-    	duration = getStart().getDuration(getEnd());
+    public int getNumPts() {
+        return waypoints.size();
     }
 
-    // TODO merge functionality which iterates through all waypoints
-    // 		into a single method (for performance reasons)
-
     /**
-     * update all ex-stop related values
+     * Get the values derived from the waypoints of this group
+     * (cumulative distance, elapsed time, speed etc.).
+     * Computed on first use and whenever the waypoints have been modified.
+     * @return
      */
-    private void updateEx()
-    {
-    	exStop = 0;  // time ex stop
-        Waypoint curr = getStart();
-        Waypoint prev;
-        for (Waypoint rtept : waypoints) {
-            prev = curr;
-            curr = rtept;
-            double distance = curr.getDistance(prev);
-           	if ((distance > exMinDist) && (curr.getTime() != null)) {
-           		exStop += curr.getDuration(prev);
-           	}
+    public synchronized DerivedColumns getDerivedColumns() {
+        if ((columns == null) || !columns.isCurrent(waypoints)) {
+            columns = new DerivedColumns(waypoints);
         }
+        return columns;
     }
 
     /**
-     *
+     * discard derived values after waypoints have been modified
      */
-    private void updateLength() {
-
-        lengthMeters = 0;
-        Waypoint curr = getStart();
-        Waypoint prev;
-        for (Waypoint rtept : waypoints) {
-            prev = curr;
-            curr = rtept;
-            lengthMeters += curr.getDistance(prev);
-        }
+    private synchronized void invalidateColumns() {
+        columns = null;
     }
 
-    private void updateMaxSpeed() {
-        maxSpeedMps = 0;
-        double length;
-        long seconds;
-                                 // TODO replace this cheap smoothing method below with a Kalman filter?
-        int smoothingFactor = 5; // find max avg speed over this many segments to smooth unreliable data and outliers
-        if (getNumPts() <= smoothingFactor) {
-            return;
-        }
-        Waypoint segStart = getStart();
-        Waypoint segEnd = waypoints.get(smoothingFactor);
-        for (int i = smoothingFactor; i < getNumPts(); i++)  {
-            segEnd = waypoints.get(i);
-            segStart = waypoints.get(i - smoothingFactor);
-
-            length = 0;
-            for (int j = 0; j < smoothingFactor; j++) {
-                Waypoint w1 = waypoints.get(i - j);
-                Waypoint w2 = waypoints.get(i - j - 1);
-                length += w1.getDistance(w2); // meters
-            }
-
-            Date startTime = segStart.getTime();
-            Date endTime = segEnd.getTime();
-            if (startTime != null && endTime != null) {
-                seconds = (long) ((endTime.getTime() - startTime.getTime()) / 1000D);
-                double candidateMax = length / seconds;
-                if (!Double.isNaN(candidateMax) && !Double.isInfinite(candidateMax)) {
-                    maxSpeedMps = Math.max(maxSpeedMps, length / seconds);
-                }
-            }
+    /**
+     * update derived values after a waypoint has been appended
+     * @param wpt
+     */
+    private synchronized void appendColumns(Waypoint wpt) {
+        if (columns != null) {
+            columns.append(wpt);
         }
     }
 
-    public void updateEleProps() {
-        eleStartMeters = getStart().getEle();
-        eleEndMeters = getEnd().getEle();
-        eleMinMeters = Integer.MAX_VALUE;
-        eleMaxMeters = Integer.MIN_VALUE;
-        grossRiseMeters = 0;
-        grossFallMeters = 0;
-        riseTime = 0;
-        fallTime = 0;
-        Waypoint curr = getStart();
-        Waypoint prev;
-
-        for (Waypoint rtept : waypoints) {
-            prev = curr;
-            curr = rtept;
-            if (curr.getEle() > prev.getEle()) {
-                grossRiseMeters += (curr.getEle() - prev.getEle());
-                if (curr.getTime() != null && prev.getTime() != null) {
-                    riseTime += curr.getTime().getTime() - prev.getTime().getTime();
-                }
-            } else if (curr.getEle() < prev.getEle()) {
-                grossFallMeters += (prev.getEle() - curr.getEle());
-                if (curr.getTime() != null && prev.getTime() != null) {
-                    fallTime += curr.getTime().getTime() - prev.getTime().getTime();
-                }
-            }
-            eleMinMeters = Math.min(eleMinMeters, curr.getEle());
-            eleMaxMeters = Math.max(eleMaxMeters, curr.getEle());
+    public Waypoint getStart() {
+        if (waypoints.size() > 0) {
+            return waypoints.get(0);
+        } else {
+            return null;
         }
-        fallTime = fallTime / 1000; // in seconds
-        riseTime = riseTime / 1000; // in seconds
     }
 
-    private void updateBounds() {
-        minLat =  86;
-        maxLat = -86;
-        minLon =  180;
-        maxLon = -180;
-        for (Waypoint wpt : waypoints) {
-            minLat = Math.min(minLat, wpt.getLat());
-            minLon = Math.min(minLon, wpt.getLon());
-            maxLat = Math.max(maxLat, wpt.getLat());
-            maxLon = Math.max(maxLon, wpt.getLon());
+    public Waypoint getEnd() {
+        if (waypoints.size() > 0) {
+            return waypoints.get(waypoints.size() - 1);
+        } else {
+            return null;
         }
     }
 
-    /**
-     * update start and end time
+
+
+    /* (non-Javadoc)
+     * @see org.gpsmaster.gpxpanel.GPXObject#updateAllProperties()
      */
-    private void updateStartEnd() {
-    	startTime = waypoints.get(0).getTime();
-    	if (waypoints.size() > 1) {
-    		endTime = waypoints.get(waypoints.size()-1).getTime();
-    	} else {
-    		endTime = startTime;
-    	}
+    @Override
+    public void updateAllProperties() {
+        invalidateColumns();
+        if (waypoints.size() > 0) {
+            statistics.compute(waypoints);
+            statistics.apply(this);
+            extToColor();
+        }
     }
 
     /**
@@ -0,0 +1,501 @@
+package org.gpsmaster.gpxpanel;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.gpsmaster.gpxpanel.GPXObject.ExtensionMeta;
+import org.openstreetmap.gui.jmapviewer.OsmMercator;
+
+/**
+ * Accumulator computing all properties of a {@link WaypointGroup}
+ * (duration, length, max. speed, elevation, bounds and extension values)
+ * in a single pass over its waypoints. Every segment distance is computed
+ * only once.
+ *
+ * Once computed, the properties are kept up to date when waypoints are
+ * appended, inserted or removed, without walking all waypoints again. Removing a
+ * waypoint which determines a minimum or maximum value causes a full
+ * recomputation.
+ *
+ * @author rfu
+ *
+ */
+class WaypointStatistics {
+
+	// number of segments to average max speed over,
+	// to smooth unreliable data and outliers
+	private static final int SMOOTHING = 5;
+	private static final long NO_TIME = Long.MIN_VALUE;
+
+	// every distance below this value is considered a stop
+	// (for ex.stop calculation)
+	private final double exMinDist = 0.2f;
+
+	private boolean valid = false;
+	private int count = 0;
+
+	private double length;
+	private long exStopMillis;
+	private double maxSpeed;
+	private int maxSpeedIdx; // index of the last waypoint of the max. speed window
+	private double eleMin;
+	private double eleMax;
+	private double grossRise;
+	private double grossFall;
+	private long riseMillis;
+	private long fallMillis;
+	private double minLat;
+	private double maxLat;
+	private double minLon;
+	private double maxLon;
+
+	private double startEle;
+	private long startTime;
+	private double lastLat;
+	private double lastLon;
+	private double lastEle;
+	private long lastTime;
+
+	// distances of the last SMOOTHING segments and times of the last SMOOTHING+1 waypoints,
+	// indexed by waypoint number modulo buffer size
+	private double[] windowDist = new double[SMOOTHING];
+	private long[] windowTime = new long[SMOOTHING + 1];
+
+	private HashMap<String, ExtensionMeta> extensions = new HashMap<String, ExtensionMeta>();
+	private HashMap<String, String> shortKeys = new HashMap<String, String>();
+	private Set<String> invalidKeys = new HashSet<String>();
+
+	/**
+	 *
+	 * @return {@link true} if the statistics have been computed and are up to date
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	/**
+	 * mark the statistics as outdated. subsequent incremental
+	 * updates are ignored until the next call of compute().
+	 */
+	public void invalidate() {
+		valid = false;
+	}
+
+	/**
+	 * compute all properties in a single pass
+	 * @param waypoints
+	 */
+	public void compute(List<Waypoint> waypoints) {
+		reset();
+		if (waypoints instanceof ColumnarWaypointList) {
+			ColumnarWaypointList columns = (ColumnarWaypointList) waypoints;
+			for (int i = 0; i < columns.size(); i++) {
+				add(columns.getLat(i), columns.getLon(i), columns.getEle(i),
+					columns.hasTime(i) ? columns.getTimeMillis(i) : NO_TIME);
+				addExtension(columns.getExtension(i));
+			}
+		} else {
+			for (Waypoint wpt : waypoints) {
+				add(wpt);
+			}
+		}
+		valid = true;
+	}
+
+	/**
+	 * update the properties after the given waypoint has been appended
+	 * @param wpt
+	 */
+	public void append(Waypoint wpt) {
+		if (valid) {
+			add(wpt);
+		}
+	}
+
+	/**
+	 * update the properties after a waypoint has been inserted at the given index
+	 * @param waypoints list of waypoints, after insertion
+	 * @param wpt the inserted waypoint
+	 * @param index index of the inserted waypoint
+	 */
+	public void insert(List<Waypoint> waypoints, Waypoint wpt, int index) {
+		if (!valid) {
+			return;
+		}
+		int size = waypoints.size();
+		if (index == size - 1) {
+			append(wpt);
+			return;
+		}
+		// start values and the max speed window spanning
+		// the split segment cannot be derived from the current state
+		if ((index == 0) || (size <= SMOOTHING + 2)
+			|| ((maxSpeedIdx >= index) && (maxSpeedIdx < index + SMOOTHING))) {
+			compute(waypoints);
+			return;
+		}
+
+		Waypoint prev = waypoints.get(index - 1);
+		Waypoint next = waypoints.get(index + 1);
+		removeSegment(prev, next);
+		addSegment(prev, wpt, wpt.getDistance(prev));
+		addSegment(wpt, next, next.getDistance(wpt));
+		count++;
+
+		eleMin = Math.min(eleMin, wpt.getEle());
+		eleMax = Math.max(eleMax, wpt.getEle());
+		minLat = Math.min(minLat, wpt.getLat());
+		minLon = Math.min(minLon, wpt.getLon());
+		maxLat = Math.max(maxLat, wpt.getLat());
+		maxLon = Math.max(maxLon, wpt.getLon());
+		addExtension(wpt.hasExtension() ? wpt.getExtension() : null);
+
+		rebuildWindow(waypoints);
+
+		// windows ending after the inserted waypoint have shifted
+		if (maxSpeedIdx >= index + SMOOTHING) {
+			maxSpeedIdx++;
+		}
+		for (int i = Math.max(index, SMOOTHING); i <= Math.min(index + SMOOTHING, size - 1); i++) {
+			double windowLength = 0;
+			for (int j = 0; j < SMOOTHING; j++) {
+				windowLength += waypoints.get(i - j).getDistance(waypoints.get(i - j - 1));
+			}
+			addSpeedWindow(windowLength, getMillis(waypoints.get(i - SMOOTHING)), getMillis(waypoints.get(i)), i);
+		}
+	}
+
+	/**
+	 * update the properties after the waypoint at the given index has been removed
+	 * @param waypoints list of waypoints, after removal
+	 * @param wpt the removed waypoint
+	 * @param index former index of the removed waypoint
+	 */
+	public void remove(List<Waypoint> waypoints, Waypoint wpt, int index) {
+		if (!valid) {
+			return;
+		}
+		int size = waypoints.size();
+		// start & end values, min/max values and max speed window
+		// cannot be derived from the current state
+		if ((index == 0) || (index >= size) || (size <= SMOOTHING + 1)
+			|| (wpt.getLat() <= minLat) || (wpt.getLat() >= maxLat)
+			|| (wpt.getLon() <= minLon) || (wpt.getLon() >= maxLon)
+			|| (wpt.getEle() <= eleMin) || (wpt.getEle() >= eleMax)
+			|| ((maxSpeedIdx >= index) && (maxSpeedIdx <= index + SMOOTHING))) {
+			compute(waypoints);
+			return;
+		}
+
+		// extension statistics can't be updated if an extreme value is removed
+		if (!removeExtension(wpt.hasExtension() ? wpt.getExtension() : null)) {
+			compute(waypoints);
+			return;
+		}
+
+		Waypoint prev = waypoints.get(index - 1);
+		Waypoint next = waypoints.get(index);
+		removeSegment(prev, wpt);
+		removeSegment(wpt, next);
+		addSegment(prev, next, next.getDistance(prev));
+		count--;
+
+		rebuildWindow(waypoints);
+
+		// windows ending after the removed waypoint have shifted
+		if (maxSpeedIdx > index + SMOOTHING) {
+			maxSpeedIdx--;
+		}
+		for (int i = Math.max(index, SMOOTHING); i < Math.min(index + SMOOTHING, size); i++) {
+			double windowLength = 0;
+			for (int j = 0; j < SMOOTHING; j++) {
+				windowLength += waypoints.get(i - j).getDistance(waypoints.get(i - j - 1));
+			}
+			addSpeedWindow(windowLength, getMillis(waypoints.get(i - SMOOTHING)), getMillis(waypoints.get(i)), i);
+		}
+	}
+
+	/**
+	 * copy computed values to the given {@link WaypointGroup}
+	 * @param group
+	 */
+	public void apply(WaypointGroup group) {
+		group.lengthMeters = length;
+		group.exStop = exStopMillis / 1000;
+		group.maxSpeedMps = maxSpeed;
+		group.eleStartMeters = startEle;
+		group.eleEndMeters = lastEle;
+		group.eleMinMeters = eleMin;
+		group.eleMaxMeters = eleMax;
+		group.grossRiseMeters = grossRise;
+		group.grossFallMeters = grossFall;
+		group.riseTime = riseMillis / 1000; // in seconds
+		group.fallTime = fallMillis / 1000; // in seconds
+		group.minLat = minLat;
+		group.maxLat = maxLat;
+		group.minLon = minLon;
+		group.maxLon = maxLon;
+		group.startTime = (startTime == NO_TIME) ? null : new Date(startTime);
+		group.endTime = (lastTime == NO_TIME) ? null : new Date(lastTime);
+		if ((startTime != NO_TIME) && (lastTime != NO_TIME)) {
+			group.duration = (lastTime - startTime) / 1000;
+		} else {
+			group.duration = 0;
+		}
+		group.minMaxExtensions.clear();
+		group.minMaxExtensions.putAll(extensions);
+	}
+
+	/**
+	 *
+	 */
+	private void reset() {
+		count = 0;
+		length = 0;
+		exStopMillis = 0;
+		maxSpeed = 0;
+		maxSpeedIdx = -1;
+		eleMin = Integer.MAX_VALUE;
+		eleMax = Integer.MIN_VALUE;
+		grossRise = 0;
+		grossFall = 0;
+		riseMillis = 0;
+		fallMillis = 0;
+		minLat =  86;
+		maxLat = -86;
+		minLon =  180;
+		maxLon = -180;
+		extensions = new HashMap<String, ExtensionMeta>();
+		invalidKeys.clear();
+	}
+
+	/**
+	 *
+	 * @param wpt
+	 */
+	private void add(Waypoint wpt) {
+		add(wpt.getLat(), wpt.getLon(), wpt.getEle(), getMillis(wpt));
+		addExtension(wpt.hasExtension() ? wpt.getExtension() : null);
+	}
+
+	/**
+	 * add a single waypoint to the statistics
+	 * @param lat
+	 * @param lon
+	 * @param ele
+	 * @param time
+	 */
+	private void add(double lat, double lon, double ele, long time) {
+		if (count == 0) {
+			startEle = ele;
+			startTime = time;
+		} else {
+			double distance = OsmMercator.MERCATOR_256.getDistance(lat, lon, lastLat, lastLon);
+			if (Double.isNaN(distance)) {
+				distance = 0;
+			}
+			addSegment(distance, lastEle, lastTime, ele, time);
+
+			windowDist[count % SMOOTHING] = distance;
+			if (count >= SMOOTHING) {
+				double windowLength = 0;
+				for (int j = 0; j < SMOOTHING; j++) {
+					windowLength += windowDist[(count - j) % SMOOTHING];
+				}
+				addSpeedWindow(windowLength, windowTime[(count + 1) % (SMOOTHING + 1)], time, count);
+			}
+		}
+		windowTime[count % (SMOOTHING + 1)] = time;
+
+		eleMin = Math.min(eleMin, ele);
+		eleMax = Math.max(eleMax, ele);
+		minLat = Math.min(minLat, lat);
+		minLon = Math.min(minLon, lon);
+		maxLat = Math.max(maxLat, lat);
+		maxLon = Math.max(maxLon, lon);
+
+		lastLat = lat;
+		lastLon = lon;
+		lastEle = ele;
+		lastTime = time;
+		count++;
+	}
+
+	/**
+	 * add length, rise/fall and stop time of a single segment
+	 */
+	private void addSegment(double distance, double prevEle, long prevTime, double ele, long time) {
+		length += distance;
+		boolean timed = (prevTime != NO_TIME) && (time != NO_TIME);
+		if ((distance > exMinDist) && timed) {
+			exStopMillis += time - prevTime;
+		}
+		if (ele > prevEle) {
+			grossRise += ele - prevEle;
+			if (timed) {
+				riseMillis += time - prevTime;
+			}
+		} else if (ele < prevEle) {
+			grossFall += prevEle - ele;
+			if (timed) {
+				fallMillis += time - prevTime;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param prev
+	 * @param wpt
+	 * @param distance
+	 */
+	private void addSegment(Waypoint prev, Waypoint wpt, double distance) {
+		addSegment(distance, prev.getEle(), getMillis(prev), wpt.getEle(), getMillis(wpt));
+	}
+
+	/**
+	 * subtract the contribution of the given segment
+	 * @param prev
+	 * @param wpt
+	 */
+	private void removeSegment(Waypoint prev, Waypoint wpt) {
+		double distance = wpt.getDistance(prev);
+		length -= distance;
+		long prevTime = getMillis(prev);
+		long time = getMillis(wpt);
+		boolean timed = (prevTime != NO_TIME) && (time != NO_TIME);
+		if ((distance > exMinDist) && timed) {
+			exStopMillis -= time - prevTime;
+		}
+		if (wpt.getEle() > prev.getEle()) {
+			grossRise -= wpt.getEle() - prev.getEle();
+			if (timed) {
+				riseMillis -= time - prevTime;
+			}
+		} else if (wpt.getEle() < prev.getEle()) {
+			grossFall -= prev.getEle() - wpt.getEle();
+			if (timed) {
+				fallMillis -= time - prevTime;
+			}
+		}
+	}
+
+	/**
+	 * refill the max. speed window buffers from the last waypoints
+	 * @param waypoints
+	 */
+	private void rebuildWindow(List<Waypoint> waypoints) {
+		int size = waypoints.size();
+		for (int i = Math.max(0, size - SMOOTHING - 1); i < size; i++) {
+			Waypoint wpt = waypoints.get(i);
+			windowTime[i % (SMOOTHING + 1)] = getMillis(wpt);
+			if (i > 0) {
+				windowDist[i % SMOOTHING] = wpt.getDistance(waypoints.get(i - 1));
+			}
+		}
+	}
+
+	/**
+	 * check if the average speed over the given window is a new maximum
+	 * @param windowLength length of the window in meters
+	 * @param startMillis time of the first waypoint in the window
+	 * @param endMillis time of the last waypoint in the window
+	 * @param endIdx index of the last waypoint in the window
+	 */
+	private void addSpeedWindow(double windowLength, long startMillis, long endMillis, int endIdx) {
+		if ((startMillis != NO_TIME) && (endMillis != NO_TIME)) {
+			long seconds = (long) ((endMillis - startMillis) / 1000D);
+			double candidateMax = windowLength / seconds;
+			if (!Double.isNaN(candidateMax) && !Double.isInfinite(candidateMax) && (candidateMax > maxSpeed)) {
+				maxSpeed = candidateMax;
+				maxSpeedIdx = endIdx;
+			}
+		}
+	}
+
+	/**
+	 * add all numeric values of the given extension hierarchy
+	 * @param extension
+	 */
+	private void addExtension(GPXExtension extension) {
+		if (extension != null) {
+			for (GPXExtension sub : extension.getExtensions()) {
+				String value = sub.getValue();
+				if ((value != null) && !value.trim().isEmpty()) {
+					String key = getShortKey(sub.getKey());
+					try {
+						double parseDouble = Double.parseDouble(value);
+						ExtensionMeta meta = extensions.get(key);
+						if (meta == null) {
+							meta = new ExtensionMeta(key);
+							extensions.put(key, meta);
+						}
+						meta.add(parseDouble);
+					} catch (NumberFormatException e) {
+						if (invalidKeys.add(sub.getKey())) {
+							System.err.println("GPXExtension is not a number! " + sub.getKey() + " | " + value);
+						}
+					}
+				}
+				addExtension(sub);
+			}
+		}
+	}
+
+	/**
+	 * remove all numeric values of the given extension hierarchy
+	 * @param extension
+	 * @return {@link false} if a value could not be removed
+	 * and the statistics have to be recomputed
+	 */
+	private boolean removeExtension(GPXExtension extension) {
+		if (extension != null) {
+			for (GPXExtension sub : extension.getExtensions()) {
+				String value = sub.getValue();
+				if ((value != null) && !value.trim().isEmpty()) {
+					ExtensionMeta meta = extensions.get(getShortKey(sub.getKey()));
+					if (meta != null) {
+						try {
+							if (!meta.remove(Double.parseDouble(value))) {
+								return false;
+							}
+						} catch (NumberFormatException e) {
+							// not counted
+						}
+					}
+				}
+				if (!removeExtension(sub)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 *
+	 * @param key extension key, including namespace prefix
+	 * @return key without namespace prefix
+	 */
+	private String getShortKey(String key) {
+		String shortKey = shortKeys.get(key);
+		if (shortKey == null) {
+			shortKey = key.substring(key.lastIndexOf(':') + 1);
+			shortKeys.put(key, shortKey);
+		}
+		return shortKey;
+	}
+
+	/**
+	 *
+	 * @param wpt
+	 * @return
+	 */
+	private long getMillis(Waypoint wpt) {
+		Date time = wpt.getTime();
+		return (time == null) ? NO_TIME : time.getTime();
+	}
+}
@@ -36,6 +36,7 @@ public class Marker extends Waypoint implements TreeNode {
 	protected Point iconLocation = new Point(); // on-screen location of the icon
 	private Rectangle iconBounds = new Rectangle(); // boundaries of the icon image
 	private Rectangle labelBounds = new Rectangle(); // boundaries of the label text
+	private Point paintedAt = new Point(); // on-screen location of the waypoint when painted
 
 	protected JLabel label = new JLabel();
 	protected boolean drawBounds = false;
@@ -223,6 +224,21 @@ public class Marker extends Waypoint implements TreeNode {
 		return false;
 	}
 
+	/**
+	 * determines if the icon or label is located over the given point,
+	 * with the marker at the given position instead of the one it
+	 * has been painted at, i.e. after the map has been zoomed
+	 * @param p
+	 * @param position on-screen location of the waypoint
+	 * @return {@link true} if icon or label contains {@link p}, {@link false} otherwise
+	 */
+	public boolean contains(Point p, Point position) {
+		if ((p != null) && (position != null)) {
+			return contains(new Point(p.x - position.x + paintedAt.x, p.y - position.y + paintedAt.y));
+		}
+		return false;
+	}
+
 	/*
 	 * PUBLIC METHODS
 	 */
@@ -233,6 +249,7 @@ public class Marker extends Waypoint implements TreeNode {
 	 */
 	public void paint(Graphics2D g2d, Point point) {
 
+		paintedAt.setLocation(point);
 		if (icon != null) {
 			paintIcon(g2d, point);
 
@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.locks.Lock;
 
 import javax.swing.JFrame;
 import javax.swing.SwingWorker;
@@ -160,7 +161,13 @@ public class GetWikipedia extends GenericDownloadDialog
 						link.setHref(track.getWebUrl());
 						marker.setDesc(track.getDescription());
 						marker.getLink().add(link);
-						gpx.getWaypointGroup().addWaypoint(marker);
+						Lock lock = GPXFile.getLock().writeLock();
+						lock.lock();
+						try {
+							gpx.getWaypointGroup().addWaypoint(marker);
+						} finally {
+							lock.unlock();
+						}
 					}
 				}
 			}
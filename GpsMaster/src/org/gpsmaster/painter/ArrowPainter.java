@@ -1,13 +1,17 @@
 package org.gpsmaster.painter;
 
+import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.Shape;
 import java.awt.geom.AffineTransform;
 import java.util.List;
 
 import org.gpsmaster.gpxpanel.ArrowType;
+import org.gpsmaster.gpxpanel.DerivedColumns;
 import org.gpsmaster.gpxpanel.GPXFile;
 import org.gpsmaster.gpxpanel.Route;
 import org.gpsmaster.gpxpanel.Track;
@@ -45,6 +49,10 @@ public class ArrowPainter extends Painter {
 	    parallelArrow.addPoint(4, -4);
 	    parallelArrow.addPoint(0, 8);
 
+	    // bounds are calculated lazily. do it here, since
+	    // the polygons are shared when painting tiles concurrently
+	    arrowHead.getBounds();
+	    parallelArrow.getBounds();
 	}
 
 	/*
@@ -68,6 +76,7 @@ public class ArrowPainter extends Painter {
 
 		}
 
+		Color saveColor = g2d.getColor();
 		if ((arrowType != ArrowType.NONE) && enabled && gpx.isVisible()) {
 			for (Track track : gpx.getTracks()) {
 				for (WaypointGroup grp : track.getTracksegs()) {
@@ -83,8 +92,15 @@ public class ArrowPainter extends Painter {
 			}
 
 		}
+		g2d.setColor(saveColor);
+	}
 
-
+	/**
+	 * arrows are placed per group only, so tiles can be painted concurrently
+	 */
+	@Override
+	public boolean isTileable() {
+		return true;
 	}
 
 	@Override
@@ -98,34 +114,103 @@ public class ArrowPainter extends Painter {
 	 * @param grp
 	 */
 	private void paintGroup(Graphics2D g2d, WaypointGroup grp) {
-		double distance = 0;
+		// arrows are moved by up to half the distance between the points
+		// determining the angle, which is less than half the group's extent
+		Rectangle bounds = getMapBounds(grp);
+		int margin = (int) Math.ceil(Math.hypot(bounds.width, bounds.height) / 2) + 30;
+		if (isOutsideClip(g2d, bounds, margin)) {
+			return;
+		}
+
+		DerivedColumns columns = grp.getDerivedColumns();
+		double lastArrow = 0; // distance of the last arrow from start
 		double minDistance = coordinator.getDistanceInterval() / 2.0f;
 
-		long count = grp.getWaypoints().size();
-		for (int i = 1; i < count; i++ ) {
-			Waypoint prev = grp.getWaypoints().get(i - 1);
-			Waypoint curr = grp.getWaypoints().get(i);
+		int count = columns.size();
+		int i = nextArrow(columns, check, lastArrow, minDistance);
+		while (i + check < count) {
 			int af = i - check; // angle calculation - from waypoint
 			int at = i + check; // angle calculation - to waypoint
 
-			distance += curr.getDistance(prev);
-
-			if ((distance >= minDistance) && (af >= 0) && (at < count)) {
-				switch(arrowType) {
-				case PARALLEL:
-					paintParallelArrow(g2d, grp.getColor(), curr, grp.getWaypoints().get(af), grp.getWaypoints().get(at));
-					break;
-				case ONTRACK:
-					paintTrackArrow(g2d, color, curr, grp.getWaypoints().get(af), grp.getWaypoints().get(at));
-					break;
-				default:
-					break;
-				}
+			Waypoint curr = grp.getWaypoints().get(i);
+			switch(arrowType) {
+			case PARALLEL:
+				paintParallelArrow(g2d, grp.getColor(), curr, grp.getWaypoints().get(af), grp.getWaypoints().get(at));
+				break;
+			case ONTRACK:
+				paintTrackArrow(g2d, color, curr, grp.getWaypoints().get(af), grp.getWaypoints().get(at));
+				break;
+			default:
+				break;
+			}
+
+			lastArrow = columns.getDistance(i);
+			minDistance = coordinator.getDistanceInterval();
+			i = nextArrow(columns, i + 1, lastArrow, minDistance);
+		}
+	}
 
-				distance = 0;
-				minDistance = coordinator.getDistanceInterval();
+	/**
+	 * find the position of the next arrow, i.e. the first point at least
+	 * minDistance beyond the last arrow. binary search, since the distance
+	 * from start increases along the group.
+	 *
+	 * @param columns
+	 * @param from index of the first point to consider
+	 * @param lastArrow distance of the last arrow from start
+	 * @param minDistance
+	 * @return index of the point, or the group's size if there is none
+	 */
+	private int nextArrow(DerivedColumns columns, int from, double lastArrow, double minDistance) {
+		int low = from;
+		int high = columns.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (columns.getDistance(mid) - lastArrow >= minDistance) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * paint the given arrow, unless it is outside of the clip
+	 * @param g2d
+	 * @param arrow
+	 * @param transform position of the arrow on the map
+	 * @param fill {@link true} to fill the arrow, {@link false} to draw its outline
+	 */
+	private void paintArrow(Graphics2D g2d, Polygon arrow, AffineTransform transform, boolean fill) {
+		Rectangle clip = g2d.getClipBounds();
+		if (clip != null) {
+			Shape shape = transform.createTransformedShape(arrow);
+			Rectangle bounds = null;
+			if (fill) {
+				bounds = shape.getBounds();
+			} else if (g2d.getStroke() instanceof BasicStroke) {
+				// mitered joins extend up to the miter limit times half the line width
+				BasicStroke stroke = (BasicStroke) g2d.getStroke();
+				int margin = (int) Math.ceil(stroke.getLineWidth() / 2 * Math.max(1, stroke.getMiterLimit()));
+				bounds = shape.getBounds();
+				bounds.grow(margin, margin);
+			} else {
+				bounds = g2d.getStroke().createStrokedShape(shape).getBounds();
+			}
+			bounds.grow(1, 1); // antialiasing
+			if (clip.intersects(bounds) == false) {
+				return;
 			}
 		}
+		AffineTransform saveTransform = g2d.getTransform();
+		g2d.transform(transform);
+		if (fill) {
+			g2d.fill(arrow);
+		} else {
+			g2d.drawPolygon(arrow);
+		}
+		g2d.setTransform(saveTransform);
 	}
 
 	/**
@@ -141,7 +226,6 @@ public class ArrowPainter extends Painter {
 		Point to = mapViewer.getMapPosition(wptTo.getLat(), wptTo.getLon(), false);
 		Point wpt = mapViewer.getMapPosition(curr.getLat(), curr.getLon(), false); // where the arrow is painted
 
-		AffineTransform saveTransform = g2d.getTransform();
     	AffineTransform transform = new AffineTransform();
     	transform.setToIdentity();
     	double angle = Math.atan2(to.y - from.y, to.x - from.x);
@@ -149,9 +233,7 @@ public class ArrowPainter extends Painter {
     	transform.rotate((angle-Math.PI/2d));
     	transform.translate(arrowOffset, -0.5f * from.distance(to));
     	g2d.setColor(color);
-    	g2d.transform(transform);
-    	g2d.drawPolygon(parallelArrow);
-    	g2d.setTransform(saveTransform);
+    	paintArrow(g2d, parallelArrow, transform, false);
     }
 
 	/**
@@ -167,7 +249,6 @@ public class ArrowPainter extends Painter {
 		Point to = mapViewer.getMapPosition(wptTo.getLat(), wptTo.getLon(), false);
 		Point wpt = mapViewer.getMapPosition(curr.getLat(), curr.getLon(), false); // where the arrow is painted
 
-		AffineTransform saveTransform = g2d.getTransform();
     	AffineTransform transform = new AffineTransform();
     	transform.setToIdentity();
     	double angle = Math.atan2(to.y - from.y, to.x - from.x);
@@ -175,9 +256,7 @@ public class ArrowPainter extends Painter {
     	transform.rotate((angle-Math.PI/2d));
     	transform.translate(0, -0.5f * from.distance(to));
     	g2d.setColor(color);
-    	g2d.transform(transform);
-    	g2d.fill(arrowHead);
-    	g2d.setTransform(saveTransform);
+    	paintArrow(g2d, arrowHead, transform, true);
     }
 
 
@@ -0,0 +1,109 @@
+package org.gpsmaster.painter;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.gpsmaster.cleaning.Simplification;
+import org.gpsmaster.gpxpanel.Waypoint;
+import org.gpsmaster.gpxpanel.WaypointGroup;
+import org.openstreetmap.gui.jmapviewer.OsmMercator;
+
+/**
+ * Multi-resolution level of detail for painting a {@link WaypointGroup}.
+ *
+ * A single Douglas-Peucker pass over the trackpoints (in mercator coordinates
+ * at zoom level 0, see {@link Simplification}) assigns a significance to each
+ * point: the tolerance up to which the point is kept by the simplification. The point subset for a given
+ * zoom level is then derived by a simple threshold on the significance, which
+ * yields exactly the Douglas-Peucker result for the corresponding pixel tolerance.
+ * Subsets are built on first use and cached per zoom level.
+ *
+ * @author rfu
+ *
+ */
+public class LevelOfDetail {
+
+	/** tolerance in screen pixels */
+	public static final double TOLERANCE = 0.5;
+
+	private static final int MAX_ZOOM = 30;
+
+	/** smallest threshold used by getLevel() for tile sizes up to 2048 */
+	private static final double EPSILON = TOLERANCE / (double) (1L << MAX_ZOOM) / 8.0;
+
+	private final int numPts;
+	private final double[] significance;
+	private final int[][] levels = new int[MAX_ZOOM + 1][];
+	private int levelTileSize = 256;
+
+	/**
+	 * Constructor
+	 * @param group {@link WaypointGroup} to compute the level of detail for
+	 */
+	public LevelOfDetail(WaypointGroup group) {
+		List<Waypoint> waypoints = group.getWaypoints();
+		numPts = waypoints.size();
+		double[] x = new double[numPts];
+		double[] y = new double[numPts];
+		Simplification.getCoordinates(waypoints, y, x);
+
+		OsmMercator mercator = OsmMercator.MERCATOR_256;
+		for (int i = 0; i < numPts; i++) {
+			x[i] = mercator.lonToX(x[i], 0);
+			y[i] = mercator.latToY(y[i], 0);
+		}
+		// ranges without visible deviation (e.g. stationary runs of identical
+		// points) are not split further, to avoid quadratic runtime
+		significance = Simplification.computeSignificance(x, y, EPSILON);
+	}
+
+	/**
+	 * @return number of points in the full resolution group
+	 */
+	public int getNumPts() {
+		return numPts;
+	}
+
+	/**
+	 * Get the indices of the points to paint at the given zoom level
+	 * @param zoom zoom level
+	 * @param tileSize tile size of the current tile source in pixels
+	 * @return ascending indices into the group's waypoints
+	 */
+	public synchronized int[] getLevel(int zoom, int tileSize) {
+		if (zoom < 0 || zoom > MAX_ZOOM) {
+			return getLevel(0.0);
+		}
+		if (tileSize != levelTileSize) {
+			Arrays.fill(levels, null);
+			levelTileSize = tileSize;
+		}
+		if (levels[zoom] == null) {
+			// tolerance expressed in mercator pixels at zoom level 0
+			double threshold = TOLERANCE / (double) (1L << zoom) * 256.0 / tileSize;
+			levels[zoom] = getLevel(threshold);
+		}
+		return levels[zoom];
+	}
+
+	/**
+	 * @param threshold minimum significance of points to include
+	 * @return ascending indices of all points with significance greater than threshold
+	 */
+	private int[] getLevel(double threshold) {
+		int count = 0;
+		for (int i = 0; i < numPts; i++) {
+			if (significance[i] > threshold) {
+				count++;
+			}
+		}
+		int[] level = new int[count];
+		int idx = 0;
+		for (int i = 0; i < numPts; i++) {
+			if (significance[i] > threshold) {
+				level[idx++] = i;
+			}
+		}
+		return level;
+	}
+}
@@ -4,6 +4,8 @@ package org.gpsmaster.painter;
  * this class helps the individual painter
  * to prevent mutually overlapping labels
  *
+ * painters may be called from several threads when painting tiles.
+ *
  * @author rfu
  *
  */
@@ -15,7 +17,7 @@ public class PaintCoordinator {
 	/**
 	 *
 	 */
-	public void clear() {
+	public synchronized void clear() {
 
 		distanceInterval = 0;
 		distanceOffset = 0;
@@ -25,28 +27,28 @@ public class PaintCoordinator {
 	/**
 	 * @return the distanceInterval
 	 */
-	public double getDistanceInterval() {
+	public synchronized double getDistanceInterval() {
 		return distanceInterval;
 	}
 
 	/**
 	 * @param distanceInterval the distanceInterval to set
 	 */
-	public void setDistanceInterval(double distanceInterval) {
+	public synchronized void setDistanceInterval(double distanceInterval) {
 		this.distanceInterval = distanceInterval;
 	}
 
 	/**
 	 * @return the distanceOffset
 	 */
-	public double getDistanceOffset() {
+	public synchronized double getDistanceOffset() {
 		return distanceOffset;
 	}
 
 	/**
 	 * @param distanceOffset the distanceOffset to set
 	 */
-	public void setDistanceOffset(double distanceOffset) {
+	public synchronized void setDistanceOffset(double distanceOffset) {
 		this.distanceOffset = distanceOffset;
 	}
 
@@ -1,9 +1,12 @@
 package org.gpsmaster.painter;
 
 import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.util.List;
 
 import org.gpsmaster.gpxpanel.GPXFile;
+import org.gpsmaster.gpxpanel.WaypointGroup;
 import org.gpsmaster.marker.Marker;
 import org.openstreetmap.gui.jmapviewer.JMapViewer;
 
@@ -92,6 +95,51 @@ public abstract class Painter implements Comparable<Painter> {
 		this.order = order;
 	}
 
+	/**
+	 * Check if this painter can paint the overlay in tiles. If so, the
+	 * overlay may be painted by several threads at the same time, each
+	 * painting into a different region given by the clip of its {@link Graphics2D}.
+	 *
+	 * Painters returning {@link true} must not keep state between
+	 * calls to paint() and have to leave the {@link Graphics2D}
+	 * as they found it.
+	 *
+	 * @return {@link true} if the painter can paint tiles concurrently
+	 */
+	public boolean isTileable() {
+		return false;
+	}
+
+	/**
+	 * Get the area covered by the given group on the map
+	 * @param grp
+	 * @return bounding box of the group's trackpoints in map pixel coordinates
+	 */
+	protected Rectangle getMapBounds(WaypointGroup grp) {
+		Point min = mapViewer.getMapPosition(grp.getMaxLat(), grp.getMinLon(), false);
+		Point max = mapViewer.getMapPosition(grp.getMinLat(), grp.getMaxLon(), false);
+		return new Rectangle(min.x, min.y, max.x - min.x, max.y - min.y);
+	}
+
+	/**
+	 * Check if nothing painted within the given area can be visible
+	 * within the clip of the {@link Graphics2D}, i.e. when painting tiles.
+	 *
+	 * @param g2d
+	 * @param area area on the map
+	 * @param margin distance (in pixels) the painter may paint beyond the area
+	 * @return {@link true} if painting can be skipped
+	 */
+	protected boolean isOutsideClip(Graphics2D g2d, Rectangle area, int margin) {
+		Rectangle clip = g2d.getClipBounds();
+		if (clip == null) {
+			return false;
+		}
+		Rectangle paintArea = new Rectangle(area);
+		paintArea.grow(margin, margin);
+		return clip.intersects(paintArea) == false;
+	}
+
 	/**
 	 *
 	 * @param g2d
@@ -106,6 +154,14 @@ public abstract class Painter implements Comparable<Painter> {
 	 */
 	public abstract void paint(Graphics2D g2d, List<Marker> markerList);
 
+	/**
+	 * release resources and listeners held by this painter.
+	 * called when the painter is removed from the map.
+	 */
+	public void dispose() {
+
+	}
+
 	@Override
 	public int compareTo(Painter o) {
 		// TODO Auto-generated method stub
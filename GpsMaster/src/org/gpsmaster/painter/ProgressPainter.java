@@ -8,6 +8,7 @@ import java.awt.geom.Rectangle2D;
 import java.util.List;
 
 import org.gpsmaster.Const;
+import org.gpsmaster.gpxpanel.DerivedColumns;
 import org.gpsmaster.gpxpanel.GPXFile;
 import org.gpsmaster.gpxpanel.ProgressType;
 import org.gpsmaster.gpxpanel.Route;
@@ -131,33 +132,29 @@ public class ProgressPainter extends Painter {
 	 * TODO prevent overlapping labels
 	 */
 	private void paintSegment(Graphics2D g2d, WaypointGroup grp) {
-	  	double distance = 0;
-    	double labelDist = 0;
+    	DerivedColumns columns = grp.getDerivedColumns();
+    	int count = columns.size();
+    	if (count == 0) {
+    		return;
+    	}
+    	double lastLabel = 0; // distance of the last label from start
 
     	g2d.setColor(Color.BLACK);
-    	Waypoint prev = grp.getStart();
 
     	// always paint first label
-    	paintLabel(g2d, grp.getStart(), grp.getStart(), distance);
-
-    	for (Waypoint curr: grp.getWaypoints() ) {
+    	paintLabel(g2d, grp.getStart(), grp.getStart(), 0);
 
+    	for (int i = 1; i < count; i++) {
+    		double distance = columns.getDistance(i - 1);
    			// do not paint a label if distance to last label is less than (x)
-   			if (labelDist >= labelDistance) {
-   			    paintLabel(g2d, curr, grp.getStart(), distance);
-   			    labelDist = 0;
-    		}
-
-    		double increment = curr.getDistance(prev);
-    		if (!Double.isNaN(increment)) {
-    		    distance += increment;
-    		    labelDist += increment;
+   			if (distance - lastLabel >= labelDistance) {
+   			    paintLabel(g2d, grp.getWaypoints().get(i), grp.getStart(), distance);
+   			    lastLabel = distance;
     		}
-   			prev = curr;
     	}
     	// paint label on endpoint
     	// TODO: don't paint second-to-last waypoint if to close
-    	paintLabel(g2d, grp.getEnd(), grp.getStart(), distance);
+    	paintLabel(g2d, grp.getEnd(), grp.getStart(), columns.getDistance(count - 1));
 
 	}
 
@@ -0,0 +1,292 @@
+package org.gpsmaster.painter;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.gpsmaster.gpxpanel.ColumnarWaypointList;
+import org.gpsmaster.gpxpanel.Waypoint;
+import org.gpsmaster.gpxpanel.WaypointGroup;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+
+/**
+ * Cache of projected world pixel coordinates per {@link WaypointGroup}.
+ *
+ * Trackpoints are projected once per zoom level. Since world pixel
+ * coordinates do not depend on the current map center, panning only
+ * requires translating the cached path by the viewport offset.
+ *
+ * The path is built from the {@link LevelOfDetail} subset for the
+ * respective zoom level, so the number of vertices painted is bounded
+ * by the screen resolution rather than by the number of trackpoints.
+ * The level of detail is kept when only the zoom level changes.
+ * The path is split into {@link Section}s, so painting a tile of the
+ * map only strokes the sections within the tile.
+ *
+ * Entries are held weakly, so groups removed from the map do not
+ * need to be unregistered explicitly.
+ *
+ * @author rfu
+ *
+ */
+public class ProjectionCache {
+
+	/**
+	 * maximum number of vertices per {@link Section}
+	 */
+	public static final int SECTION_SIZE = 256;
+
+	/**
+	 * part of the path of a {@link Projection}. consecutive sections share
+	 * one segment, so the join at the vertex where they meet is painted.
+	 */
+	public static class Section {
+
+		private final Path2D.Double path;
+		private final Rectangle bounds;
+		private final double offset;
+
+		private Section(Path2D.Double path, double offset) {
+			this.path = path;
+			this.bounds = path.getBounds();
+			this.offset = offset;
+		}
+
+		/**
+		 * @return path in world pixel coordinates
+		 */
+		public Path2D getPath() {
+			return path;
+		}
+
+		/**
+		 * @return bounds of the path's vertices in world pixel coordinates
+		 */
+		public Rectangle getBounds() {
+			return bounds;
+		}
+
+		/**
+		 * @return length of the whole path before this section in pixels,
+		 * i.e. the phase of dashed strokes
+		 */
+		public double getOffset() {
+			return offset;
+		}
+	}
+
+	/**
+	 * projected coordinates of a single {@link WaypointGroup}
+	 */
+	public static class Projection {
+
+		private final int zoom;
+		private final TileSource tileSource;
+		private final int numPts;
+		private final Waypoint first;
+		private final Waypoint last;
+		private final LevelOfDetail levelOfDetail;
+
+		private final int[] x;
+		private final int[] y;
+		private List<Section> sections = null;
+
+		private Projection(WaypointGroup group, TileSource tileSource, int zoom, LevelOfDetail levelOfDetail) {
+			List<Waypoint> waypoints = group.getWaypoints();
+			this.zoom = zoom;
+			this.tileSource = tileSource;
+			this.levelOfDetail = levelOfDetail;
+			numPts = waypoints.size();
+			first = group.getStart();
+			last = group.getEnd();
+
+			x = new int[numPts];
+			y = new int[numPts];
+			if (waypoints instanceof ColumnarWaypointList) {
+				// avoid creating a view object per trackpoint
+				ColumnarWaypointList columns = (ColumnarWaypointList) waypoints;
+				for (int i = 0; i < numPts; i++) {
+					project(i, columns.getLat(i), columns.getLon(i));
+				}
+			} else {
+				for (int i = 0; i < numPts; i++) {
+					Waypoint wpt = waypoints.get(i);
+					project(i, wpt.getLat(), wpt.getLon());
+				}
+			}
+		}
+
+		private void project(int i, double lat, double lon) {
+			Point p = tileSource.latLonToXY(lat, lon, zoom);
+			x[i] = p.x;
+			y[i] = p.y;
+		}
+
+		/**
+		 * check if this projection is still valid for the given group and zoom level.
+		 * edits are usually signalled via {@link ProjectionCache#invalidate(WaypointGroup)},
+		 * this is a cheap safety net for modifications not announced via events.
+		 */
+		private boolean isValid(WaypointGroup group, TileSource tileSource, int zoom) {
+			return (this.zoom == zoom)
+				&& (this.tileSource == tileSource)
+				&& isCurrent(group);
+		}
+
+		/**
+		 * check if the group's trackpoints have (most likely) not been modified
+		 * since this projection has been created
+		 */
+		private boolean isCurrent(WaypointGroup group) {
+			return (numPts == group.getNumPts())
+				&& same(first, group.getStart())
+				&& same(last, group.getEnd());
+		}
+
+		/**
+		 * columnar groups return a new view per access, which
+		 * are equal (but not identical) if they refer to the same row
+		 */
+		private boolean same(Waypoint a, Waypoint b) {
+			return (a == b) || (a != null && a.equals(b));
+		}
+
+		/**
+		 * @return number of projected points
+		 */
+		public int size() {
+			return numPts;
+		}
+
+		/**
+		 * @param i index of trackpoint
+		 * @return world pixel x coordinate at the cached zoom level
+		 */
+		public int getX(int i) {
+			return x[i];
+		}
+
+		/**
+		 * @param i index of trackpoint
+		 * @return world pixel y coordinate at the cached zoom level
+		 */
+		public int getY(int i) {
+			return y[i];
+		}
+
+		/**
+		 * @return the level of detail used to build the path
+		 */
+		public LevelOfDetail getLevelOfDetail() {
+			return levelOfDetail;
+		}
+
+		/**
+		 * Get the simplified path through the projected points in world pixel
+		 * coordinates, split into sections of up to {@link ProjectionCache#SECTION_SIZE}
+		 * vertices. consecutive points projecting to the same pixel are omitted.
+		 * the sections are built on first access and reused afterwards.
+		 *
+		 * @return sections, empty if there are less than two distinct points
+		 */
+		public synchronized List<Section> getSections() {
+			if (sections == null) {
+				sections = new ArrayList<Section>();
+				if (numPts >= 2) {
+					buildSections();
+				}
+			}
+			return sections;
+		}
+
+		private void buildSections() {
+			int[] level = levelOfDetail.getLevel(zoom, tileSource.getTileSize());
+			// vertices of the path, without duplicates
+			int[] vertices = new int[level.length];
+			int count = 0;
+			vertices[count++] = level[0];
+			for (int l = 1; l < level.length; l++) {
+				int i = level[l];
+				int prev = vertices[count - 1];
+				if (x[i] != x[prev] || y[i] != y[prev]) {
+					vertices[count++] = i;
+				}
+			}
+
+			// world pixels exceed float precision at high zoom levels
+			double offset = 0;
+			int start = 0;
+			while (start < count - 1) {
+				int end = Math.min(start + SECTION_SIZE - 1, count - 1);
+				Path2D.Double path = new Path2D.Double(Path2D.WIND_NON_ZERO, end - start + 1);
+				path.moveTo(x[vertices[start]], y[vertices[start]]);
+				for (int v = start + 1; v <= end; v++) {
+					path.lineTo(x[vertices[v]], y[vertices[v]]);
+				}
+				sections.add(new Section(path, offset));
+
+				// next section starts with the last segment of this one
+				int next = Math.max(end - 1, start + 1);
+				for (int v = start + 1; v <= next; v++) {
+					offset += Math.hypot(x[vertices[v]] - x[vertices[v - 1]], y[vertices[v]] - y[vertices[v - 1]]);
+				}
+				start = (end == count - 1) ? end : next;
+			}
+		}
+	}
+
+	private final Map<WaypointGroup, Projection> projections = new WeakHashMap<WaypointGroup, Projection>();
+
+	/**
+	 * Get the projection of the given group, (re)projecting it if
+	 * zoom level or tile source have changed or it has been invalidated.
+	 *
+	 * @param group
+	 * @param tileSource tile source providing the projection
+	 * @param zoom current zoom level
+	 * @return
+	 */
+	public synchronized Projection get(WaypointGroup group, TileSource tileSource, int zoom) {
+		Projection projection = projections.get(group);
+		if (projection == null || projection.isValid(group, tileSource, zoom) == false) {
+			LevelOfDetail levelOfDetail = null;
+			if (projection != null && projection.isCurrent(group)) {
+				levelOfDetail = projection.getLevelOfDetail();
+			} else {
+				levelOfDetail = new LevelOfDetail(group);
+			}
+			projection = new Projection(group, tileSource, zoom, levelOfDetail);
+			projections.put(group, projection);
+		}
+		return projection;
+	}
+
+	/**
+	 * remove the cached projection of the given group
+	 * @param group
+	 */
+	public synchronized void invalidate(WaypointGroup group) {
+		projections.remove(group);
+	}
+
+	/**
+	 * remove cached projections of all given groups
+	 * @param groups
+	 */
+	public synchronized void invalidate(List<WaypointGroup> groups) {
+		for (WaypointGroup group : groups) {
+			projections.remove(group);
+		}
+	}
+
+	/**
+	 * remove all cached projections
+	 */
+	public synchronized void clear() {
+		projections.clear();
+	}
+}
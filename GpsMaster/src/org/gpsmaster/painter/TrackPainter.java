@@ -4,14 +4,18 @@ import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.Stroke;
-import java.awt.geom.GeneralPath;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
 import java.util.List;
 
+import org.gpsmaster.Const;
+import org.gpsmaster.GpsMaster;
 import org.gpsmaster.gpxpanel.GPXFile;
 import org.gpsmaster.gpxpanel.Route;
 import org.gpsmaster.gpxpanel.Track;
-import org.gpsmaster.gpxpanel.Waypoint;
 import org.gpsmaster.gpxpanel.WaypointGroup;
 import org.gpsmaster.marker.Marker;
 import org.openstreetmap.gui.jmapviewer.JMapViewer;
@@ -28,12 +32,16 @@ public class TrackPainter extends Painter {
 
 	private final int ORDER = 0;
 
+	private final ProjectionCache projectionCache = new ProjectionCache();
+	private PropertyChangeListener changeListener = null;
+
 	/**
 	 *
 	 */
 	public TrackPainter() {
 		super();
 		order = ORDER;
+		addChangeListener();
 	}
 	/**
 	 *
@@ -42,6 +50,39 @@ public class TrackPainter extends Painter {
 	public TrackPainter(JMapViewer viewer) {
 		super(viewer);
 		order = ORDER;
+		addChangeListener();
+	}
+
+	/**
+	 * drop cached projections of the active groups when they have been edited
+	 */
+	private void addChangeListener() {
+		if (GpsMaster.active != null) {
+			changeListener = new PropertyChangeListener() {
+
+				@Override
+				public void propertyChange(PropertyChangeEvent evt) {
+					String command = evt.getPropertyName();
+					if (command.equals(Const.PCE_REFRESHGPX) || command.equals(Const.PCE_UNDO)) {
+						projectionCache.invalidate(GpsMaster.active.getGroups());
+					}
+				}
+			};
+			GpsMaster.active.addPropertyChangeListener(changeListener);
+		}
+	}
+
+	/**
+	 * stop listening to changes of the active groups.
+	 * the cached projections are not invalidated anymore afterwards,
+	 * so the painter is not to be added to the map again.
+	 */
+	@Override
+	public void dispose() {
+		if (changeListener != null) {
+			GpsMaster.active.removePropertyChangeListener(changeListener);
+			changeListener = null;
+		}
 	}
 
 
@@ -69,6 +110,7 @@ public class TrackPainter extends Painter {
                 10.0f, dash1, 0.0f);
 
         Stroke saveStroke = g2d.getStroke();
+        Color saveColor = g2d.getColor();
 
 		// paint route & tracks
 		if (gpx.isVisible() && enabled) {
@@ -104,7 +146,16 @@ public class TrackPainter extends Painter {
            }
 		}
 		g2d.setStroke(saveStroke);
+		g2d.setColor(saveColor);
+
+	}
 
+	/**
+	 * tracks are painted without state, so tiles can be painted concurrently
+	 */
+	@Override
+	public boolean isTileable() {
+		return true;
 	}
 
 	@Override
@@ -130,60 +181,130 @@ public class TrackPainter extends Painter {
         if (maxXY.x < 0 || maxXY.y < 0 || minXY.x > mapViewer.getWidth() || minXY.y > mapViewer.getHeight()) {
             return; // don't paint paths that are completely off screen
         }
+        if (isOutsideClip(g2d, getMapBounds(waypointPath), getMargin())) {
+        	return; // not within the tile currently painted
+        }
 
         g2d.setColor(waypointPath.getColor());
         if (waypointPath.getNumPts() >= 2) {
-            List<Waypoint> waypoints = waypointPath.getWaypoints();
-            GeneralPath path;
-            Waypoint rtept;
-            Point point;
-
-            path = new GeneralPath();
-            rtept = waypointPath.getStart();
-            point = mapViewer.getMapPosition(rtept.getLat(), rtept.getLon(), false);
-            path.moveTo(point.x, point.y);
-            Point prev = point;
-            for (int i = 1; i < waypoints.size(); i++) {
-                rtept = waypoints.get(i);
-                point = mapViewer.getMapPosition(rtept.getLat(), rtept.getLon(), false);
-                if (point.equals(prev) == false) { // performance improvement?
-                	path.lineTo(point.x, point.y);
-                }
-                prev = point;
-            }
+        	// path is cached in world pixel coordinates, translate it into the viewport
+        	Point center = mapViewer.getCenter();
+        	int dx = mapViewer.getWidth() / 2 - center.x;
+        	int dy = mapViewer.getHeight() / 2 - center.y;
+        	List<ProjectionCache.Section> sections = getVisibleSections(g2d, waypointPath, dx, dy);
+        	g2d.translate(dx, dy);
 
             // don't paint track background (border) when segment color is transparent
             if (paintBorder && waypointPath.getColor().getAlpha() == 255 && bgStroke != null) {
                 // draw black border
             	g2d.setStroke(bgStroke);
                 g2d.setColor(Color.BLACK);
-            	g2d.draw(path);
+                for (ProjectionCache.Section section : sections) {
+                	g2d.draw(section.getPath());
+                }
             }
 
             // draw colored route
-            g2d.setStroke(stroke);
             g2d.setColor(waypointPath.getColor());
-            g2d.draw(path);
+            for (ProjectionCache.Section section : sections) {
+            	g2d.setStroke(getSectionStroke(stroke, section));
+            	g2d.draw(section.getPath());
+            }
 
+            g2d.translate(-dx, -dy);
         }
     }
 
+    /**
+     * Get the sections of the group's path painted within the clip
+     * @param g2d
+     * @param wptGrp
+     * @param dx offset from world pixels to the viewport
+     * @param dy
+     * @return
+     */
+    private List<ProjectionCache.Section> getVisibleSections(Graphics2D g2d, WaypointGroup wptGrp, int dx, int dy) {
+    	List<ProjectionCache.Section> sections = getProjection(wptGrp).getSections();
+    	Rectangle clip = g2d.getClipBounds();
+    	if (clip == null) {
+    		return sections;
+    	}
+    	clip.translate(-dx, -dy);
+    	List<ProjectionCache.Section> visible = new ArrayList<ProjectionCache.Section>();
+    	for (ProjectionCache.Section section : sections) {
+    		Rectangle bounds = new Rectangle(section.getBounds());
+    		bounds.grow(getMargin(), getMargin());
+    		if (clip.intersects(bounds)) {
+    			visible.add(section);
+    		}
+    	}
+    	return visible;
+    }
+
+    /**
+     * dashes continue across sections
+     * @param stroke
+     * @param section
+     * @return stroke to paint the given section with
+     */
+    private Stroke getSectionStroke(Stroke stroke, ProjectionCache.Section section) {
+    	if (stroke instanceof BasicStroke) {
+    		BasicStroke basic = (BasicStroke) stroke;
+    		float[] dash = basic.getDashArray();
+    		if (dash != null && section.getOffset() > 0) {
+    			double pattern = 0;
+    			for (float length : dash) {
+    				pattern += length;
+    			}
+    			float phase = (float) ((basic.getDashPhase() + section.getOffset()) % pattern);
+    			return new BasicStroke(basic.getLineWidth(), basic.getEndCap(), basic.getLineJoin(),
+    					basic.getMiterLimit(), dash, phase);
+    		}
+    	}
+    	return stroke;
+    }
+
     /**
      * Paints the pathpoints for a path in {@link WaypointGroup}.
      */
     private void paintPathpoints(Graphics2D g2d, WaypointGroup wptGrp) {
-        if (wptGrp.isVisible() && wptGrp.isTrackPtsVisible()) {
+        if (wptGrp.isVisible() && wptGrp.isTrackPtsVisible()
+        		&& isOutsideClip(g2d, getMapBounds(wptGrp), getMargin()) == false) {
         	g2d.setColor(Color.BLACK);
 
-            for (Waypoint wpt : wptGrp.getWaypoints()) {
-                Point point = mapViewer.getMapPosition(wpt.getLat(), wpt.getLon(), false);
-                if (mapViewer.getBounds().contains(point)) {
-                	g2d.drawOval(point.x-2, point.y-2, 4, 4);
+        	ProjectionCache.Projection projection = getProjection(wptGrp);
+        	Point center = mapViewer.getCenter();
+        	int dx = mapViewer.getWidth() / 2 - center.x;
+        	int dy = mapViewer.getHeight() / 2 - center.y;
+        	Rectangle bounds = mapViewer.getBounds();
+            for (int i = 0; i < projection.size(); i++) {
+                int x = projection.getX(i) + dx;
+                int y = projection.getY(i) + dy;
+                if (bounds.contains(x, y)) {
+                	g2d.drawOval(x-2, y-2, 4, 4);
                 }
             }
         }
         // System.out.println(String.format("%d %d %d %d", getBounds().x, getBounds().y, getBounds().width, getBounds().y));
     }
 
+    /**
+     * @return maximum distance (in pixels) the painted path may extend beyond its
+     * trackpoints. dashed routes use mitered joins, which may extend up to 10
+     * (miter limit) times half the line width.
+     */
+    private int getMargin() {
+    	return (int) Math.ceil(5 * (trackLineWidth + 2)) + 2;
+    }
+
+    /**
+     * Get the projection of the given group at the current zoom level
+     * @param wptGrp
+     * @return
+     */
+    private ProjectionCache.Projection getProjection(WaypointGroup wptGrp) {
+    	return projectionCache.get(wptGrp, mapViewer.getTileController().getTileSource(), mapViewer.getZoom());
+    }
+
 
 }
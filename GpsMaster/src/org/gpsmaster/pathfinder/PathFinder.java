@@ -6,6 +6,7 @@ import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 import javax.swing.SwingWorker;
 import javax.swing.SwingWorker.StateValue;
@@ -124,7 +125,13 @@ public class PathFinder {
 		marker = new RoutePointMarker(destination);
 		marker.setRouteProvider(routeProvider);
 		marker.setRoute(activeRoute);
-		gpxFile.getWaypointGroup().getWaypoints().add(marker);
+		Lock lock = GPXFile.getLock().writeLock();
+		lock.lock();
+		try {
+			gpxFile.getWaypointGroup().getWaypoints().add(marker);
+		} finally {
+			lock.unlock();
+		}
 
 		RouteRequestInfo request = new RouteRequestInfo();
 		request.setState(RouteRequestInfo.STATE_PENDING);
@@ -139,7 +146,12 @@ public class PathFinder {
 
 		// empty route - set first point
 		if (activeRoute.getNumPts() == 0) {
-			activeRoute.getPath().addWaypoint(destination);
+			lock.lock();
+			try {
+				activeRoute.getPath().addWaypoint(destination);
+			} finally {
+				lock.unlock();
+			}
 			request.setState(RouteRequestInfo.STATE_FINISHED); // workaround
 			return;
 		}
@@ -181,8 +193,14 @@ public class PathFinder {
 	public void Cancel() {
 		pathFindWorker.cancel(true);
 		// remove "unused" RoutePointMarker
-		for (RouteRequestInfo r : requests) {
-			gpxFile.getWaypointGroup().getWaypoints().remove(r.routeMarker);
+		Lock lock = GPXFile.getLock().writeLock();
+		lock.lock();
+		try {
+			for (RouteRequestInfo r : requests) {
+				gpxFile.getWaypointGroup().getWaypoints().remove(r.routeMarker);
+			}
+		} finally {
+			lock.unlock();
 		}
 		requests.clear();
 	}
@@ -235,7 +253,13 @@ public class PathFinder {
 							request.provider.findRoute(newSegment, start.getLat(), start.getLon(), dest.getLat(), dest.getLon()); //transport !!
 							if ((isCancelled() == false) && (request.getState() != RouteRequestInfo.STATE_CANCELLED)) {
 								request.setStartIdx(request.route.getPath().getWaypoints().size() - 1);
-								request.route.getPath().getWaypoints().addAll(newSegment);
+								Lock lock = GPXFile.getLock().writeLock();
+								lock.lock();
+								try {
+									request.route.getPath().getWaypoints().addAll(newSegment);
+								} finally {
+									lock.unlock();
+								}
 								request.route.updateAllProperties();
 								GpsMaster.active.repaintMap();
 								GpsMaster.active.refresh();
@@ -2,6 +2,7 @@ package org.gpsmaster.pathfinder;
 
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.gpsmaster.gpxpanel.GPXFile;
@@ -96,9 +97,15 @@ public class RouteRequestInfo implements IUndoable {
 			case STATE_FINISHED:
 				// pathfinder task is no longer running. no need to set state.
 				List<Waypoint> waypoints = route.getPath().getWaypoints(); // shortcut
-				int last = waypoints.size() - 1;
-				for (int i = last; i > startIdx; i--) {
-					waypoints.remove(i);
+				Lock writeLock = GPXFile.getLock().writeLock();
+				writeLock.lock();
+				try {
+					int last = waypoints.size() - 1;
+					for (int i = last; i > startIdx; i--) {
+						waypoints.remove(i);
+					}
+				} finally {
+					writeLock.unlock();
 				}
 				removeRoutePointMarker();
 				state = STATE_CANCELLED; // not necessary since pathfinder is no longer running
@@ -131,6 +138,12 @@ public class RouteRequestInfo implements IUndoable {
 	 *
 	 */
 	private void removeRoutePointMarker() {
-		gpxFile.getWaypointGroup().getWaypoints().remove(routeMarker);
+		Lock writeLock = GPXFile.getLock().writeLock();
+		writeLock.lock();
+		try {
+			gpxFile.getWaypointGroup().getWaypoints().remove(routeMarker);
+		} finally {
+			writeLock.unlock();
+		}
 	}
 }
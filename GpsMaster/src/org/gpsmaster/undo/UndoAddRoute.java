@@ -1,5 +1,7 @@
 package org.gpsmaster.undo;
 
+import java.util.concurrent.locks.Lock;
+
 import org.gpsmaster.gpxpanel.GPXFile;
 import org.gpsmaster.gpxpanel.Route;
 
@@ -35,7 +37,13 @@ public class UndoAddRoute implements IUndoable {
 	@Override
 	public void undo() {
 		if (route != null && gpx != null) {
-			gpx.getRoutes().remove(route);
+			Lock lock = GPXFile.getLock().writeLock();
+			lock.lock();
+			try {
+				gpx.getRoutes().remove(route);
+			} finally {
+				lock.unlock();
+			}
 		}
 
 	}
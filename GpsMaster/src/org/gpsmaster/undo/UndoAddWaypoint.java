@@ -1,5 +1,8 @@
 package org.gpsmaster.undo;
 
+import java.util.concurrent.locks.Lock;
+
+import org.gpsmaster.gpxpanel.GPXFile;
 import org.gpsmaster.gpxpanel.Waypoint;
 import org.gpsmaster.gpxpanel.WaypointGroup;
 
@@ -36,8 +39,12 @@ public class UndoAddWaypoint implements IUndoable {
 	@Override
 	public void undo() {
 		if (wpt != null && group != null) {
-			if (group.getWaypoints().contains(wpt)) {
+			Lock lock = GPXFile.getLock().writeLock();
+			lock.lock();
+			try {
 				group.getWaypoints().remove(wpt);
+			} finally {
+				lock.unlock();
 			}
 		}
 	}
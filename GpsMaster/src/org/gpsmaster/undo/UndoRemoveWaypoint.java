@@ -1,5 +1,9 @@
 package org.gpsmaster.undo;
 
+import java.util.concurrent.locks.Lock;
+
+import org.gpsmaster.GpsMaster;
+import org.gpsmaster.gpxpanel.GPXFile;
 import org.gpsmaster.gpxpanel.Waypoint;
 import org.gpsmaster.gpxpanel.WaypointGroup;
 
@@ -20,7 +24,8 @@ public class UndoRemoveWaypoint implements IUndoable {
 	 * @param waypointGroup {@link WaypointGroup] containing {@link Waypoint} to be re-added
 	 */
 	public UndoRemoveWaypoint(Waypoint wpt, WaypointGroup waypointGroup) {
-		this.wpt = wpt;
+		// rows of removed trackpoints are reused by columnar groups, keep a copy
+		this.wpt = waypointGroup.isColumnar() ? new Waypoint(wpt) : wpt;
 		this.group = waypointGroup;
 		idx = waypointGroup.getWaypoints().indexOf(wpt);
 	}
@@ -34,7 +39,17 @@ public class UndoRemoveWaypoint implements IUndoable {
 	@Override
 	public void undo() {
 		if (wpt != null && group != null) {
-			group.getWaypoints().add(idx, wpt);
+			Lock lock = GPXFile.getLock().writeLock();
+			lock.lock();
+			try {
+				group.insertWaypoint(idx, wpt);
+			} finally {
+				lock.unlock();
+			}
+			group.updateParentProperties();
+			if (GpsMaster.active != null) {
+				GpsMaster.active.getSpatialIndex().pointInserted(group, idx);
+			}
 		}
 	}
 
@@ -1,5 +1,8 @@
 package org.gpsmaster.undo;
 
+import java.util.concurrent.locks.Lock;
+
+import org.gpsmaster.gpxpanel.GPXFile;
 import org.gpsmaster.gpxpanel.Track;
 import org.gpsmaster.gpxpanel.WaypointGroup;
 
@@ -30,8 +33,14 @@ public class UndoSplitTrackSeg implements IUndoable {
 	// does not work updateAllProperties required?
 	@Override
 	public void undo() throws Exception {
-		seg1.getWaypoints().addAll(seg2.getWaypoints());
-		track.getTracksegs().remove(seg2);
+		Lock lock = GPXFile.getLock().writeLock();
+		lock.lock();
+		try {
+			seg1.getWaypoints().addAll(seg2.getWaypoints());
+			track.getTracksegs().remove(seg2);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 }
@@ -1,5 +1,8 @@
 package org.gpsmaster.undo;
 
+import java.util.concurrent.locks.Lock;
+
+import org.gpsmaster.gpxpanel.GPXFile;
 import org.gpsmaster.gpxpanel.Waypoint;
 import org.gpsmaster.gpxpanel.WaypointGroup;
 
@@ -68,9 +71,15 @@ public class UndoWaypointGroup implements IUndoable {
 	@Override
 	public void undo() {
 
-		newGroup.getWaypoints().clear();
-		for (Waypoint wpt : oldGroup.getWaypoints()) {
-			newGroup.addWaypoint(wpt);
+		Lock lock = GPXFile.getLock().writeLock();
+		lock.lock();
+		try {
+			newGroup.getWaypoints().clear();
+			for (Waypoint wpt : oldGroup.getWaypoints()) {
+				newGroup.addWaypoint(wpt);
+			}
+		} finally {
+			lock.unlock();
 		}
 		newGroup.updateAllProperties();
 	}
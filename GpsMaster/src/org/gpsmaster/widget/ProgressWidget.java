@@ -9,12 +9,14 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.BoxLayout;
 import javax.swing.ImageIcon;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
 import javax.swing.border.EmptyBorder;
 
 import org.gpsmaster.Const;
@@ -25,7 +27,9 @@ import eu.fuegenstein.util.ProgressInfo;
 import eu.fuegenstein.util.IProgressReporter;
 
 /**
- * Class representing a generic progress bar widget
+ * Class representing a generic progress bar widget.
+ * Progress may be reported from any thread, the widget
+ * itself is only modified on the event dispatch thread.
  *
  * @author rfu
  *
@@ -42,8 +46,10 @@ public class ProgressWidget extends Widget implements IProgressReporter {
 
 	private final Dimension barDimension = new Dimension(360, 40);
 
+	// accessed on the event dispatch thread only
 	private Map<ProgressInfo, ProgressBarPanel> progressItems = new HashMap<ProgressInfo, ProgressBarPanel>();
-	private boolean isCancelled = false;
+	private volatile boolean isCancelled = false;
+	private final AtomicBoolean updatePending = new AtomicBoolean(false);
 
 	private static final long serialVersionUID = 5518506687851519071L;
 
@@ -130,16 +136,26 @@ public class ProgressWidget extends Widget implements IProgressReporter {
 	 *
 	 * @param title
 	 */
-	public void setTitle(String text) {
-		title.setText(text);
+	public void setTitle(final String text) {
+		runOnEdt(new Runnable() {
+			@Override
+			public void run() {
+				title.setText(text);
+			}
+		});
 	}
 
 	/**
 	 *
 	 */
-	public void setFooter(String text) {
-		footer.setText(text);
-		footer.setVisible(true);
+	public void setFooter(final String text) {
+		runOnEdt(new Runnable() {
+			@Override
+			public void run() {
+				footer.setText(text);
+				footer.setVisible(true);
+			}
+		});
 	}
 
 	/**
@@ -191,48 +207,61 @@ public class ProgressWidget extends Widget implements IProgressReporter {
 	}
 
 	@Override
-	public void addProgressItem(ProgressInfo item) {
-
-		ProgressBarPanel progressBar = new ProgressBarPanel();
-		progressBar.setMaximum(item.getMaxValue());
-		progressBar.setMinimum(item.getMinValue());
-		progressBar.setValue(item.getValue());
-
-		progressBar.setTitle(item.getName());
-
-		progressBar.setPreferredSize(barDimension);
-		progressBar.setStringPainted(false);
-		progressBar.setBackground(BACKGROUNDCOLOR);
-		progressBar.setBarForeground(Color.BLUE);
-		progressBar.setBorder(new EmptyBorder(2, 6, 2, 6));
-		progressBar.setVisible(true);
-		progressItems.put(item, progressBar);
-		barPanel.add(progressBar);
-
-		setVisible(true);
-		revalidate();
-		repaint();
+	public void addProgressItem(final ProgressInfo item) {
+		runOnEdt(new Runnable() {
+			@Override
+			public void run() {
+				ProgressBarPanel progressBar = new ProgressBarPanel();
+				progressBar.setMaximum(item.getMaxValue());
+				progressBar.setMinimum(item.getMinValue());
+				progressBar.setValue(item.getValue());
+
+				progressBar.setTitle(item.getName());
+
+				progressBar.setPreferredSize(barDimension);
+				progressBar.setStringPainted(false);
+				progressBar.setBackground(BACKGROUNDCOLOR);
+				progressBar.setBarForeground(Color.BLUE);
+				progressBar.setBorder(new EmptyBorder(2, 6, 2, 6));
+				progressBar.setVisible(true);
+				progressItems.put(item, progressBar);
+				barPanel.add(progressBar);
+
+				setVisible(true);
+				revalidate();
+				repaint();
+			}
+		});
 	}
 
 	@Override
-	public void removeProgressItem(ProgressInfo item) {
-
-		if (progressItems.containsKey(item)) {
-			ProgressBarPanel bar = progressItems.get(item);
-			barPanel.remove(bar);
-			progressItems.remove(item);
-		}
-
-		revalidate();
-		repaint();
+	public void removeProgressItem(final ProgressInfo item) {
+		runOnEdt(new Runnable() {
+			@Override
+			public void run() {
+				if (progressItems.containsKey(item)) {
+					ProgressBarPanel bar = progressItems.get(item);
+					barPanel.remove(bar);
+					progressItems.remove(item);
+				}
+
+				revalidate();
+				repaint();
+			}
+		});
 	}
 
 	/**
 	 *
 	 */
 	public void cancel() {
-    	isCancelled = true;
-    	cancelLabel.setVisible(true);
+		isCancelled = true;
+		runOnEdt(new Runnable() {
+			@Override
+			public void run() {
+				cancelLabel.setVisible(true);
+			}
+		});
 	}
 
 	@Override
@@ -243,32 +272,66 @@ public class ProgressWidget extends Widget implements IProgressReporter {
 
 	/**
 	 * TODO define some callback mechanism instead
+	 * updates from multiple threads are coalesced into a single
+	 * update on the event dispatch thread
 	 */
 	@Override
 	public void update() {
-		for(Map.Entry<ProgressInfo, ProgressBarPanel> entry : progressItems.entrySet()) {
-			ProgressInfo item = entry.getKey();
-			ProgressBarPanel bar = entry.getValue();
-			bar.setTitle(item.getName());
-			bar.setValue(item.getValue());
-			bar.setMaximum(item.getMaxValue());
+		if (updatePending.getAndSet(true)) {
+			return;
 		}
+		runOnEdt(new Runnable() {
+			@Override
+			public void run() {
+				updatePending.set(false);
+				for(Map.Entry<ProgressInfo, ProgressBarPanel> entry : progressItems.entrySet()) {
+					ProgressInfo item = entry.getKey();
+					ProgressBarPanel bar = entry.getValue();
+					bar.setTitle(item.getName());
+					bar.setValue(item.getValue());
+					bar.setMaximum(item.getMaxValue());
+				}
+			}
+		});
 	}
 
 	public void reset() {
 		isCancelled = false;
-		cancelLabel.setVisible(false);
-		for(Map.Entry<ProgressInfo, ProgressBarPanel> entry : progressItems.entrySet()) {
-			ProgressBarPanel bar = entry.getValue();
-			bar.setValue(0);
-		}
+		runOnEdt(new Runnable() {
+			@Override
+			public void run() {
+				cancelLabel.setVisible(false);
+				for(Map.Entry<ProgressInfo, ProgressBarPanel> entry : progressItems.entrySet()) {
+					ProgressBarPanel bar = entry.getValue();
+					bar.setValue(0);
+				}
+			}
+		});
 	}
 
 	@Override
 	public void clear() {
 		isCancelled = false;
-		cancelLabel.setVisible(false);
-		progressItems.clear();
+		runOnEdt(new Runnable() {
+			@Override
+			public void run() {
+				cancelLabel.setVisible(false);
+				progressItems.clear();
+			}
+		});
+	}
+
+	/**
+	 * run the given code on the event dispatch thread,
+	 * immediately if called from it, otherwise later
+	 * @param runnable
+	 */
+	private void runOnEdt(Runnable runnable) {
+		if (SwingUtilities.isEventDispatchThread()) {
+			runnable.run();
+		} else {
+			SwingUtilities.invokeLater(runnable);
+		}
 	}
 
 }
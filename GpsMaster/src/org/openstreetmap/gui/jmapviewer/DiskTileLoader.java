@@ -0,0 +1,168 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.Map;
+
+import org.openstreetmap.gui.jmapviewer.interfaces.CachedTileLoader;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
+
+/**
+ * {@link OsmTileLoader} keeping downloaded tiles in a {@link DiskTileStore}.
+ * <p>
+ * Acts as second level cache behind the {@link MemoryTileCache}: tiles
+ * not in memory are loaded from disk if present and not expired, otherwise
+ * they are downloaded and stored along with their expiry time taken
+ * from the HTTP headers (<code>Expires</code>, <code>Cache-Control: max-age</code>).
+ * <p>
+ * Expired tiles are revalidated with the server using the <code>ETag</code>
+ * and <code>Last-Modified</code> headers received with the tile, so
+ * unchanged tiles are not downloaded again. If an expired tile can't be
+ * downloaded (i.e. offline), the expired version is shown.
+ *
+ * @author rfu
+ */
+public class DiskTileLoader extends OsmTileLoader implements CachedTileLoader {
+
+    /**
+     * expiry for tiles sent without expiry information
+     */
+    public static final long DEFAULT_EXPIRY = 7L * 24 * 60 * 60 * 1000;
+
+    private final DiskTileStore store;
+
+    /**
+     * @param listener
+     * @param store disk store for tiles
+     */
+    public DiskTileLoader(TileLoaderListener listener, DiskTileStore store) {
+        this(listener, null, store);
+    }
+
+    /**
+     * @param listener
+     * @param headers additional HTTP headers
+     * @param store disk store for tiles
+     */
+    public DiskTileLoader(TileLoaderListener listener, Map<String, String> headers, DiskTileStore store) {
+        super(listener, headers);
+        this.store = store;
+    }
+
+    /**
+     * @return the underlying store
+     */
+    public DiskTileStore getStore() {
+        return store;
+    }
+
+    @Override
+    protected boolean loadFromCache(Tile tile) {
+        long expires = store.getExpires(tile.getKey());
+        if (expires < 0 || expires < System.currentTimeMillis()) {
+            return false; // not present or expired
+        }
+        return loadFromStore(tile);
+    }
+
+    @Override
+    protected boolean loadFromExpiredCache(Tile tile) {
+        return loadFromStore(tile);
+    }
+
+    /**
+     * load the tile from the store, regardless of its expiry time
+     */
+    private boolean loadFromStore(Tile tile) {
+        byte[] data = store.get(tile.getKey());
+        if (data == null) {
+            return false;
+        }
+        try {
+            tile.loadImage(new ByteArrayInputStream(data));
+        } catch (IOException e) {
+            store.remove(tile.getKey());
+            return false;
+        }
+        if (tile.getImage() == null) {
+            store.remove(tile.getKey()); // not a valid image
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean addCacheValidators(Tile tile, URLConnection conn) {
+        String validator = store.getValidator(tile.getKey());
+        if (validator == null) {
+            return false;
+        }
+        // "etag \n last-modified", as written by saveToCache()
+        int split = validator.indexOf('\n');
+        String etag = validator.substring(0, split);
+        String lastModified = validator.substring(split + 1);
+        if (!etag.isEmpty()) {
+            conn.setRequestProperty("If-None-Match", etag);
+        }
+        if (!lastModified.isEmpty()) {
+            conn.setRequestProperty("If-Modified-Since", lastModified);
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean loadFromStaleCache(Tile tile) {
+        if (store.getExpires(tile.getKey()) < 0) {
+            return false;
+        }
+        store.setExpires(tile.getKey(), getExpires(tile));
+        return loadFromCache(tile);
+    }
+
+    @Override
+    protected InputStream saveToCache(Tile tile, InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(20 * 1024);
+        byte[] buff = new byte[20 * 1024];
+        int len = input.read(buff);
+        while (len > 0) {
+            bytes.write(buff, 0, len);
+            len = input.read(buff);
+        }
+        input.close();
+
+        byte[] data = bytes.toByteArray();
+        String validator = null;
+        String etag = tile.getValue("etag");
+        String lastModified = tile.getValue("last-modified");
+        if (etag != null || lastModified != null) {
+            validator = (etag == null ? "" : etag) + "\n" + (lastModified == null ? "" : lastModified);
+        }
+        store.put(tile.getKey(), data, getExpires(tile), validator);
+        return new ByteArrayInputStream(data);
+    }
+
+    /**
+     * @return expiry time sent by the server, or default expiry
+     */
+    private long getExpires(Tile tile) {
+        String value = tile.getValue("expires");
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                // use default
+            }
+        }
+        return System.currentTimeMillis() + DEFAULT_EXPIRY;
+    }
+
+    @Override
+    public void clearCache(TileSource source) {
+        store.removeAll("@" + source.getName());
+    }
+}
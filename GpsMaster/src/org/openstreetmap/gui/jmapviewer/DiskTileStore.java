@@ -0,0 +1,555 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Persistent tile store keeping all tiles in a single file.
+ * <p>
+ * Tiles are appended to the file as records of
+ * <code>status, key length, key, expiry, validator length, validator, data length, data</code>.
+ * The validator holds information to check with the server if an expired
+ * tile is still valid (i.e. ETag, Last-Modified).
+ * Removed tiles are only flagged on disk. The index (key to file offset)
+ * is held in memory and rebuilt on startup by scanning the record headers.
+ * <p>
+ * The store is bounded by its total size. If the limit is exceeded, the
+ * least recently used tiles are removed. The file is compacted when
+ * removed records take up more space than half the limit. Compaction
+ * copies the records into a new file without holding the lock of the
+ * store, so tiles can still be read meanwhile.
+ *
+ * @author rfu
+ */
+public class DiskTileStore {
+
+    private static final Logger log = Logger.getLogger(DiskTileStore.class.getName());
+
+    private static final byte[] MAGIC = "GPMTILE2".getBytes(StandardCharsets.US_ASCII);
+    private static final byte STATUS_VALID = 1;
+    private static final byte STATUS_REMOVED = 0;
+
+    /**
+     * location of a tile record within the file
+     */
+    private static class Entry {
+        private long offset;
+        private int length; // of the whole record
+        private int keyLength;
+        private int validatorLength;
+        private int dataLength;
+        private long expires;
+
+        private long expiresOffset() {
+            return offset + 1 + 4 + keyLength;
+        }
+
+        private long validatorOffset() {
+            return expiresOffset() + 8 + 4;
+        }
+
+        private long dataOffset() {
+            return offset + length - dataLength;
+        }
+    }
+
+    private final File file;
+    private RandomAccessFile raf;
+    private long maxSize;
+    private long liveSize = 0;
+    private long removedSize = 0;
+    private boolean compacting = false;
+    private boolean closed = false;
+    private int epoch = 0; // incremented when the store is cleared
+
+    // least recently used entries first
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(1024, 0.75f, true);
+
+    /**
+     * Opens or creates the store.
+     *
+     * @param file file holding all tiles
+     * @param maxSize maximum size of all tiles in bytes
+     * @throws IOException if the file can't be opened or created
+     */
+    public DiskTileStore(File file, long maxSize) throws IOException {
+        this.file = file;
+        this.maxSize = maxSize;
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        raf = new RandomAccessFile(file, "rw");
+        open();
+        compactIfRequired();
+    }
+
+    /**
+     * Get the image data of a tile
+     * @param key tile key
+     * @return image data or <code>null</code> if the tile is not in the store
+     */
+    public synchronized byte[] get(String key) {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            byte[] data = new byte[entry.dataLength];
+            raf.seek(entry.dataOffset());
+            raf.readFully(data);
+            return data;
+        } catch (IOException e) {
+            log.warning("Failed reading tile " + key + ": " + e.getMessage());
+            removeEntry(key, entry);
+            return null;
+        }
+    }
+
+    /**
+     * @param key tile key
+     * @return expiry time of the tile in milliseconds, 0 if unknown
+     * or -1 if the tile is not in the store
+     */
+    public synchronized long getExpires(String key) {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return -1;
+        }
+        return entry.expires;
+    }
+
+    /**
+     * @param key tile key
+     * @return validator of the tile or <code>null</code> if the tile is not in
+     * the store or has no validator
+     */
+    public synchronized String getValidator(String key) {
+        Entry entry = index.get(key);
+        if (entry == null || entry.validatorLength == 0) {
+            return null;
+        }
+        try {
+            byte[] validator = new byte[entry.validatorLength];
+            raf.seek(entry.validatorOffset());
+            raf.readFully(validator);
+            return new String(validator, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.warning("Failed reading tile " + key + ": " + e.getMessage());
+            removeEntry(key, entry);
+            return null;
+        }
+    }
+
+    /**
+     * Updates the expiry time of a tile, i.e. after the server confirmed
+     * that an expired tile is still valid.
+     *
+     * @param key tile key
+     * @param expires expiry time in milliseconds, 0 if unknown
+     */
+    public synchronized void setExpires(String key, long expires) {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return;
+        }
+        try {
+            raf.seek(entry.expiresOffset());
+            raf.writeLong(expires);
+            entry.expires = expires;
+        } catch (IOException e) {
+            log.warning("Failed writing tile " + key + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a tile to the store, replacing a previous version.
+     *
+     * @param key tile key
+     * @param data image data
+     * @param expires expiry time in milliseconds, 0 if unknown
+     */
+    public void put(String key, byte[] data, long expires) {
+        put(key, data, expires, null);
+    }
+
+    /**
+     * Adds a tile to the store, replacing a previous version.
+     *
+     * @param key tile key
+     * @param data image data
+     * @param expires expiry time in milliseconds, 0 if unknown
+     * @param validator information to revalidate the tile after expiry, may be <code>null</code>
+     */
+    public void put(String key, byte[] data, long expires, String validator) {
+        putRecord(key, data, expires, validator);
+        compactIfRequired();
+    }
+
+    private synchronized void putRecord(String key, byte[] data, long expires, String validator) {
+        Entry old = index.get(key);
+        if (old != null) {
+            removeEntry(key, old);
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] validatorBytes = (validator == null) ? new byte[0] : validator.getBytes(StandardCharsets.UTF_8);
+        Entry entry = new Entry();
+        entry.keyLength = keyBytes.length;
+        entry.validatorLength = validatorBytes.length;
+        entry.length = 1 + 4 + keyBytes.length + 8 + 4 + validatorBytes.length + 4 + data.length;
+        entry.dataLength = data.length;
+        entry.expires = expires;
+        try {
+            entry.offset = raf.length();
+            raf.seek(entry.offset);
+            // write the complete record at once
+            byte[] record = new byte[entry.length];
+            int pos = 0;
+            record[pos++] = STATUS_VALID;
+            pos = putInt(record, pos, keyBytes.length);
+            System.arraycopy(keyBytes, 0, record, pos, keyBytes.length);
+            pos += keyBytes.length;
+            pos = putLong(record, pos, expires);
+            pos = putInt(record, pos, validatorBytes.length);
+            System.arraycopy(validatorBytes, 0, record, pos, validatorBytes.length);
+            pos += validatorBytes.length;
+            pos = putInt(record, pos, data.length);
+            System.arraycopy(data, 0, record, pos, data.length);
+            raf.write(record);
+        } catch (IOException e) {
+            log.warning("Failed writing tile " + key + ": " + e.getMessage());
+            try {
+                raf.setLength(entry.offset); // drop partially written record
+            } catch (IOException ex) {
+                log.warning(ex.getMessage());
+            }
+            return;
+        }
+        index.put(key, entry);
+        liveSize += entry.length;
+        removeOldEntries();
+    }
+
+    /**
+     * Removes a tile from the store
+     * @param key tile key
+     */
+    public synchronized void remove(String key) {
+        Entry entry = index.get(key);
+        if (entry != null) {
+            removeEntry(key, entry);
+        }
+    }
+
+    /**
+     * Removes all tiles whose key ends with the given suffix
+     * @param suffix i.e. "@" + tile source name
+     */
+    public void removeAll(String suffix) {
+        synchronized (this) {
+            List<String> keys = new ArrayList<>();
+            for (String key : index.keySet()) {
+                if (key.endsWith(suffix)) {
+                    keys.add(key);
+                }
+            }
+            for (String key : keys) {
+                removeEntry(key, index.get(key));
+            }
+        }
+        compactIfRequired();
+    }
+
+    /**
+     * Removes all tiles from the store
+     */
+    public synchronized void clear() {
+        try {
+            raf.setLength(0);
+            raf.write(MAGIC);
+        } catch (IOException e) {
+            log.warning("Failed clearing tile store: " + e.getMessage());
+        }
+        index.clear();
+        liveSize = 0;
+        removedSize = 0;
+        epoch++;
+    }
+
+    /**
+     * @return number of tiles in the store
+     */
+    public synchronized int getTileCount() {
+        return index.size();
+    }
+
+    /**
+     * @return total size of all tiles in bytes
+     */
+    public synchronized long getSize() {
+        return liveSize;
+    }
+
+    /**
+     * @return maximum size in bytes
+     */
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize maximum size of all tiles in bytes
+     */
+    public void setMaxSize(long maxSize) {
+        synchronized (this) {
+            this.maxSize = maxSize;
+            removeOldEntries();
+        }
+        compactIfRequired();
+    }
+
+    /**
+     * Closes the underlying file
+     */
+    public synchronized void close() {
+        closed = true;
+        try {
+            raf.close();
+        } catch (IOException e) {
+            log.warning(e.getMessage());
+        }
+    }
+
+    /**
+     * rebuild the index by scanning all record headers.
+     * a truncated record at the end of the file (i.e. after a crash) is discarded.
+     */
+    private void open() throws IOException {
+        long length = raf.length();
+        byte[] magic = new byte[MAGIC.length];
+        if (length < MAGIC.length) {
+            clear();
+            return;
+        }
+        raf.seek(0);
+        raf.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            log.warning("Unknown tile store format, discarding " + file);
+            clear();
+            return;
+        }
+
+        long offset = MAGIC.length;
+        while (offset < length) {
+            raf.seek(offset);
+            if (offset + 1 + 4 > length) {
+                break;
+            }
+            byte status = raf.readByte();
+            int keyLength = raf.readInt();
+            if (keyLength < 0 || offset + 1 + 4 + keyLength + 8 + 4 > length) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            raf.readFully(keyBytes);
+            Entry entry = new Entry();
+            entry.offset = offset;
+            entry.keyLength = keyLength;
+            entry.expires = raf.readLong();
+            entry.validatorLength = raf.readInt();
+            if (entry.validatorLength < 0 || entry.validatorOffset() + entry.validatorLength + 4 > length) {
+                break;
+            }
+            raf.seek(entry.validatorOffset() + entry.validatorLength);
+            entry.dataLength = raf.readInt();
+            entry.length = 1 + 4 + keyLength + 8 + 4 + entry.validatorLength + 4 + entry.dataLength;
+            if (entry.dataLength < 0 || offset + entry.length > length) {
+                break;
+            }
+            if (status == STATUS_VALID) {
+                Entry old = index.put(new String(keyBytes, StandardCharsets.UTF_8), entry);
+                if (old != null) {
+                    liveSize -= old.length;
+                    removedSize += old.length;
+                }
+                liveSize += entry.length;
+            } else {
+                removedSize += entry.length;
+            }
+            offset += entry.length;
+        }
+        if (offset < length) {
+            log.warning("Discarding truncated record in " + file);
+            raf.setLength(offset);
+        }
+        removeOldEntries();
+    }
+
+    /**
+     * remove least recently used tiles until the store fits into maxSize
+     */
+    private void removeOldEntries() {
+        Iterator<Map.Entry<String, Entry>> iter = index.entrySet().iterator();
+        while (liveSize > maxSize && iter.hasNext()) {
+            Entry entry = iter.next().getValue();
+            iter.remove();
+            flagRemoved(entry);
+        }
+    }
+
+    private void removeEntry(String key, Entry entry) {
+        index.remove(key);
+        flagRemoved(entry);
+    }
+
+    private void flagRemoved(Entry entry) {
+        liveSize -= entry.length;
+        removedSize += entry.length;
+        try {
+            raf.seek(entry.offset);
+            raf.writeByte(STATUS_REMOVED);
+        } catch (IOException e) {
+            log.warning(e.getMessage());
+        }
+    }
+
+    /**
+     * compact the file if removed records take up too much space.
+     * must not be called while holding the lock of the store.
+     */
+    private void compactIfRequired() {
+        String[] keys;
+        Entry[] entries;
+        long[] offsets;
+        int[] lengths;
+        int snapshotEpoch;
+        synchronized (this) {
+            if (compacting || closed || removedSize <= maxSize / 2) {
+                return;
+            }
+            compacting = true;
+            snapshotEpoch = epoch;
+            keys = index.keySet().toArray(new String[index.size()]);
+            entries = index.values().toArray(new Entry[index.size()]);
+            offsets = new long[entries.length];
+            lengths = new int[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                offsets[i] = entries[i].offset;
+                lengths[i] = entries[i].length;
+            }
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            long[] newOffsets = copyRecords(tmpFile, offsets, lengths);
+            synchronized (this) {
+                if (epoch == snapshotEpoch && !closed) {
+                    swap(tmpFile, keys, entries, lengths, newOffsets);
+                }
+            }
+        } catch (IOException e) {
+            log.warning("Failed compacting tile store: " + e.getMessage());
+        } finally {
+            tmpFile.delete();
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * copy the given records into a new file, via a separate file handle.
+     * records are never moved within the store while compacting, so no lock is required.
+     * @return offsets of the records in the new file
+     */
+    private long[] copyRecords(File tmpFile, long[] offsets, int[] lengths) throws IOException {
+        long[] newOffsets = new long[offsets.length];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r");
+                RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw")) {
+            tmp.setLength(0);
+            tmp.write(MAGIC);
+            long offset = MAGIC.length;
+            for (int i = 0; i < offsets.length; i++) {
+                byte[] record = new byte[lengths[i]];
+                in.seek(offsets[i]);
+                in.readFully(record);
+                tmp.write(record);
+                newOffsets[i] = offset;
+                offset += lengths[i];
+            }
+        }
+        return newOffsets;
+    }
+
+    /**
+     * apply the changes made while the records have been copied to the new file
+     * and replace the store's file by it
+     */
+    private void swap(File tmpFile, String[] keys, Entry[] entries, int[] lengths, long[] newOffsets) throws IOException {
+        Map<Entry, Long> moved = new IdentityHashMap<>();
+        long removed = 0;
+        try (RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw")) {
+            for (int i = 0; i < entries.length; i++) {
+                Entry entry = entries[i];
+                if (index.get(keys[i]) == entry) {
+                    // expiry may have been updated meanwhile
+                    tmp.seek(newOffsets[i] + 1 + 4 + entry.keyLength);
+                    tmp.writeLong(entry.expires);
+                    moved.put(entry, newOffsets[i]);
+                } else {
+                    tmp.seek(newOffsets[i]);
+                    tmp.writeByte(STATUS_REMOVED);
+                    removed += lengths[i];
+                }
+            }
+            // records added meanwhile
+            long offset = tmp.length();
+            for (Entry entry : index.values()) {
+                if (!moved.containsKey(entry)) {
+                    byte[] record = new byte[entry.length];
+                    raf.seek(entry.offset);
+                    raf.readFully(record);
+                    tmp.seek(offset);
+                    tmp.write(record);
+                    moved.put(entry, offset);
+                    offset += entry.length;
+                }
+            }
+        }
+        raf.close();
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // old offsets are still valid if the file could not be replaced
+            raf = new RandomAccessFile(file, "rw");
+        }
+        for (Map.Entry<Entry, Long> entry : moved.entrySet()) {
+            entry.getKey().offset = entry.getValue();
+        }
+        removedSize = removed;
+    }
+
+    private static int putInt(byte[] buf, int pos, int value) {
+        buf[pos++] = (byte) (value >>> 24);
+        buf[pos++] = (byte) (value >>> 16);
+        buf[pos++] = (byte) (value >>> 8);
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int putLong(byte[] buf, int pos, long value) {
+        pos = putInt(buf, pos, (int) (value >>> 32));
+        return putInt(buf, pos, (int) value);
+    }
+}
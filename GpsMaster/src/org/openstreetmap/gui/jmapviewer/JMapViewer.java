@@ -280,7 +280,7 @@ public class JMapViewer extends JPanel implements TileLoaderListener {
             }
         } finally {
             setIgnoreRepaint(false);
-            repaint();
+            repaintView();
         }
     }
 
@@ -602,6 +602,13 @@ public class JMapViewer extends JPanel implements TileLoaderListener {
         // calculate the length of the grid (number of squares per edge)
         int gridLength = 1 << zoom;
 
+        // visible tiles are loaded first, tiles around the viewport in advance afterwards
+        int visibleXMin = Math.floorDiv(center.x - w2, tilesize);
+        int visibleYMin = Math.floorDiv(center.y - h2, tilesize);
+        int visibleXMax = (center.x + w2) / tilesize;
+        int visibleYMax = (center.y + h2) / tilesize;
+        tileController.setVisibleTiles(visibleXMin, visibleYMin, visibleXMax, visibleYMax, zoom);
+
         // paint the tiles in a spiral, starting from center of the map
         boolean painted = true;
         int x = 0;
@@ -639,6 +646,8 @@ public class JMapViewer extends JPanel implements TileLoaderListener {
                 iMove = (iMove + 1) % move.length;
             }
         }
+        tileController.prefetch();
+
         // outer border of the map
         int mapSize = tilesize << zoom;
         if (scrollWrapEnabled) {
@@ -817,7 +826,7 @@ public class JMapViewer extends JPanel implements TileLoaderListener {
         tileController.cancelOutstandingJobs(); // Clear outstanding load
         center.x += x;
         center.y += y;
-        repaint();
+        repaintView();
         this.fireJMVEvent(new JMVCommandEvent(COMMAND.MOVE, this));
     }
 
@@ -1111,6 +1120,14 @@ public class JMapViewer extends JPanel implements TileLoaderListener {
     @Override
     public void tileLoadingFinished(Tile tile, boolean success) {
         tile.setLoaded(success);
+        repaintView();
+    }
+
+    /**
+     * Repaints the map after the displayed area has changed or tiles have
+     * been loaded, while the content displayed on top of the map is unchanged.
+     */
+    protected void repaintView() {
         repaint();
     }
 
@@ -9,11 +9,11 @@ import java.io.FileOutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 
 import org.openstreetmap.gui.jmapviewer.interfaces.TileJob;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
@@ -26,81 +26,100 @@ import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
  */
 public class OsmTileLoader implements TileLoader {
     private static boolean debug = false;
-    private static final ThreadPoolExecutor jobDispatcher = (ThreadPoolExecutor) Executors.newFixedThreadPool(3);
 
-    private final class OsmTileJob implements TileJob {
+    /**
+     * priority of tiles currently shown
+     */
+    public static final int PRIORITY_VISIBLE = 0;
+
+    /**
+     * lowest priority of tiles loaded in advance. higher values are loaded later.
+     */
+    public static final int PRIORITY_PREFETCH = 10;
+
+    private final class OsmTileJob implements TileJob, TileDispatcher.Job {
         private final Tile tile;
+        private final int priority;
         private InputStream input;
         private boolean force;
+        private long submitted;
+        private boolean success = false;
+        // other tile instances with the same key, loaded by this job
+        private List<Tile> followers = null;
 
-        private OsmTileJob(Tile tile) {
+        private OsmTileJob(Tile tile, int priority) {
             this.tile = tile;
+            this.priority = priority;
         }
 
         @Override
         public void run() {
             synchronized (tile) {
-                if ((tile.isLoaded() && !tile.hasError()) || tile.isLoading())
+                if ((tile.isLoaded() && !tile.hasError()) || tile.isLoading()) {
+                    success = !tile.hasError();
                     return;
+                }
                 tile.loaded = false;
                 tile.error = false;
                 tile.loading = true;
             }
+            long start = System.currentTimeMillis();
+            tile.putValue("wait-time", Long.toString(start - submitted));
             try {
-                String cachedFilePath = tile.getCachedFilePath();
-        if (cachedFilePath != null) {
-            try {
-            File file = new File(cachedFilePath);
-            if (file.exists()) {
-                if (debug) System.out.println("OsmTileLoader: found on disk=" + cachedFilePath);
-                input = new FileInputStream(file);
-                tile.loadImage(input);
-                tile.setLoaded(true);
-                listener.tileLoadingFinished(tile, true);
-                return;
-            }
-            } catch (Exception e) {
-            e.printStackTrace();
-            }
-        }
-                if (debug) System.out.println("OsmTileLoader: cachedFilePath=" + cachedFilePath);
+                if (!force && loadFromCache(tile)) {
+                    tile.putValue("source", "cache");
+                    success = true;
+                    tile.setLoaded(true);
+                    listener.tileLoadingFinished(tile, true);
+                    return;
+                }
                 URLConnection conn = getUrlConnection(tile);
+                boolean validating = false;
                 if (force) {
                     conn.setUseCaches(false);
+                } else {
+                    validating = addCacheValidators(tile, conn);
                 }
                 loadTileMetadata(tile, conn);
+                if (validating && conn instanceof HttpURLConnection
+                        && ((HttpURLConnection) conn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    if (loadFromStaleCache(tile)) {
+                        tile.putValue("source", "revalidated");
+                        success = true;
+                        tile.setLoaded(true);
+                        listener.tileLoadingFinished(tile, true);
+                        return;
+                    }
+                    // cached version is gone, request again unconditionally
+                    conn = getUrlConnection(tile);
+                    loadTileMetadata(tile, conn);
+                }
                 if ("no-tile".equals(tile.getValue("tile-info"))) {
                     tile.setError("No tile at this zoom level");
                 } else {
                     input = conn.getInputStream();
                     try {
-            if (cachedFilePath != null) {
-                File file = new File(cachedFilePath);
-                file.getParentFile().mkdirs();
-                try (FileOutputStream fos = new FileOutputStream(file)) {
-                byte[] buff = new byte[20 * 1024];
-                int len = input.read(buff);
-                while (len > 0) {
-                    fos.write(buff, 0, len);
-                    len = input.read(buff);
-                }
-                fos.close();
-                input.close();
-                input = new FileInputStream(file);
-                } catch (Exception e) {
-                e.printStackTrace();
-                }
-            }
+                        input = saveToCache(tile, input);
             if (debug) System.out.println("OsmTileLoader: input=" + input);
                         tile.loadImage(input);
                     } finally {
                         input.close();
                         input = null;
                     }
+                    tile.putValue("source", "download");
                 }
+                success = !tile.hasError();
                 tile.setLoaded(true);
                 listener.tileLoadingFinished(tile, true);
             } catch (IOException e) {
+                if (loadFromExpiredCache(tile)) {
+                    // i.e. offline: show the expired version instead of an error
+                    tile.putValue("source", "expired");
+                    success = true;
+                    tile.setLoaded(true);
+                    listener.tileLoadingFinished(tile, true);
+                    return;
+                }
                 tile.setError(e.getMessage());
                 listener.tileLoadingFinished(tile, false);
                 if (input == null) {
@@ -112,11 +131,64 @@ public class OsmTileLoader implements TileLoader {
                     }
                 }
             } finally {
+                tile.putValue("load-time", Long.toString(System.currentTimeMillis() - start));
                 tile.loading = false;
                 tile.setLoaded(true);
             }
         }
 
+        @Override
+        public String getKey() {
+            return tile.getKey();
+        }
+
+        @Override
+        public String getHost() {
+            try {
+                return new URL(tile.getUrl()).getHost();
+            } catch (IOException e) {
+                return "";
+            }
+        }
+
+        @Override
+        public boolean coalesce(TileDispatcher.Job other) {
+            if (!(other instanceof OsmTileJob)) {
+                return false;
+            }
+            OsmTileJob job = (OsmTileJob) other;
+            if (job.force && !force) {
+                return false; // cached version is not wanted
+            }
+            if (job.tile != tile) {
+                if (followers == null) {
+                    followers = new ArrayList<>();
+                }
+                followers.add(job.tile);
+            }
+            return true;
+        }
+
+        @Override
+        public void finish() {
+            if (followers == null) {
+                return;
+            }
+            for (Tile follower : followers) {
+                synchronized (follower) {
+                    if (follower.isLoaded() || follower.isLoading()) {
+                        continue;
+                    }
+                    follower.setImage(tile.getImage());
+                    follower.getMetadata().putAll(tile.getMetadata());
+                    follower.error = tile.error;
+                    follower.error_message = tile.error_message;
+                    follower.setLoaded(true);
+                }
+                listener.tileLoadingFinished(follower, success);
+            }
+        }
+
         @Override
         public Tile getTile() {
             return tile;
@@ -130,7 +202,8 @@ public class OsmTileLoader implements TileLoader {
         @Override
         public void submit(boolean force) {
             this.force = force;
-            jobDispatcher.execute(this);
+            this.submitted = System.currentTimeMillis();
+            dispatcher.submit(this, priority);
         }
     }
 
@@ -144,6 +217,8 @@ public class OsmTileLoader implements TileLoader {
 
     protected TileLoaderListener listener;
 
+    protected TileDispatcher dispatcher = TileDispatcher.getDefault();
+
     public OsmTileLoader(TileLoaderListener listener) {
         this(listener, null);
     }
@@ -159,7 +234,107 @@ public class OsmTileLoader implements TileLoader {
 
     @Override
     public TileJob createTileLoaderJob(final Tile tile) {
-        return new OsmTileJob(tile);
+        return new OsmTileJob(tile, PRIORITY_VISIBLE);
+    }
+
+    @Override
+    public TileJob createTileLoaderJob(final Tile tile, int priority) {
+        return new OsmTileJob(tile, priority);
+    }
+
+    /**
+     * Loads the tile image from the local cache, if present. The default
+     * implementation uses one file per tile, as given by {@link Tile#getCachedFilePath()}.
+     *
+     * @param tile tile to load
+     * @return <code>true</code> if the image has been loaded from the cache
+     */
+    protected boolean loadFromCache(Tile tile) {
+        try {
+            String cachedFilePath = tile.getCachedFilePath();
+            if (debug) System.out.println("OsmTileLoader: cachedFilePath=" + cachedFilePath);
+            if (cachedFilePath != null) {
+                File file = new File(cachedFilePath);
+                if (file.exists()) {
+                    if (debug) System.out.println("OsmTileLoader: found on disk=" + cachedFilePath);
+                    try (InputStream input = new FileInputStream(file)) {
+                        tile.loadImage(input);
+                    }
+                    return true;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Stores the downloaded tile in the local cache. The default
+     * implementation writes one file per tile, as given by {@link Tile#getCachedFilePath()}.
+     *
+     * @param tile tile being loaded. metadata from the HTTP headers is already set.
+     * @param input stream of the downloaded image
+     * @return stream to read the image from
+     * @throws IOException
+     */
+    protected InputStream saveToCache(Tile tile, InputStream input) throws IOException {
+        String cachedFilePath = tile.getCachedFilePath();
+        if (cachedFilePath != null) {
+            File file = new File(cachedFilePath);
+            file.getParentFile().mkdirs();
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                byte[] buff = new byte[20 * 1024];
+                int len = input.read(buff);
+                while (len > 0) {
+                    fos.write(buff, 0, len);
+                    len = input.read(buff);
+                }
+                fos.close();
+                input.close();
+                return new FileInputStream(file);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return input;
+    }
+
+    /**
+     * Adds validators of an expired cached version of the tile (<code>ETag</code>,
+     * <code>Last-Modified</code>) to the request, so the server can confirm
+     * the cached version is still valid instead of sending it again.
+     * The default implementation does nothing, since cached files never expire.
+     *
+     * @param tile tile to load
+     * @param conn connection to the tile server, not connected yet
+     * @return <code>true</code> if validators have been added
+     */
+    protected boolean addCacheValidators(Tile tile, URLConnection conn) {
+        return false;
+    }
+
+    /**
+     * Loads the expired cached version of the tile after the server
+     * confirmed it is still valid (HTTP 304). Metadata from the response
+     * headers (i.e. the new expiry time) is already set.
+     *
+     * @param tile tile to load
+     * @return <code>true</code> if the image has been loaded from the cache
+     */
+    protected boolean loadFromStaleCache(Tile tile) {
+        return false;
+    }
+
+    /**
+     * Loads the expired cached version of the tile after it could not
+     * be downloaded, without changing its expiry time.
+     *
+     * @param tile tile to load
+     * @return <code>true</code> if the image has been loaded from the cache
+     */
+    protected boolean loadFromExpiredCache(Tile tile) {
+        return false;
     }
 
     protected URLConnection getUrlConnection(Tile tile) throws IOException {
@@ -182,6 +357,15 @@ public class OsmTileLoader implements TileLoader {
             tile.putValue("tile-info", str);
         }
 
+        str = urlConn.getHeaderField("ETag");
+        if (str != null) {
+            tile.putValue("etag", str);
+        }
+        str = urlConn.getHeaderField("Last-Modified");
+        if (str != null) {
+            tile.putValue("last-modified", str);
+        }
+
         Long lng = urlConn.getExpiration();
         if (lng.equals(0L)) {
             try {
@@ -223,14 +407,38 @@ public class OsmTileLoader implements TileLoader {
 
     @Override
     public void cancelOutstandingTasks() {
-        jobDispatcher.getQueue().clear();
+        dispatcher.cancel();
+    }
+
+    @Override
+    public void cancelPrefetchTasks() {
+        dispatcher.cancel(PRIORITY_PREFETCH);
+    }
+
+    @Override
+    public void startNewGeneration() {
+        dispatcher.newGeneration();
+    }
+
+    /**
+     * @return dispatcher running the jobs of this loader
+     */
+    public TileDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * @param dispatcher dispatcher to run the jobs of this loader
+     */
+    public void setDispatcher(TileDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
     }
 
     /**
-     * Sets the maximum number of concurrent connections the tile loader will do
+     * Sets the maximum number of concurrent connections per host the tile loader will do
      * @param num number of conncurent connections
      */
     public static void setConcurrentConnections(int num) {
-        jobDispatcher.setMaximumPoolSize(num);
+        TileDispatcher.getDefault().setConnectionsPerHost(num);
     }
 }
@@ -1,16 +1,65 @@
 // License: GPL. For details, see Readme.txt file.
 package org.openstreetmap.gui.jmapviewer;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 import org.openstreetmap.gui.jmapviewer.interfaces.TileCache;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileLoader;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
 
 public class TileController {
+
+    /**
+     * number of tile rows/columns loaded in advance around the viewport
+     */
+    public static final int PREFETCH_RING = 1;
+
+    /**
+     * number of additional tile rows/columns loaded in advance in pan direction
+     */
+    public static final int PREFETCH_LOOKAHEAD = 2;
+
+    /**
+     * tile to be loaded in advance
+     */
+    private static class PrefetchTile {
+        private final int x;
+        private final int y;
+        private final int zoom;
+        private final int priority;
+
+        private PrefetchTile(int x, int y, int zoom, int priority) {
+            this.x = x;
+            this.y = y;
+            this.zoom = zoom;
+            this.priority = priority;
+        }
+    }
+
     protected TileLoader tileLoader;
     protected TileCache tileCache;
     protected TileSource tileSource;
 
+    private boolean prefetchEnabled = true;
+    // area to be preferred when prefetching, i.e. bounds of the active track
+    private double areaNorth = Double.NaN;
+    private double areaWest;
+    private double areaSouth;
+    private double areaEast;
+    // visible tiles, and direction the map has been moved to
+    private boolean prefetchValid = false;
+    private int lastZoom = -1;
+    private int lastXMin;
+    private int lastYMin;
+    private int lastXMax;
+    private int lastYMax;
+    private int dirX = 0;
+    private int dirY = 0;
+
     public TileController(TileSource source, TileCache tileCache, TileLoaderListener listener) {
         this.tileSource = source;
         this.tileLoader = new OsmTileLoader(listener);
@@ -28,15 +77,9 @@ public class TileController {
      *         was not found in the cache.
      */
     public Tile getTile(int tilex, int tiley, int zoom) {
-        int max = 1 << zoom;
-        if (tilex < 0 || tilex >= max || tiley < 0 || tiley >= max)
+        Tile tile = getOrCreateTile(tilex, tiley, zoom);
+        if (tile == null)
             return null;
-        Tile tile = tileCache.getTile(tileSource, tilex, tiley, zoom);
-        if (tile == null) {
-            tile = new Tile(tileSource, tilex, tiley, zoom);
-            tileCache.addTile(tile);
-            tile.loadPlaceholderFromCache(tileCache);
-        }
         if (tile.error) {
             tile.loadPlaceholderFromCache(tileCache);
         }
@@ -46,6 +89,164 @@ public class TileController {
         return tile;
     }
 
+    /**
+     * Set the tiles currently visible. Call this before requesting them:
+     * if the viewport has changed, the jobs for the visible tiles are
+     * processed before those of viewports already left.
+     *
+     * @param tileXMin first visible tile column
+     * @param tileYMin first visible tile row
+     * @param tileXMax last visible tile column
+     * @param tileYMax last visible tile row
+     * @param zoom current zoom level
+     */
+    public void setVisibleTiles(int tileXMin, int tileYMin, int tileXMax, int tileYMax, int zoom) {
+        boolean moved = zoom != lastZoom || tileXMin != lastXMin || tileYMin != lastYMin
+                || tileXMax != lastXMax || tileYMax != lastYMax;
+        if (!moved) {
+            return;
+        }
+        // tiles of the new viewport first
+        tileLoader.startNewGeneration();
+        dirX = 0;
+        dirY = 0;
+        if (zoom == lastZoom) {
+            dirX = Integer.signum(tileXMin + tileXMax - lastXMin - lastXMax);
+            dirY = Integer.signum(tileYMin + tileYMax - lastYMin - lastYMax);
+        }
+        // remember the viewport even if prefetching is disabled,
+        // so a new generation is only started when it changes
+        lastZoom = zoom;
+        lastXMin = tileXMin;
+        lastYMin = tileYMin;
+        lastXMax = tileXMax;
+        lastYMax = tileYMax;
+        prefetchValid = false;
+    }
+
+    /**
+     * Loads tiles which are likely to be shown next: a ring around the
+     * visible tiles, extended in the direction the map has been moved to, and
+     * the tiles covering the viewport on the next lower and higher zoom level.
+     * Tiles within the prefetch area are preferred.
+     * <p>
+     * Call this after the visible tiles given by {@link #setVisibleTiles}
+     * have been requested. Prefetch jobs are processed after all visible
+     * tiles, prefetch jobs from a previous viewport are cancelled.
+     * The number of tiles loaded in advance is limited to the space left
+     * in the tile cache by the visible tiles, so prefetching doesn't
+     * evict tiles currently shown.
+     */
+    public void prefetch() {
+        if (!prefetchEnabled || prefetchValid || lastZoom < 0) {
+            return;
+        }
+        prefetchValid = true;
+
+        tileLoader.cancelPrefetchTasks();
+
+        int zoom = lastZoom;
+        int visible = (lastXMax - lastXMin + 1) * (lastYMax - lastYMin + 1);
+        int capacity = tileCache.getCacheSize() - visible;
+        if (capacity <= 0) {
+            return;
+        }
+        List<PrefetchTile> tiles = new ArrayList<>();
+
+        // current zoom level
+        int[] area = getAreaTiles(zoom);
+        int xFrom = lastXMin - PREFETCH_RING - (dirX < 0 ? PREFETCH_LOOKAHEAD : 0);
+        int xTo = lastXMax + PREFETCH_RING + (dirX > 0 ? PREFETCH_LOOKAHEAD : 0);
+        int yFrom = lastYMin - PREFETCH_RING - (dirY < 0 ? PREFETCH_LOOKAHEAD : 0);
+        int yTo = lastYMax + PREFETCH_RING + (dirY > 0 ? PREFETCH_LOOKAHEAD : 0);
+        for (int x = xFrom; x <= xTo; x++) {
+            for (int y = yFrom; y <= yTo; y++) {
+                int dist = Math.max(distance(x, lastXMin, lastXMax), distance(y, lastYMin, lastYMax));
+                if (dist == 0) {
+                    continue; // visible
+                }
+                int priority = OsmTileLoader.PRIORITY_PREFETCH + 2 * dist;
+                if ((dirX > 0 && x > lastXMax) || (dirX < 0 && x < lastXMin)
+                        || (dirY > 0 && y > lastYMax) || (dirY < 0 && y < lastYMin)) {
+                    priority -= 2; // ahead in pan direction
+                }
+                if (area != null && x >= area[0] && x <= area[2] && y >= area[1] && y <= area[3]) {
+                    priority -= 1;
+                }
+                tiles.add(new PrefetchTile(x, y, zoom, Math.max(priority, OsmTileLoader.PRIORITY_PREFETCH)));
+            }
+        }
+
+        // next lower zoom level, covering the whole viewport
+        if (zoom > tileSource.getMinZoom()) {
+            for (int x = lastXMin >> 1; x <= lastXMax >> 1; x++) {
+                for (int y = lastYMin >> 1; y <= lastYMax >> 1; y++) {
+                    tiles.add(new PrefetchTile(x, y, zoom - 1, OsmTileLoader.PRIORITY_PREFETCH + 2));
+                }
+            }
+        }
+
+        // next higher zoom level, covering the center half of the viewport
+        if (zoom < tileSource.getMaxZoom()) {
+            int dx = (lastXMax - lastXMin) / 4;
+            int dy = (lastYMax - lastYMin) / 4;
+            for (int x = 2 * (lastXMin + dx); x <= 2 * (lastXMax - dx) + 1; x++) {
+                for (int y = 2 * (lastYMin + dy); y <= 2 * (lastYMax - dy) + 1; y++) {
+                    tiles.add(new PrefetchTile(x, y, zoom + 1, OsmTileLoader.PRIORITY_PREFETCH + 4));
+                }
+            }
+        }
+
+        // most important tiles first, if not all of them fit into the cache
+        if (tiles.size() > capacity) {
+            Collections.sort(tiles, new Comparator<PrefetchTile>() {
+                @Override
+                public int compare(PrefetchTile a, PrefetchTile b) {
+                    return Integer.compare(a.priority, b.priority);
+                }
+            });
+            tiles = tiles.subList(0, capacity);
+        }
+        for (PrefetchTile tile : tiles) {
+            prefetchTile(tile.x, tile.y, tile.zoom, tile.priority);
+        }
+    }
+
+    /**
+     * Set the area to be preferred when loading tiles in advance,
+     * i.e. the bounds of the currently active track.
+     *
+     * @param north
+     * @param west
+     * @param south
+     * @param east
+     */
+    public void setPrefetchArea(double north, double west, double south, double east) {
+        areaNorth = north;
+        areaWest = west;
+        areaSouth = south;
+        areaEast = east;
+    }
+
+    /**
+     * No area is preferred when loading tiles in advance
+     */
+    public void clearPrefetchArea() {
+        areaNorth = Double.NaN;
+    }
+
+    public boolean isPrefetchEnabled() {
+        return prefetchEnabled;
+    }
+
+    public void setPrefetchEnabled(boolean prefetchEnabled) {
+        this.prefetchEnabled = prefetchEnabled;
+        if (!prefetchEnabled) {
+            tileLoader.cancelPrefetchTasks();
+            prefetchValid = false;
+        }
+    }
+
     public TileCache getTileCache() {
         return tileCache;
     }
@@ -80,5 +281,56 @@ public class TileController {
      */
     public void cancelOutstandingJobs() {
         tileLoader.cancelOutstandingTasks();
+        prefetchValid = false; // prefetch jobs are gone as well
+    }
+
+    /**
+     * get a tile from the cache, or create it if not present
+     * @return the tile or <code>null</code> if the position is outside of the map
+     */
+    private Tile getOrCreateTile(int tilex, int tiley, int zoom) {
+        int max = 1 << zoom;
+        if (tilex < 0 || tilex >= max || tiley < 0 || tiley >= max)
+            return null;
+        Tile tile = tileCache.getTile(tileSource, tilex, tiley, zoom);
+        if (tile == null) {
+            tile = new Tile(tileSource, tilex, tiley, zoom);
+            tileCache.addTile(tile);
+            tile.loadPlaceholderFromCache(tileCache);
+        }
+        return tile;
+    }
+
+    private void prefetchTile(int tilex, int tiley, int zoom, int priority) {
+        Tile tile = getOrCreateTile(tilex, tiley, zoom);
+        if (tile != null && !tile.isLoaded() && !tile.isLoading()) {
+            tileLoader.createTileLoaderJob(tile, priority).submit();
+        }
+    }
+
+    /**
+     * @return distance of the given row or column to the range [min, max], in tiles
+     */
+    private static int distance(int value, int min, int max) {
+        if (value < min) {
+            return min - value;
+        }
+        if (value > max) {
+            return value - max;
+        }
+        return 0;
+    }
+
+    /**
+     * @return tile range {xMin, yMin, xMax, yMax} of the prefetch area
+     * or <code>null</code> if no area is set
+     */
+    private int[] getAreaTiles(int zoom) {
+        if (Double.isNaN(areaNorth)) {
+            return null;
+        }
+        TileXY nw = tileSource.latLonToTileXY(areaNorth, areaWest, zoom);
+        TileXY se = tileSource.latLonToTileXY(areaSouth, areaEast, zoom);
+        return new int[] {nw.getXIndex(), nw.getYIndex(), se.getXIndex(), se.getYIndex()};
     }
 }
@@ -0,0 +1,326 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Schedules tile loading jobs.
+ * <p>
+ * Jobs are queued per host, and at most {@link #getConnectionsPerHost()}
+ * jobs are running for the same host at any time. Within a host, jobs
+ * are ordered by priority (lower values first), then by generation (newest
+ * first), so tiles of the most recently shown viewport are loaded before
+ * tiles of viewports already left. Jobs of the same generation are run in
+ * order of submission.
+ * <p>
+ * A job submitted while another job with the same key is queued or running
+ * is coalesced into that job instead of being queued twice.
+ *
+ * @author rfu
+ */
+public class TileDispatcher {
+
+    public static final int DEFAULT_CONNECTIONS_PER_HOST = 2;
+
+    private static final TileDispatcher defaultDispatcher = new TileDispatcher(DEFAULT_CONNECTIONS_PER_HOST);
+
+    /**
+     * A job scheduled by the {@link TileDispatcher}
+     */
+    public interface Job extends Runnable {
+
+        /**
+         * @return key identifying the resource loaded by this job, i.e. {@link Tile#getKey()}
+         */
+        String getKey();
+
+        /**
+         * @return host the resource is loaded from
+         */
+        String getHost();
+
+        /**
+         * Called when a job with the same key is submitted while this job
+         * is queued or running.
+         *
+         * @param other the job submitted later
+         * @return <code>true</code> if this job takes care of the other one,
+         * <code>false</code> if the other job has to be queued separately
+         */
+        boolean coalesce(Job other);
+
+        /**
+         * Called after {@link #run()}, when no more jobs can be coalesced into this one
+         */
+        void finish();
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final Job job;
+        private final String host;
+        private int priority;
+        private long generation;
+        private long sequence;
+        private long submitted;
+        private boolean running = false;
+
+        private Entry(Job job, String host) {
+            this.job = job;
+            this.host = host;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (priority != other.priority) {
+                return (priority < other.priority) ? -1 : 1;
+            }
+            if (generation != other.generation) {
+                return (generation > other.generation) ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static class Host {
+        private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+        private int running = 0;
+    }
+
+    private final ExecutorService executor;
+    private final Map<String, Host> hosts = new HashMap<>();
+    private final Map<String, Entry> inFlight = new HashMap<>();
+    private int connectionsPerHost;
+    private long generation = 0;
+    private long sequence = 0;
+
+    // metrics
+    private long jobCount = 0;
+    private long coalescedCount = 0;
+    private long totalWaitMillis = 0;
+    private long totalRunMillis = 0;
+    private long maxRunMillis = 0;
+
+    /**
+     * @param connectionsPerHost maximum number of concurrent jobs per host
+     */
+    public TileDispatcher(int connectionsPerHost) {
+        this.connectionsPerHost = connectionsPerHost;
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TileDispatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return dispatcher shared by all {@link OsmTileLoader}s
+     */
+    public static TileDispatcher getDefault() {
+        return defaultDispatcher;
+    }
+
+    /**
+     * Queues a job.
+     *
+     * @param job job to run
+     * @param priority jobs with lower values are run first
+     */
+    public synchronized void submit(Job job, int priority) {
+        String key = job.getKey();
+        Entry existing = inFlight.get(key);
+        if (existing != null && existing.job.coalesce(job)) {
+            coalescedCount++;
+            if (!existing.running && (priority < existing.priority || existing.generation < generation)) {
+                // requested again: move up in the queue
+                Host host = hosts.get(existing.host);
+                host.queue.remove(existing);
+                existing.priority = Math.min(priority, existing.priority);
+                existing.generation = generation;
+                existing.sequence = sequence++;
+                host.queue.add(existing);
+            }
+            return;
+        }
+
+        Entry entry = new Entry(job, job.getHost());
+        entry.priority = priority;
+        entry.generation = generation;
+        entry.sequence = sequence++;
+        entry.submitted = System.currentTimeMillis();
+        if (existing == null) {
+            inFlight.put(key, entry);
+        }
+        Host host = hosts.get(entry.host);
+        if (host == null) {
+            host = new Host();
+            hosts.put(entry.host, host);
+        }
+        host.queue.add(entry);
+        startWorkers(host);
+    }
+
+    /**
+     * Jobs submitted from now on are run before all queued
+     * jobs of the same priority.
+     */
+    public synchronized void newGeneration() {
+        generation++;
+    }
+
+    /**
+     * Removes all queued jobs which are not running yet
+     */
+    public void cancel() {
+        cancel(Integer.MIN_VALUE);
+    }
+
+    /**
+     * Removes all queued jobs with the given or a lower priority (i.e. higher value)
+     * which are not running yet
+     *
+     * @param minPriority
+     */
+    public synchronized void cancel(int minPriority) {
+        for (Host host : hosts.values()) {
+            Iterator<Entry> iter = host.queue.iterator();
+            while (iter.hasNext()) {
+                Entry entry = iter.next();
+                if (entry.priority >= minPriority) {
+                    iter.remove();
+                    if (inFlight.get(entry.job.getKey()) == entry) {
+                        inFlight.remove(entry.job.getKey());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return maximum number of concurrent jobs per host
+     */
+    public synchronized int getConnectionsPerHost() {
+        return connectionsPerHost;
+    }
+
+    /**
+     * @param connectionsPerHost maximum number of concurrent jobs per host
+     */
+    public synchronized void setConnectionsPerHost(int connectionsPerHost) {
+        this.connectionsPerHost = connectionsPerHost;
+        for (Host host : hosts.values()) {
+            startWorkers(host);
+        }
+    }
+
+    /**
+     * @return number of jobs waiting to be run
+     */
+    public synchronized int getQueueSize() {
+        int size = 0;
+        for (Host host : hosts.values()) {
+            size += host.queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return number of jobs run
+     */
+    public synchronized long getJobCount() {
+        return jobCount;
+    }
+
+    /**
+     * @return number of jobs coalesced into already queued or running jobs
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return mean time between submission and start of a job, in milliseconds
+     */
+    public synchronized double getMeanWaitTime() {
+        return (jobCount == 0) ? 0 : totalWaitMillis / (double) jobCount;
+    }
+
+    /**
+     * @return mean run time of a job, in milliseconds
+     */
+    public synchronized double getMeanRunTime() {
+        return (jobCount == 0) ? 0 : totalRunMillis / (double) jobCount;
+    }
+
+    /**
+     * @return maximum run time of a job, in milliseconds
+     */
+    public synchronized long getMaxRunTime() {
+        return maxRunMillis;
+    }
+
+    /**
+     * start workers for the given host up to the connection limit
+     */
+    private void startWorkers(final Host host) {
+        while (host.running < connectionsPerHost && host.running < host.queue.size()) {
+            host.running++;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    work(host);
+                }
+            });
+        }
+    }
+
+    /**
+     * run jobs of the given host until its queue is empty
+     */
+    private void work(Host host) {
+        while (true) {
+            Entry entry;
+            long start = System.currentTimeMillis();
+            synchronized (this) {
+                if (host.running > connectionsPerHost) {
+                    host.running--; // limit has been lowered
+                    return;
+                }
+                entry = host.queue.poll();
+                if (entry == null) {
+                    host.running--;
+                    return;
+                }
+                entry.running = true;
+                totalWaitMillis += start - entry.submitted;
+            }
+            try {
+                entry.job.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            long runMillis = System.currentTimeMillis() - start;
+            synchronized (this) {
+                if (inFlight.get(entry.job.getKey()) == entry) {
+                    inFlight.remove(entry.job.getKey());
+                }
+                jobCount++;
+                totalRunMillis += runMillis;
+                maxRunMillis = Math.max(maxRunMillis, runMillis);
+            }
+            try {
+                entry.job.finish();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
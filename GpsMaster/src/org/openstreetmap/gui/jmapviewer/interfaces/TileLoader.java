@@ -21,9 +21,32 @@ public interface TileLoader {
      */
     TileJob createTileLoaderJob(Tile tile);
 
+    /**
+     * Create a job with the given priority. Jobs with lower values are
+     * processed first.
+     *
+     * @param tile the tile to be loaded
+     * @param priority priority of the job
+     * @return {@link TileJob} implementation that performs the desired load
+     *          action.
+     */
+    TileJob createTileLoaderJob(Tile tile, int priority);
+
     /**
      * cancels all outstanding tasks in the queue. This should rollback the state of the tiles in the queue
      * to loading = false / loaded = false
      */
     void cancelOutstandingTasks();
+
+    /**
+     * cancels all outstanding tasks loading tiles in advance, i.e. because
+     * the viewport has changed and they are no longer likely to be shown.
+     */
+    void cancelPrefetchTasks();
+
+    /**
+     * Tasks created from now on are processed before all outstanding tasks
+     * of the same priority, i.e. because the viewport has changed.
+     */
+    void startNewGeneration();
 }
@@ -0,0 +1,157 @@
+package org.gpsmaster.painter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.gpsmaster.gpxpanel.ArrowType;
+import org.gpsmaster.gpxpanel.GPXFile;
+import org.gpsmaster.gpxpanel.Route;
+import org.gpsmaster.gpxpanel.Track;
+import org.gpsmaster.gpxpanel.Waypoint;
+import org.gpsmaster.gpxpanel.WaypointGroup;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.Coordinate;
+import org.openstreetmap.gui.jmapviewer.JMapViewer;
+import org.openstreetmap.gui.jmapviewer.MemoryTileCache;
+
+/**
+ * Tests that the painters supporting tiles ({@link Painter#isTileable()})
+ * paint the same image when painting tile by tile, each tile clipped,
+ * as when painting the whole image at once.
+ *
+ * @author rfu
+ */
+public class TiledPaintingTest {
+
+    private static final int WIDTH = 900;
+    private static final int HEIGHT = 700;
+    private static final int TILE_SIZE = 128;
+
+    private JMapViewer viewer;
+    private GPXFile gpx;
+
+    @Before
+    public void setUp() {
+        viewer = new JMapViewer(new MemoryTileCache());
+        viewer.setSize(WIDTH, HEIGHT);
+        viewer.setDisplayPosition(new Coordinate(47.0, 15.0), 14);
+
+        gpx = new GPXFile("test");
+        Track track = new Track(Color.RED);
+        WaypointGroup seg = track.addTrackseg();
+        // zigzag across the visible area, many more vertices than fit into a path section
+        for (int i = 0; i < 2000; i++) {
+            double lat = 46.98 + 0.04 * i / 2000.0;
+            double lon = 14.97 + ((i % 2 == 0) ? 0.0 : 0.06) + 0.00001 * i;
+            seg.addWaypoint(new Waypoint(lat, lon));
+        }
+        gpx.addTrack(track);
+
+        Route route = gpx.addRoute();
+        for (int i = 0; i < 1500; i++) {
+            double angle = i * 0.02;
+            route.getPath().addWaypoint(new Waypoint(47.0 + 0.015 * Math.sin(angle), 15.0 + 0.02 * Math.cos(angle * 1.01)));
+        }
+        gpx.updateAllProperties();
+    }
+
+    @Test
+    public void trackPainterTiledEqualsSerial() {
+        TrackPainter painter = new TrackPainter(viewer);
+        assertTrue(painter.isTileable());
+        assertSameImage(painter);
+    }
+
+    @Test
+    public void onTrackArrowsTiledEqualsSerial() {
+        assertSameImage(makeArrowPainter(ArrowType.ONTRACK));
+    }
+
+    @Test
+    public void parallelArrowsTiledEqualsSerial() {
+        assertSameImage(makeArrowPainter(ArrowType.PARALLEL));
+    }
+
+    private ArrowPainter makeArrowPainter(ArrowType type) {
+        ArrowPainter painter = new ArrowPainter();
+        painter.setMapViewer(viewer);
+        painter.setArrowType(type);
+        assertTrue(painter.isTileable());
+        return painter;
+    }
+
+    /**
+     * paint with the given painter serially and in tiles and compare the results
+     * @param painter
+     */
+    private void assertSameImage(Painter painter) {
+        painter.setCoordinator(new PaintCoordinator());
+        BufferedImage serial = newImage();
+        Graphics2D g2d = createGraphics(serial);
+        painter.paint(g2d, gpx);
+        g2d.dispose();
+
+        painter.setCoordinator(new PaintCoordinator());
+        BufferedImage tiled = newImage();
+        g2d = createGraphics(tiled);
+        for (int y = 0; y < HEIGHT; y += TILE_SIZE) {
+            for (int x = 0; x < WIDTH; x += TILE_SIZE) {
+                Graphics2D tileGraphics = (Graphics2D) g2d.create();
+                tileGraphics.clip(new Rectangle(x, y, TILE_SIZE, TILE_SIZE));
+                painter.paint(tileGraphics, gpx);
+                tileGraphics.dispose();
+            }
+        }
+        g2d.dispose();
+
+        int painted = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int expected = serial.getRGB(x, y);
+                assertEquals("pixel " + x + "," + y, expected, tiled.getRGB(x, y));
+                if (expected != 0) {
+                    painted++;
+                }
+            }
+        }
+        assertTrue("nothing painted", painted > 0);
+    }
+
+    private BufferedImage newImage() {
+        return new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB_PRE);
+    }
+
+    /**
+     * same settings as used by the overlay renderer
+     */
+    private Graphics2D createGraphics(BufferedImage image) {
+        Graphics2D g2d = image.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+        g2d.setColor(Color.BLACK);
+        return g2d;
+    }
+
+    /**
+     * the path is split into sections, check that the test covers this
+     */
+    @Test
+    public void pathIsSplitIntoSections() {
+        WaypointGroup seg = gpx.getTracks().get(0).getTracksegs().get(0);
+        ProjectionCache cache = new ProjectionCache();
+        List<ProjectionCache.Section> sections = new ArrayList<ProjectionCache.Section>(
+                cache.get(seg, viewer.getTileController().getTileSource(), viewer.getZoom()).getSections());
+        assertTrue(sections.size() > 2);
+        assertEquals(0.0, sections.get(0).getOffset(), 0.0);
+        assertTrue(sections.get(1).getOffset() > 0);
+    }
+}
@@ -0,0 +1,379 @@
+// License: GPL. For details, see Readme.txt file.
+package org.openstreetmap.gui.jmapviewer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
+import org.openstreetmap.gui.jmapviewer.tilesources.TMSTileSource;
+import org.openstreetmap.gui.jmapviewer.tilesources.TileSourceInfo;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests {@link TileDispatcher} and the revalidation of {@link DiskTileLoader}
+ * against a local stub tile server.
+ * <p>
+ * The server serves the same small image for every tile path. Requests
+ * can be held back until {@link #openGate()} is called, to control which
+ * jobs are running while others are submitted.
+ *
+ * @author rfu
+ */
+public class TileDispatcherTest {
+
+    private static final long TIMEOUT = 10000;
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Tue, 01 Sep 2015 10:00:00 GMT";
+
+    /**
+     * Stub tile server recording requests
+     */
+    private static class TileServer implements HttpHandler {
+        private final HttpServer server;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private final byte[] image;
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+        private volatile CountDownLatch arrived = new CountDownLatch(0);
+        private volatile String maxAge = "3600";
+
+        // guarded by this
+        private final List<String> paths = new ArrayList<>();
+        private final List<Map<String, String>> validators = new ArrayList<>();
+        private final Map<String, Integer> running = new HashMap<>();
+        private final Map<String, Integer> maxRunning = new HashMap<>();
+        private int sent = 0;
+        private int notModified = 0;
+
+        private TileServer() throws IOException {
+            BufferedImage img = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ImageIO.write(img, "png", bytes);
+            image = bytes.toByteArray();
+
+            // any address, "localhost" may resolve to IPv6
+            server = HttpServer.create(new InetSocketAddress(0), 0);
+            server.createContext("/", this);
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        private int getPort() {
+            return server.getAddress().getPort();
+        }
+
+        private void stop() {
+            gate.countDown();
+            server.stop(0);
+            executor.shutdownNow();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String host = exchange.getRequestHeaders().getFirst("Host");
+            String etag = exchange.getRequestHeaders().getFirst("If-None-Match");
+            String since = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+            synchronized (this) {
+                paths.add(exchange.getRequestURI().getPath());
+                Map<String, String> request = new HashMap<>();
+                request.put("If-None-Match", etag);
+                request.put("If-Modified-Since", since);
+                validators.add(request);
+                int count = running.containsKey(host) ? running.get(host) + 1 : 1;
+                running.put(host, count);
+                if (!maxRunning.containsKey(host) || maxRunning.get(host) < count) {
+                    maxRunning.put(host, count);
+                }
+            }
+            arrived.countDown();
+            try {
+                gate.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=" + maxAge);
+                if (ETAG.equals(etag) || LAST_MODIFIED.equals(since)) {
+                    synchronized (this) {
+                        notModified++;
+                    }
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    synchronized (this) {
+                        sent++;
+                    }
+                    exchange.getResponseHeaders().set("Content-Type", "image/png");
+                    exchange.sendResponseHeaders(200, image.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(image);
+                    out.close();
+                }
+            } finally {
+                synchronized (this) {
+                    running.put(host, running.get(host) - 1);
+                }
+                exchange.close();
+            }
+        }
+    }
+
+    private TileServer server;
+    private TileDispatcher dispatcher;
+    private final BlockingQueue<Tile> finished = new LinkedBlockingQueue<>();
+    private final TileLoaderListener listener = new TileLoaderListener() {
+        @Override
+        public void tileLoadingFinished(Tile tile, boolean success) {
+            finished.add(tile);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        server = new TileServer();
+        dispatcher = new TileDispatcher(2);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * hold back requests until {@link #openGate()} is called
+     * @param requests number of requests expected to arrive
+     */
+    private void closeGate(int requests) {
+        server.gate = new CountDownLatch(1);
+        server.arrived = new CountDownLatch(requests);
+    }
+
+    private void openGate() {
+        server.gate.countDown();
+    }
+
+    private void awaitArrived() throws InterruptedException {
+        assertTrue("requests did not arrive", server.arrived.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private TMSTileSource createSource(String name, String host) {
+        return new TMSTileSource(new TileSourceInfo(name, "http://" + host + ":" + server.getPort(), name));
+    }
+
+    private OsmTileLoader createLoader() {
+        OsmTileLoader loader = new OsmTileLoader(listener);
+        loader.setDispatcher(dispatcher);
+        return loader;
+    }
+
+    /**
+     * wait until the given number of tiles has finished loading
+     */
+    private List<Tile> awaitFinished(int count) throws InterruptedException {
+        List<Tile> tiles = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Tile tile = finished.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull("tile not loaded", tile);
+            tiles.add(tile);
+        }
+        return tiles;
+    }
+
+    /**
+     * wait until the given number of jobs has been run. listeners are notified
+     * while the job is still running, so a tile with the same key submitted
+     * before would be coalesced into it.
+     */
+    private void awaitJobs(long count) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (dispatcher.getJobCount() < count) {
+            assertTrue("jobs not finished", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void coalescesTilesWithSameKey() throws Exception {
+        OsmTileLoader loader = createLoader();
+        TMSTileSource source = createSource("coalesce", "127.0.0.1");
+        Tile first = new Tile(source, 1, 2, 3);
+        Tile second = new Tile(source, 1, 2, 3);
+        assertEquals(first.getKey(), second.getKey());
+
+        closeGate(1);
+        loader.createTileLoaderJob(first).submit();
+        awaitArrived();
+        // first job is running, second instance of the same tile is coalesced
+        loader.createTileLoaderJob(second).submit();
+        openGate();
+
+        List<Tile> tiles = awaitFinished(2);
+        assertTrue(tiles.contains(first));
+        assertTrue(tiles.contains(second));
+        assertNotNull(first.getImage());
+        assertNotNull(second.getImage());
+        assertEquals(Collections.singletonList("/3/1/2.png"), server.paths);
+        assertEquals(1, dispatcher.getCoalescedCount());
+    }
+
+    @Test
+    public void limitsConnectionsPerHost() throws Exception {
+        OsmTileLoader loader = createLoader();
+        TMSTileSource sourceA = createSource("hostA", "127.0.0.1");
+        TMSTileSource sourceB = createSource("hostB", "localhost");
+
+        closeGate(4);
+        for (int x = 0; x < 5; x++) {
+            loader.createTileLoaderJob(new Tile(sourceA, x, 0, 5)).submit();
+            loader.createTileLoaderJob(new Tile(sourceB, x, 0, 5)).submit();
+        }
+        // two requests per host are running, the others are held back by the dispatcher
+        awaitArrived();
+        Thread.sleep(200);
+        synchronized (server) {
+            assertEquals(4, server.paths.size());
+        }
+        assertEquals(6, dispatcher.getQueueSize());
+        openGate();
+
+        awaitFinished(10);
+        assertEquals(10, server.sent);
+        for (int max : server.maxRunning.values()) {
+            assertEquals(2, max);
+        }
+        assertEquals(2, server.maxRunning.size());
+    }
+
+    @Test
+    public void runsJobsInOrderOfPriority() throws Exception {
+        dispatcher.setConnectionsPerHost(1);
+        OsmTileLoader loader = createLoader();
+        TMSTileSource source = createSource("priority", "127.0.0.1");
+
+        closeGate(1);
+        loader.createTileLoaderJob(new Tile(source, 0, 0, 1)).submit();
+        awaitArrived();
+        // queued while the first job is running
+        loader.createTileLoaderJob(new Tile(source, 1, 0, 1), OsmTileLoader.PRIORITY_PREFETCH + 1).submit();
+        loader.createTileLoaderJob(new Tile(source, 2, 0, 1), OsmTileLoader.PRIORITY_PREFETCH).submit();
+        loader.createTileLoaderJob(new Tile(source, 3, 0, 1), OsmTileLoader.PRIORITY_VISIBLE).submit();
+        loader.createTileLoaderJob(new Tile(source, 4, 0, 1), OsmTileLoader.PRIORITY_VISIBLE).submit();
+        // newer generation of the same priority goes first
+        dispatcher.newGeneration();
+        loader.createTileLoaderJob(new Tile(source, 5, 0, 1), OsmTileLoader.PRIORITY_PREFETCH).submit();
+        openGate();
+
+        awaitFinished(6);
+        assertEquals(Arrays.asList("/1/0/0.png", "/1/3/0.png", "/1/4/0.png",
+                "/1/5/0.png", "/1/2/0.png", "/1/1/0.png"), server.paths);
+    }
+
+    @Test
+    public void revalidatesExpiredTiles() throws Exception {
+        File file = File.createTempFile("tiles", ".store");
+        file.delete();
+        DiskTileStore store = new DiskTileStore(file, 1024 * 1024);
+        try {
+            DiskTileLoader loader = new DiskTileLoader(listener, store);
+            loader.setDispatcher(dispatcher);
+            TMSTileSource source = createSource("revalidate", "127.0.0.1");
+
+            // expires immediately
+            server.maxAge = "0";
+            Tile tile = new Tile(source, 7, 8, 9);
+            loader.createTileLoaderJob(tile).submit();
+            awaitFinished(1);
+            awaitJobs(1);
+            assertEquals("download", tile.getValue("source"));
+            assertEquals(ETAG, tile.getValue("etag"));
+            Thread.sleep(20);
+
+            server.maxAge = "3600";
+            Tile reloaded = new Tile(source, 7, 8, 9);
+            loader.createTileLoaderJob(reloaded).submit();
+            awaitFinished(1);
+            awaitJobs(2);
+            assertEquals("revalidated", reloaded.getValue("source"));
+            assertNotNull(reloaded.getImage());
+            assertEquals(ETAG, server.validators.get(1).get("If-None-Match"));
+            assertEquals(LAST_MODIFIED, server.validators.get(1).get("If-Modified-Since"));
+            assertEquals(1, server.sent);
+            assertEquals(1, server.notModified);
+            assertTrue(store.getExpires(reloaded.getKey()) > System.currentTimeMillis() + 3000 * 1000);
+
+            // valid now, served from the store without a request
+            Tile cached = new Tile(source, 7, 8, 9);
+            loader.createTileLoaderJob(cached).submit();
+            awaitFinished(1);
+            assertEquals("cache", cached.getValue("source"));
+            assertEquals(2, server.paths.size());
+            assertEquals(0, dispatcher.getCoalescedCount());
+        } finally {
+            store.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void servesExpiredTilesOffline() throws Exception {
+        File file = File.createTempFile("tiles", ".store");
+        file.delete();
+        DiskTileStore store = new DiskTileStore(file, 1024 * 1024);
+        try {
+            DiskTileLoader loader = new DiskTileLoader(listener, store);
+            loader.setDispatcher(dispatcher);
+            TMSTileSource source = createSource("offline", "127.0.0.1");
+
+            server.maxAge = "0";
+            Tile tile = new Tile(source, 1, 1, 1);
+            loader.createTileLoaderJob(tile).submit();
+            awaitFinished(1);
+            awaitJobs(1);
+            assertEquals("download", tile.getValue("source"));
+            long expires = store.getExpires(tile.getKey());
+            Thread.sleep(20);
+
+            // server unreachable
+            server.stop();
+            Tile offline = new Tile(source, 1, 1, 1);
+            loader.createTileLoaderJob(offline).submit();
+            awaitFinished(1);
+            assertEquals("expired", offline.getValue("source"));
+            assertTrue(!offline.hasError());
+            assertNotNull(offline.getImage());
+            // still expired, revalidated when online again
+            assertEquals(expires, store.getExpires(offline.getKey()));
+        } finally {
+            store.close();
+            file.delete();
+        }
+    }
+}